@@ -0,0 +1,109 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin.Annotation;
+import zipkin.Constants;
+import zipkin.Endpoint;
+import zipkin.Span;
+import zipkin.storage.InMemoryStorage;
+import zipkin.storage.StorageAdapters;
+
+/**
+ * Measures ingest into a full store, where each accepted trace evicts the oldest one. Throughput
+ * should be the same regardless of how many services are in the store.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Threads(1)
+public class InMemoryStorageBenchmarks {
+  static final int MAX_SPAN_COUNT = 100000;
+  static final int SPANS_PER_TRACE = 2;
+
+  @Param({"10", "1000", "10000"})
+  int serviceCount;
+
+  Endpoint[] endpoints;
+  StorageAdapters.SpanConsumer consumer;
+  long nextTraceId;
+
+  @Setup public void fillStore() {
+    endpoints = new Endpoint[serviceCount];
+    for (int i = 0; i < serviceCount; i++) {
+      endpoints[i] = Endpoint.create("service" + i, 127 << 24 | 1);
+    }
+    InMemoryStorage storage = InMemoryStorage.builder().maxSpanCount(MAX_SPAN_COUNT).build();
+    consumer = storage.spanConsumer();
+    nextTraceId = 1L;
+    while (storage.acceptedSpanCount() < MAX_SPAN_COUNT) {
+      consumer.accept(nextTrace());
+    }
+  }
+
+  @Benchmark public void accept_fullStore() {
+    consumer.accept(nextTrace());
+  }
+
+  /** Returns a client and server span in different services, newer than the last trace. */
+  List<Span> nextTrace() {
+    long traceId = nextTraceId++;
+    long timestamp = traceId * 1000L;
+    Endpoint client = endpoints[(int) (traceId % serviceCount)];
+    Endpoint server = endpoints[(int) ((traceId + 1) % serviceCount)];
+    List<Span> trace = new ArrayList<>(SPANS_PER_TRACE);
+    trace.add(Span.builder().traceId(traceId).id(traceId).name("get")
+        .timestamp(timestamp).duration(100L)
+        .addAnnotation(Annotation.create(timestamp, Constants.CLIENT_SEND, client))
+        .addAnnotation(Annotation.create(timestamp + 100L, Constants.CLIENT_RECV, client))
+        .build());
+    trace.add(Span.builder().traceId(traceId).parentId(traceId).id(traceId + 1).name("get")
+        .timestamp(timestamp + 10L).duration(80L)
+        .addAnnotation(Annotation.create(timestamp + 10L, Constants.SERVER_RECV, server))
+        .addAnnotation(Annotation.create(timestamp + 90L, Constants.SERVER_SEND, server))
+        .build());
+    return trace;
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(".*" + InMemoryStorageBenchmarks.class.getSimpleName() + ".*")
+        .build();
+
+    new Runner(opt).run();
+  }
+}
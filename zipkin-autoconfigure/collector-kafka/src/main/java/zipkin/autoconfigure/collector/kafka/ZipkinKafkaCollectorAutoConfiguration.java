@@ -13,12 +13,14 @@
  */
 package zipkin.autoconfigure.collector.kafka;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
 import zipkin.collector.CollectorMetrics;
 import zipkin.collector.CollectorSampler;
+import zipkin.collector.CollectorSettings;
 import zipkin.collector.kafka.KafkaCollector;
 import zipkin.storage.StorageComponent;
 
@@ -30,6 +32,9 @@ import zipkin.storage.StorageComponent;
 @EnableConfigurationProperties(ZipkinKafkaCollectorProperties.class)
 @Conditional(KafkaZooKeeperSetCondition.class)
 public class ZipkinKafkaCollectorAutoConfiguration {
+  /** Present when the server binds collector settings shared by all transports */
+  @Autowired(required = false)
+  CollectorSettings settings = CollectorSettings.DEFAULT;
 
   /**
    * This launches a thread to run start. This prevents a several second hang, or worse crash if
@@ -38,7 +43,8 @@ public class ZipkinKafkaCollectorAutoConfiguration {
   @Bean KafkaCollector kafka(ZipkinKafkaCollectorProperties kafka, CollectorSampler sampler,
       CollectorMetrics metrics, StorageComponent storage) {
     final KafkaCollector result =
-        kafka.toBuilder().sampler(sampler).metrics(metrics).storage(storage).build();
+        kafka.toBuilder().sampler(sampler).metrics(metrics).storage(storage)
+            .settings(settings).build();
 
     // don't use @Bean(initMethod = "start") as it can crash the process if zookeeper is down
     Thread start = new Thread("start " + result.getClass().getSimpleName()) {
@@ -26,6 +26,8 @@ public class ZipkinKafkaCollectorProperties {
   private String groupId = "zipkin";
   private int streams = 1;
   private int maxMessageSize = 1024 * 1024;
+  private int decodeThreads;
+  private int decodeQueueSize = 1000;
   private Map<String, String> overrides = new LinkedHashMap<>();
 
   public String getTopic() {
@@ -68,6 +70,22 @@ public class ZipkinKafkaCollectorProperties {
     this.maxMessageSize = maxMessageSize;
   }
 
+  public int getDecodeThreads() {
+    return decodeThreads;
+  }
+
+  public void setDecodeThreads(int decodeThreads) {
+    this.decodeThreads = decodeThreads;
+  }
+
+  public int getDecodeQueueSize() {
+    return decodeQueueSize;
+  }
+
+  public void setDecodeQueueSize(int decodeQueueSize) {
+    this.decodeQueueSize = decodeQueueSize;
+  }
+
   public Map<String, String> getOverrides() {
     return overrides;
   }
@@ -83,6 +101,8 @@ public class ZipkinKafkaCollectorProperties {
         .groupId(groupId)
         .streams(streams)
         .maxMessageSize(maxMessageSize)
+        .decodeThreads(decodeThreads)
+        .decodeQueueSize(decodeQueueSize)
         .overrides(overrides);
   }
 }
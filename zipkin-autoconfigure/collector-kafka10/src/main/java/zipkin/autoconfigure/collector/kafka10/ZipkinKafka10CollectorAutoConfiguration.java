@@ -13,6 +13,7 @@
  */
 package zipkin.autoconfigure.collector.kafka10;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Condition;
@@ -22,6 +23,7 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.core.type.AnnotatedTypeMetadata;
 import zipkin.collector.CollectorMetrics;
 import zipkin.collector.CollectorSampler;
+import zipkin.collector.CollectorSettings;
 import zipkin.collector.kafka10.KafkaCollector;
 import zipkin.storage.StorageComponent;
 
@@ -33,10 +35,14 @@ import zipkin.storage.StorageComponent;
 @EnableConfigurationProperties(ZipkinKafkaCollectorProperties.class)
 @Conditional(ZipkinKafka10CollectorAutoConfiguration.KafkaBootstrapServersSet.class)
 public class ZipkinKafka10CollectorAutoConfiguration { // makes simple type name unique for /autoconfig
+  /** Present when the server binds collector settings shared by all transports */
+  @Autowired(required = false)
+  CollectorSettings settings = CollectorSettings.DEFAULT;
 
   @Bean(initMethod = "start") KafkaCollector kafka(ZipkinKafkaCollectorProperties properties,
       CollectorSampler sampler, CollectorMetrics metrics, StorageComponent storage) {
-    return  properties.toBuilder().sampler(sampler).metrics(metrics).storage(storage).build();
+    return properties.toBuilder().sampler(sampler).metrics(metrics).storage(storage)
+        .settings(settings).build();
   }
 
   /**
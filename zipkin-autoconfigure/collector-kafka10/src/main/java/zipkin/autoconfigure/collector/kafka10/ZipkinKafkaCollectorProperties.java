@@ -28,6 +28,16 @@ public class ZipkinKafkaCollectorProperties {
   private String topic;
   /** Number of Kafka consumer threads to run. */
   private Integer streams;
+  /** Whether to commit offsets only after spans are stored. */
+  private Boolean commitOffsetsAfterStorage;
+  /** Spans awaiting storage before partitions are paused, when committing after storage. */
+  private Integer maxInFlightSpans;
+  /** Times a poll is retried after storage fails, before it is dropped. */
+  private Integer maxStorageRetries;
+  /** Threads decoding messages off the consumer threads, or zero to decode on them. */
+  private Integer decodeThreads;
+  /** Messages waiting for or being decoded before consumer threads block. */
+  private Integer decodeQueueSize;
   /** Additional Kafka consumer configuration. */
   private Map<String, String> overrides = new LinkedHashMap<>();
 
@@ -63,6 +73,46 @@ public class ZipkinKafkaCollectorProperties {
     this.streams = streams;
   }
 
+  public Boolean getCommitOffsetsAfterStorage() {
+    return commitOffsetsAfterStorage;
+  }
+
+  public void setCommitOffsetsAfterStorage(Boolean commitOffsetsAfterStorage) {
+    this.commitOffsetsAfterStorage = commitOffsetsAfterStorage;
+  }
+
+  public Integer getMaxInFlightSpans() {
+    return maxInFlightSpans;
+  }
+
+  public void setMaxInFlightSpans(Integer maxInFlightSpans) {
+    this.maxInFlightSpans = maxInFlightSpans;
+  }
+
+  public Integer getMaxStorageRetries() {
+    return maxStorageRetries;
+  }
+
+  public void setMaxStorageRetries(Integer maxStorageRetries) {
+    this.maxStorageRetries = maxStorageRetries;
+  }
+
+  public Integer getDecodeThreads() {
+    return decodeThreads;
+  }
+
+  public void setDecodeThreads(Integer decodeThreads) {
+    this.decodeThreads = decodeThreads;
+  }
+
+  public Integer getDecodeQueueSize() {
+    return decodeQueueSize;
+  }
+
+  public void setDecodeQueueSize(Integer decodeQueueSize) {
+    this.decodeQueueSize = decodeQueueSize;
+  }
+
   public Map<String, String> getOverrides() {
     return overrides;
   }
@@ -77,6 +127,13 @@ public class ZipkinKafkaCollectorProperties {
     if (groupId != null) result.groupId(groupId);
     if (topic != null) result.topic(topic);
     if (streams != null) result.streams(streams);
+    if (commitOffsetsAfterStorage != null) {
+      result.commitOffsetsAfterStorage(commitOffsetsAfterStorage);
+    }
+    if (maxInFlightSpans != null) result.maxInFlightSpans(maxInFlightSpans);
+    if (maxStorageRetries != null) result.maxStorageRetries(maxStorageRetries);
+    if (decodeThreads != null) result.decodeThreads(decodeThreads);
+    if (decodeQueueSize != null) result.decodeQueueSize(decodeQueueSize);
     if (overrides != null) result.overrides(overrides);
     return result;
   }
@@ -13,12 +13,14 @@
  */
 package zipkin.autoconfigure.collector.scribe;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import zipkin.collector.CollectorMetrics;
 import zipkin.collector.CollectorSampler;
+import zipkin.collector.CollectorSettings;
 import zipkin.collector.scribe.ScribeCollector;
 import zipkin.storage.StorageComponent;
 
@@ -31,9 +33,14 @@ import zipkin.storage.StorageComponent;
 @EnableConfigurationProperties(ZipkinScribeCollectorProperties.class)
 @ConditionalOnProperty(value = "zipkin.collector.scribe.enabled", havingValue = "true")
 public class ZipkinScribeCollectorAutoConfiguration {
+  /** Present when the server binds collector settings shared by all transports */
+  @Autowired(required = false)
+  CollectorSettings settings = CollectorSettings.DEFAULT;
+
   /** The init method will block until the scribe port is listening, or crash on port conflict */
   @Bean(initMethod = "start") ScribeCollector scribe(ZipkinScribeCollectorProperties scribe,
       CollectorSampler sampler, CollectorMetrics metrics, StorageComponent storage) {
-    return scribe.toBuilder().sampler(sampler).metrics(metrics).storage(storage).build();
+    return scribe.toBuilder().sampler(sampler).metrics(metrics).storage(storage)
+        .settings(settings).build();
   }
 }
@@ -20,6 +20,7 @@ import zipkin.collector.scribe.ScribeCollector;
 public class ZipkinScribeCollectorProperties {
   private String category = "zipkin";
   private int port = 9410;
+  private int decodeThreads;
 
   public String getCategory() {
     return category;
@@ -37,9 +38,18 @@ public class ZipkinScribeCollectorProperties {
     this.port = port;
   }
 
+  public int getDecodeThreads() {
+    return decodeThreads;
+  }
+
+  public void setDecodeThreads(int decodeThreads) {
+    this.decodeThreads = decodeThreads;
+  }
+
   public ScribeCollector.Builder toBuilder() {
     return ScribeCollector.builder()
         .category(category)
-        .port(port);
+        .port(port)
+        .decodeThreads(decodeThreads);
   }
 }
@@ -38,6 +38,14 @@ public class ZipkinCassandraStorageProperties implements Serializable { // for S
   private int indexCacheTtl = 60;
   /** See {@link CassandraStorage.Builder#indexFetchMultiplier(int)} */
   private int indexFetchMultiplier = 3;
+  /** See {@link CassandraStorage.Builder#maxBatchBytes(int)} */
+  private int maxBatchBytes = 0;
+  /** See {@link CassandraStorage.Builder#maxInFlightWrites(int)} */
+  private int maxInFlightWrites = 0;
+  /** See {@link CassandraStorage.Builder#inFlightWritesPolicy(CassandraStorage.InFlightWritesPolicy)} */
+  private CassandraStorage.InFlightWritesPolicy inFlightWritesPolicy = CassandraStorage.InFlightWritesPolicy.WAIT;
+  /** See {@link CassandraStorage.Builder#inFlightWritesTimeout(int)} */
+  private int inFlightWritesTimeout = 1000;
 
   public String getKeyspace() {
     return keyspace;
@@ -159,6 +167,38 @@ public class ZipkinCassandraStorageProperties implements Serializable { // for S
     this.indexFetchMultiplier = indexFetchMultiplier;
   }
 
+  public int getMaxBatchBytes() {
+    return maxBatchBytes;
+  }
+
+  public void setMaxBatchBytes(int maxBatchBytes) {
+    this.maxBatchBytes = maxBatchBytes;
+  }
+
+  public int getMaxInFlightWrites() {
+    return maxInFlightWrites;
+  }
+
+  public void setMaxInFlightWrites(int maxInFlightWrites) {
+    this.maxInFlightWrites = maxInFlightWrites;
+  }
+
+  public CassandraStorage.InFlightWritesPolicy getInFlightWritesPolicy() {
+    return inFlightWritesPolicy;
+  }
+
+  public void setInFlightWritesPolicy(CassandraStorage.InFlightWritesPolicy inFlightWritesPolicy) {
+    this.inFlightWritesPolicy = inFlightWritesPolicy;
+  }
+
+  public int getInFlightWritesTimeout() {
+    return inFlightWritesTimeout;
+  }
+
+  public void setInFlightWritesTimeout(int inFlightWritesTimeout) {
+    this.inFlightWritesTimeout = inFlightWritesTimeout;
+  }
+
   public CassandraStorage.Builder toBuilder() {
     return CassandraStorage.builder()
         .keyspace(keyspace)
@@ -173,6 +213,10 @@ public class ZipkinCassandraStorageProperties implements Serializable { // for S
         .indexTtl(indexTtl)
         .indexCacheMax(indexCacheMax)
         .indexCacheTtl(indexCacheTtl)
-        .indexFetchMultiplier(indexFetchMultiplier);
+        .indexFetchMultiplier(indexFetchMultiplier)
+        .maxBatchBytes(maxBatchBytes)
+        .maxInFlightWrites(maxInFlightWrites)
+        .inFlightWritesPolicy(inFlightWritesPolicy)
+        .inFlightWritesTimeout(inFlightWritesTimeout);
   }
 }
@@ -34,6 +34,12 @@ public class ZipkinCassandra3StorageProperties implements Serializable { // for
   private String password;
   /** See {@link Cassandra3Storage.Builder#indexFetchMultiplier(int)} */
   private int indexFetchMultiplier = 3;
+  /** See {@link Cassandra3Storage.Builder#maxInFlightWrites(int)} */
+  private int maxInFlightWrites = 0;
+  /** See {@link Cassandra3Storage.Builder#inFlightWritesPolicy(Cassandra3Storage.InFlightWritesPolicy)} */
+  private Cassandra3Storage.InFlightWritesPolicy inFlightWritesPolicy = Cassandra3Storage.InFlightWritesPolicy.WAIT;
+  /** See {@link Cassandra3Storage.Builder#inFlightWritesTimeout(int)} */
+  private int inFlightWritesTimeout = 1000;
 
   public String getKeyspace() {
     return keyspace;
@@ -107,6 +113,30 @@ public class ZipkinCassandra3StorageProperties implements Serializable { // for
     this.indexFetchMultiplier = indexFetchMultiplier;
   }
 
+  public int getMaxInFlightWrites() {
+    return maxInFlightWrites;
+  }
+
+  public void setMaxInFlightWrites(int maxInFlightWrites) {
+    this.maxInFlightWrites = maxInFlightWrites;
+  }
+
+  public Cassandra3Storage.InFlightWritesPolicy getInFlightWritesPolicy() {
+    return inFlightWritesPolicy;
+  }
+
+  public void setInFlightWritesPolicy(Cassandra3Storage.InFlightWritesPolicy inFlightWritesPolicy) {
+    this.inFlightWritesPolicy = inFlightWritesPolicy;
+  }
+
+  public int getInFlightWritesTimeout() {
+    return inFlightWritesTimeout;
+  }
+
+  public void setInFlightWritesTimeout(int inFlightWritesTimeout) {
+    this.inFlightWritesTimeout = inFlightWritesTimeout;
+  }
+
   public Builder toBuilder() {
     return builder()
         .keyspace(keyspace)
@@ -117,6 +147,9 @@ public class ZipkinCassandra3StorageProperties implements Serializable { // for
         .useSsl(useSsl)
         .username(username)
         .password(password)
-        .indexFetchMultiplier(indexFetchMultiplier);
+        .indexFetchMultiplier(indexFetchMultiplier)
+        .maxInFlightWrites(maxInFlightWrites)
+        .inFlightWritesPolicy(inFlightWritesPolicy)
+        .inFlightWritesTimeout(inFlightWritesTimeout);
   }
 }
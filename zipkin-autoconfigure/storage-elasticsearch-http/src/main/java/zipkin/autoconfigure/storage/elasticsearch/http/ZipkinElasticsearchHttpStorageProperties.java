@@ -50,6 +50,22 @@ public class ZipkinElasticsearchHttpStorageProperties implements Serializable {
   private String password;
   /** When set, controls the volume of HTTP logging of the Elasticsearch Api. Options are BASIC, HEADERS, BODY */
   private HttpLoggingInterceptor.Level httpLogging;
+  /** Milliseconds to wait for more spans before sending a bulk request. Defaults to 0 (disabled) */
+  private int bulkLinger = 0;
+  /** Documents in a bulk request before it is sent regardless of linger. Defaults to 5000 */
+  private int bulkMaxDocuments = 5000;
+  /** Bytes in a bulk request before it is sent regardless of linger. Defaults to 5MiB */
+  private int bulkMaxBytes = 5 * 1024 * 1024;
+  /** Bulk requests sent concurrently when linger is enabled. Defaults to 2 */
+  private int bulkConcurrency = 2;
+  /** Times to resend documents Elasticsearch refused with a transient error. Defaults to 3 */
+  private int bulkRetries = 3;
+  /** When true, bulk and search request bodies are gzipped. Defaults to false */
+  private boolean compressRequests = false;
+  /** The gzip level from 1 (fastest) to 9 (smallest) used when compressing requests. Defaults to 6 */
+  private int compressionLevel = 6;
+  /** When positive, milliseconds between reloading names cached in memory. Defaults to 0 */
+  private int namesRefreshInterval = 0;
 
   public String getPipeline() {
     return pipeline;
@@ -151,6 +167,70 @@ public class ZipkinElasticsearchHttpStorageProperties implements Serializable {
     this.httpLogging = httpLogging;
   }
 
+  public int getBulkLinger() {
+    return bulkLinger;
+  }
+
+  public void setBulkLinger(int bulkLinger) {
+    this.bulkLinger = bulkLinger;
+  }
+
+  public int getBulkMaxDocuments() {
+    return bulkMaxDocuments;
+  }
+
+  public void setBulkMaxDocuments(int bulkMaxDocuments) {
+    this.bulkMaxDocuments = bulkMaxDocuments;
+  }
+
+  public int getBulkMaxBytes() {
+    return bulkMaxBytes;
+  }
+
+  public void setBulkMaxBytes(int bulkMaxBytes) {
+    this.bulkMaxBytes = bulkMaxBytes;
+  }
+
+  public int getBulkConcurrency() {
+    return bulkConcurrency;
+  }
+
+  public void setBulkConcurrency(int bulkConcurrency) {
+    this.bulkConcurrency = bulkConcurrency;
+  }
+
+  public int getBulkRetries() {
+    return bulkRetries;
+  }
+
+  public void setBulkRetries(int bulkRetries) {
+    this.bulkRetries = bulkRetries;
+  }
+
+  public boolean isCompressRequests() {
+    return compressRequests;
+  }
+
+  public void setCompressRequests(boolean compressRequests) {
+    this.compressRequests = compressRequests;
+  }
+
+  public int getCompressionLevel() {
+    return compressionLevel;
+  }
+
+  public void setCompressionLevel(int compressionLevel) {
+    this.compressionLevel = compressionLevel;
+  }
+
+  public int getNamesRefreshInterval() {
+    return namesRefreshInterval;
+  }
+
+  public void setNamesRefreshInterval(int namesRefreshInterval) {
+    this.namesRefreshInterval = namesRefreshInterval;
+  }
+
   public ElasticsearchHttpStorage.Builder toBuilder(OkHttpClient client) {
     ElasticsearchHttpStorage.Builder builder = ElasticsearchHttpStorage.builder(client);
     if (hosts != null) builder.hosts(hosts);
@@ -160,6 +240,14 @@ public class ZipkinElasticsearchHttpStorageProperties implements Serializable {
         .pipeline(pipeline)
         .maxRequests(maxRequests)
         .indexShards(indexShards)
-        .indexReplicas(indexReplicas);
+        .indexReplicas(indexReplicas)
+        .bulkLinger(bulkLinger)
+        .bulkMaxDocuments(bulkMaxDocuments)
+        .bulkMaxBytes(bulkMaxBytes)
+        .bulkConcurrency(bulkConcurrency)
+        .bulkRetries(bulkRetries)
+        .compressRequests(compressRequests)
+        .compressionLevel(compressionLevel)
+        .namesRefreshInterval(namesRefreshInterval);
   }
 }
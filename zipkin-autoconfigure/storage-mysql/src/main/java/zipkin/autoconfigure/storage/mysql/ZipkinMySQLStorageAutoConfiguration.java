@@ -57,6 +57,9 @@ public class ZipkinMySQLStorageAutoConfiguration {
         .strictTraceId(strictTraceId)
         .executor(executor)
         .datasource(dataSource)
+        .writerThreads(mysql.getWriterThreads())
+        .writerQueueSize(mysql.getWriterQueueSize())
+        .retentionDays(mysql.getRetentionDays())
         .listenerProvider(listener).build();
   }
 }
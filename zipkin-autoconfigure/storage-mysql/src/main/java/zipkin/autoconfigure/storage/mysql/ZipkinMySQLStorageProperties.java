@@ -29,6 +29,12 @@ public class ZipkinMySQLStorageProperties implements Serializable { // for Spark
   private String db = "zipkin";
   private int maxActive = 10;
   private boolean useSsl;
+  /** When positive, spans are written by this many dedicated threads */
+  private int writerThreads = 4;
+  /** Span consumer calls waiting for a writer thread before further calls are rejected */
+  private int writerQueueSize = 1000;
+  /** When positive, daily partitions older than this are dropped. Requires mysql-partitioned.sql */
+  private int retentionDays = 0;
 
   public String getHost() {
     return host;
@@ -86,6 +92,30 @@ public class ZipkinMySQLStorageProperties implements Serializable { // for Spark
     this.useSsl = useSsl;
   }
 
+  public int getWriterThreads() {
+    return writerThreads;
+  }
+
+  public void setWriterThreads(int writerThreads) {
+    this.writerThreads = writerThreads;
+  }
+
+  public int getWriterQueueSize() {
+    return writerQueueSize;
+  }
+
+  public void setWriterQueueSize(int writerQueueSize) {
+    this.writerQueueSize = writerQueueSize;
+  }
+
+  public int getRetentionDays() {
+    return retentionDays;
+  }
+
+  public void setRetentionDays(int retentionDays) {
+    this.retentionDays = retentionDays;
+  }
+
   public DataSource toDataSource() {
     StringBuilder url = new StringBuilder("jdbc:mysql://");
     url.append(getHost()).append(":").append(getPort());
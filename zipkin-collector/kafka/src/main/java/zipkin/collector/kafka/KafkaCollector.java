@@ -27,6 +27,9 @@ import zipkin.collector.Collector;
 import zipkin.collector.CollectorComponent;
 import zipkin.collector.CollectorMetrics;
 import zipkin.collector.CollectorSampler;
+import zipkin.collector.CollectorSettings;
+import zipkin.collector.DecodeTimings;
+import zipkin.collector.ParallelDecoder;
 import zipkin.internal.LazyCloseable;
 import zipkin.storage.AsyncSpanConsumer;
 import zipkin.storage.StorageComponent;
@@ -34,6 +37,7 @@ import zipkin.storage.StorageComponent;
 import static kafka.consumer.Consumer.createJavaConsumerConnector;
 import static org.apache.kafka.clients.consumer.ConsumerConfig.AUTO_OFFSET_RESET_CONFIG;
 import static org.apache.kafka.clients.consumer.ConsumerConfig.GROUP_ID_CONFIG;
+import static zipkin.internal.Util.checkArgument;
 import static zipkin.internal.Util.checkNotNull;
 
 /**
@@ -55,6 +59,8 @@ public final class KafkaCollector implements CollectorComponent {
     CollectorMetrics metrics = CollectorMetrics.NOOP_METRICS;
     String topic = "zipkin";
     int streams = 1;
+    int decodeThreads;
+    int decodeQueueSize = 1000;
 
     @Override public Builder storage(StorageComponent storage) {
       delegate.storage(storage);
@@ -72,6 +78,12 @@ public final class KafkaCollector implements CollectorComponent {
       return this;
     }
 
+    /** Settings shared with other transports, ex queueing or tail sampling spans. */
+    public Builder settings(CollectorSettings settings) {
+      delegate.settings(settings);
+      return this;
+    }
+
     /** Topic zipkin spans will be consumed from. Defaults to "zipkin" */
     public Builder topic(String topic) {
       this.topic = checkNotNull(topic, "topic");
@@ -96,6 +108,28 @@ public final class KafkaCollector implements CollectorComponent {
       return this;
     }
 
+    /**
+     * When positive, messages are decoded, sampled and handed to storage by this many threads,
+     * shared by all {@link #streams(int) streams}, instead of the stream threads. This helps when
+     * decoding is the bottleneck, and there are fewer partitions than cores. Messages of a
+     * partition are still accepted in order. Defaults to 0, which decodes on the stream threads.
+     */
+    public Builder decodeThreads(int decodeThreads) {
+      checkArgument(decodeThreads >= 0, "decodeThreads < 0");
+      this.decodeThreads = decodeThreads;
+      return this;
+    }
+
+    /**
+     * When {@link #decodeThreads(int)} is positive, the count of messages waiting for or being
+     * decoded before streams block. Defaults to 1000.
+     */
+    public Builder decodeQueueSize(int decodeQueueSize) {
+      checkArgument(decodeQueueSize > 0, "decodeQueueSize <= 0");
+      this.decodeQueueSize = decodeQueueSize;
+      return this;
+    }
+
     /** Maximum size of a message containing spans in bytes. Defaults to 1 MiB */
     public Builder maxMessageSize(int bytes) {
       properties.put("fetch.message.max.bytes", String.valueOf(bytes));
@@ -149,6 +183,11 @@ public final class KafkaCollector implements CollectorComponent {
     return this;
   }
 
+  /** Time spent decoding messages, when {@link Builder#decodeThreads(int)} is positive. */
+  public DecodeTimings decodeTimings() {
+    return streams.decodeTimings;
+  }
+
   @Override public CheckResult check() {
     try {
       connector.get(); // make sure the connector didn't throw
@@ -192,6 +231,10 @@ public final class KafkaCollector implements CollectorComponent {
     final CollectorMetrics metrics;
     final LazyCloseable<ZookeeperConsumerConnector> connector;
     final AtomicReference<CheckResult> failure = new AtomicReference<>();
+    final int decodeThreads;
+    final int decodeQueueSize;
+    final DecodeTimings decodeTimings = new DecodeTimings();
+    volatile ParallelDecoder decoder;
 
     LazyStreams(Builder builder, LazyCloseable<ZookeeperConsumerConnector> connector) {
       this.streams = builder.streams;
@@ -199,6 +242,8 @@ public final class KafkaCollector implements CollectorComponent {
       this.collector = builder.delegate.build();
       this.metrics = builder.metrics;
       this.connector = connector;
+      this.decodeThreads = builder.decodeThreads;
+      this.decodeQueueSize = builder.decodeQueueSize;
     }
 
     @Override protected ExecutorService compute() {
@@ -209,9 +254,13 @@ public final class KafkaCollector implements CollectorComponent {
       Map<String, Integer> topicCountMap = new LinkedHashMap<>(1);
       topicCountMap.put(topic, streams);
 
+      if (decodeThreads > 0) {
+        decoder = new ParallelDecoder(collector, decodeThreads, decodeQueueSize, decodeTimings);
+      }
+
       for (KafkaStream<byte[], byte[]> stream : connector.get().createMessageStreams(topicCountMap)
           .get(topic)) {
-        pool.execute(guardFailures(new KafkaStreamProcessor(stream, collector, metrics)));
+        pool.execute(guardFailures(new KafkaStreamProcessor(stream, collector, metrics, decoder)));
       }
       return pool;
     }
@@ -230,6 +279,8 @@ public final class KafkaCollector implements CollectorComponent {
     public void close() {
       ExecutorService maybeNull = maybeNull();
       if (maybeNull != null) maybeNull.shutdown();
+      if (decoder != null) decoder.close();
+      collector.close();
     }
   }
 }
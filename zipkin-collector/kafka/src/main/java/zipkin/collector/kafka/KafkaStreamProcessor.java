@@ -14,32 +14,50 @@
 package zipkin.collector.kafka;
 
 import java.util.Collections;
+import java.util.List;
+import kafka.common.TopicAndPartition;
 import kafka.consumer.ConsumerIterator;
 import kafka.consumer.KafkaStream;
+import kafka.message.MessageAndMetadata;
 import zipkin.Codec;
+import zipkin.Span;
 import zipkin.collector.Collector;
 import zipkin.collector.CollectorMetrics;
+import zipkin.collector.ParallelDecoder;
+import zipkin.internal.Nullable;
 
 import static zipkin.storage.Callback.NOOP;
 
-/** Consumes spans from Kafka messages, ignoring malformed input */
+/**
+ * Consumes spans from Kafka messages, ignoring malformed input. When a decoder is present, messages
+ * are decoded on its threads, in order per partition.
+ */
 final class KafkaStreamProcessor implements Runnable {
   final KafkaStream<byte[], byte[]> stream;
   final Collector collector;
   final CollectorMetrics metrics;
+  @Nullable final ParallelDecoder decoder;
 
-  KafkaStreamProcessor(
-      KafkaStream<byte[], byte[]> stream, Collector collector, CollectorMetrics metrics) {
+  KafkaStreamProcessor(KafkaStream<byte[], byte[]> stream, Collector collector,
+      CollectorMetrics metrics, @Nullable ParallelDecoder decoder) {
     this.stream = stream;
     this.collector = collector;
     this.metrics = metrics;
+    this.decoder = decoder;
   }
 
+  final ParallelDecoder.SpansConsumer acceptSpans = new ParallelDecoder.SpansConsumer() {
+    @Override public void accept(List<Span> spans) {
+      collector.accept(spans, NOOP);
+    }
+  };
+
   @Override
   public void run() {
     ConsumerIterator<byte[], byte[]> messages = stream.iterator();
     while (messages.hasNext()) {
-      byte[] bytes = messages.next().message();
+      MessageAndMetadata<byte[], byte[]> next = messages.next();
+      byte[] bytes = next.message();
       metrics.incrementMessages();
 
       if (bytes.length == 0) {
@@ -47,6 +65,16 @@ final class KafkaStreamProcessor implements Runnable {
         continue;
       }
 
+      if (decoder != null) {
+        try {
+          decoder.decode(new TopicAndPartition(next.topic(), next.partition()), bytes, acceptSpans);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        continue;
+      }
+
       // In TBinaryProtocol encoding, the first byte is the TType, in a range 0-16
       // .. If the first byte isn't in that range, it isn't a thrift.
       //
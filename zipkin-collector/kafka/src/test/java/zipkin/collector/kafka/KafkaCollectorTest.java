@@ -130,6 +130,24 @@ public class KafkaCollectorTest {
     assertThat(kafkaMetrics.spans()).isEqualTo(TestObjects.TRACE.size());
   }
 
+  /** Ensures messages decoded off the stream thread are still accepted in order */
+  @Test
+  public void decodeThreads_messagesAcceptedInOrder() throws Exception {
+    Builder builder = builder("decode_threads").decodeThreads(2);
+
+    producer.send(new KeyedMessage<>(builder.topic, Codec.THRIFT.writeSpan(TRACE.get(0))));
+    producer.send(new KeyedMessage<>(builder.topic, Codec.JSON.writeSpans(TRACE.subList(1, 3))));
+
+    try (KafkaCollector collector = newKafkaTransport(builder, consumer)) {
+      assertThat(recvdSpans.take()).containsExactly(TRACE.get(0));
+      assertThat(recvdSpans.take()).containsExactlyElementsOf(TRACE.subList(1, 3));
+      assertThat(collector.decodeTimings().requests()).isGreaterThanOrEqualTo(1);
+    }
+
+    assertThat(kafkaMetrics.messages()).isEqualTo(2);
+    assertThat(kafkaMetrics.spans()).isEqualTo(TestObjects.TRACE.size());
+  }
+
   /** Ensures malformed spans don't hang the collector */
   @Test
   public void skipsMalformedData() throws Exception {
@@ -30,6 +30,8 @@ import zipkin.collector.Collector;
 import zipkin.collector.CollectorComponent;
 import zipkin.collector.CollectorMetrics;
 import zipkin.collector.CollectorSampler;
+import zipkin.collector.CollectorSettings;
+import zipkin.collector.DecodeTimings;
 import zipkin.internal.LazyCloseable;
 import zipkin.storage.AsyncSpanConsumer;
 import zipkin.storage.StorageComponent;
@@ -37,6 +39,7 @@ import zipkin.storage.StorageComponent;
 import static org.apache.kafka.clients.consumer.ConsumerConfig.AUTO_OFFSET_RESET_CONFIG;
 import static org.apache.kafka.clients.consumer.ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG;
 import static org.apache.kafka.clients.consumer.ConsumerConfig.GROUP_ID_CONFIG;
+import static zipkin.internal.Util.checkArgument;
 import static zipkin.internal.Util.checkNotNull;
 
 /**
@@ -59,6 +62,11 @@ public final class KafkaCollector implements CollectorComponent {
     CollectorMetrics metrics = CollectorMetrics.NOOP_METRICS;
     String topic = "zipkin";
     int streams = 1;
+    boolean commitOffsetsAfterStorage;
+    int maxInFlightSpans = 10000;
+    int maxStorageRetries = 3;
+    int decodeThreads;
+    int decodeQueueSize = 1000;
 
     @Override public Builder storage(StorageComponent storage) {
       delegate.storage(storage);
@@ -76,6 +84,12 @@ public final class KafkaCollector implements CollectorComponent {
       return this;
     }
 
+    /** Settings shared with other transports, ex queueing or tail sampling spans. */
+    public Builder settings(CollectorSettings settings) {
+      delegate.settings(settings);
+      return this;
+    }
+
     /**
      * Topic zipkin spans will be consumed from. Defaults to "zipkin". Multiple topics may be
      * specified if comma delimited.
@@ -103,6 +117,62 @@ public final class KafkaCollector implements CollectorComponent {
       return this;
     }
 
+    /**
+     * When true, all messages of a poll are stored in one request, and their offsets are committed
+     * only after storage succeeds. When storage fails, the messages are consumed again. This
+     * disables "enable.auto.commit". Defaults to false, which auto-commits offsets regardless of
+     * storage.
+     */
+    public Builder commitOffsetsAfterStorage(boolean commitOffsetsAfterStorage) {
+      this.commitOffsetsAfterStorage = commitOffsetsAfterStorage;
+      return this;
+    }
+
+    /**
+     * When {@link #commitOffsetsAfterStorage(boolean) committing after storage}, partitions are
+     * paused while this many spans await storage, and resumed once half of them are stored. This
+     * bounds the memory used when storage falls behind. Defaults to 10000.
+     */
+    public Builder maxInFlightSpans(int maxInFlightSpans) {
+      checkArgument(maxInFlightSpans > 0, "maxInFlightSpans <= 0");
+      this.maxInFlightSpans = maxInFlightSpans;
+      return this;
+    }
+
+    /**
+     * When {@link #commitOffsetsAfterStorage(boolean) committing after storage}, a poll that still
+     * fails to store after this many retries is dropped, and its offsets committed, so that one bad
+     * batch can't stall the partitions forever. Defaults to 3.
+     */
+    public Builder maxStorageRetries(int maxStorageRetries) {
+      checkArgument(maxStorageRetries >= 0, "maxStorageRetries < 0");
+      this.maxStorageRetries = maxStorageRetries;
+      return this;
+    }
+
+    /**
+     * When positive, messages are decoded, sampled and handed to storage by this many threads per
+     * {@link #streams(int) stream}, instead of the polling thread. This helps when decoding is the
+     * bottleneck, and there are fewer partitions than cores. Messages of a partition are still
+     * accepted in order. Defaults to 0, which decodes on the polling thread.
+     */
+    public Builder decodeThreads(int decodeThreads) {
+      checkArgument(decodeThreads >= 0, "decodeThreads < 0");
+      this.decodeThreads = decodeThreads;
+      return this;
+    }
+
+    /**
+     * When {@link #decodeThreads(int)} is positive, the count of messages waiting for or being
+     * decoded before polling blocks. When {@link #commitOffsetsAfterStorage(boolean) committing
+     * after storage}, this counts polls instead of messages. Defaults to 1000.
+     */
+    public Builder decodeQueueSize(int decodeQueueSize) {
+      checkArgument(decodeQueueSize > 0, "decodeQueueSize <= 0");
+      this.decodeQueueSize = decodeQueueSize;
+      return this;
+    }
+
     /**
      * By default, a consumer will be built from properties derived from builder defaults,
      * as well as "auto.offset.reset" -> "earliest". Any properties set here will override the
@@ -149,6 +219,11 @@ public final class KafkaCollector implements CollectorComponent {
     return this;
   }
 
+  /** Time spent decoding messages, when {@link Builder#decodeThreads(int)} is positive. */
+  public DecodeTimings decodeTimings() {
+    return kafkaWorkers.decodeTimings;
+  }
+
   @Override public CheckResult check() {
     try {
       CheckResult failure = kafkaWorkers.failure.get(); // check the kafka workers didn't quit
@@ -169,6 +244,7 @@ public final class KafkaCollector implements CollectorComponent {
     final Builder builder;
     final AtomicReference<CheckResult> failure = new AtomicReference<>();
     final CopyOnWriteArrayList<KafkaCollectorWorker> workers = new CopyOnWriteArrayList<>();
+    final DecodeTimings decodeTimings = new DecodeTimings();
 
     LazyKafkaWorkers(Builder builder) {
       this.streams = builder.streams;
@@ -181,7 +257,7 @@ public final class KafkaCollector implements CollectorComponent {
           : Executors.newFixedThreadPool(streams);
 
       for (int i = 0; i < streams; i ++) {
-        final KafkaCollectorWorker worker = new KafkaCollectorWorker(builder);
+        final KafkaCollectorWorker worker = new KafkaCollectorWorker(builder, decodeTimings);
         workers.add(worker);
         pool.execute(guardFailures(worker));
       }
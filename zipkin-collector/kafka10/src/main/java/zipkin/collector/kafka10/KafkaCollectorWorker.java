@@ -13,51 +13,134 @@
  */
 package zipkin.collector.kafka10;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetCommitCallback;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.InterruptException;
+import org.apache.kafka.common.errors.TimeoutException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import zipkin.Codec;
+import zipkin.Span;
 import zipkin.collector.Collector;
 import zipkin.collector.CollectorMetrics;
+import zipkin.collector.DecodeTimings;
+import zipkin.collector.MessageLagMetrics;
+import zipkin.collector.ParallelDecoder;
+import zipkin.internal.EncodedSpanList;
+import zipkin.internal.Nullable;
+import zipkin.storage.Callback;
 
 import static zipkin.storage.Callback.NOOP;
 
-/** Consumes spans from Kafka messages, ignoring malformed input */
+/**
+ * Consumes spans from Kafka messages, ignoring malformed input.
+ *
+ * <p>When {@link KafkaCollector.Builder#commitOffsetsAfterStorage(boolean)} is set, each poll is
+ * stored in one request, and offsets are committed only after storage succeeds. Partitions are
+ * paused while too many spans await storage, or after a storage failure, which is retried from the
+ * failed offsets. After {@link KafkaCollector.Builder#maxStorageRetries(int) too many retries}, the
+ * failed poll is dropped and its offsets committed. Messages consumed again are only counted once.
+ *
+ * <p>When {@link KafkaCollector.Builder#decodeThreads(int)} is positive, messages are decoded and
+ * accepted by a {@link ParallelDecoder}, instead of the polling thread. Messages of a partition are
+ * accepted in order, as are polls when committing after storage.
+ */
 final class KafkaCollectorWorker implements Runnable {
   private static final Logger LOG = LoggerFactory.getLogger(KafkaCollectorWorker.class);
+  static final long LAG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+  static final long RETRY_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(1);
 
   final Consumer<byte[], byte[]> kafkaConsumer;
   final Collector collector;
   final CollectorMetrics metrics;
+  final boolean commitOffsetsAfterStorage;
+  final int maxInFlightSpans;
+  final int maxStorageRetries;
+  @Nullable final ParallelDecoder decoder;
   /** Kafka topic partitions currently assigned to this worker. List is not modifiable. */
   final AtomicReference<List<TopicPartition>> assignedPartitions =
       new AtomicReference<>(Collections.emptyList());
 
-  KafkaCollectorWorker(KafkaCollector.Builder builder) {
-    kafkaConsumer = new KafkaConsumer<>(builder.properties);
-    List<String> topics = Arrays.asList(builder.topic.split(","));
-    kafkaConsumer.subscribe(topics, new ConsumerRebalanceListener() {
-      @Override public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
-        assignedPartitions.set(Collections.emptyList());
-      }
+  // Fields below are only accessed by the polling thread, except as noted
+  /** Polls sent to storage, in the order they were polled */
+  final ArrayDeque<StoredBatch> inFlight = new ArrayDeque<>();
+  /** Spans sent to storage, but not yet stored. Decremented by storage callbacks. */
+  final AtomicInteger inFlightSpans = new AtomicInteger();
+  /** Offset after the last message counted in metrics, so retried messages aren't counted again */
+  final Map<TopicPartition, Long> countedOffsets = new HashMap<>();
+  int storageRetries;
+  boolean paused;
+  long retryAfterNanos, lagUpdatedNanos;
 
-      @Override public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
-        assignedPartitions.set(Collections.unmodifiableList(new ArrayList<>(partitions)));
+  /** Visible for testing */
+  final ConsumerRebalanceListener rebalanceListener = new ConsumerRebalanceListener() {
+    @Override public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+      assignedPartitions.set(Collections.emptyList());
+      if (metrics instanceof MessageLagMetrics) {
+        for (TopicPartition partition : partitions) {
+          ((MessageLagMetrics) metrics).removeMessageLag(partition.toString());
+        }
       }
-    });
+      if (!commitOffsetsAfterStorage) return;
+      commitStoredOffsets(true);
+      // Whoever is assigned these partitions next consumes from the last committed offsets
+      inFlight.clear();
+      countedOffsets.keySet().removeAll(partitions);
+      storageRetries = 0;
+    }
+
+    @Override public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+      assignedPartitions.set(Collections.unmodifiableList(new ArrayList<>(partitions)));
+    }
+  };
+
+  KafkaCollectorWorker(KafkaCollector.Builder builder, DecodeTimings decodeTimings) {
+    this(builder, new KafkaConsumer<byte[], byte[]>(consumerProperties(builder)), decodeTimings);
+    List<String> topics = Arrays.asList(builder.topic.split(","));
+    kafkaConsumer.subscribe(topics, rebalanceListener);
+  }
+
+  /** Visible for testing, as this doesn't subscribe to any topic */
+  KafkaCollectorWorker(KafkaCollector.Builder builder, Consumer<byte[], byte[]> kafkaConsumer,
+      DecodeTimings decodeTimings) {
+    this.kafkaConsumer = kafkaConsumer;
     this.collector = builder.delegate.build();
     this.metrics = builder.metrics;
+    this.commitOffsetsAfterStorage = builder.commitOffsetsAfterStorage;
+    this.maxInFlightSpans = builder.maxInFlightSpans;
+    this.maxStorageRetries = builder.maxStorageRetries;
+    this.decoder = builder.decodeThreads > 0
+        ? new ParallelDecoder(collector, builder.decodeThreads, builder.decodeQueueSize,
+        decodeTimings)
+        : null;
+  }
+
+  static Properties consumerProperties(KafkaCollector.Builder builder) {
+    if (!builder.commitOffsetsAfterStorage) return builder.properties;
+    Properties result = new Properties();
+    result.putAll(builder.properties);
+    result.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+    return result;
   }
 
   @Override
@@ -65,41 +148,291 @@ final class KafkaCollectorWorker implements Runnable {
     try {
       LOG.info("Kafka consumer starting polling loop.");
       while (true) {
-        final ConsumerRecords<byte[], byte[]> consumerRecords = kafkaConsumer.poll(1000);
-        LOG.debug("Kafka polling returned batch of {} messages.", consumerRecords.count());
-        for (ConsumerRecord<byte[], byte[]> record : consumerRecords) {
-          metrics.incrementMessages();
-          final byte[] bytes = record.value();
+        poll(1000);
+      }
+    } finally {
+      LOG.info("Kafka consumer polling loop stopped.");
+      if (decoder != null) decoder.close();
+      collector.close();
+      LOG.info("Closing Kafka consumer...");
+      kafkaConsumer.close();
+      LOG.info("Kafka consumer closed.");
+    }
+  }
 
+  /** Polls once, sending any messages received to storage. */
+  void poll(long timeoutMillis) {
+    if (commitOffsetsAfterStorage) {
+      commitStoredOffsets(false);
+      pauseOrResume();
+    }
+    final ConsumerRecords<byte[], byte[]> consumerRecords = kafkaConsumer.poll(timeoutMillis);
+    LOG.debug("Kafka polling returned batch of {} messages.", consumerRecords.count());
+    if (commitOffsetsAfterStorage) {
+      storeBatch(consumerRecords);
+    } else if (decoder != null) {
+      for (TopicPartition partition : consumerRecords.partitions()) {
+        for (ConsumerRecord<byte[], byte[]> record : consumerRecords.records(partition)) {
+          metrics.incrementMessages();
+          byte[] bytes = record.value();
           if (bytes.length == 0) {
             metrics.incrementMessagesDropped();
           } else {
-            // In TBinaryProtocol encoding, the first byte is the TType, in a range 0-16
-            // .. If the first byte isn't in that range, it isn't a thrift.
-            //
-            // When byte(0) == '[' (91), assume it is a list of json-encoded spans
-            //
-            // When byte(0) <= 16, assume it is a TBinaryProtocol-encoded thrift
-            // .. When serializing a Span (Struct), the first byte will be the type of a field
-            // .. When serializing a List[ThriftSpan], the first byte is the member type, TType.STRUCT(12)
-            // .. As ThriftSpan has no STRUCT fields: so, if the first byte is TType.STRUCT(12), it is a list.
-            if (bytes[0] == '[') {
-              collector.acceptSpans(bytes, Codec.JSON, NOOP);
-            } else {
-              if (bytes[0] == 12 /* TType.STRUCT */) {
-                collector.acceptSpans(bytes, Codec.THRIFT, NOOP);
-              } else {
-                collector.acceptSpans(Collections.singletonList(bytes), Codec.THRIFT, NOOP);
-              }
-            }
+            decode(partition, Collections.singletonList(bytes), acceptSpans);
           }
         }
       }
-    } finally {
-      LOG.info("Kafka consumer polling loop stopped.");
-      LOG.info("Closing Kafka consumer...");
-      kafkaConsumer.close();
-      LOG.info("Kafka consumer closed.");
+    } else {
+      for (ConsumerRecord<byte[], byte[]> record : consumerRecords) {
+        acceptRecord(record.value());
+      }
+    }
+    long now = System.nanoTime();
+    if (now - lagUpdatedNanos >= LAG_INTERVAL_NANOS) {
+      lagUpdatedNanos = now;
+      updateLag();
+    }
+  }
+
+  void acceptRecord(byte[] bytes) {
+    metrics.incrementMessages();
+    if (bytes.length == 0) {
+      metrics.incrementMessagesDropped();
+    } else {
+      // In TBinaryProtocol encoding, the first byte is the TType, in a range 0-16
+      // .. If the first byte isn't in that range, it isn't a thrift.
+      //
+      // When byte(0) == '[' (91), assume it is a list of json-encoded spans
+      //
+      // When byte(0) <= 16, assume it is a TBinaryProtocol-encoded thrift
+      // .. When serializing a Span (Struct), the first byte will be the type of a field
+      // .. When serializing a List[ThriftSpan], the first byte is the member type, TType.STRUCT(12)
+      // .. As ThriftSpan has no STRUCT fields: so, if the first byte is TType.STRUCT(12), it is a list.
+      if (bytes[0] == '[') {
+        collector.acceptSpans(bytes, Codec.JSON, NOOP);
+      } else {
+        if (bytes[0] == 12 /* TType.STRUCT */) {
+          collector.acceptSpans(bytes, Codec.THRIFT, NOOP);
+        } else {
+          collector.acceptSpans(Collections.singletonList(bytes), Codec.THRIFT, NOOP);
+        }
+      }
+    }
+  }
+
+  final ParallelDecoder.SpansConsumer acceptSpans = new ParallelDecoder.SpansConsumer() {
+    @Override public void accept(List<Span> spans) {
+      collector.accept(spans, NOOP);
+    }
+  };
+
+  /**
+   * Decodes all messages of a poll, and sends their spans to storage in one request. Messages
+   * consumed again after a storage failure are stored in a separate request, which doesn't update
+   * metrics again.
+   */
+  void storeBatch(ConsumerRecords<byte[], byte[]> consumerRecords) {
+    if (consumerRecords.isEmpty()) return;
+    StoredBatch redelivered = new StoredBatch(inFlightSpans, true);
+    StoredBatch polled = new StoredBatch(inFlightSpans, false);
+    List<byte[]> redeliveredMessages = new ArrayList<>();
+    List<byte[]> polledMessages = new ArrayList<>(consumerRecords.count());
+    for (TopicPartition partition : consumerRecords.partitions()) {
+      Long counted = countedOffsets.get(partition);
+      for (ConsumerRecord<byte[], byte[]> record : consumerRecords.records(partition)) {
+        byte[] message = record.value();
+        if (counted != null && record.offset() < counted) {
+          redelivered.add(partition, record.offset());
+          if (message.length != 0) redeliveredMessages.add(message);
+          continue;
+        }
+        polled.add(partition, record.offset());
+        counted = record.offset() + 1;
+        metrics.incrementMessages();
+        if (message.length == 0) {
+          metrics.incrementMessagesDropped();
+        } else {
+          polledMessages.add(message);
+        }
+      }
+      if (counted != null) countedOffsets.put(partition, counted);
+    }
+    if (!redelivered.nextOffsets.isEmpty()) store(redelivered, redeliveredMessages);
+    if (!polled.nextOffsets.isEmpty()) store(polled, polledMessages);
+  }
+
+  void store(final StoredBatch batch, List<byte[]> messages) {
+    batch.messageCount = messages.size();
+    inFlight.add(batch);
+    ParallelDecoder.SpansConsumer storeSpans = new ParallelDecoder.SpansConsumer() {
+      @Override public void accept(List<Span> spans) {
+        batch.spanCount = spans.size();
+        inFlightSpans.addAndGet(batch.spanCount);
+        collector.storeSpans(spans, batch.redelivered, batch);
+      }
+    };
+    // The decoder counts bytes and malformed messages, so retries are decoded on this thread
+    if (decoder != null && !batch.redelivered) {
+      decode(this, messages, storeSpans); // polls are stored in order, so use one partition key
+      return;
+    }
+    List<List<Span>> decoded = new ArrayList<>(messages.size());
+    for (byte[] message : messages) {
+      if (!batch.redelivered) metrics.incrementBytes(message.length);
+      try {
+        decoded.add(ParallelDecoder.readSpans(message));
+      } catch (RuntimeException e) {
+        if (batch.redelivered) continue;
+        metrics.incrementMessagesDropped();
+        LOG.warn("Cannot decode spans", e);
+      }
+    }
+    storeSpans.accept(EncodedSpanList.concat(decoded));
+  }
+
+  void decode(Object partition, List<byte[]> messages, ParallelDecoder.SpansConsumer consumer) {
+    try {
+      decoder.decode(partition, messages, consumer);
+    } catch (InterruptedException e) {
+      throw new InterruptException(e);
+    }
+  }
+
+  /**
+   * Commits offsets of batches stored, up to the first not yet stored. If a batch failed, its
+   * partitions are rewound, so that it is consumed again. Once retries are exhausted, the batch is
+   * dropped and its offsets committed.
+   */
+  void commitStoredOffsets(boolean sync) {
+    Map<TopicPartition, OffsetAndMetadata> toCommit = new LinkedHashMap<>();
+    while (!inFlight.isEmpty() && inFlight.peek().done) {
+      StoredBatch batch = inFlight.peek();
+      if (batch.error != null) {
+        if (storageRetries < maxStorageRetries) {
+          storageRetries++;
+          retryFrom(batch);
+          break;
+        }
+        drop(batch);
+      }
+      storageRetries = 0;
+      toCommit.putAll(inFlight.poll().nextOffsets);
+    }
+    if (toCommit.isEmpty()) return;
+    if (sync) {
+      kafkaConsumer.commitSync(toCommit);
+    } else {
+      kafkaConsumer.commitAsync(toCommit, LOG_COMMIT_FAILURE);
+    }
+  }
+
+  /** Counts the messages and spans of a batch that failed its last retry as dropped */
+  void drop(StoredBatch failed) {
+    LOG.warn("Dropping {} messages after {} storage retries, up to offsets {}",
+        failed.messageCount, storageRetries, failed.nextOffsets, failed.error);
+    for (int i = 0; i < failed.messageCount; i++) {
+      metrics.incrementMessagesDropped();
+    }
+    if (failed.spanCount > 0) metrics.incrementSpansDropped(failed.spanCount);
+  }
+
+  /** Rewinds the partitions of the failed and subsequent batches, and backs off before retrying */
+  void retryFrom(StoredBatch failed) {
+    Map<TopicPartition, Long> rewind = new LinkedHashMap<>();
+    for (StoredBatch batch : inFlight) {
+      for (Map.Entry<TopicPartition, Long> entry : batch.firstOffsets.entrySet()) {
+        if (!rewind.containsKey(entry.getKey())) rewind.put(entry.getKey(), entry.getValue());
+      }
+    }
+    inFlight.clear(); // results of later batches no longer matter, as they will be consumed again
+    LOG.warn("Retrying storage of spans from {}", rewind, failed.error);
+    for (Map.Entry<TopicPartition, Long> entry : rewind.entrySet()) {
+      if (kafkaConsumer.assignment().contains(entry.getKey())) {
+        kafkaConsumer.seek(entry.getKey(), entry.getValue());
+      }
+    }
+    retryAfterNanos = System.nanoTime() + RETRY_BACKOFF_NANOS;
+  }
+
+  /**
+   * Pauses assigned partitions when too many spans are in flight, or a failure is being retried.
+   * Partitions resume once half of the spans in flight are stored.
+   */
+  void pauseOrResume() {
+    boolean backingOff = retryAfterNanos != 0L && System.nanoTime() - retryAfterNanos < 0;
+    if (!backingOff) retryAfterNanos = 0L;
+    int spans = inFlightSpans.get();
+    boolean pause = backingOff
+        || spans >= maxInFlightSpans
+        || (paused && spans > maxInFlightSpans / 2);
+    if (pause) {
+      if (!paused) LOG.debug("Pausing consumption with {} spans in flight", spans);
+      kafkaConsumer.pause(kafkaConsumer.assignment()); // includes any newly assigned partitions
+    } else if (paused) {
+      LOG.debug("Resuming consumption with {} spans in flight", spans);
+      kafkaConsumer.resume(kafkaConsumer.paused());
+    }
+    paused = pause;
+  }
+
+  /** Reports the messages not yet consumed from each assigned partition */
+  void updateLag() {
+    if (!(metrics instanceof MessageLagMetrics)) return;
+    Collection<TopicPartition> assignment = kafkaConsumer.assignment();
+    if (assignment.isEmpty()) return;
+    Map<TopicPartition, Long> endOffsets;
+    try {
+      endOffsets = kafkaConsumer.endOffsets(assignment);
+    } catch (TimeoutException e) {
+      LOG.debug("Timeout reading end offsets of {}", assignment, e);
+      return;
+    }
+    for (Map.Entry<TopicPartition, Long> entry : endOffsets.entrySet()) {
+      long lag = Math.max(0L, entry.getValue() - kafkaConsumer.position(entry.getKey()));
+      ((MessageLagMetrics) metrics).updateMessageLag(entry.getKey().toString(),
+          (int) Math.min(lag, Integer.MAX_VALUE));
+    }
+  }
+
+  static final OffsetCommitCallback LOG_COMMIT_FAILURE = new OffsetCommitCallback() {
+    @Override
+    public void onComplete(Map<TopicPartition, OffsetAndMetadata> offsets, Exception exception) {
+      // A later commit will include these offsets, so there's no need to retry
+      if (exception != null) LOG.warn("Cannot commit offsets {}", offsets, exception);
+    }
+  };
+
+  /** Offsets of a poll sent to storage, which completes on any thread. */
+  static final class StoredBatch implements Callback<Void> {
+    final AtomicInteger inFlightSpans;
+    /** True when these messages were consumed before, and already counted in metrics */
+    final boolean redelivered;
+    final Map<TopicPartition, Long> firstOffsets = new LinkedHashMap<>();
+    final Map<TopicPartition, OffsetAndMetadata> nextOffsets = new LinkedHashMap<>();
+    int messageCount;
+    volatile int spanCount; // set on the decoding thread, read when dropping
+    volatile Throwable error;
+    volatile boolean done;
+
+    StoredBatch(AtomicInteger inFlightSpans, boolean redelivered) {
+      this.inFlightSpans = inFlightSpans;
+      this.redelivered = redelivered;
+    }
+
+    void add(TopicPartition partition, long offset) {
+      if (!firstOffsets.containsKey(partition)) firstOffsets.put(partition, offset);
+      nextOffsets.put(partition, new OffsetAndMetadata(offset + 1));
+    }
+
+    @Override public void onSuccess(Void value) {
+      inFlightSpans.addAndGet(-spanCount);
+      done = true;
+    }
+
+    @Override public void onError(Throwable t) {
+      inFlightSpans.addAndGet(-spanCount);
+      error = t;
+      done = true;
     }
   }
 }
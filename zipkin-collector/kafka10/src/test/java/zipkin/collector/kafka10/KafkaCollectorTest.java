@@ -316,7 +316,7 @@ public class KafkaCollectorTest {
         .storage(buildStorage(consumer));
   }
 
-  private StorageComponent buildStorage(final AsyncSpanConsumer spanConsumer) {
+  static StorageComponent buildStorage(final AsyncSpanConsumer spanConsumer) {
     return new StorageComponent() {
         @Override public SpanStore spanStore() {
           throw new AssertionError();
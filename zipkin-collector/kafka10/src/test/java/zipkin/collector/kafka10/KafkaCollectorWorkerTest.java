@@ -0,0 +1,235 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.collector.kafka10;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Before;
+import org.junit.Test;
+import zipkin.Codec;
+import zipkin.Span;
+import zipkin.collector.DecodeTimings;
+import zipkin.collector.InMemoryCollectorMetrics;
+import zipkin.storage.Callback;
+import zipkin.storage.AsyncSpanConsumer;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin.TestObjects.TRACE;
+
+public class KafkaCollectorWorkerTest {
+  TopicPartition partition = new TopicPartition("zipkin", 0);
+  MockConsumer<byte[], byte[]> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+  InMemoryCollectorMetrics metrics = new InMemoryCollectorMetrics();
+  InMemoryCollectorMetrics kafkaMetrics = metrics.forTransport("kafka");
+
+  DecodeTimings timings = new DecodeTimings();
+  List<List<Span>> stored = new CopyOnWriteArrayList<>();
+  List<Callback<Void>> storageCallbacks = new CopyOnWriteArrayList<>();
+  AsyncSpanConsumer spanConsumer = (spans, callback) -> {
+    stored.add(spans);
+    storageCallbacks.add(callback);
+  };
+  KafkaCollector.Builder builder = KafkaCollector.builder()
+      .storage(KafkaCollectorTest.buildStorage(spanConsumer))
+      .metrics(metrics)
+      .commitOffsetsAfterStorage(true);
+
+  @Before
+  public void assignPartition() {
+    consumer.assign(asList(partition));
+    consumer.updateBeginningOffsets(Collections.singletonMap(partition, 0L));
+    consumer.updateEndOffsets(Collections.singletonMap(partition, 0L));
+  }
+
+  @Test
+  public void storesPollInOneRequest() {
+    KafkaCollectorWorker worker = new KafkaCollectorWorker(builder, consumer, timings);
+    addRecord(0, Codec.THRIFT.writeSpans(TRACE.subList(0, 2)));
+    addRecord(1, Codec.JSON.writeSpans(TRACE.subList(2, 3)));
+    addRecord(2, new byte[0]);
+
+    worker.poll(0);
+
+    assertThat(stored).containsExactly(TRACE);
+    assertThat(kafkaMetrics.messages()).isEqualTo(3);
+    assertThat(kafkaMetrics.messagesDropped()).isEqualTo(1);
+    assertThat(kafkaMetrics.spans()).isEqualTo(TRACE.size());
+  }
+
+  @Test
+  public void commitsOffsetsOnlyAfterStorage() {
+    KafkaCollectorWorker worker = new KafkaCollectorWorker(builder, consumer, timings);
+    addRecord(0, Codec.THRIFT.writeSpans(TRACE));
+    addRecord(1, Codec.THRIFT.writeSpans(TRACE));
+
+    worker.poll(0);
+    worker.poll(0);
+    assertThat(consumer.committed(partition)).isNull();
+
+    storageCallbacks.get(0).onSuccess(null);
+    worker.poll(0);
+    assertThat(consumer.committed(partition).offset()).isEqualTo(2L);
+  }
+
+  @Test
+  public void pausesWhileTooManySpansInFlight() {
+    KafkaCollectorWorker worker =
+        new KafkaCollectorWorker(builder.maxInFlightSpans(TRACE.size()), consumer, timings);
+    addRecord(0, Codec.THRIFT.writeSpans(TRACE));
+
+    worker.poll(0);
+    worker.poll(0);
+    assertThat(consumer.paused()).containsExactly(partition);
+
+    storageCallbacks.get(0).onSuccess(null);
+    worker.poll(0);
+    assertThat(consumer.paused()).isEmpty();
+  }
+
+  @Test
+  public void rewindsAndBacksOffWhenStorageFails() {
+    KafkaCollectorWorker worker = new KafkaCollectorWorker(builder, consumer, timings);
+    addRecord(0, Codec.THRIFT.writeSpans(TRACE));
+    addRecord(1, Codec.THRIFT.writeSpans(TRACE));
+
+    worker.poll(0);
+    storageCallbacks.get(0).onError(new IllegalStateException("storage down"));
+    worker.poll(0);
+
+    assertThat(consumer.committed(partition)).isNull();
+    assertThat(consumer.position(partition)).isEqualTo(0L);
+    assertThat(consumer.paused()).containsExactly(partition);
+  }
+
+  @Test
+  public void countsRetriedMessagesOnce_thenDropsAfterMaxRetries() {
+    KafkaCollectorWorker worker =
+        new KafkaCollectorWorker(builder.maxStorageRetries(1), consumer, timings);
+    addRecord(0, Codec.THRIFT.writeSpans(TRACE));
+    addRecord(1, Codec.THRIFT.writeSpans(TRACE));
+
+    worker.poll(0);
+    storageCallbacks.get(0).onError(new IllegalStateException("storage down"));
+    worker.poll(0); // rewinds
+
+    worker.retryAfterNanos = 0L; // skip the back-off
+    addRecord(0, Codec.THRIFT.writeSpans(TRACE));
+    addRecord(1, Codec.THRIFT.writeSpans(TRACE));
+    worker.poll(0);
+
+    assertThat(stored).hasSize(2);
+    assertThat(kafkaMetrics.messages()).isEqualTo(2);
+    assertThat(kafkaMetrics.bytes()).isEqualTo(2 * Codec.THRIFT.writeSpans(TRACE).length);
+    assertThat(kafkaMetrics.spans()).isEqualTo(2 * TRACE.size());
+
+    storageCallbacks.get(1).onError(new IllegalStateException("storage down"));
+    worker.poll(0);
+
+    assertThat(consumer.committed(partition).offset()).isEqualTo(2L);
+    assertThat(consumer.paused()).isEmpty();
+    assertThat(kafkaMetrics.messagesDropped()).isEqualTo(2);
+    assertThat(kafkaMetrics.spansDropped()).isEqualTo(2 * TRACE.size());
+  }
+
+  @Test
+  public void storesNewMessagesSeparatelyFromRetries() {
+    KafkaCollectorWorker worker = new KafkaCollectorWorker(builder, consumer, timings);
+    addRecord(0, Codec.THRIFT.writeSpans(TRACE));
+
+    worker.poll(0);
+    storageCallbacks.get(0).onError(new IllegalStateException("storage down"));
+    worker.poll(0); // rewinds
+
+    worker.retryAfterNanos = 0L;
+    addRecord(0, Codec.THRIFT.writeSpans(TRACE));
+    addRecord(1, Codec.JSON.writeSpans(TRACE));
+    worker.poll(0);
+    storageCallbacks.get(1).onSuccess(null);
+    storageCallbacks.get(2).onSuccess(null);
+    worker.poll(0);
+
+    assertThat(stored).containsExactly(TRACE, TRACE, TRACE);
+    assertThat(kafkaMetrics.messages()).isEqualTo(2);
+    assertThat(kafkaMetrics.spans()).isEqualTo(2 * TRACE.size());
+    assertThat(consumer.committed(partition).offset()).isEqualTo(2L);
+  }
+
+  @Test
+  public void reportsLagPerPartition() {
+    KafkaCollectorWorker worker = new KafkaCollectorWorker(builder, consumer, timings);
+    consumer.updateEndOffsets(Collections.singletonMap(partition, 5L));
+    addRecord(0, Codec.THRIFT.writeSpans(TRACE));
+    addRecord(1, Codec.THRIFT.writeSpans(TRACE));
+
+    worker.poll(0);
+
+    assertThat(kafkaMetrics.messageLag("zipkin-0")).isEqualTo(3);
+  }
+
+  @Test
+  public void removesLagOfRevokedPartitions() {
+    KafkaCollectorWorker worker = new KafkaCollectorWorker(builder, consumer, timings);
+    consumer.updateEndOffsets(Collections.singletonMap(partition, 5L));
+    worker.poll(0);
+    assertThat(kafkaMetrics.messageLag("zipkin-0")).isEqualTo(5);
+
+    worker.rebalanceListener.onPartitionsRevoked(asList(partition));
+
+    assertThat(kafkaMetrics.messageLag("zipkin-0")).isZero();
+  }
+
+  @Test
+  public void decodeThreads_storesPollInOneRequest() throws InterruptedException {
+    KafkaCollectorWorker worker =
+        new KafkaCollectorWorker(builder.decodeThreads(2), consumer, timings);
+    addRecord(0, Codec.THRIFT.writeSpans(TRACE.subList(0, 2)));
+    addRecord(1, Codec.JSON.writeSpans(TRACE.subList(2, 3)));
+
+    worker.poll(0);
+    while (storageCallbacks.isEmpty()) Thread.sleep(10);
+    storageCallbacks.get(0).onSuccess(null);
+    worker.poll(0);
+
+    assertThat(stored).containsExactly(TRACE);
+    assertThat(consumer.committed(partition).offset()).isEqualTo(2L);
+    assertThat(timings.requests()).isEqualTo(1);
+    worker.decoder.close();
+  }
+
+  @Test
+  public void decodeThreads_acceptsMessagesInOrder() throws InterruptedException {
+    KafkaCollectorWorker worker = new KafkaCollectorWorker(
+        builder.commitOffsetsAfterStorage(false).decodeThreads(2), consumer, timings);
+    for (int i = 0; i < TRACE.size(); i++) {
+      addRecord(i, Codec.JSON.writeSpans(TRACE.subList(i, i + 1)));
+    }
+
+    worker.poll(0);
+    while (stored.size() < TRACE.size()) Thread.sleep(10);
+
+    assertThat(stored).extracting(spans -> spans.get(0)).containsExactlyElementsOf(TRACE);
+    worker.decoder.close();
+  }
+
+  void addRecord(long offset, byte[] value) {
+    consumer.addRecord(new ConsumerRecord<>(partition.topic(), partition.partition(), offset,
+        new byte[0], value));
+  }
+}
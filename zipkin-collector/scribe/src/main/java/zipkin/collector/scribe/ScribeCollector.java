@@ -21,9 +21,11 @@ import zipkin.collector.Collector;
 import zipkin.collector.CollectorComponent;
 import zipkin.collector.CollectorMetrics;
 import zipkin.collector.CollectorSampler;
+import zipkin.collector.CollectorSettings;
 import zipkin.storage.StorageComponent;
 import zipkin.storage.guava.GuavaSpanConsumer;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 import static java.util.Collections.emptyList;
 import static zipkin.internal.Util.checkNotNull;
@@ -45,6 +47,7 @@ public final class ScribeCollector implements CollectorComponent {
     CollectorMetrics metrics = CollectorMetrics.NOOP_METRICS;
     String category = "zipkin";
     int port = 9410;
+    int decodeThreads;
 
     @Override public Builder storage(StorageComponent storage) {
       delegate.storage(storage);
@@ -62,6 +65,12 @@ public final class ScribeCollector implements CollectorComponent {
       return this;
     }
 
+    /** Settings shared with other transports, ex queueing or tail sampling spans. */
+    public Builder settings(CollectorSettings settings) {
+      delegate.settings(settings);
+      return this;
+    }
+
     /** Category zipkin spans will be consumed from. Defaults to "zipkin" */
     public Builder category(String category) {
       this.category = checkNotNull(category, "category");
@@ -74,16 +83,28 @@ public final class ScribeCollector implements CollectorComponent {
       return this;
     }
 
+    /**
+     * When positive, log calls of many entries are decoded by this many threads, instead of the
+     * server's I/O thread. This helps sustain high span rates from legacy senders, which batch
+     * entries into large calls. Defaults to 0, which decodes all calls on the I/O thread.
+     */
+    public Builder decodeThreads(int decodeThreads) {
+      checkArgument(decodeThreads >= 0, "decodeThreads < 0");
+      this.decodeThreads = decodeThreads;
+      return this;
+    }
+
     @Override
     public ScribeCollector build() {
       return new ScribeCollector(this);
     }
   }
 
+  final ScribeSpanConsumer scribe;
   final ThriftServer server;
 
   ScribeCollector(Builder builder) {
-    ScribeSpanConsumer scribe = new ScribeSpanConsumer(builder);
+    scribe = new ScribeSpanConsumer(builder);
     ThriftServiceProcessor processor =
         new ThriftServiceProcessor(new ThriftCodecManager(), emptyList(), scribe);
     server = new ThriftServer(processor, new ThriftServerConfig().setPort(builder.port));
@@ -107,5 +128,6 @@ public final class ScribeCollector implements CollectorComponent {
   @Override
   public void close() {
     server.close();
+    scribe.close();
   }
 }
@@ -13,47 +13,87 @@
  */
 package zipkin.collector.scribe;
 
-import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
-import java.nio.charset.StandardCharsets;
-import java.util.Base64;
+import java.io.Closeable;
 import java.util.List;
-import java.util.stream.Collectors;
-import zipkin.Codec;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import zipkin.collector.Collector;
 import zipkin.collector.CollectorMetrics;
 import zipkin.internal.Nullable;
 import zipkin.storage.Callback;
 
-final class ScribeSpanConsumer implements Scribe {
+/**
+ * Base64 decodes each entry into one buffer per call, which the spans are read from. When {@link
+ * ScribeCollector.Builder#decodeThreads(int) decode threads} are set, large calls are decoded by
+ * them instead of the server's I/O thread.
+ */
+final class ScribeSpanConsumer implements Scribe, Closeable {
+  /** Calls smaller than this are decoded inline, as handing them off costs more than decoding. */
+  static final int LARGE_LOG_ENTRIES = 64;
+
   final Collector collector;
   final CollectorMetrics metrics;
   final String category;
+  @Nullable final ThreadPoolExecutor pool;
 
   public ScribeSpanConsumer(ScribeCollector.Builder builder) {
     this.collector = builder.delegate.build();
     this.metrics = builder.metrics;
     this.category = builder.category;
+    this.pool = builder.decodeThreads > 0 ? newPool(builder.decodeThreads) : null;
   }
 
   @Override
   public ListenableFuture<ResultCode> log(List<LogEntry> messages) {
     metrics.incrementMessages();
-    List<byte[]> thrifts;
+    SettableFuture<ResultCode> result = SettableFuture.create();
+    if (pool != null && messages.size() >= LARGE_LOG_ENTRIES) {
+      try {
+        pool.execute(new Decode(messages, result));
+      } catch (RejectedExecutionException e) {
+        metrics.incrementMessagesDropped();
+        result.setException(e);
+      }
+    } else {
+      accept(messages, result);
+    }
+    return result;
+  }
+
+  void accept(List<LogEntry> messages, SettableFuture<ResultCode> result) {
+    int maxLength = 0, entryCount = 0;
+    for (int i = 0, length = messages.size(); i < length; i++) {
+      LogEntry m = messages.get(i);
+      if (!m.category.equals(category)) continue;
+      maxLength += MimeBase64.maxDecodedLength(m.message);
+      entryCount++;
+    }
+
+    // Spans retain views of this buffer until stored, so it is not reused across calls
+    byte[] buffer = new byte[maxLength];
+    int[] spanEnds = new int[entryCount];
+    int spanCount = 0;
     try {
-      thrifts = messages.stream()
-          .filter(m -> m.category.equals(category))
-          .map(m -> m.message.getBytes(StandardCharsets.ISO_8859_1))
-          .map(b -> Base64.getMimeDecoder().decode(b)) // finagle-zipkin uses mime encoding
-          .collect(Collectors.toList());
+      for (int i = 0, length = messages.size(), offset = 0; i < length; i++) {
+        LogEntry m = messages.get(i);
+        if (!m.category.equals(category)) continue;
+        offset = MimeBase64.decode(m.message, buffer, offset); // finagle-zipkin uses mime encoding
+        spanEnds[spanCount++] = offset;
+      }
     } catch (RuntimeException e) {
       metrics.incrementMessagesDropped();
-      return Futures.immediateFailedFuture(e);
+      result.setException(e);
+      return;
     }
 
-    SettableFuture<ResultCode> result = SettableFuture.create();
-    collector.acceptSpans(thrifts, Codec.THRIFT, new Callback<Void>() {
+    collector.acceptSpans(buffer, spanEnds, spanCount, new Callback<Void>() {
       @Override public void onSuccess(@Nullable Void value) {
         result.set(ResultCode.OK);
       }
@@ -62,6 +102,51 @@ final class ScribeSpanConsumer implements Scribe {
         result.setException(t);
       }
     });
-    return result;
   }
+
+  /** Calls not yet decoded fail, so that clients aren't left waiting for a response. */
+  @Override public void close() {
+    if (pool != null) {
+      for (Runnable dropped : pool.shutdownNow()) {
+        metrics.incrementMessagesDropped();
+        ((Decode) dropped).result.setException(
+            new RejectedExecutionException("scribe collector is closed"));
+      }
+    }
+    collector.close();
+  }
+
+  final class Decode implements Runnable {
+    final List<LogEntry> messages;
+    final SettableFuture<ResultCode> result;
+
+    Decode(List<LogEntry> messages, SettableFuture<ResultCode> result) {
+      this.messages = messages;
+      this.result = result;
+    }
+
+    @Override public void run() {
+      accept(messages, result);
+    }
+  }
+
+  /**
+   * When all threads are busy and the queue is full, the I/O thread decodes the call itself. Once
+   * the pool is shut down, calls are rejected instead of silently discarded.
+   */
+  static ThreadPoolExecutor newPool(int threads) {
+    AtomicInteger threadCount = new AtomicInteger();
+    ThreadFactory threadFactory = r -> {
+      Thread thread = new Thread(r, "zipkin-scribe-decoder-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+    return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(threads), threadFactory, CALLER_RUNS_UNTIL_SHUTDOWN);
+  }
+
+  static final RejectedExecutionHandler CALLER_RUNS_UNTIL_SHUTDOWN = (r, pool) -> {
+    if (pool.isShutdown()) throw new RejectedExecutionException("scribe collector is closed");
+    r.run();
+  };
 }
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.collector.scribe;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MimeBase64Test {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  Random random = new Random(0);
+
+  @Test
+  public void decode_matchesJdk() {
+    for (int length = 0; length < 200; length++) {
+      byte[] bytes = new byte[length];
+      random.nextBytes(bytes);
+
+      assertDecodes(Base64.getEncoder().encodeToString(bytes), bytes);
+      assertDecodes(Base64.getMimeEncoder().encodeToString(bytes), bytes);
+      assertDecodes(Base64.getEncoder().withoutPadding().encodeToString(bytes), bytes);
+    }
+  }
+
+  @Test
+  public void decode_ignoresCharactersOutsideAlphabet() {
+    assertDecodes("YWJj\nZGVm\n", "abcdef".getBytes());
+  }
+
+  @Test
+  public void decode_writesAtOffset() {
+    byte[] buffer = new byte[6];
+
+    int offset = MimeBase64.decode("YWJj", buffer, 0);
+    offset = MimeBase64.decode("ZGVm", buffer, offset);
+
+    assertThat(offset).isEqualTo(6);
+    assertThat(buffer).isEqualTo("abcdef".getBytes());
+  }
+
+  @Test
+  public void decode_partialUnit() {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("Last unit does not have enough valid bits");
+
+    MimeBase64.decode("notbase64", new byte[10], 0);
+  }
+
+  static void assertDecodes(String encoded, byte[] expected) {
+    byte[] buffer = new byte[MimeBase64.maxDecodedLength(encoded)];
+    int length = MimeBase64.decode(encoded, buffer, 0);
+
+    assertThat(Arrays.copyOf(buffer, length)).isEqualTo(expected);
+  }
+}
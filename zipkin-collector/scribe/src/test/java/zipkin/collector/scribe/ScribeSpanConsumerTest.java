@@ -18,6 +18,7 @@ import java.util.Arrays;
 import java.util.Base64;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
@@ -76,6 +77,83 @@ public class ScribeSpanConsumerTest {
     assertThat(scribeMetrics.spans()).isEqualTo(1);
   }
 
+  @Test
+  public void entriesAreConsumedInOrder() throws Exception {
+    ScribeSpanConsumer scribe = newScribeSpanConsumer("zipkin", consumer);
+
+    List<Scribe.LogEntry> entries = new ArrayList<>();
+    int bytesLength = 0;
+    for (Span span : TRACE) {
+      byte[] bytes = Codec.THRIFT.writeSpan(span);
+      bytesLength += bytes.length;
+      Scribe.LogEntry entry = new Scribe.LogEntry();
+      entry.category = "zipkin";
+      entry.message = Base64.getMimeEncoder().encodeToString(bytes);
+      entries.add(entry);
+    }
+
+    assertThat(scribe.log(entries).get())
+        .isEqualTo(Scribe.ResultCode.OK);
+
+    assertThat(consumed).containsExactlyElementsOf(TRACE);
+    assertThat(scribeMetrics.bytes()).isEqualTo(bytesLength);
+  }
+
+  @Test
+  public void largeCallsAreDecodedByDecodeThreads() throws Exception {
+    List<String> threads = new ArrayList<>();
+    AsyncSpanConsumer consumer = (input, callback) -> {
+      threads.add(Thread.currentThread().getName());
+      input.forEach(consumed::add);
+      callback.onSuccess(null);
+    };
+
+    try (ScribeSpanConsumer scribe = newScribeSpanConsumer(
+        ScribeCollector.builder().decodeThreads(1), consumer)) {
+      List<Scribe.LogEntry> entries = new ArrayList<>();
+      for (int i = 0; i < ScribeSpanConsumer.LARGE_LOG_ENTRIES; i++) {
+        Scribe.LogEntry entry = new Scribe.LogEntry();
+        entry.category = "zipkin";
+        entry.message = encodedSpan;
+        entries.add(entry);
+      }
+
+      assertThat(scribe.log(entries).get())
+          .isEqualTo(Scribe.ResultCode.OK);
+      assertThat(scribe.log(entries.subList(0, 1)).get())
+          .isEqualTo(Scribe.ResultCode.OK);
+    }
+
+    assertThat(consumed).hasSize(ScribeSpanConsumer.LARGE_LOG_ENTRIES + 1);
+    assertThat(threads).hasSize(2);
+    assertThat(threads.get(0)).startsWith("zipkin-scribe-decoder-");
+    assertThat(threads.get(1)).isEqualTo(Thread.currentThread().getName());
+  }
+
+  @Test
+  public void largeCallsFailAfterClose() throws Exception {
+    ScribeSpanConsumer scribe = newScribeSpanConsumer(
+        ScribeCollector.builder().decodeThreads(1), consumer);
+    scribe.close();
+
+    List<Scribe.LogEntry> entries = new ArrayList<>();
+    for (int i = 0; i < ScribeSpanConsumer.LARGE_LOG_ENTRIES; i++) {
+      Scribe.LogEntry entry = new Scribe.LogEntry();
+      entry.category = "zipkin";
+      entry.message = encodedSpan;
+      entries.add(entry);
+    }
+
+    thrown.expect(ExecutionException.class);
+    thrown.expectCause(isA(RejectedExecutionException.class));
+    try {
+      scribe.log(entries).get();
+    } finally {
+      assertThat(consumed).isEmpty();
+      assertThat(scribeMetrics.messagesDropped()).isEqualTo(1);
+    }
+  }
+
   @Test
   public void entriesWithoutSpansAreSkipped() throws Exception {
     AsyncSpanConsumer consumer = (input, callback) -> {
@@ -204,8 +282,12 @@ public class ScribeSpanConsumerTest {
   }
 
   ScribeSpanConsumer newScribeSpanConsumer(String category, AsyncSpanConsumer consumer) {
-    return new ScribeSpanConsumer(ScribeCollector.builder()
-        .category(category)
+    return newScribeSpanConsumer(ScribeCollector.builder().category(category), consumer);
+  }
+
+  ScribeSpanConsumer newScribeSpanConsumer(ScribeCollector.Builder builder,
+      AsyncSpanConsumer consumer) {
+    return new ScribeSpanConsumer(builder
         .metrics(scribeMetrics)
         .storage(new StorageComponent() {
           @Override public SpanStore spanStore() {
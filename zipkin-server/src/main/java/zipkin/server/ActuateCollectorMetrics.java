@@ -19,11 +19,17 @@ import org.springframework.boot.actuate.metrics.buffer.BufferMetricReader;
 import org.springframework.boot.actuate.metrics.buffer.CounterBuffers;
 import org.springframework.boot.actuate.metrics.buffer.GaugeBuffers;
 import zipkin.collector.CollectorMetrics;
+import zipkin.collector.DecodeTimings;
+import zipkin.collector.DecodeTimingsMetrics;
+import zipkin.collector.MessageLagMetrics;
+import zipkin.collector.QueuedSpansMetrics;
 import zipkin.internal.Nullable;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import static zipkin.internal.Util.checkNotNull;
 
@@ -43,12 +49,28 @@ import static zipkin.internal.Util.checkNotNull;
  * include sampling or storage failures</li>
  *     <li>gauge.zipkin_collector.message_spans.$transport - last count of spans in a message</li>
  *     <li>gauge.zipkin_collector.message_bytes.$transport - last count of bytes in a message</li>
+ *     <li>gauge.zipkin_collector.queued_spans.$transport - spans accepted, but not yet stored</li>
+ *     <li>gauge.zipkin_collector.message_lag.$transport.$partition - messages in a partition not
+ * yet consumed</li>
+ *     <li>gauge.zipkin_collector.decode_requests.$transport - cumulative messages or polls decoded
+ * off the consuming threads</li>
+ *     <li>gauge.zipkin_collector.decode_queue_millis.$transport - average time a request waited
+ * for a decode thread</li>
+ *     <li>gauge.zipkin_collector.decode_millis.$transport - average time spent decoding a
+ * request</li>
+ *     <li>gauge.zipkin_collector.decode_accept_millis.$transport - average time spent handing the
+ * spans of a request to storage</li>
  * </ul>
  * </pre>
  *
+ * <p>Message lag gauges are held here instead of in {@link GaugeBuffers}, as they are removed when
+ * a partition is no longer assigned to this collector. Decode timings are read when exported.
+ *
  * See https://docs.spring.io/spring-boot/docs/current/reference/html/production-ready-metrics.html
  */
-public final class ActuateCollectorMetrics implements CollectorMetrics, PublicMetrics
+public final class ActuateCollectorMetrics
+    implements CollectorMetrics, MessageLagMetrics, DecodeTimingsMetrics, QueuedSpansMetrics,
+    PublicMetrics
 {
   private final CounterBuffers counterBuffers;
   private final GaugeBuffers gaugeBuffers;
@@ -59,18 +81,27 @@ public final class ActuateCollectorMetrics implements CollectorMetrics, PublicMe
   private final String bytes;
   private final String spans;
   private final String spansDropped;
+  private final String queuedSpans;
+  private final String messageLag;
+  private final ConcurrentMap<String, Integer> messageLags;
+  /** Decode timings by metric name suffix, ex ".kafka" */
+  private final ConcurrentMap<String, DecodeTimings> decodeTimings;
+  private final String footer;
   private final BufferMetricReader reader;
 
   public ActuateCollectorMetrics(CounterBuffers counterBuffers, GaugeBuffers gaugeBuffers) {
-    this(counterBuffers, gaugeBuffers, null);
+    this(counterBuffers, gaugeBuffers, new ConcurrentHashMap<>(), new ConcurrentHashMap<>(), null);
   }
 
   ActuateCollectorMetrics(CounterBuffers counterBuffers, GaugeBuffers gaugeBuffers,
-      @Nullable String transport) {
+      ConcurrentMap<String, Integer> messageLags,
+      ConcurrentMap<String, DecodeTimings> decodeTimings, @Nullable String transport) {
     this.counterBuffers = counterBuffers;
     this.gaugeBuffers = gaugeBuffers;
+    this.messageLags = messageLags;
+    this.decodeTimings = decodeTimings;
     this.reader = new BufferMetricReader(counterBuffers, gaugeBuffers);
-    String footer = transport == null ? "" : "." + transport;
+    this.footer = transport == null ? "" : "." + transport;
     this.messages = "counter.zipkin_collector.messages" + footer;
     this.messagesDropped = "counter.zipkin_collector.messages_dropped" + footer;
     this.messageBytes = "gauge.zipkin_collector.message_bytes" + footer;
@@ -78,11 +109,14 @@ public final class ActuateCollectorMetrics implements CollectorMetrics, PublicMe
     this.bytes = "counter.zipkin_collector.bytes" + footer;
     this.spans = "counter.zipkin_collector.spans" + footer;
     this.spansDropped = "counter.zipkin_collector.spans_dropped" + footer;
+    this.queuedSpans = "gauge.zipkin_collector.queued_spans" + footer;
+    this.messageLag = "gauge.zipkin_collector.message_lag" + footer;
   }
 
   @Override public ActuateCollectorMetrics forTransport(String transportType) {
     checkNotNull(transportType, "transportType");
-    return new ActuateCollectorMetrics(counterBuffers, gaugeBuffers, transportType);
+    return new ActuateCollectorMetrics(counterBuffers, gaugeBuffers, messageLags, decodeTimings,
+        transportType);
   }
 
   @Override
@@ -92,6 +126,17 @@ public final class ActuateCollectorMetrics implements CollectorMetrics, PublicMe
 
     final List<Metric<?>> result = new ArrayList<>();
     metrics.forEach(result::add);
+    messageLags.forEach((name, value) -> result.add(new Metric<>(name, value)));
+    decodeTimings.forEach((suffix, timings) -> {
+      result.add(new Metric<>("gauge.zipkin_collector.decode_requests" + suffix,
+          timings.requests()));
+      result.add(new Metric<>("gauge.zipkin_collector.decode_queue_millis" + suffix,
+          timings.averageQueueMillis()));
+      result.add(new Metric<>("gauge.zipkin_collector.decode_millis" + suffix,
+          timings.averageDecodeMillis()));
+      result.add(new Metric<>("gauge.zipkin_collector.decode_accept_millis" + suffix,
+          timings.averageAcceptMillis()));
+    });
     return result;
   }
 
@@ -118,6 +163,22 @@ public final class ActuateCollectorMetrics implements CollectorMetrics, PublicMe
     counterBuffers.increment(spansDropped, quantity);
   }
 
+  @Override public void updateQueuedSpans(int quantity) {
+    gaugeBuffers.set(queuedSpans, quantity);
+  }
+
+  @Override public void updateMessageLag(String partition, int quantity) {
+    messageLags.put(messageLag + "." + partition, quantity);
+  }
+
+  @Override public void removeMessageLag(String partition) {
+    messageLags.remove(messageLag + "." + partition);
+  }
+
+  @Override public void registerDecodeTimings(DecodeTimings timings) {
+    decodeTimings.put(footer, checkNotNull(timings, "timings"));
+  }
+
   // visible for testing
   void reset() {
     counterBuffers.reset(messages);
@@ -127,5 +188,7 @@ public final class ActuateCollectorMetrics implements CollectorMetrics, PublicMe
     counterBuffers.reset(spansDropped);
     gaugeBuffers.set(messageSpans, 0);
     gaugeBuffers.set(messageBytes, 0);
+    gaugeBuffers.set(queuedSpans, 0);
+    messageLags.clear();
   }
 }
@@ -0,0 +1,46 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import zipkin.storage.StorageComponent;
+import zipkin.storage.StorageMetrics;
+
+import static zipkin.internal.Util.checkNotNull;
+
+/**
+ * Exports {@link StorageMetrics} of the storage component to the "/metrics" endpoint, as
+ * "gauge.zipkin_storage.$name". Storage components that don't keep statistics export nothing.
+ */
+public final class ActuateStorageMetrics implements PublicMetrics {
+  private final StorageComponent storage;
+
+  public ActuateStorageMetrics(StorageComponent storage) {
+    this.storage = checkNotNull(storage, "storage");
+  }
+
+  @Override public Collection<Metric<?>> metrics() {
+    List<Metric<?>> result = new ArrayList<>();
+    if (!(storage instanceof StorageMetrics)) return result;
+    for (Map.Entry<String, Number> entry : ((StorageMetrics) storage).metrics().entrySet()) {
+      result.add(new Metric<>("gauge.zipkin_storage." + entry.getKey(), entry.getValue()));
+    }
+    return result;
+  }
+}
@@ -13,10 +13,10 @@
  */
 package zipkin.server;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.zip.GZIPInputStream;
+import javax.annotation.PreDestroy;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.http.HttpStatus;
@@ -25,7 +25,6 @@ import org.springframework.util.concurrent.ListenableFuture;
 import org.springframework.util.concurrent.SettableListenableFuture;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.ExceptionHandler;
-import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.ResponseStatus;
@@ -34,7 +33,9 @@ import zipkin.Codec;
 import zipkin.collector.Collector;
 import zipkin.collector.CollectorMetrics;
 import zipkin.collector.CollectorSampler;
+import zipkin.collector.CollectorSettings;
 import zipkin.internal.Nullable;
+import zipkin.internal.StreamingSpanDecoder;
 import zipkin.storage.Callback;
 import zipkin.storage.StorageComponent;
 
@@ -49,21 +50,27 @@ import static org.springframework.web.bind.annotation.RequestMethod.POST;
 public class ZipkinHttpCollector {
   static final ResponseEntity<?> SUCCESS = ResponseEntity.accepted().build();
   static final String APPLICATION_THRIFT = "application/x-thrift";
+  /** Spans are decoded and stored in chunks, so that large messages aren't buffered in memory. */
+  static final int CHUNK_SIZE = 100;
 
   final CollectorMetrics metrics;
   final Collector collector;
 
   @Autowired ZipkinHttpCollector(StorageComponent storage, CollectorSampler sampler,
-      CollectorMetrics metrics) {
+      CollectorMetrics metrics, CollectorSettings settings) {
     this.metrics = metrics.forTransport("http");
     this.collector = Collector.builder(getClass())
-        .storage(storage).sampler(sampler).metrics(this.metrics).build();
+        .storage(storage).sampler(sampler).metrics(this.metrics).settings(settings).build();
+  }
+
+  @PreDestroy void close() {
+    collector.close();
   }
 
   @RequestMapping(value = "/api/v1/spans", method = POST)
   public ListenableFuture<ResponseEntity<?>> uploadSpansJson(
       @RequestHeader(value = "Content-Encoding", required = false) String encoding,
-      @RequestBody byte[] body
+      InputStream body
   ) {
     return validateAndStoreSpans(encoding, Codec.JSON, body);
   }
@@ -71,24 +78,25 @@ public class ZipkinHttpCollector {
   @RequestMapping(value = "/api/v1/spans", method = POST, consumes = APPLICATION_THRIFT)
   public ListenableFuture<ResponseEntity<?>> uploadSpansThrift(
       @RequestHeader(value = "Content-Encoding", required = false) String encoding,
-      @RequestBody byte[] body
+      InputStream body
   ) {
     return validateAndStoreSpans(encoding, Codec.THRIFT, body);
   }
 
-  ListenableFuture<ResponseEntity<?>> validateAndStoreSpans(String encoding, Codec codec,
-      byte[] body) {
+  ListenableFuture<ResponseEntity<?>> validateAndStoreSpans(String encoding,
+      StreamingSpanDecoder decoder, InputStream body) {
     SettableListenableFuture<ResponseEntity<?>> result = new SettableListenableFuture<>();
     metrics.incrementMessages();
     if (encoding != null && encoding.contains("gzip")) {
       try {
-        body = gunzip(body);
+        body = new GZIPInputStream(body);
       } catch (IOException e) {
         metrics.incrementMessagesDropped();
         result.set(ResponseEntity.badRequest().body("Cannot gunzip spans: " + e.getMessage() + "\n"));
+        return result;
       }
     }
-    collector.acceptSpans(body, codec, new Callback<Void>() {
+    collector.acceptSpans(body, decoder, CHUNK_SIZE, new Callback<Void>() {
       @Override public void onSuccess(@Nullable Void value) {
         result.set(SUCCESS);
       }
@@ -102,22 +110,4 @@ public class ZipkinHttpCollector {
     });
     return result;
   }
-
-  private static final ThreadLocal<byte[]> GZIP_BUFFER = new ThreadLocal<byte[]>() {
-    @Override protected byte[] initialValue() {
-      return new byte[1024];
-    }
-  };
-
-  static byte[] gunzip(byte[] input) throws IOException {
-    GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(input));
-    try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream(input.length)) {
-      byte[] buf = GZIP_BUFFER.get();
-      int len;
-      while ((len = in.read(buf)) > 0) {
-        outputStream.write(buf, 0, len);
-      }
-      return outputStream.toByteArray();
-    }
-  }
 }
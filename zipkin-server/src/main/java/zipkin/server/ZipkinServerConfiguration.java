@@ -15,6 +15,7 @@ package zipkin.server;
 
 import com.github.kristofa.brave.Brave;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.beans.factory.config.BeanPostProcessor;
@@ -27,6 +28,8 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import zipkin.collector.CollectorMetrics;
 import zipkin.collector.CollectorSampler;
+import zipkin.collector.CollectorSettings;
+import zipkin.collector.PerServiceCollectorSampler;
 import zipkin.server.brave.TracedStorageComponent;
 import zipkin.storage.InMemoryStorage;
 import zipkin.storage.StorageComponent;
@@ -41,10 +44,43 @@ public class ZipkinServerConfiguration {
 
   @Bean
   @ConditionalOnMissingBean(CollectorSampler.class)
-  CollectorSampler traceIdSampler(@Value("${zipkin.collector.sample-rate:1.0}") float rate) {
+  CollectorSampler traceIdSampler(@Value("${zipkin.collector.sample-rate:1.0}") float rate,
+      @Value("${zipkin.collector.service-spans-per-second:0}") int serviceSpansPerSecond) {
+    if (serviceSpansPerSecond > 0) {
+      return PerServiceCollectorSampler.builder().spansPerSecond(serviceSpansPerSecond).build();
+    }
     return CollectorSampler.create(rate);
   }
 
+  /** Settings applied to the collectors of all transports, including http. */
+  @Bean
+  @ConditionalOnMissingBean(CollectorSettings.class)
+  CollectorSettings collectorSettings(
+      @Value("${zipkin.collector.queued-max-spans:0}") int queuedMaxSpans,
+      @Value("${zipkin.collector.message-max-spans:1000}") int messageMaxSpans,
+      @Value("${zipkin.collector.message-max-bytes:5242880}") int messageMaxBytes,
+      @Value("${zipkin.collector.message-timeout:1000}") long messageTimeout,
+      @Value("${zipkin.collector.queue-full-timeout:0}") long queueFullTimeout,
+      @Value("${zipkin.collector.tail-sampling-window:0}") long tailSamplingWindow,
+      @Value("${zipkin.collector.tail-sampling-max-spans:100000}") int tailSamplingMaxSpans,
+      @Value("${zipkin.collector.tail-sampling-slow-trace:0}") long tailSamplingSlowTrace,
+      @Value("${zipkin.collector.tail-sampling-rate:1.0}") float tailSamplingRate) {
+    CollectorSettings.Builder result = CollectorSettings.builder()
+        .queuedMaxSpans(queuedMaxSpans)
+        .messageMaxSpans(messageMaxSpans)
+        .messageMaxBytes(messageMaxBytes)
+        .messageTimeout(messageTimeout, TimeUnit.MILLISECONDS)
+        .queueFullTimeout(queueFullTimeout, TimeUnit.MILLISECONDS)
+        .tailSamplingWindow(tailSamplingWindow, TimeUnit.MILLISECONDS)
+        .tailSamplingMaxSpans(tailSamplingMaxSpans)
+        .tailSamplingRate(tailSamplingRate);
+    // zero means no threshold, as opposed to keeping every trace
+    if (tailSamplingSlowTrace > 0) {
+      result.tailSamplingSlowTrace(tailSamplingSlowTrace, TimeUnit.MILLISECONDS);
+    }
+    return result.build();
+  }
+
   @Bean
   @ConditionalOnMissingBean(CollectorMetrics.class)
   CollectorMetrics metrics(Optional<CounterBuffers> counterBuffers, Optional<GaugeBuffers> gaugeBuffers) {
@@ -57,6 +93,10 @@ public class ZipkinServerConfiguration {
                                        gaugeBuffers.orElse(new GaugeBuffers()));
   }
 
+  @Bean ActuateStorageMetrics storageMetrics(StorageComponent storage) {
+    return new ActuateStorageMetrics(storage);
+  }
+
   @Configuration
   @ConditionalOnSelfTracing
   static class BraveTracedStorageComponentEnhancer implements BeanPostProcessor {
@@ -85,8 +125,14 @@ public class ZipkinServerConfiguration {
   static class InMemoryConfiguration {
     @Bean StorageComponent storage(
       @Value("${zipkin.storage.strict-trace-id:true}") boolean strictTraceId,
-      @Value("${zipkin.storage.mem.max-spans:500000}") int maxSpans) {
-      return InMemoryStorage.builder().strictTraceId(strictTraceId).maxSpanCount(maxSpans).build();
+      @Value("${zipkin.storage.mem.max-spans:500000}") int maxSpans,
+      @Value("${zipkin.storage.mem.concurrency-level:1}") int concurrencyLevel,
+      @Value("${zipkin.storage.mem.max-span-bytes:0}") long maxSpanBytes) {
+      return InMemoryStorage.builder()
+          .strictTraceId(strictTraceId)
+          .maxSpanCount(maxSpans)
+          .concurrencyLevel(concurrencyLevel)
+          .maxSpanBytes(maxSpanBytes).build();
     }
   }
 }
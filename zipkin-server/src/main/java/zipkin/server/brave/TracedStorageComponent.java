@@ -15,10 +15,13 @@ package zipkin.server.brave;
 
 import com.github.kristofa.brave.Brave;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
 import zipkin.storage.AsyncSpanConsumer;
 import zipkin.storage.AsyncSpanStore;
 import zipkin.storage.SpanStore;
 import zipkin.storage.StorageComponent;
+import zipkin.storage.StorageMetrics;
 
 /**
  * Storage component that traces each method invocation with Zipkin.
@@ -26,7 +29,7 @@ import zipkin.storage.StorageComponent;
  * <p>Note: this inherits the {@link StorageComponent.Builder#strictTraceId(boolean)} from the
  * delegate.
  */
-public final class TracedStorageComponent implements StorageComponent {
+public final class TracedStorageComponent implements StorageComponent, StorageMetrics {
   private final Brave brave;
   private final StorageComponent delegate;
 
@@ -52,6 +55,12 @@ public final class TracedStorageComponent implements StorageComponent {
     return delegate.check();
   }
 
+  @Override public Map<String, Number> metrics() {
+    return delegate instanceof StorageMetrics
+        ? ((StorageMetrics) delegate).metrics()
+        : Collections.<String, Number>emptyMap();
+  }
+
   @Override public void close() throws IOException {
     delegate.close();
   }
@@ -13,6 +13,7 @@
  */
 package zipkin.server;
 
+import java.util.List;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -27,11 +28,18 @@ import org.springframework.context.annotation.AnnotationConfigApplicationContext
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
+import zipkin.Span;
+import zipkin.storage.Callback;
+import zipkin.storage.StorageComponent;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.fail;
+import static org.springframework.boot.test.util.EnvironmentTestUtils.addEnvironment;
+import static zipkin.TestObjects.TRACE;
 
 public class ZipkinServerConfigurationTest
 {
@@ -76,6 +84,55 @@ public class ZipkinServerConfigurationTest
     assertMetrics();
   }
 
+  @Test
+  public void httpCollector_queuesSpansWhenQueuedMaxSpansIsSet()
+  {
+    addEnvironment(context, "zipkin.collector.queued-max-spans:100");
+    context.register(PropertyPlaceholderAutoConfiguration.class, ZipkinServerConfigurationTest.ConfigWithBuffers.class, ZipkinServerConfiguration.class, ZipkinHttpCollector.class);
+    context.refresh();
+
+    ActuateCollectorMetrics metrics = accept(TRACE);
+
+    assertThat(findMetric(metrics, "gauge.zipkin_collector.queued_spans.http"), notNullValue());
+  }
+
+  @Test
+  public void httpCollector_doesntQueueSpansByDefault()
+  {
+    context.register(PropertyPlaceholderAutoConfiguration.class, ZipkinServerConfigurationTest.ConfigWithBuffers.class, ZipkinServerConfiguration.class, ZipkinHttpCollector.class);
+    context.refresh();
+
+    ActuateCollectorMetrics metrics = accept(TRACE);
+
+    assertThat(metrics.metrics().stream()
+        .anyMatch(m -> m.getName().startsWith("gauge.zipkin_collector.queued_spans")), is(false));
+  }
+
+  @Test
+  public void httpCollector_tailSamplesWhenTailSamplingWindowIsSet() throws InterruptedException
+  {
+    addEnvironment(context, "zipkin.collector.tail-sampling-window:10", "zipkin.collector.tail-sampling-rate:0.0");
+    context.register(PropertyPlaceholderAutoConfiguration.class, ZipkinServerConfigurationTest.ConfigWithBuffers.class, ZipkinServerConfiguration.class, ZipkinHttpCollector.class);
+    context.refresh();
+
+    // neither has an error, so the trace is dropped at the tail sampling rate of zero
+    ActuateCollectorMetrics metrics = accept(TRACE.subList(0, 2));
+
+    String spansDropped = "counter.zipkin_collector.spans_dropped.http";
+    while (metrics.metrics().stream().noneMatch(m -> m.getName().equals(spansDropped)))
+    {
+      Thread.sleep(10);
+    }
+    assertThat(findMetric(metrics, spansDropped).getValue(), equalTo(2L));
+    assertThat(context.getBean(StorageComponent.class).spanStore().getTrace(TRACE.get(0).traceId), nullValue());
+  }
+
+  private ActuateCollectorMetrics accept(List<Span> spans)
+  {
+    context.getBean(ZipkinHttpCollector.class).collector.accept(spans, Callback.NOOP);
+    return context.getBean(ActuateCollectorMetrics.class);
+  }
+
   private void assertMetrics()
   {
     ActuateCollectorMetrics metrics = context.getBean(ActuateCollectorMetrics.class);
@@ -28,11 +28,14 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import zipkin.Codec;
 import zipkin.Span;
+import zipkin.internal.EncodedSpanList;
 import zipkin.internal.Nullable;
 import zipkin.internal.Pair;
 import zipkin.storage.guava.GuavaSpanConsumer;
@@ -60,10 +63,14 @@ final class CassandraSpanConsumer implements GuavaSpanConsumer {
   private final Schema.Metadata metadata;
   private final DeduplicatingExecutor deduplicatingExecutor;
   private final CompositeIndexer indexer;
+  private final InFlightLimiter limiter;
+  @Nullable
+  private final PartitionBatcher batcher;
 
   CassandraSpanConsumer(Session session, int bucketCount, int spanTtl, int indexTtl,
-      @Nullable CacheBuilderSpec indexCacheSpec) {
+      @Nullable CacheBuilderSpec indexCacheSpec, int maxBatchBytes, InFlightLimiter limiter) {
     this.session = session;
+    this.limiter = limiter;
     this.timestampCodec = new TimestampCodec(session);
     this.spanTtl = spanTtl;
     this.metadata = Schema.readMetadata(session);
@@ -88,8 +95,9 @@ final class CassandraSpanConsumer implements GuavaSpanConsumer {
             .value("bucket", 0) // bucket is deprecated on this index
             .value("span_name", QueryBuilder.bindMarker("span_name"))));
 
-    deduplicatingExecutor = new DeduplicatingExecutor(session, WRITTEN_NAMES_TTL);
+    deduplicatingExecutor = new DeduplicatingExecutor(limiter, WRITTEN_NAMES_TTL);
     indexer = new CompositeIndexer(session, indexCacheSpec, bucketCount, this.indexTtl);
+    batcher = maxBatchBytes > 0 ? new PartitionBatcher(session, limiter, maxBatchBytes) : null;
   }
 
   private RegularStatement maybeUseTtl(Insert value) {
@@ -101,27 +109,44 @@ final class CassandraSpanConsumer implements GuavaSpanConsumer {
   /**
    * This fans out into many requests, last count was 8 * spans.size. If any of these fail, the
    * returned future will fail. Most callers drop or log the result.
+   *
+   * <p>When {@link CassandraStorage.Builder#maxBatchBytes(int) batching} is enabled, span and
+   * index rows are instead grouped by partition, so there are about as many requests as traces
+   * and index keys in the input.
    */
   @Override
   public ListenableFuture<Void> accept(List<Span> rawSpans) {
     ImmutableSet.Builder<ListenableFuture<?>> futures = ImmutableSet.builder();
+    // When batching, span and index rows are bound here, but executed together at the end
+    ImmutableList.Builder<BoundStatement> rows = batcher != null ? ImmutableList.builder() : null;
 
     ImmutableList.Builder<Span> spans = ImmutableList.builder();
-    for (Span span : rawSpans) {
+    for (int i = 0, length = rawSpans.size(); i < length; i++) {
+      Span span = rawSpans.get(i);
       // indexing occurs by timestamp, so derive one if not present.
       Long timestamp = guessTimestamp(span);
       spans.add(span);
 
-      futures.add(storeSpan(
-          span.traceId,
-          timestamp != null ? timestamp : 0L,
-          String.format("%s%d_%d_%d",
-              span.traceIdHigh == 0 ? "" : span.traceIdHigh + "_",
-              span.id,
-              span.annotations.hashCode(),
-              span.binaryAnnotations.hashCode()),
-          // store the raw span without any adjustments
-          ByteBuffer.wrap(Codec.THRIFT.writeSpan(span))));
+      // when the collector received thrift, store the bytes it was sent instead of re-encoding
+      ByteBuffer encoded = EncodedSpanList.encoded(rawSpans, i, Codec.THRIFT);
+
+      long traceId = span.traceId;
+      String key = String.format("%s%d_%d_%d",
+          span.traceIdHigh == 0 ? "" : span.traceIdHigh + "_",
+          span.id,
+          span.annotations.hashCode(),
+          span.binaryAnnotations.hashCode());
+      // store the raw span without any adjustments
+      ByteBuffer bytes = encoded != null ? encoded : ByteBuffer.wrap(Codec.THRIFT.writeSpan(span));
+      if (rows != null) {
+        try {
+          rows.add(bindSpan(traceId, timestamp != null ? timestamp : 0L, key, bytes));
+        } catch (RuntimeException ex) {
+          futures.add(Futures.immediateFailedFuture(ex));
+        }
+      } else {
+        futures.add(storeSpan(traceId, timestamp != null ? timestamp : 0L, key, bytes));
+      }
 
       for (String serviceName : span.serviceNames()) {
         // SpanStore.getServiceNames
@@ -132,35 +157,60 @@ final class CassandraSpanConsumer implements GuavaSpanConsumer {
         }
       }
     }
-    futures.addAll(indexer.index(spans.build()));
+    if (rows != null) {
+      try {
+        futures.addAll(batcher.executeAsync(rows.addAll(indexer.bind(spans.build())).build()));
+      } catch (RuntimeException ex) {
+        futures.add(Futures.immediateFailedFuture(ex));
+      }
+    } else {
+      // For each index row, insert asynchronously
+      for (BoundStatement bound : indexer.bind(spans.build())) {
+        futures.add(limiter.executeAsync(bound));
+      }
+    }
     return transform(Futures.allAsList(futures.build()), TO_VOID);
   }
 
+  /** Statistics reported by {@link CassandraStorage#metrics()} */
+  Map<String, Number> metrics() {
+    Map<String, Number> result = new LinkedHashMap<>();
+    limiter.addMetrics(result);
+    if (batcher != null) {
+      result.put("batched_statements", batcher.statementCount());
+      result.put("batch_requests", batcher.requestCount());
+    }
+    return result;
+  }
+
   /**
    * Store the span in the underlying storage for later retrieval.
    */
   ListenableFuture<?> storeSpan(long traceId, long timestamp, String key, ByteBuffer span) {
     try {
-      // If we couldn't guess the timestamp, that probably means that there was a missing timestamp.
-      if (0 == timestamp && metadata.compactionClass.contains("DateTieredCompactionStrategy")) {
-        LOG.warn("Span {} in trace {} had no timestamp. "
-            + "If this happens a lot consider switching back to SizeTieredCompactionStrategy for "
-            + "{}.traces", key, traceId, session.getLoggedKeyspace());
-      }
-
-      BoundStatement bound = bindWithName(insertSpan, "insert-span")
-          .setLong("trace_id", traceId)
-          .setBytesUnsafe("ts", timestampCodec.serialize(timestamp))
-          .setString("span_name", key)
-          .setBytes("span", span);
-      if (!metadata.hasDefaultTtl) bound.setInt("ttl_", spanTtl);
-
-      return session.executeAsync(bound);
+      return limiter.executeAsync(bindSpan(traceId, timestamp, key, span));
     } catch (RuntimeException ex) {
       return Futures.immediateFailedFuture(ex);
     }
   }
 
+  BoundStatement bindSpan(long traceId, long timestamp, String key, ByteBuffer span) {
+    // If we couldn't guess the timestamp, that probably means that there was a missing timestamp.
+    if (0 == timestamp && metadata.compactionClass.contains("DateTieredCompactionStrategy")) {
+      LOG.warn("Span {} in trace {} had no timestamp. "
+          + "If this happens a lot consider switching back to SizeTieredCompactionStrategy for "
+          + "{}.traces", key, traceId, session.getLoggedKeyspace());
+    }
+
+    BoundStatement bound = bindWithName(insertSpan, "insert-span")
+        .setLong("trace_id", traceId)
+        .setBytesUnsafe("ts", timestampCodec.serialize(timestamp))
+        .setString("span_name", key)
+        .setBytes("span", span);
+    if (!metadata.hasDefaultTtl) bound.setInt("ttl_", spanTtl);
+    return bound;
+  }
+
   ListenableFuture<?> storeServiceName(final String serviceName) {
     BoundStatement bound = bindWithName(insertServiceName, "insert-service-name")
         .setString("service_name", serviceName);
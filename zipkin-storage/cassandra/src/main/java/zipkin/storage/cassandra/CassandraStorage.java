@@ -21,15 +21,19 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import zipkin.internal.Nullable;
 import zipkin.storage.QueryRequest;
 import zipkin.storage.StorageComponent;
+import zipkin.storage.StorageMetrics;
 import zipkin.storage.guava.LazyGuavaStorageComponent;
 
 import static java.lang.String.format;
+import static zipkin.internal.Util.checkArgument;
 import static zipkin.internal.Util.checkNotNull;
 
 /**
@@ -44,7 +48,21 @@ import static zipkin.internal.Util.checkNotNull;
  * <p>Schema is installed by default from "/cassandra-schema-cql3.txt"
  */
 public final class CassandraStorage
-    extends LazyGuavaStorageComponent<CassandraSpanStore, CassandraSpanConsumer> {
+    extends LazyGuavaStorageComponent<CassandraSpanStore, CassandraSpanConsumer>
+    implements StorageMetrics {
+
+  /** What happens when a write is attempted at {@link Builder#maxInFlightWrites(int)}. */
+  public enum InFlightWritesPolicy {
+    /**
+     * Waits up to {@link Builder#inFlightWritesTimeout(int)} for room, then fails the write. This
+     * slows the caller, which can in turn slow the transport that spans are collected from.
+     */
+    WAIT,
+    /** Fails the write immediately. */
+    FAIL,
+    /** Skips the write, but reports success. This keeps collectors healthy, but loses data. */
+    DROP
+  }
 
   public static Builder builder() {
     return new Builder();
@@ -64,6 +82,10 @@ public final class CassandraStorage
     int indexCacheMax = 100000;
     int indexCacheTtl = 60;
     int indexFetchMultiplier = 3;
+    int maxBatchBytes = 0;
+    int maxInFlightWrites = 0;
+    InFlightWritesPolicy inFlightWritesPolicy = InFlightWritesPolicy.WAIT;
+    int inFlightWritesTimeout = 1000;
 
     /**
      * Used to avoid hot spots when writing indexes used to query by service name or annotation.
@@ -229,6 +251,50 @@ public final class CassandraStorage
       return this;
     }
 
+    /**
+     * When positive, span and index rows are written in unlogged batches grouped by partition,
+     * each holding up to this many bytes of values. Zero disables the feature. Defaults to 0.
+     *
+     * <p>Writes are usually limited by round trips as opposed to bytes. Batching rows that share a
+     * partition, such as all spans in the same trace, reduces the requests per span. A good value
+     * is under Cassandra's {@code batch_size_warn_threshold_in_kb}, which defaults to 5KiB.
+     */
+    public Builder maxBatchBytes(int maxBatchBytes) {
+      this.maxBatchBytes = maxBatchBytes;
+      return this;
+    }
+
+    /**
+     * When positive, limits how many span and index writes can be in flight to Cassandra. Zero
+     * disables the feature. Defaults to 0.
+     *
+     * <p>Without a limit, a spike in spans can fill the driver's request queues, which surfaces as
+     * {@code BusyPoolException}. What happens at the limit is set by {@link
+     * #inFlightWritesPolicy(InFlightWritesPolicy)}. This includes writes of service and span
+     * names, though a dropped one is attempted again by the next span with that name.
+     */
+    public Builder maxInFlightWrites(int maxInFlightWrites) {
+      checkArgument(maxInFlightWrites >= 0, "maxInFlightWrites < 0");
+      this.maxInFlightWrites = maxInFlightWrites;
+      return this;
+    }
+
+    /** What to do when {@link #maxInFlightWrites(int)} are in flight. Defaults to WAIT. */
+    public Builder inFlightWritesPolicy(InFlightWritesPolicy inFlightWritesPolicy) {
+      this.inFlightWritesPolicy = checkNotNull(inFlightWritesPolicy, "inFlightWritesPolicy");
+      return this;
+    }
+
+    /**
+     * How long in milliseconds to wait for room when the policy is {@link
+     * InFlightWritesPolicy#WAIT}. Defaults to 1000.
+     */
+    public Builder inFlightWritesTimeout(int inFlightWritesTimeout) {
+      checkArgument(inFlightWritesTimeout >= 0, "inFlightWritesTimeout < 0");
+      this.inFlightWritesTimeout = inFlightWritesTimeout;
+      return this;
+    }
+
     @Override public CassandraStorage build() {
       return new CassandraStorage(this);
     }
@@ -253,8 +319,14 @@ public final class CassandraStorage
   final String keyspace;
   final CacheBuilderSpec indexCacheSpec;
   final int indexFetchMultiplier;
+  final int maxBatchBytes;
+  final int maxInFlightWrites;
+  final InFlightWritesPolicy inFlightWritesPolicy;
+  final int inFlightWritesTimeout;
   final boolean strictTraceId;
   final LazySession session;
+  /** Set when the span consumer is computed, so that metrics don't connect to Cassandra */
+  @Nullable volatile CassandraSpanConsumer spanConsumer;
 
   CassandraStorage(Builder builder) {
     this.contactPoints = builder.contactPoints;
@@ -276,6 +348,10 @@ public final class CassandraStorage
         : CacheBuilderSpec.parse("maximumSize=" + builder.indexCacheMax
             + ",expireAfterWrite=" + builder.indexCacheTtl + "s");
     this.indexFetchMultiplier = builder.indexFetchMultiplier;
+    this.maxBatchBytes = builder.maxBatchBytes;
+    this.maxInFlightWrites = builder.maxInFlightWrites;
+    this.inFlightWritesPolicy = builder.inFlightWritesPolicy;
+    this.inFlightWritesTimeout = builder.inFlightWritesTimeout;
   }
 
   /** Lazy initializes or returns the session in use by this storage component. */
@@ -289,7 +365,18 @@ public final class CassandraStorage
   }
 
   @Override protected CassandraSpanConsumer computeGuavaSpanConsumer() {
-    return new CassandraSpanConsumer(session.get(), bucketCount, spanTtl, indexTtl, indexCacheSpec);
+    Session session = this.session.get();
+    InFlightLimiter limiter = new InFlightLimiter(session, maxInFlightWrites,
+        inFlightWritesPolicy, inFlightWritesTimeout);
+    return spanConsumer = new CassandraSpanConsumer(session, bucketCount, spanTtl, indexTtl,
+        indexCacheSpec, maxBatchBytes, limiter);
+  }
+
+  @Override public Map<String, Number> metrics() {
+    CassandraSpanConsumer spanConsumer = this.spanConsumer;
+    return spanConsumer != null
+        ? spanConsumer.metrics()
+        : Collections.<String, Number>emptyMap();
   }
 
   @Override public CheckResult check() {
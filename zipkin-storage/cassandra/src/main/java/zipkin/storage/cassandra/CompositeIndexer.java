@@ -13,11 +13,12 @@
  */
 package zipkin.storage.cassandra;
 
+import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.Session;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheBuilderSpec;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.util.concurrent.ListenableFuture;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
@@ -44,10 +45,10 @@ final class CompositeIndexer {
     );
   }
 
-  ImmutableSet<ListenableFuture<?>> index(List<Span> spans) {
-    ImmutableSet.Builder<ListenableFuture<?>> result = ImmutableSet.builder();
+  ImmutableList<BoundStatement> bind(List<Span> spans) {
+    ImmutableList.Builder<BoundStatement> result = ImmutableList.builder();
     for (Indexer optimizer : indexers) {
-      result.addAll(optimizer.index(spans));
+      result.addAll(optimizer.bind(spans));
     }
     return result.build();
   }
@@ -14,7 +14,6 @@
 package zipkin.storage.cassandra;
 
 import com.datastax.driver.core.BoundStatement;
-import com.datastax.driver.core.Session;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Ticker;
 import com.google.common.cache.CacheBuilder;
@@ -34,11 +33,14 @@ import static zipkin.internal.Util.checkNotNull;
  * This reduces load on cassandra by preventing semantically equivalent requests from being invoked,
  * subject to a local TTL.
  *
+ * <p>Requests are executed through the {@link InFlightLimiter}. A request it drops isn't
+ * remembered, so that the next equivalent request is attempted.
+ *
  * <p>Ex. If you want to test that you don't repeatedly send bad data, you could send a 400 back.
  *
  * <pre>{@code
  * ttl = 60 * 1000; // 1 minute
- * deduper = new DeduplicatingExecutor(session, ttl);
+ * deduper = new DeduplicatingExecutor(limiter, ttl);
  *
  * // the result of the first execution against "foo" is returned to other callers
  * // until it expires a minute later.
@@ -48,15 +50,15 @@ import static zipkin.internal.Util.checkNotNull;
  */
 class DeduplicatingExecutor { // not final for testing
 
-  private final Session session;
+  private final InFlightLimiter limiter;
   private final LoadingCache<BoundStatementKey, ListenableFuture<Void>> cache;
 
   /**
-   * @param session which conditionally executes bound statements
+   * @param limiter which conditionally executes bound statements
    * @param ttl how long the results of statements are remembered, in milliseconds.
    */
-  DeduplicatingExecutor(Session session, long ttl) {
-    this.session = session;
+  DeduplicatingExecutor(InFlightLimiter limiter, long ttl) {
+    this.limiter = limiter;
     this.cache = CacheBuilder.newBuilder()
         .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
         .ticker(new Ticker() {
@@ -68,6 +70,7 @@ class DeduplicatingExecutor { // not final for testing
         .build(new CacheLoader<BoundStatementKey, ListenableFuture<Void>>() {
           @Override public ListenableFuture<Void> load(final BoundStatementKey key) {
             ListenableFuture<?> cassandraFuture = executeAsync(key.statement);
+            if (cassandraFuture == InFlightLimiter.DROPPED) return InFlightLimiter.DROPPED;
 
             // Drop the cassandra future so that we don't hold references to cassandra state for
             // long periods of time.
@@ -102,6 +105,8 @@ class DeduplicatingExecutor { // not final for testing
     BoundStatementKey cacheKey = new BoundStatementKey(statement, key);
     try {
       ListenableFuture<Void> result = cache.get(new BoundStatementKey(statement, key));
+      // Don't remember a dropped write, or it wouldn't be attempted again until the TTL passes
+      if (result == InFlightLimiter.DROPPED) cache.invalidate(cacheKey);
       // A future could be constructed directly (i.e. immediate future), get the value to
       // see if it was exceptional. If so, the catch block will invalidate that key.
       if (result.isDone()) result.get();
@@ -121,7 +126,7 @@ class DeduplicatingExecutor { // not final for testing
   }
 
   @VisibleForTesting ListenableFuture<?> executeAsync(BoundStatement statement) {
-    return session.executeAsync(statement);
+    return limiter.executeAsync(statement);
   }
 
   @VisibleForTesting void clear() {
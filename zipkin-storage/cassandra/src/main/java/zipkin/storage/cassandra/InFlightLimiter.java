@@ -0,0 +1,136 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.storage.cassandra;
+
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import zipkin.storage.cassandra.CassandraStorage.InFlightWritesPolicy;
+
+/**
+ * Limits the count of writes in flight to Cassandra. Without this, a spike in spans fills the
+ * driver's request queues, which results in {@code BusyPoolException} as opposed to throttling.
+ *
+ * <p>A write is in flight from when it is executed until its future completes. What happens when
+ * there's no room is decided by the {@link InFlightWritesPolicy}.
+ */
+class InFlightLimiter { // not final for testing
+  private static final Logger LOG = LoggerFactory.getLogger(InFlightLimiter.class);
+  /** Returned instead of executing, when the policy is {@link InFlightWritesPolicy#DROP} */
+  static final ListenableFuture<Void> DROPPED = Futures.immediateFuture(null);
+
+  private final Session session;
+  private final int maxInFlightWrites;
+  private final Semaphore permits; // null when unlimited
+  private final InFlightWritesPolicy policy;
+  private final long timeoutNanos;
+  private final AtomicLong waitNanos = new AtomicLong();
+  private final AtomicLong rejectedCount = new AtomicLong();
+  private final Runnable release = new Runnable() {
+    @Override public void run() {
+      permits.release();
+    }
+  };
+
+  /**
+   * @param maxInFlightWrites zero means unlimited
+   * @param timeoutMillis how long {@link InFlightWritesPolicy#WAIT} waits for room
+   */
+  InFlightLimiter(Session session, int maxInFlightWrites, InFlightWritesPolicy policy,
+      int timeoutMillis) {
+    this.session = session;
+    this.maxInFlightWrites = maxInFlightWrites;
+    this.permits = maxInFlightWrites > 0 ? new Semaphore(maxInFlightWrites) : null;
+    this.policy = policy;
+    this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+  }
+
+  /**
+   * Executes the statement if there's room. Otherwise, this returns a failed future or, when the
+   * policy is {@link InFlightWritesPolicy#DROP}, a successful one.
+   */
+  ListenableFuture<?> executeAsync(Statement statement) {
+    if (permits == null) return executeAsyncUnlimited(statement);
+    if (!acquire()) {
+      rejectedCount.incrementAndGet();
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("{} write as {} are in flight", policy == InFlightWritesPolicy.DROP
+            ? "dropped" : "rejected", maxInFlightWrites);
+      }
+      if (policy == InFlightWritesPolicy.DROP) return DROPPED;
+      return Futures.immediateFailedFuture(new RejectedExecutionException(
+          "Cannot write as " + maxInFlightWrites + " writes are in flight"));
+    }
+    ListenableFuture<?> result;
+    try {
+      result = executeAsyncUnlimited(statement);
+    } catch (RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+    result.addListener(release, MoreExecutors.directExecutor());
+    return result;
+  }
+
+  boolean acquire() {
+    if (permits.tryAcquire()) return true;
+    if (policy != InFlightWritesPolicy.WAIT) return false;
+    long start = System.nanoTime();
+    try {
+      return permits.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      waitNanos.addAndGet(System.nanoTime() - start);
+    }
+  }
+
+  @VisibleForTesting ListenableFuture<?> executeAsyncUnlimited(Statement statement) {
+    return session.executeAsync(statement);
+  }
+
+  /** Statistics reported by the storage component's {@code metrics()} */
+  void addMetrics(Map<String, Number> metrics) {
+    if (permits == null) return;
+    metrics.put("in_flight_writes", inFlightWrites());
+    metrics.put("in_flight_wait_millis", TimeUnit.NANOSECONDS.toMillis(waitNanos()));
+    metrics.put("rejected_writes", rejectedCount());
+  }
+
+  /** Count of writes executed, but not yet complete, or zero when unlimited. */
+  int inFlightWrites() {
+    return permits == null ? 0 : maxInFlightWrites - permits.availablePermits();
+  }
+
+  /** Total time callers spent waiting for room, in nanoseconds. */
+  long waitNanos() {
+    return waitNanos.get();
+  }
+
+  /** Count of writes failed or dropped as there was no room. */
+  long rejectedCount() {
+    return rejectedCount.get();
+  }
+}
@@ -19,10 +19,10 @@ import com.datastax.driver.core.Session;
 import com.datastax.driver.core.querybuilder.Insert;
 import com.datastax.driver.core.querybuilder.QueryBuilder;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.ImmutableSetMultimap.Builder;
-import com.google.common.util.concurrent.ListenableFuture;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -54,7 +54,6 @@ final class Indexer {
   private final IndexSupport index;
   @Nullable
   private final Integer indexTtl;
-  private final Session session;
   /**
    * Shared across all threads, as updates to indexes can come from any thread. Null disables
    * optimization.
@@ -74,12 +73,12 @@ final class Indexer {
     }
     this.prepared = session.prepare(insert);
     this.indexTtl = indexTtl;
-    this.session = session;
     this.timestampCodec = new TimestampCodec(session);
     this.sharedState = sharedState;
   }
 
-  ImmutableSet<ListenableFuture<?>> index(List<Span> spans) {
+  /** Returns the inserts needed to index these spans, without executing them. */
+  ImmutableList<BoundStatement> bind(List<Span> spans) {
     // First parse each span into partition keys used to support query requests
     Builder<PartitionKeyToTraceId, Long> parsed = ImmutableSetMultimap.builder();
     for (Span span : spans) {
@@ -110,8 +109,8 @@ final class Indexer {
       }
     }
 
-    // For each entry, insert a new row in the index table asynchronously
-    ImmutableSet.Builder<ListenableFuture<?>> result = ImmutableSet.builder();
+    // For each entry, bind a new row in the index table
+    ImmutableList.Builder<BoundStatement> result = ImmutableList.builder();
     for (Map.Entry<PartitionKeyToTraceId, Long> entry : toInsert.entries()) {
       BoundStatement bound = bindWithName(prepared, boundName)
           .setLong("trace_id", entry.getKey().traceId)
@@ -120,7 +119,7 @@ final class Indexer {
         bound.setInt("ttl_", indexTtl);
       }
       index.bindPartitionKey(bound, entry.getKey().partitionKey);
-      result.add(session.executeAsync(bound));
+      result.add(bound);
     }
     return result.build();
   }
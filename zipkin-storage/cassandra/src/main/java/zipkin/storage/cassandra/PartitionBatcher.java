@@ -0,0 +1,150 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.storage.cassandra;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.Configuration;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Groups statements into unlogged batches by routing key, so that writes to the same partition
+ * are sent in one request to the replicas which own it.
+ *
+ * <p>Unlogged batches that span partitions make the coordinator fan out the writes, which is
+ * worse than sending them separately. Grouping by routing key avoids that, as each batch is
+ * routed like a single statement.
+ *
+ * <p>Batches are limited to {@link CassandraStorage.Builder#maxBatchBytes(int)} of bound values,
+ * to stay under the server's {@code batch_size_warn_threshold_in_kb}.
+ */
+class PartitionBatcher { // not final for testing
+  private static final Logger LOG = LoggerFactory.getLogger(PartitionBatcher.class);
+
+  private final InFlightLimiter limiter;
+  private final ProtocolVersion protocolVersion;
+  private final CodecRegistry codecRegistry;
+  private final int maxBatchBytes;
+  private final AtomicLong statementCount = new AtomicLong();
+  private final AtomicLong requestCount = new AtomicLong();
+
+  PartitionBatcher(Session session, InFlightLimiter limiter, int maxBatchBytes) {
+    this(limiter, session.getCluster().getConfiguration(), maxBatchBytes);
+  }
+
+  PartitionBatcher(InFlightLimiter limiter, Configuration configuration, int maxBatchBytes) {
+    this.limiter = limiter;
+    this.protocolVersion = configuration.getProtocolOptions().getProtocolVersion();
+    this.codecRegistry = configuration.getCodecRegistry();
+    this.maxBatchBytes = maxBatchBytes;
+  }
+
+  /**
+   * Executes the statements in as few requests as possible. Statements without a routing key are
+   * executed alone.
+   */
+  ImmutableSet<ListenableFuture<?>> executeAsync(Collection<BoundStatement> statements) {
+    ImmutableSet.Builder<ListenableFuture<?>> result = ImmutableSet.builder();
+    Map<ByteBuffer, Batch> batches = new LinkedHashMap<>();
+    int requests = 0;
+    for (BoundStatement statement : statements) {
+      ByteBuffer routingKey = statement.getRoutingKey(protocolVersion, codecRegistry);
+      if (routingKey == null) {
+        result.add(executeAsync(statement));
+        requests++;
+        continue;
+      }
+      int sizeInBytes = sizeInBytes(statement);
+      Batch batch = batches.get(routingKey);
+      if (batch != null && batch.sizeInBytes + sizeInBytes > maxBatchBytes) {
+        result.add(batch.executeAsync());
+        requests++;
+        batch = null;
+      }
+      if (batch == null) batches.put(routingKey, batch = new Batch());
+      batch.add(statement, sizeInBytes);
+    }
+    for (Batch batch : batches.values()) {
+      result.add(batch.executeAsync());
+      requests++;
+    }
+
+    int count = statements.size();
+    statementCount.addAndGet(count);
+    requestCount.addAndGet(requests);
+    if (LOG.isDebugEnabled() && count > requests) {
+      LOG.debug("batched {} statements into {} requests, saving {} round trips",
+          count, requests, count - requests);
+    }
+    return result.build();
+  }
+
+  /** Count of statements executed so far. */
+  long statementCount() {
+    return statementCount.get();
+  }
+
+  /** Count of requests issued so far, where each is a batch or a single statement. */
+  long requestCount() {
+    return requestCount.get();
+  }
+
+  @VisibleForTesting ListenableFuture<?> executeAsync(Statement statement) {
+    return limiter.executeAsync(statement);
+  }
+
+  /** Estimates the size of a statement as the sum of its bound values. */
+  static int sizeInBytes(BoundStatement statement) {
+    int result = 0;
+    for (int i = 0, length = statement.preparedStatement().getVariables().size(); i < length; i++) {
+      ByteBuffer value = statement.getBytesUnsafe(i);
+      if (value != null) result += value.remaining();
+    }
+    return result;
+  }
+
+  final class Batch {
+    BoundStatement first;
+    BatchStatement batch;
+    int sizeInBytes;
+
+    void add(BoundStatement statement, int sizeInBytes) {
+      this.sizeInBytes += sizeInBytes;
+      if (first == null) {
+        first = statement;
+        return;
+      }
+      if (batch == null) batch = new BatchStatement(BatchStatement.Type.UNLOGGED).add(first);
+      batch.add(statement);
+    }
+
+    /** Executes a lone statement directly, as there's no benefit to batching it. */
+    ListenableFuture<?> executeAsync() {
+      return PartitionBatcher.this.executeAsync(batch != null ? batch : first);
+    }
+  }
+}
@@ -29,6 +29,7 @@ import zipkin.Annotation;
 import zipkin.Constants;
 import zipkin.Span;
 import zipkin.TestObjects;
+import zipkin.storage.cassandra.CassandraStorage.InFlightWritesPolicy;
 
 import static java.util.stream.Collectors.toList;
 import static org.assertj.core.api.Assertions.assertThat;
@@ -144,7 +145,9 @@ public class CassandraSpanConsumerTest {
         storage.bucketCount,
         storage.spanTtl,
         storage.indexTtl,
-        null /** Disables optimization, just like CassandraStorage.indexCacheMax = 0 would */
+        null, /** Disables optimization, just like CassandraStorage.indexCacheMax = 0 would */
+        0,
+        new InFlightLimiter(storage.session(), 0, InFlightWritesPolicy.WAIT, 0)
     );
     Futures.getUnchecked(withoutOptimization.accept(ImmutableList.copyOf(trace)));
     assertThat(rowCount(Tables.SERVICE_SPAN_NAME_INDEX)).isEqualTo(201L);
@@ -30,4 +30,21 @@ public class CassandraStorageTest {
     assertThat(result.exception)
         .isInstanceOf(NoHostAvailableException.class);
   }
+
+  /** Metrics are polled by the server, so shouldn't connect to Cassandra to read them */
+  @Test
+  public void metrics_emptyBeforeUse() {
+    assertThat(CassandraStorage.builder().contactPoints("1.1.1.1").build().metrics())
+        .isEmpty();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void maxInFlightWrites_negative() {
+    CassandraStorage.builder().maxInFlightWrites(-1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void inFlightWritesTimeout_negative() {
+    CassandraStorage.builder().inFlightWritesTimeout(-1);
+  }
 }
@@ -16,11 +16,13 @@ package zipkin.storage.cassandra;
 import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.reflect.Reflection;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.SettableFuture;
 import java.util.Collection;
 import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.CountDownLatch;
@@ -28,8 +30,10 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import org.junit.Test;
+import zipkin.storage.cassandra.CassandraStorage.InFlightWritesPolicy;
 
 import static com.google.common.util.concurrent.MoreExecutors.listeningDecorator;
 import static org.assertj.core.api.Assertions.assertThat;
@@ -142,7 +146,7 @@ public class DeduplicatingExecutorTest {
   public void multithreaded() throws Exception {
     Session session = mock(Session.class);
     DeduplicatingExecutor executor =
-        new DeduplicatingExecutor(session, TimeUnit.SECONDS.toMillis(1L));
+        new DeduplicatingExecutor(unlimited(session), TimeUnit.SECONDS.toMillis(1L));
     BoundStatement statement = mock(BoundStatement.class);
     when(session.executeAsync(statement))
         .thenAnswer(invocationOnMock -> mock(ResultSetFuture.class));
@@ -190,6 +194,28 @@ public class DeduplicatingExecutorTest {
         .isNotEqualTo(firstFuture);
   }
 
+  /** A write dropped by the in-flight limit must not suppress later writes of the same key */
+  @Test
+  public void doesntRememberDroppedWrites() throws Exception {
+    SettableFuture<Void> inFlight = SettableFuture.create();
+    AtomicInteger executions = new AtomicInteger();
+    InFlightLimiter limiter = new InFlightLimiter(mock(Session.class), 1,
+        InFlightWritesPolicy.DROP, 0) {
+      @Override ListenableFuture<?> executeAsyncUnlimited(Statement statement) {
+        executions.incrementAndGet();
+        return inFlight;
+      }
+    };
+    DeduplicatingExecutor executor = new DeduplicatingExecutor(limiter, 1000L);
+
+    executor.maybeExecuteAsync(first, "foo"); // takes the only permit
+    assertThat(executor.maybeExecuteAsync(next, "bar").get()).isNull(); // dropped
+    inFlight.set(null);
+
+    executor.maybeExecuteAsync(next, "bar");
+    assertThat(executions).hasValue(2);
+  }
+
   static class TestDeduplicatingExecutor extends DeduplicatingExecutor {
     static TestDeduplicatingExecutor create(Function<BoundStatement, ListenableFuture<?>> callee) {
       return new TestDeduplicatingExecutor(callee);
@@ -199,7 +225,7 @@ public class DeduplicatingExecutorTest {
     long nanoTime;
 
     protected TestDeduplicatingExecutor(Function<BoundStatement, ListenableFuture<?>> delegate) {
-      super(fakeSession(delegate), TimeUnit.SECONDS.toMillis(1L));
+      super(unlimited(fakeSession(delegate)), TimeUnit.SECONDS.toMillis(1L));
       this.delegate = delegate;
     }
 
@@ -212,6 +238,10 @@ public class DeduplicatingExecutorTest {
     }
   }
 
+  static InFlightLimiter unlimited(Session session) {
+    return new InFlightLimiter(session, 0, InFlightWritesPolicy.WAIT, 0);
+  }
+
   static Session fakeSession(final Function<BoundStatement, ListenableFuture<?>> delegate) {
     return Reflection.newProxy(Session.class, (proxy, method, args) -> {
       assert method.getName().equals("executeAsync") && args[0] instanceof BoundStatement;
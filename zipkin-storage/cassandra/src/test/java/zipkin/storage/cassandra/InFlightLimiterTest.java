@@ -0,0 +1,153 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.storage.cassandra;
+
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import zipkin.storage.cassandra.CassandraStorage.InFlightWritesPolicy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+import static org.mockito.Mockito.mock;
+
+public class InFlightLimiterTest {
+  List<SettableFuture<Void>> executed = new CopyOnWriteArrayList<>();
+  Statement statement = mock(Statement.class);
+  ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+  @After public void shutdown() {
+    scheduler.shutdownNow();
+  }
+
+  @Test
+  public void unlimited() {
+    InFlightLimiter limiter = limiter(0, InFlightWritesPolicy.FAIL, 0);
+
+    for (int i = 0; i < 3; i++) limiter.executeAsync(statement);
+
+    assertThat(executed).hasSize(3);
+    assertThat(limiter.rejectedCount()).isZero();
+  }
+
+  @Test
+  public void fail_atLimit() throws InterruptedException {
+    InFlightLimiter limiter = limiter(1, InFlightWritesPolicy.FAIL, 0);
+
+    limiter.executeAsync(statement);
+    ListenableFuture<?> rejected = limiter.executeAsync(statement);
+
+    assertThat(executed).hasSize(1);
+    assertThat(limiter.rejectedCount()).isEqualTo(1L);
+    try {
+      rejected.get();
+      failBecauseExceptionWasNotThrown(ExecutionException.class);
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(RejectedExecutionException.class);
+    }
+  }
+
+  @Test
+  public void drop_atLimit() throws Exception {
+    InFlightLimiter limiter = limiter(1, InFlightWritesPolicy.DROP, 0);
+
+    limiter.executeAsync(statement);
+    ListenableFuture<?> dropped = limiter.executeAsync(statement);
+
+    assertThat(executed).hasSize(1);
+    assertThat(limiter.rejectedCount()).isEqualTo(1L);
+    assertThat(dropped.get()).isNull();
+  }
+
+  @Test
+  public void wait_failsAfterTimeout() {
+    InFlightLimiter limiter = limiter(1, InFlightWritesPolicy.WAIT, 10);
+
+    limiter.executeAsync(statement);
+    ListenableFuture<?> rejected = limiter.executeAsync(statement);
+
+    assertThat(rejected.isDone()).isTrue();
+    assertThat(limiter.rejectedCount()).isEqualTo(1L);
+    assertThat(limiter.waitNanos()).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(10));
+  }
+
+  @Test
+  public void wait_proceedsWhenWriteCompletes() {
+    InFlightLimiter limiter = limiter(1, InFlightWritesPolicy.WAIT, 10000);
+
+    limiter.executeAsync(statement);
+    scheduler.schedule(() -> executed.get(0).set(null), 10, TimeUnit.MILLISECONDS);
+    limiter.executeAsync(statement);
+
+    assertThat(executed).hasSize(2);
+    assertThat(limiter.rejectedCount()).isZero();
+    assertThat(limiter.waitNanos()).isPositive();
+  }
+
+  @Test
+  public void failedWritesReleaseRoom() {
+    InFlightLimiter limiter = limiter(1, InFlightWritesPolicy.FAIL, 0);
+
+    limiter.executeAsync(statement);
+    executed.get(0).setException(new IllegalStateException());
+    limiter.executeAsync(statement);
+
+    assertThat(executed).hasSize(2);
+    assertThat(limiter.inFlightWrites()).isEqualTo(1);
+  }
+
+  @Test
+  public void addMetrics() {
+    InFlightLimiter limiter = limiter(1, InFlightWritesPolicy.FAIL, 0);
+
+    limiter.executeAsync(statement);
+    limiter.executeAsync(statement);
+
+    Map<String, Number> metrics = new LinkedHashMap<>();
+    limiter.addMetrics(metrics);
+    assertThat(metrics)
+        .containsEntry("in_flight_writes", 1)
+        .containsEntry("in_flight_wait_millis", 0L)
+        .containsEntry("rejected_writes", 1L);
+  }
+
+  @Test
+  public void addMetrics_noneWhenUnlimited() {
+    Map<String, Number> metrics = new LinkedHashMap<>();
+    limiter(0, InFlightWritesPolicy.FAIL, 0).addMetrics(metrics);
+    assertThat(metrics).isEmpty();
+  }
+
+  InFlightLimiter limiter(int maxInFlightWrites, InFlightWritesPolicy policy, int timeout) {
+    return new InFlightLimiter(mock(Session.class), maxInFlightWrites, policy, timeout) {
+      @Override ListenableFuture<?> executeAsyncUnlimited(Statement statement) {
+        SettableFuture<Void> result = SettableFuture.create();
+        executed.add(result);
+        return result;
+      }
+    };
+  }
+}
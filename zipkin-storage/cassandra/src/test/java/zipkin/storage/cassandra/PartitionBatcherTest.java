@@ -0,0 +1,93 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.storage.cassandra;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.Configuration;
+import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PartitionBatcherTest {
+  List<Statement> executed = new ArrayList<>();
+  PartitionBatcher batcher = new PartitionBatcher(mock(InFlightLimiter.class),
+      mock(Configuration.class, RETURNS_DEEP_STUBS), 100) {
+    @Override ListenableFuture<?> executeAsync(Statement statement) {
+      executed.add(statement);
+      return Futures.immediateFuture(null);
+    }
+  };
+
+  BoundStatement a1 = statement(1, 40), a2 = statement(1, 40), a3 = statement(1, 40);
+  BoundStatement b1 = statement(2, 40);
+
+  @Test
+  public void groupsByRoutingKey() {
+    batcher.executeAsync(asList(a1, b1, a2));
+
+    assertThat(executed).hasSize(2);
+    assertThat(((BatchStatement) executed.get(0)).getStatements()).containsExactly(a1, a2);
+    assertThat(executed.get(1)).isSameAs(b1);
+  }
+
+  @Test
+  public void splitsBatchesOverMaxBatchBytes() {
+    batcher.executeAsync(asList(a1, a2, a3));
+
+    assertThat(executed).hasSize(2);
+    assertThat(((BatchStatement) executed.get(0)).getStatements()).containsExactly(a1, a2);
+    assertThat(executed.get(1)).isSameAs(a3);
+  }
+
+  @Test
+  public void executesAloneWithoutRoutingKey() {
+    BoundStatement unrouted = statement(null, 10);
+
+    batcher.executeAsync(asList(a1, unrouted, a2));
+
+    assertThat(executed).hasSize(2);
+    assertThat(executed.get(0)).isSameAs(unrouted);
+    assertThat(((BatchStatement) executed.get(1)).getStatements()).containsExactly(a1, a2);
+  }
+
+  @Test
+  public void countsRoundTrips() {
+    batcher.executeAsync(asList(a1, b1, a2));
+    batcher.executeAsync(asList(a3));
+
+    assertThat(batcher.statementCount()).isEqualTo(4L);
+    assertThat(batcher.requestCount()).isEqualTo(3L);
+  }
+
+  static BoundStatement statement(Integer routingKey, int sizeInBytes) {
+    BoundStatement statement = mock(BoundStatement.class, RETURNS_DEEP_STUBS);
+    when(statement.getRoutingKey(any(), any()))
+        .thenReturn(routingKey == null ? null : ByteBuffer.allocate(4).putInt(0, routingKey));
+    when(statement.preparedStatement().getVariables().size()).thenReturn(1);
+    when(statement.getBytesUnsafe(0)).thenReturn(ByteBuffer.allocate(sizeInBytes));
+    return statement;
+  }
+}
@@ -18,12 +18,16 @@ import com.datastax.driver.core.querybuilder.QueryBuilder;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import zipkin.internal.LazyCloseable;
 import zipkin.internal.Nullable;
 import zipkin.storage.QueryRequest;
 import zipkin.storage.StorageComponent;
+import zipkin.storage.StorageMetrics;
 import zipkin.storage.guava.LazyGuavaStorageComponent;
 
+import static zipkin.internal.Util.checkArgument;
 import static zipkin.internal.Util.checkNotNull;
 
 /**
@@ -37,7 +41,8 @@ import static zipkin.internal.Util.checkNotNull;
 // This component is named Cassandra3Storage as it correlates to "cassandra3" storage types, and
 // makes health-checks more obvious. Note: this is the only public type in the package.
 public final class Cassandra3Storage
-    extends LazyGuavaStorageComponent<CassandraSpanStore, CassandraSpanConsumer> {
+    extends LazyGuavaStorageComponent<CassandraSpanStore, CassandraSpanConsumer>
+    implements StorageMetrics {
 
   // @FunctionalInterface, except safe for lower language levels
   public interface SessionFactory {
@@ -46,6 +51,19 @@ public final class Cassandra3Storage
     Session create(Cassandra3Storage storage);
   }
 
+  /** What happens when a write is attempted at {@link Builder#maxInFlightWrites(int)}. */
+  public enum InFlightWritesPolicy {
+    /**
+     * Waits up to {@link Builder#inFlightWritesTimeout(int)} for room, then fails the write. This
+     * slows the caller, which can in turn slow the transport that spans are collected from.
+     */
+    WAIT,
+    /** Fails the write immediately. */
+    FAIL,
+    /** Skips the write, but reports success. This keeps collectors healthy, but loses data. */
+    DROP
+  }
+
   public static Builder builder() {
     return new Builder();
   }
@@ -62,6 +80,9 @@ public final class Cassandra3Storage
     String password;
     int maxTraceCols = 100000;
     int indexFetchMultiplier = 3;
+    int maxInFlightWrites = 0;
+    InFlightWritesPolicy inFlightWritesPolicy = InFlightWritesPolicy.WAIT;
+    int inFlightWritesTimeout = 1000;
     SessionFactory sessionFactory = SessionFactory.DEFAULT;
 
     /** {@inheritDoc} */
@@ -159,6 +180,36 @@ public final class Cassandra3Storage
       return this;
     }
 
+    /**
+     * When positive, limits how many writes can be in flight to Cassandra. Zero disables the
+     * feature. Defaults to 0.
+     *
+     * <p>Without a limit, a spike in spans can fill the driver's request queues, which surfaces as
+     * {@code BusyPoolException}. What happens at the limit is set by {@link
+     * #inFlightWritesPolicy(InFlightWritesPolicy)}.
+     */
+    public Builder maxInFlightWrites(int maxInFlightWrites) {
+      checkArgument(maxInFlightWrites >= 0, "maxInFlightWrites < 0");
+      this.maxInFlightWrites = maxInFlightWrites;
+      return this;
+    }
+
+    /** What to do when {@link #maxInFlightWrites(int)} are in flight. Defaults to WAIT. */
+    public Builder inFlightWritesPolicy(InFlightWritesPolicy inFlightWritesPolicy) {
+      this.inFlightWritesPolicy = checkNotNull(inFlightWritesPolicy, "inFlightWritesPolicy");
+      return this;
+    }
+
+    /**
+     * How long in milliseconds to wait for room when the policy is {@link
+     * InFlightWritesPolicy#WAIT}. Defaults to 1000.
+     */
+    public Builder inFlightWritesTimeout(int inFlightWritesTimeout) {
+      checkArgument(inFlightWritesTimeout >= 0, "inFlightWritesTimeout < 0");
+      this.inFlightWritesTimeout = inFlightWritesTimeout;
+      return this;
+    }
+
     @Override public Cassandra3Storage build() {
       return new Cassandra3Storage(this);
     }
@@ -177,8 +228,13 @@ public final class Cassandra3Storage
   final boolean useSsl;
   final String keyspace;
   final int indexFetchMultiplier;
+  final int maxInFlightWrites;
+  final InFlightWritesPolicy inFlightWritesPolicy;
+  final int inFlightWritesTimeout;
   final boolean strictTraceId;
   final LazyCloseable<Session> session;
+  /** Set when the span consumer is computed, so that metrics don't connect to Cassandra */
+  @Nullable volatile InFlightLimiter limiter;
 
   Cassandra3Storage(Builder builder) {
     this.contactPoints = builder.contactPoints;
@@ -191,6 +247,9 @@ public final class Cassandra3Storage
     this.keyspace = builder.keyspace;
     this.maxTraceCols = builder.maxTraceCols;
     this.indexFetchMultiplier = builder.indexFetchMultiplier;
+    this.maxInFlightWrites = builder.maxInFlightWrites;
+    this.inFlightWritesPolicy = builder.inFlightWritesPolicy;
+    this.inFlightWritesTimeout = builder.inFlightWritesTimeout;
     this.strictTraceId = builder.strictTraceId;
     final SessionFactory sessionFactory = builder.sessionFactory;
     this.session = new LazyCloseable<Session>() {
@@ -211,7 +270,18 @@ public final class Cassandra3Storage
   }
 
   @Override protected CassandraSpanConsumer computeGuavaSpanConsumer() {
-    return new CassandraSpanConsumer(session.get(), strictTraceId);
+    Session session = this.session.get();
+    InFlightLimiter limiter = new InFlightLimiter(session, maxInFlightWrites,
+        inFlightWritesPolicy, inFlightWritesTimeout);
+    this.limiter = limiter;
+    return new CassandraSpanConsumer(session, strictTraceId, limiter);
+  }
+
+  @Override public Map<String, Number> metrics() {
+    Map<String, Number> result = new LinkedHashMap<>();
+    InFlightLimiter limiter = this.limiter;
+    if (limiter != null) limiter.addMetrics(result);
+    return result;
   }
 
   @Override public CheckResult check() {
@@ -15,7 +15,6 @@ package zipkin.storage.cassandra3;
 
 import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.PreparedStatement;
-import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.querybuilder.QueryBuilder;
 import com.datastax.driver.core.utils.UUIDs;
@@ -49,14 +48,16 @@ final class CassandraSpanConsumer implements GuavaSpanConsumer {
   private static final Function<Object, Void> TO_VOID = Functions.<Void>constant(null);
 
   private final Session session;
+  private final InFlightLimiter limiter;
   private final boolean strictTraceId;
   private final PreparedStatement insertSpan;
   private final PreparedStatement insertTraceServiceSpanName;
   private final PreparedStatement insertServiceSpanName;
   private final Schema.Metadata metadata;
 
-  CassandraSpanConsumer(Session session, boolean strictTraceId) {
+  CassandraSpanConsumer(Session session, boolean strictTraceId, InFlightLimiter limiter) {
     this.session = session;
+    this.limiter = limiter;
     this.strictTraceId = strictTraceId;
     this.metadata = Schema.readMetadata(session);
 
@@ -164,7 +165,7 @@ final class CassandraSpanConsumer implements GuavaSpanConsumer {
         bound = bound.setLong("parent_id", span.parentId);
       }
 
-      ResultSetFuture result = session.executeAsync(bound);
+      ListenableFuture<?> result = limiter.executeAsync(bound);
       if (!strictTraceId && traceId.getHigh() != 0L) {
         // store the span twice, once for 128-bit ID and once for the lower 64 bits
         return Futures.allAsList(
@@ -203,7 +204,7 @@ final class CassandraSpanConsumer implements GuavaSpanConsumer {
         bound = bound.setLong("duration", duration);
       }
 
-      return session.executeAsync(bound);
+      return limiter.executeAsync(bound);
 
     } catch (RuntimeException ex) {
       return Futures.immediateFailedFuture(ex);
@@ -219,7 +220,7 @@ final class CassandraSpanConsumer implements GuavaSpanConsumer {
           .setString("service_name", serviceName)
           .setString("span_name", spanName);
 
-      return session.executeAsync(bound);
+      return limiter.executeAsync(bound);
     } catch (RuntimeException ex) {
       return Futures.immediateFailedFuture(ex);
     }
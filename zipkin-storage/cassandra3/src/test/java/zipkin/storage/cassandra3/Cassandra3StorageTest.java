@@ -30,4 +30,21 @@ public class Cassandra3StorageTest {
     assertThat(result.exception)
         .isInstanceOf(NoHostAvailableException.class);
   }
+
+  /** Metrics are polled by the server, so shouldn't connect to Cassandra to read them */
+  @Test
+  public void metrics_emptyBeforeUse() {
+    assertThat(Cassandra3Storage.builder().contactPoints("1.1.1.1").build().metrics())
+        .isEmpty();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void maxInFlightWrites_negative() {
+    Cassandra3Storage.builder().maxInFlightWrites(-1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void inFlightWritesTimeout_negative() {
+    Cassandra3Storage.builder().inFlightWritesTimeout(-1);
+  }
 }
@@ -55,7 +55,9 @@ public class InternalForTests {
   }
 
   public static AsyncSpanConsumer withoutStrictTraceId(Cassandra3Storage storage) {
-    return guavaToAsync(new CassandraSpanConsumer(storage.session(), false));
+    InFlightLimiter limiter = new InFlightLimiter(storage.session(), storage.maxInFlightWrites,
+        storage.inFlightWritesPolicy, storage.inFlightWritesTimeout);
+    return guavaToAsync(new CassandraSpanConsumer(storage.session(), false, limiter));
   }
 
   public static KeyspaceMetadata ensureExists(String keyspace, Session session) {
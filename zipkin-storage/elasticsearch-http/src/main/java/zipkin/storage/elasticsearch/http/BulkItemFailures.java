@@ -0,0 +1,74 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.storage.elasticsearch.http;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts documents Elasticsearch refused in otherwise successful bulk requests, keyed on the error
+ * type, such as "es_rejected_execution_exception".
+ */
+final class BulkItemFailures {
+  final ConcurrentMap<String, AtomicLong> byReason = new ConcurrentHashMap<>();
+  final AtomicLong retried = new AtomicLong();
+  final AtomicLong dropped = new AtomicLong();
+
+  void increment(String reason) {
+    AtomicLong count = byReason.get(reason);
+    if (count == null) {
+      AtomicLong newCount = new AtomicLong();
+      count = byReason.putIfAbsent(reason, newCount);
+      if (count == null) count = newCount;
+    }
+    count.incrementAndGet();
+  }
+
+  /** Statistics reported by {@link ElasticsearchHttpStorage#metrics()} */
+  void addMetrics(Map<String, Number> metrics) {
+    metrics.put("bulk_items_retried", retried());
+    metrics.put("bulk_items_dropped", dropped());
+    for (Map.Entry<String, Long> entry : countsByReason().entrySet()) {
+      metrics.put("bulk_item_failures." + entry.getKey(), entry.getValue());
+    }
+  }
+
+  /** Count of item failures with the given error type, including those later retried. */
+  long count(String reason) {
+    AtomicLong count = byReason.get(reason);
+    return count != null ? count.get() : 0L;
+  }
+
+  /** Snapshot of item failure counts by error type */
+  Map<String, Long> countsByReason() {
+    Map<String, Long> result = new LinkedHashMap<>();
+    for (Map.Entry<String, AtomicLong> entry : byReason.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().get());
+    }
+    return result;
+  }
+
+  /** Count of documents sent again after a retryable failure. */
+  long retried() {
+    return retried.get();
+  }
+
+  /** Count of documents that were not stored after exhausting retries, or failing permanently. */
+  long dropped() {
+    return dropped.get();
+  }
+}
@@ -24,6 +24,7 @@ import java.util.concurrent.TimeUnit;
 import okio.Buffer;
 import zipkin.Codec;
 import zipkin.Span;
+import zipkin.internal.Nullable;
 import zipkin.internal.Pair;
 import zipkin.storage.AsyncSpanConsumer;
 import zipkin.storage.Callback;
@@ -37,10 +38,14 @@ class ElasticsearchHttpSpanConsumer implements AsyncSpanConsumer { // not final
 
   final ElasticsearchHttpStorage es;
   final IndexNameFormatter indexNameFormatter;
+  final ExistingIndices existingIndices;
+  @Nullable final NameCache nameCache;
 
   ElasticsearchHttpSpanConsumer(ElasticsearchHttpStorage es) {
     this.es = es;
     this.indexNameFormatter = es.indexNameFormatter();
+    this.existingIndices = es.existingIndices();
+    this.nameCache = es.namesRefreshInterval() > 0 ? es.nameCache() : null;
   }
 
   @Override public void accept(List<Span> spans, Callback<Void> callback) {
@@ -54,7 +59,11 @@ class ElasticsearchHttpSpanConsumer implements AsyncSpanConsumer { // not final
       if (!indexToServiceSpans.isEmpty()) {
         indexNames(indexer, indexToServiceSpans);
       }
-      indexer.execute(callback);
+      if (es.bulkLinger() > 0) {
+        es.bulkBuffer().add(indexer, callback);
+      } else {
+        indexer.execute(callback);
+      }
     } catch (Throwable t) {
       propagateIfFatal(t);
       callback.onError(t);
@@ -64,6 +73,7 @@ class ElasticsearchHttpSpanConsumer implements AsyncSpanConsumer { // not final
   /** Indexes spans and returns a mapping of indexes that may need a names update */
   Map<String, Set<Pair<String>>> indexSpans(HttpBulkIndexer indexer, List<Span> spans) {
     Map<String, Set<Pair<String>>> indexToServiceSpans = new LinkedHashMap<>();
+    String lastIndex = null;
     for (Span span : spans) {
       Long timestamp = guessTimestamp(span);
       Long timestampMillis;
@@ -83,6 +93,7 @@ class ElasticsearchHttpSpanConsumer implements AsyncSpanConsumer { // not final
         if (indexTimestamp == null) indexTimestamp = System.currentTimeMillis();
         index = indexNameFormatter.indexNameForTimestamp(indexTimestamp);
       }
+      if (!index.equals(lastIndex)) existingIndices.added(lastIndex = index);
       if (!span.name.isEmpty()) putServiceSpans(indexToServiceSpans, index, span);
       byte[] document = Codec.JSON.writeSpan(span);
       if (timestampMillis != null) document = prefixWithTimestampMillis(document, timestampMillis);
@@ -117,6 +128,7 @@ class ElasticsearchHttpSpanConsumer implements AsyncSpanConsumer { // not final
         writer.endObject();
         byte[] document = buffer.readByteArray();
         indexer.add(index, SERVICE_SPAN, document, serviceSpan._1 + "|" + serviceSpan._2);
+        if (nameCache != null) nameCache.added(serviceSpan._1, serviceSpan._2);
       }
     }
   }
@@ -19,6 +19,7 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import zipkin.DependencyLink;
 import zipkin.Span;
 import zipkin.internal.CorrectForClockSkew;
@@ -35,18 +36,25 @@ import zipkin.storage.elasticsearch.http.internal.client.SearchCallFactory;
 import zipkin.storage.elasticsearch.http.internal.client.SearchRequest;
 
 import static java.util.Arrays.asList;
+import static zipkin.internal.ApplyTimestampAndDuration.guessTimestamp;
 
 final class ElasticsearchHttpSpanStore implements AsyncSpanStore {
 
   static final String SPAN = "span";
   static final String DEPENDENCY_LINK = "dependencylink";
   static final String SERVICE_SPAN = "servicespan";
+  /** Days of indices searched for a trace ID before searching all of them */
+  static final int RECENT_TRACE_DAYS = 3;
+  /** How far after today to look for spans indexed by hosts whose clocks are ahead. */
+  static final int MAX_CLOCK_SKEW_DAYS = 365;
 
   final SearchCallFactory search;
   final String[] allIndices;
   final IndexNameFormatter indexNameFormatter;
   final boolean strictTraceId;
   final int namesLookback;
+  final ExistingIndices existingIndices;
+  @Nullable final NameCache nameCache;
 
   ElasticsearchHttpSpanStore(ElasticsearchHttpStorage es) {
     this.search = new SearchCallFactory(es.http());
@@ -54,6 +62,8 @@ final class ElasticsearchHttpSpanStore implements AsyncSpanStore {
     this.indexNameFormatter = es.indexNameFormatter();
     this.strictTraceId = es.strictTraceId();
     this.namesLookback = es.namesLookback();
+    this.existingIndices = es.existingIndices();
+    this.nameCache = es.namesRefreshInterval() > 0 ? es.nameCache() : null;
   }
 
   @Override public void getTraces(QueryRequest request, Callback<List<List<Span>>> callback) {
@@ -113,11 +123,11 @@ final class ElasticsearchHttpSpanStore implements AsyncSpanStore {
         .addSubAggregation(Aggregation.min("timestamp_millis"))
         .orderBy("timestamp_millis", "desc");
 
-    List<String> indices = indexNameFormatter.indexNamePatternsForRange(beginMillis, endMillis);
-    SearchRequest esRequest = SearchRequest.forIndicesAndType(indices, SPAN)
-        .filters(filters).addAggregation(traceIdTimestamp);
-
-    HttpCall<List<String>> traceIdsCall = search.newCall(esRequest, BodyConverters.SORTED_KEYS);
+    List<String> indices = existingIndices.indicesForRange(beginMillis, endMillis);
+    if (indices.isEmpty()) { // no index exists in the time range
+      callback.onSuccess(Collections.emptyList());
+      return;
+    }
 
     // When we receive span results, we need to group them by trace ID
     Callback<List<Span>> successCallback = new Callback<List<Span>>() {
@@ -139,6 +149,10 @@ final class ElasticsearchHttpSpanStore implements AsyncSpanStore {
       }
     };
 
+    SearchRequest esRequest = SearchRequest.forIndicesAndType(indices, SPAN)
+        .filters(filters).addAggregation(traceIdTimestamp);
+    HttpCall<List<String>> traceIdsCall = search.newCall(esRequest, BodyConverters.SORTED_KEYS);
+
     // Fire off the query to get spans once we have trace ids
     traceIdsCall.submit(new Callback<List<String>>() {
       @Override public void onSuccess(@Nullable List<String> traceIds) {
@@ -178,17 +192,71 @@ final class ElasticsearchHttpSpanStore implements AsyncSpanStore {
     getRawTrace(0L, traceId, callback);
   }
 
+  /**
+   * Most trace lookups are for recent traces, for example clicking on a search result. Rather than
+   * search every index for the trace ID, this searches recent indices first. All indices are only
+   * searched when the trace isn't there, or some of its spans might be in older indices.
+   *
+   * <p>Recent indices include any after today, as a host whose clock is ahead indexes its spans
+   * into the future. Only existing ones are searched once index names are known.
+   */
   @Override
   public void getRawTrace(long traceIdHigh, long traceIdLow, Callback<List<Span>> callback) {
     String traceIdHex = Util.toLowerHex(strictTraceId ? traceIdHigh : 0L, traceIdLow);
 
-    SearchRequest request = SearchRequest.forIndicesAndType(asList(allIndices), SPAN)
+    long now = System.currentTimeMillis();
+    long beginMillis = Util.midnightUTC(now) - TimeUnit.DAYS.toMillis(RECENT_TRACE_DAYS - 1);
+    long endMillis = now + TimeUnit.DAYS.toMillis(MAX_CLOCK_SKEW_DAYS);
+    List<String> recent = existingIndices.indicesForRange(beginMillis, endMillis);
+    SearchRequest all = SearchRequest.forIndicesAndType(asList(allIndices), SPAN)
         .term("traceId", traceIdHex);
+    if (recent.isEmpty()) {
+      search.newCall(all, BodyConverters.NULLABLE_SPANS).submit(callback);
+      return;
+    }
 
-    search.newCall(request, BodyConverters.NULLABLE_SPANS).submit(callback);
+    SearchRequest request = SearchRequest.forIndicesAndType(recent, SPAN)
+        .term("traceId", traceIdHex);
+    search.newCall(request, BodyConverters.NULLABLE_SPANS).submit(new Callback<List<Span>>() {
+      @Override public void onSuccess(@Nullable List<Span> spans) {
+        if (spans != null && !mayHaveOlderSpans(spans, beginMillis)) {
+          callback.onSuccess(spans);
+        } else {
+          search.newCall(all, BodyConverters.NULLABLE_SPANS).submit(callback);
+        }
+      }
+
+      @Override public void onError(Throwable t) {
+        callback.onError(t);
+      }
+    });
+  }
+
+  /**
+   * Returns true if any span was indexed on the first day searched, or we can't tell, as a trace
+   * that started the day before would have its other spans in an older index.
+   */
+  static boolean mayHaveOlderSpans(List<Span> spans, long beginMillis) {
+    long firstDayEnd = beginMillis + TimeUnit.DAYS.toMillis(1);
+    for (Span span : spans) {
+      Long timestamp = guessTimestamp(span);
+      if (timestamp == null && !span.annotations.isEmpty()) {
+        timestamp = span.annotations.get(0).timestamp;
+      }
+      if (timestamp == null || TimeUnit.MICROSECONDS.toMillis(timestamp) < firstDayEnd) {
+        return true;
+      }
+    }
+    return false;
   }
 
   @Override public void getServiceNames(Callback<List<String>> callback) {
+    List<String> cached = nameCache != null ? nameCache.serviceNames() : null;
+    if (cached != null) {
+      callback.onSuccess(cached);
+      return;
+    }
+
     long endMillis =  System.currentTimeMillis();
     long beginMillis =  endMillis - namesLookback;
 
@@ -223,6 +291,13 @@ final class ElasticsearchHttpSpanStore implements AsyncSpanStore {
       return;
     }
 
+    List<String> cached =
+        nameCache != null ? nameCache.spanNames(serviceName.toLowerCase(Locale.ROOT)) : null;
+    if (cached != null) {
+      callback.onSuccess(cached);
+      return;
+    }
+
     long endMillis =  System.currentTimeMillis();
     long beginMillis =  endMillis - namesLookback;
 
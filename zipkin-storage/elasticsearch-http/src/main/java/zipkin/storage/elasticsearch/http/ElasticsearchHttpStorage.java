@@ -18,7 +18,14 @@ import com.google.auto.value.extension.memoized.Memoized;
 import com.squareup.moshi.JsonReader;
 import java.io.IOException;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import okhttp3.ConnectionPool;
 import okhttp3.HttpUrl;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
@@ -31,13 +38,16 @@ import zipkin.storage.AsyncSpanStore;
 import zipkin.storage.SpanStore;
 import zipkin.storage.StorageAdapters;
 import zipkin.storage.StorageComponent;
+import zipkin.storage.StorageMetrics;
+import zipkin.storage.elasticsearch.http.internal.client.HostSelector;
 import zipkin.storage.elasticsearch.http.internal.client.HttpCall;
 
+import static zipkin.internal.Util.checkArgument;
 import static zipkin.internal.Util.checkNotNull;
 import static zipkin.moshi.JsonReaders.enterPath;
 
 @AutoValue
-public abstract class ElasticsearchHttpStorage implements StorageComponent {
+public abstract class ElasticsearchHttpStorage implements StorageComponent, StorageMetrics {
 
   /**
    * A list of elasticsearch nodes to connect to, in http://host:port or https://host:port
@@ -60,6 +70,14 @@ public abstract class ElasticsearchHttpStorage implements StorageComponent {
         .indexShards(5)
         .indexReplicas(1)
         .namesLookback(86400000)
+        .bulkLinger(0)
+        .bulkMaxDocuments(5000)
+        .bulkMaxBytes(5 * 1024 * 1024)
+        .bulkConcurrency(2)
+        .bulkRetries(3)
+        .compressRequests(false)
+        .compressionLevel(6)
+        .namesRefreshInterval(0)
         .shutdownClientOnClose(false)
         .flushOnWrites(false);
   }
@@ -118,6 +136,67 @@ public abstract class ElasticsearchHttpStorage implements StorageComponent {
      */
     public abstract Builder namesLookback(int namesLookback);
 
+    /**
+     * When positive, service and span names are served from memory, reloaded from Elasticsearch at
+     * this interval in milliseconds. Names written in between are added as they are indexed.
+     * Defaults to 0, which queries Elasticsearch on each request.
+     *
+     * <p>The UI asks for service names on each page load. With many services, the aggregation
+     * behind that is one of the more expensive requests Elasticsearch sees.
+     */
+    public abstract Builder namesRefreshInterval(int namesRefreshInterval);
+
+    /**
+     * When positive, documents are aggregated across calls to {@link AsyncSpanConsumer#accept}
+     * for up to this many milliseconds before a bulk request is sent. Zero sends a bulk request per
+     * call. Defaults to 0.
+     *
+     * <p>Elasticsearch indexes more efficiently with fewer, larger bulk requests. This matters
+     * when spans arrive in small messages, such as one span per Kafka record.
+     */
+    public abstract Builder bulkLinger(int bulkLinger);
+
+    /**
+     * When {@link #bulkLinger(int)} is set, a bulk request is sent once this many documents are
+     * pending. Defaults to 5000.
+     */
+    public abstract Builder bulkMaxDocuments(int bulkMaxDocuments);
+
+    /**
+     * When {@link #bulkLinger(int)} is set, a bulk request is sent once this many bytes are
+     * pending. Defaults to 5MiB, the low end of Elasticsearch's guidance for bulk size.
+     */
+    public abstract Builder bulkMaxBytes(int bulkMaxBytes);
+
+    /**
+     * When {@link #bulkLinger(int)} is set, the maximum aggregated bulk requests in flight. The
+     * same count of full requests can wait to be sent, after which spans are rejected. Defaults to
+     * 2.
+     */
+    public abstract Builder bulkConcurrency(int bulkConcurrency);
+
+    /**
+     * How many times to resend documents Elasticsearch refused with a transient error, such as
+     * es_rejected_execution_exception. Only the refused documents are resent, with a backoff
+     * starting at 100ms, capped at 2s. Defaults to 3.
+     */
+    public abstract Builder bulkRetries(int bulkRetries);
+
+    /**
+     * When true, bulk and search request bodies are gzipped. Span json repeats field and service
+     * names, so usually compresses several times over. This trades collector CPU for network
+     * bandwidth, which is worthwhile when Elasticsearch is in a different zone or region. Defaults
+     * to false.
+     */
+    public abstract Builder compressRequests(boolean compressRequests);
+
+    /**
+     * When {@link #compressRequests(boolean)} is set, the gzip level from 1 (fastest) to 9
+     * (smallest). Defaults to 6.
+     */
+    public abstract Builder compressionLevel(int compressionLevel);
+
+
     /** Visible for testing */
     abstract Builder flushOnWrites(boolean flushOnWrites);
 
@@ -163,7 +242,18 @@ public abstract class ElasticsearchHttpStorage implements StorageComponent {
 
     @Override public abstract Builder strictTraceId(boolean strictTraceId);
 
-    @Override public abstract ElasticsearchHttpStorage build();
+    @Override public final ElasticsearchHttpStorage build() {
+      ElasticsearchHttpStorage result = autoBuild();
+      checkArgument(result.bulkLinger() >= 0, "bulkLinger < 0");
+      checkArgument(result.bulkMaxDocuments() > 0, "bulkMaxDocuments <= 0");
+      checkArgument(result.bulkMaxBytes() > 0, "bulkMaxBytes <= 0");
+      checkArgument(result.bulkConcurrency() > 0, "bulkConcurrency <= 0");
+      checkArgument(result.compressionLevel() >= 1 && result.compressionLevel() <= 9,
+          "compressionLevel should be between 1 and 9: %s", result.compressionLevel());
+      return result;
+    }
+
+    abstract ElasticsearchHttpStorage autoBuild();
 
     abstract IndexNameFormatter.Builder indexNameFormatterBuilder();
 
@@ -193,6 +283,22 @@ public abstract class ElasticsearchHttpStorage implements StorageComponent {
 
   abstract int namesLookback();
 
+  abstract int namesRefreshInterval();
+
+  abstract int bulkLinger();
+
+  abstract int bulkMaxDocuments();
+
+  abstract int bulkMaxBytes();
+
+  abstract int bulkConcurrency();
+
+  abstract int bulkRetries();
+
+  abstract boolean compressRequests();
+
+  abstract int compressionLevel();
+
   @Override public SpanStore spanStore() {
     return StorageAdapters.asyncToBlocking(asyncSpanStore());
   }
@@ -276,19 +382,82 @@ public abstract class ElasticsearchHttpStorage implements StorageComponent {
   HttpCall.Factory http() {
     List<String> hosts = hostsSupplier().get();
     if (hosts.isEmpty()) throw new IllegalArgumentException("no hosts configured");
-    OkHttpClient ok = hosts.size() == 1
-        ? client()
-        : client().newBuilder()
-            .dns(PseudoAddressRecordSet.create(hosts, client().dns()))
-            .build();
+    OkHttpClient.Builder builder = client().newBuilder()
+        // requests are spread over hosts, so keep enough connections to each of them
+        .connectionPool(new ConnectionPool(maxRequests(), 5, TimeUnit.MINUTES));
+    if (hosts.size() > 1) builder.dns(PseudoAddressRecordSet.create(hosts, client().dns()));
+    OkHttpClient ok = builder.build();
     ok.dispatcher().setMaxRequests(maxRequests());
     ok.dispatcher().setMaxRequestsPerHost(maxRequests());
-    return new HttpCall.Factory(ok, HttpUrl.parse(hosts.get(0)));
+    return httpFactory = new HttpCall.Factory(ok, HttpUrl.parse(hosts.get(0)),
+        compressRequests(), compressionLevel(), true);
+  }
+
+  /** Set when {@link #http()} is computed, so that metrics don't resolve hosts */
+  @Nullable volatile HttpCall.Factory httpFactory;
+
+  @Memoized // shared by all span consumers, so that documents aggregate across them
+  HttpBulkBuffer bulkBuffer() {
+    return new HttpBulkBuffer(this);
+  }
+
+  @Memoized // shared by consumers and span stores, so writes are visible to searches
+  ExistingIndices existingIndices() {
+    return new ExistingIndices(http(), indexNameFormatter());
+  }
+
+  @Memoized // shared by consumers and span stores, so writes are visible to searches
+  NameCache nameCache() {
+    return new NameCache(this).start(this);
+  }
+
+  @Memoized // shared by all span consumers, so that failures can be reported across them
+  BulkItemFailures bulkItemFailures() {
+    return new BulkItemFailures();
+  }
+
+  @Memoized // threads are only started when the first task is scheduled
+  ScheduledExecutorService scheduler() {
+    return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override public Thread newThread(Runnable r) {
+        Thread result = new Thread(r, "zipkin-elasticsearch-scheduler");
+        result.setDaemon(true);
+        return result;
+      }
+    });
+  }
+
+  @Override public Map<String, Number> metrics() {
+    Map<String, Number> result = new LinkedHashMap<>();
+    HttpCall.Factory http = this.httpFactory;
+    if (http != null && compressRequests()) {
+      result.put("request_bytes", http.requestBytes());
+      result.put("sent_bytes", http.sentBytes());
+      result.put("compression_ratio", http.compressionRatio());
+    }
+    if (bulkLinger() > 0) bulkBuffer().addMetrics(result);
+    bulkItemFailures().addMetrics(result);
+    if (http != null) addHostMetrics(http.hosts(), result);
+    return result;
+  }
+
+  static void addHostMetrics(List<HostSelector.Host> hosts, Map<String, Number> result) {
+    for (HostSelector.Host host : hosts) {
+      String prefix = "host." + host.url().host() + ":" + host.url().port() + ".";
+      result.put(prefix + "latency_micros", host.latencyMicros());
+      result.put(prefix + "in_flight", host.inFlight());
+      result.put(prefix + "requests", host.requests());
+      result.put(prefix + "errors", host.errors());
+      result.put(prefix + "ejected", host.isEjected() ? 1 : 0);
+    }
   }
 
   @Override public void close() {
+    if (bulkLinger() > 0) bulkBuffer().close();
+    scheduler().shutdown(); // allows retries that are already scheduled to complete
     if (!shutdownClientOnClose()) return;
-    http().close();
+    HttpCall.Factory http = this.httpFactory;
+    if (http != null) http.close(); // otherwise, it was never used
   }
 
   ElasticsearchHttpStorage() {
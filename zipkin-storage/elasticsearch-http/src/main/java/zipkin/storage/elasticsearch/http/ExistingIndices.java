@@ -0,0 +1,162 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.storage.elasticsearch.http;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import okhttp3.Request;
+import okio.BufferedSource;
+import zipkin.internal.Nullable;
+import zipkin.storage.Callback;
+import zipkin.storage.elasticsearch.http.internal.client.HttpCall;
+
+/**
+ * Tracks which daily indices exist, so that searches target only the indices holding data in
+ * their time range, or don't search at all. Names are refreshed in the background, at most once
+ * per {@link #REFRESH_INTERVAL_MILLIS}.
+ *
+ * <p>This is an optimization, so errs on the side of searching: until the first refresh completes,
+ * nothing is filtered, and today's index is always searched, as it could have been created since
+ * the last refresh. Indices written by this process are added as they are written.
+ */
+final class ExistingIndices {
+  static final long REFRESH_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+  /** Keeps the search request line well under Elasticsearch's default limit of 4KiB */
+  static final int MAX_INDICES_LENGTH = 2048;
+
+  final HttpCall.Factory http;
+  final IndexNameFormatter indexNameFormatter;
+  final AtomicBoolean refreshing = new AtomicBoolean();
+  final Set<String> addedDuringRefresh = newConcurrentSet();
+
+  volatile NavigableSet<String> names; // null until the first refresh completes
+  volatile long refreshedAt;
+
+  ExistingIndices(HttpCall.Factory http, IndexNameFormatter indexNameFormatter) {
+    this.http = http;
+    this.indexNameFormatter = indexNameFormatter;
+  }
+
+  /** Call when writing to an index, so that it can be searched before the next refresh. */
+  void added(String index) {
+    NavigableSet<String> current = names;
+    if (current != null && current.contains(index)) return;
+    if (current != null) current.add(index);
+    if (refreshing.get()) addedDuringRefresh.add(index);
+  }
+
+  /**
+   * Returns the indices to search for data between the timestamps. These are concrete index names
+   * when known, falling back to {@link IndexNameFormatter#indexNamePatternsForRange patterns}
+   * when not yet loaded or when there are too many names to fit in a request.
+   */
+  List<String> indicesForRange(long beginMillis, long endMillis) {
+    List<String> indexPatterns =
+        indexNameFormatter.indexNamePatternsForRange(beginMillis, endMillis);
+    maybeRefresh();
+    NavigableSet<String> current = names;
+    if (current == null) return indexPatterns;
+
+    String today = indexNameFormatter.indexNameForTimestamp(System.currentTimeMillis());
+    List<String> result = indexNameFormatter.indicesForRange(beginMillis, endMillis, current);
+    if (!result.contains(today)
+        && today.compareTo(indexNameFormatter.indexNameForTimestamp(beginMillis)) >= 0
+        && today.compareTo(indexNameFormatter.indexNameForTimestamp(endMillis)) <= 0) {
+      result.add(today); // as it could have been created since the last refresh
+    }
+    int length = 0;
+    for (String index : result) length += index.length() + 1;
+    if (length <= MAX_INDICES_LENGTH) return result;
+    return filter(indexPatterns, current, today);
+  }
+
+  /** Returns the index patterns that could match an existing index. */
+  static List<String> filter(List<String> indexPatterns, Set<String> current, String today) {
+    List<String> result = new ArrayList<>(indexPatterns.size());
+    for (String pattern : indexPatterns) {
+      boolean todayOrLater = pattern.compareTo(today) >= 0 || matches(pattern, today);
+      if (todayOrLater || matchesAny(pattern, current)) result.add(pattern);
+    }
+    return result;
+  }
+
+  static boolean matchesAny(String pattern, Set<String> names) {
+    if (!pattern.endsWith("*")) return names.contains(pattern);
+    for (String name : names) {
+      if (matches(pattern, name)) return true;
+    }
+    return false;
+  }
+
+  /** Patterns are either an exact index name, or a prefix followed by a wildcard. */
+  static boolean matches(String pattern, String name) {
+    if (!pattern.endsWith("*")) return pattern.equals(name);
+    return name.regionMatches(0, pattern, 0, pattern.length() - 1);
+  }
+
+  void maybeRefresh() {
+    if (System.currentTimeMillis() - refreshedAt < REFRESH_INTERVAL_MILLIS) return;
+    if (!refreshing.compareAndSet(false, true)) return;
+    addedDuringRefresh.clear();
+
+    // _cat/indices is light, and its plain text format is the same in all versions we support
+    Request request = new Request.Builder().url(http.baseUrl.newBuilder()
+        .addPathSegment("_cat")
+        .addPathSegment("indices")
+        .addPathSegment(indexNameFormatter.allIndices())
+        .addQueryParameter("h", "index").build())
+        .tag("get-indices").build();
+
+    http.newCall(request, ExistingIndices::readNames).submit(new Callback<NavigableSet<String>>() {
+      @Override public void onSuccess(@Nullable NavigableSet<String> value) {
+        NavigableSet<String> result = value != null ? value : new ConcurrentSkipListSet<>();
+        result.addAll(addedDuringRefresh);
+        names = result;
+        refreshed();
+      }
+
+      @Override public void onError(Throwable t) {
+        refreshed(); // don't retry until the next interval, as the cluster may be overloaded
+      }
+    });
+  }
+
+  void refreshed() {
+    refreshedAt = System.currentTimeMillis();
+    refreshing.set(false);
+  }
+
+  /** Reads one index name per line */
+  static NavigableSet<String> readNames(BufferedSource content) throws IOException {
+    NavigableSet<String> result = new ConcurrentSkipListSet<>();
+    String line;
+    while ((line = content.readUtf8Line()) != null) {
+      line = line.trim();
+      if (!line.isEmpty()) result.add(line);
+    }
+    return result;
+  }
+
+  static <E> Set<E> newConcurrentSet() {
+    return Collections.newSetFromMap(new ConcurrentHashMap<E, Boolean>());
+  }
+}
@@ -0,0 +1,215 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.storage.elasticsearch.http;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import zipkin.internal.Nullable;
+import zipkin.storage.Callback;
+
+/**
+ * Aggregates documents across calls to {@link ElasticsearchHttpSpanConsumer#accept}, so that
+ * Elasticsearch receives fewer, larger bulk requests.
+ *
+ * <p>A bulk request is sent once {@link ElasticsearchHttpStorage.Builder#bulkMaxDocuments(int)
+ * enough documents} or {@link ElasticsearchHttpStorage.Builder#bulkMaxBytes(int) bytes} are
+ * pending, or when {@link ElasticsearchHttpStorage.Builder#bulkLinger(int) linger} elapses since
+ * the first of them was added. Callbacks complete when the request including their documents does.
+ *
+ * <p>Up to {@link ElasticsearchHttpStorage.Builder#bulkConcurrency(int) concurrency} requests are
+ * in flight, and as many more can be waiting to send. Beyond that, documents are rejected.
+ */
+final class HttpBulkBuffer implements Closeable {
+  final ElasticsearchHttpStorage es;
+  final int maxDocuments;
+  final int maxBytes;
+  final long lingerMillis;
+  final int concurrency;
+  final ScheduledExecutorService timer;
+
+  final AtomicLong flushCount = new AtomicLong();
+  final AtomicLong flushNanos = new AtomicLong();
+
+  // Guarded by this
+  Batch pending; // null when nothing has been added since the last batch was cut
+  final ArrayDeque<Batch> queue = new ArrayDeque<>();
+  int inFlight;
+  int queuedDocuments; // includes pending
+  boolean closed;
+
+  HttpBulkBuffer(ElasticsearchHttpStorage es) {
+    this.es = es;
+    this.maxDocuments = es.bulkMaxDocuments();
+    this.maxBytes = es.bulkMaxBytes();
+    this.lingerMillis = es.bulkLinger();
+    this.concurrency = es.bulkConcurrency();
+    this.timer = es.scheduler();
+  }
+
+  /** Adds the documents from the indexer, which should not be used afterwards. */
+  void add(HttpBulkIndexer documents, Callback<Void> callback) {
+    String rejected = null;
+    synchronized (this) {
+      if (closed) {
+        rejected = "bulk buffer is closed";
+      } else if (queue.size() >= concurrency) {
+        rejected = "bulk buffer is full: " + queuedDocuments + " documents are queued";
+      }
+      if (rejected == null) rejected = addPending(documents, callback);
+    }
+    // callbacks are user code, so they are completed outside the lock
+    if (rejected != null) {
+      callback.onError(new RejectedExecutionException(rejected));
+      return;
+    }
+    drain();
+  }
+
+  /**
+   * Called while holding this lock.
+   *
+   * @return why the documents were rejected, or null if they were added
+   */
+  @Nullable String addPending(HttpBulkIndexer documents, Callback<Void> callback) {
+    if (pending == null) {
+      final Batch batch = new Batch();
+      try {
+        batch.linger = timer.schedule(new Runnable() {
+          @Override public void run() {
+            lingerElapsed(batch);
+          }
+        }, lingerMillis, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) { // the scheduler was shut down by storage close
+        return "bulk buffer can't schedule linger: " + e.getMessage();
+      }
+      pending = batch;
+    }
+    pending.add(documents, callback);
+    queuedDocuments += documents.documentCount;
+    if (pending.documentCount >= maxDocuments || pending.indexer.body.size() >= maxBytes) {
+      pending.linger.cancel(false); // cut due to size, so the linger task has nothing to do
+      queue.add(pending);
+      pending = null;
+    }
+    return null;
+  }
+
+  void lingerElapsed(Batch batch) {
+    synchronized (this) {
+      if (pending != batch) return; // already cut due to size
+      queue.add(pending);
+      pending = null;
+    }
+    drain();
+  }
+
+  /** Sends queued batches until there are none, or the concurrency limit is reached. */
+  void drain() {
+    while (true) {
+      Batch next;
+      synchronized (this) {
+        if (inFlight >= concurrency || queue.isEmpty()) return;
+        next = queue.poll();
+        queuedDocuments -= next.documentCount;
+        inFlight++;
+      }
+      flush(next);
+    }
+  }
+
+  void flush(final Batch batch) {
+    final long startNanos = System.nanoTime();
+    Callback<Void> callback = new Callback<Void>() {
+      @Override public void onSuccess(Void value) {
+        flushed(startNanos);
+        for (Callback<Void> callback : batch.callbacks) callback.onSuccess(null);
+      }
+
+      @Override public void onError(Throwable t) {
+        flushed(startNanos);
+        for (Callback<Void> callback : batch.callbacks) callback.onError(t);
+      }
+    };
+    try {
+      batch.indexer.execute(callback);
+    } catch (RuntimeException e) {
+      callback.onError(e);
+    }
+  }
+
+  void flushed(long startNanos) {
+    flushNanos.addAndGet(System.nanoTime() - startNanos);
+    flushCount.incrementAndGet();
+    synchronized (this) {
+      inFlight--;
+    }
+    drain();
+  }
+
+  /** Statistics reported by {@link ElasticsearchHttpStorage#metrics()} */
+  void addMetrics(Map<String, Number> metrics) {
+    metrics.put("bulk_queued_documents", queuedDocuments());
+    metrics.put("bulk_requests", flushCount());
+    metrics.put("bulk_request_millis", TimeUnit.NANOSECONDS.toMillis(flushNanos()));
+  }
+
+  /** Count of documents added, but not yet sent. */
+  synchronized int queuedDocuments() {
+    return queuedDocuments;
+  }
+
+  /** Count of bulk requests completed, successfully or not. */
+  long flushCount() {
+    return flushCount.get();
+  }
+
+  /** Total time spent in bulk requests, in nanoseconds. Divide by the flush count for latency. */
+  long flushNanos() {
+    return flushNanos.get();
+  }
+
+  /** Sends any pending documents and stops accepting more. */
+  @Override public void close() {
+    synchronized (this) {
+      if (closed) return;
+      closed = true;
+      if (pending != null) {
+        queue.add(pending);
+        pending = null;
+      }
+    }
+    drain();
+  }
+
+  final class Batch {
+    final HttpBulkIndexer indexer = new HttpBulkIndexer("index-span", es);
+    final List<Callback<Void>> callbacks = new ArrayList<>();
+    int documentCount;
+    ScheduledFuture<?> linger;
+
+    void add(HttpBulkIndexer documents, Callback<Void> callback) {
+      indexer.addAll(documents);
+      documentCount += documents.documentCount;
+      callbacks.add(callback);
+    }
+  }
+}
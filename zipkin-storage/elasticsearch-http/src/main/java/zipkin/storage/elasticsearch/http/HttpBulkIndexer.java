@@ -13,45 +13,78 @@
  */
 package zipkin.storage.elasticsearch.http;
 
+import com.squareup.moshi.JsonReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import okhttp3.HttpUrl;
 import okhttp3.Request;
-import okhttp3.RequestBody;
 import okio.Buffer;
+import okio.BufferedSource;
 import zipkin.internal.JsonCodec;
 import zipkin.internal.Nullable;
 import zipkin.storage.Callback;
 import zipkin.storage.elasticsearch.http.internal.client.HttpCall;
 
-import static zipkin.storage.elasticsearch.http.ElasticsearchHttpStorage.APPLICATION_JSON;
-
 // See https://www.elastic.co/guide/en/elasticsearch/reference/current/docs-bulk.html
 // exposed to re-use for testing writes of dependency links
 final class HttpBulkIndexer {
+  static final long INITIAL_BACKOFF_MILLIS = 100;
+  static final long MAX_BACKOFF_MILLIS = 2000;
+
   final String tag;
   final HttpCall.Factory http;
   final String pipeline;
   final boolean flushOnWrites;
+  final int maxRetries;
+  final ScheduledExecutorService scheduler;
+  final BulkItemFailures failures;
 
   // Mutated for each call to add
   final Buffer body = new Buffer();
   final Set<String> indices = new LinkedHashSet<>();
+  int documentCount;
+  long[] offsets = new long[16]; // where each document's action line starts in the body
 
   HttpBulkIndexer(String tag, ElasticsearchHttpStorage es) {
     this.tag = tag;
     http = es.http();
     pipeline = es.pipeline();
     flushOnWrites = es.flushOnWrites();
+    maxRetries = es.bulkRetries();
+    scheduler = es.scheduler();
+    failures = es.bulkItemFailures();
   }
 
   void add(String index, String typeName, byte[] document, @Nullable String id) {
+    markDocument(body.size());
     writeIndexMetadata(index, typeName, id);
     writeDocument(document);
   }
 
+  /** Moves the documents from the other indexer into this one. */
+  void addAll(HttpBulkIndexer other) {
+    long shift = body.size();
+    for (int i = 0; i < other.documentCount; i++) {
+      markDocument(other.offsets[i] + shift);
+    }
+    body.write(other.body, other.body.size());
+    indices.addAll(other.indices);
+  }
+
+  void markDocument(long offset) {
+    if (documentCount == offsets.length) offsets = Arrays.copyOf(offsets, documentCount * 2);
+    offsets[documentCount++] = offset;
+  }
+
   void writeIndexMetadata(String index, String typeName, @Nullable String id) {
     if (flushOnWrites) indices.add(index);
     body.writeUtf8("{\"index\":{\"_index\":\"").writeUtf8(index).writeByte('"');
@@ -67,20 +100,193 @@ final class HttpBulkIndexer {
     body.writeByte('\n');
   }
 
-  /** Creates a bulk request when there is more than one object to store */
+  /**
+   * Creates a bulk request when there is more than one object to store.
+   *
+   * <p>Elasticsearch can refuse some documents in a bulk request while accepting the rest, for
+   * example when its write queue is full. Only the refused documents are sent again, after a
+   * backoff, when the reason is transient. The callback fails if any documents were not stored.
+   */
   void execute(Callback<Void> callback) {
-    HttpUrl url = pipeline != null
-        ? http.baseUrl.newBuilder("_bulk").addQueryParameter("pipeline", pipeline).build()
-        : http.baseUrl.resolve("_bulk");
-
-    Request request = new Request.Builder().url(url).tag(tag)
-        .post(RequestBody.create(APPLICATION_JSON, body.readByteString())).build();
-
-    http.<Void>newCall(request, b -> {
-      if (indices.isEmpty()) return null;
-      ElasticsearchHttpStorage.flush(http, join(indices));
-      return null;
-    }).submit(callback);
+    long[] bounds = Arrays.copyOf(offsets, documentCount + 1);
+    bounds[documentCount] = body.size();
+    new BulkCall(callback).send(body, bounds);
+  }
+
+  /** Tracks attempts to store the same documents, as some are retried. */
+  final class BulkCall implements Callback<ItemErrors> {
+    final Callback<Void> delegate;
+    int attempt, dropped;
+    String firstReason;
+    Buffer sent;
+    long[] sentBounds;
+
+    BulkCall(Callback<Void> delegate) {
+      this.delegate = delegate;
+    }
+
+    /** {@code bounds} has one more element than the document count: the end of the body. */
+    void send(Buffer body, long[] bounds) {
+      sent = body;
+      sentBounds = bounds;
+
+      HttpUrl url = pipeline != null
+          ? http.baseUrl.newBuilder("_bulk").addQueryParameter("pipeline", pipeline).build()
+          : http.baseUrl.resolve("_bulk");
+
+      Request request = http.newPost(url, body).tag(tag).build();
+
+      http.newCall(request, b -> {
+        ItemErrors errors = readItemErrors(b, failures);
+        if (errors == null && !indices.isEmpty()) {
+          ElasticsearchHttpStorage.flush(http, join(indices));
+        }
+        return errors;
+      }).submit(this);
+    }
+
+    @Override public void onSuccess(@Nullable ItemErrors errors) {
+      if (errors != null) { // null is when there was no body or all items succeeded
+        if (firstReason == null) firstReason = errors.firstReason;
+        addDropped(errors.permanent);
+        if (!errors.retryable.isEmpty()) {
+          if (attempt < maxRetries) {
+            failures.retried.addAndGet(errors.retryable.size());
+            retry(errors.retryable);
+            return;
+          }
+          addDropped(errors.retryable.size());
+        }
+      }
+      if (dropped == 0) {
+        delegate.onSuccess(null);
+      } else {
+        delegate.onError(new IllegalStateException(
+            "Elasticsearch didn't store " + dropped + " documents, ex: " + firstReason));
+      }
+    }
+
+    void addDropped(int count) {
+      dropped += count;
+      failures.dropped.addAndGet(count);
+    }
+
+    @Override public void onError(Throwable t) {
+      delegate.onError(t);
+    }
+
+    // the retry reports its outcome to the delegate callback, so its future has nothing to add
+    @SuppressWarnings("FutureReturnValueIgnored")
+    void retry(List<Integer> items) {
+      Buffer retryBody = new Buffer();
+      long[] retryBounds = new long[items.size() + 1];
+      for (int i = 0, length = items.size(); i < length; i++) {
+        int item = items.get(i);
+        long start = sentBounds[item], end = sentBounds[item + 1];
+        retryBounds[i] = retryBody.size();
+        sent.copyTo(retryBody, start, end - start); // shares segments, as opposed to copying them
+      }
+      retryBounds[items.size()] = retryBody.size();
+
+      long backoff = Math.min(INITIAL_BACKOFF_MILLIS << attempt++, MAX_BACKOFF_MILLIS);
+      try {
+        scheduler.schedule(() -> send(retryBody, retryBounds), backoff, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) { // storage is closing
+        failures.dropped.addAndGet(items.size());
+        delegate.onError(e);
+      }
+    }
+  }
+
+  /** Documents refused in a bulk request, identified by their position in the request. */
+  static final class ItemErrors {
+    final List<Integer> retryable = new ArrayList<>();
+    int permanent;
+    String firstReason;
+  }
+
+  /**
+   * Streams over the bulk response, returning null when all items succeeded. This avoids
+   * buffering the response, which includes a result for every document.
+   */
+  @Nullable static ItemErrors readItemErrors(BufferedSource content, BulkItemFailures failures)
+      throws IOException {
+    if (content.exhausted()) return null;
+    JsonReader reader = JsonReader.of(content);
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if (name.equals("errors")) {
+        if (!reader.nextBoolean()) return null; // short-circuit as "errors" precedes "items"
+      } else if (name.equals("items")) {
+        return readItems(reader, failures);
+      } else {
+        reader.skipValue();
+      }
+    }
+    return null;
+  }
+
+  @Nullable static ItemErrors readItems(JsonReader reader, BulkItemFailures failures)
+      throws IOException {
+    ItemErrors result = null;
+    reader.beginArray();
+    for (int item = 0; reader.hasNext(); item++) {
+      reader.beginObject();
+      reader.nextName(); // the action, ex "index"
+      int status = 0;
+      String reason = null;
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+        if (name.equals("status")) {
+          status = reader.nextInt();
+        } else if (name.equals("error")) {
+          reason = readErrorType(reader);
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+      reader.endObject();
+      if (status < 300 && reason == null) continue;
+
+      if (reason == null) reason = "status_" + status;
+      failures.increment(reason);
+      if (result == null) result = new ItemErrors();
+      if (result.firstReason == null) result.firstReason = reason;
+      if (isRetryable(status)) {
+        result.retryable.add(item);
+      } else {
+        result.permanent++;
+      }
+    }
+    reader.endArray();
+    return result;
+  }
+
+  /** Elasticsearch 2+ responds with an object including "type", but older versions a string. */
+  static String readErrorType(JsonReader reader) throws IOException {
+    if (reader.peek() != JsonReader.Token.BEGIN_OBJECT) {
+      reader.skipValue();
+      return "unknown";
+    }
+    String result = "unknown";
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if (reader.nextName().equals("type")) {
+        result = reader.nextString();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return result;
+  }
+
+  /** Too many requests (ex. es_rejected_execution_exception) or unavailable shards */
+  static boolean isRetryable(int status) {
+    return status == 429 || status == 503;
   }
 
   static String join(Collection<String> parts) {
@@ -22,6 +22,7 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.NavigableSet;
 import java.util.TimeZone;
 import zipkin.internal.Util;
 
@@ -112,6 +113,17 @@ abstract class IndexNameFormatter {
     return indices;
   }
 
+  /**
+   * Returns the daily indices in {@code existing} that hold data between the timestamps, oldest
+   * first. Daily index names sort in date order, and a day's index holds that day's data, so this
+   * is a range lookup instead of a scan.
+   */
+  List<String> indicesForRange(long beginMillis, long endMillis, NavigableSet<String> existing) {
+    String first = indexNameForTimestamp(beginMillis), last = indexNameForTimestamp(endMillis);
+    if (first.compareTo(last) > 0) return Collections.emptyList();
+    return new ArrayList<>(existing.subSet(first, true, last, true));
+  }
+
   static GregorianCalendar midnightUTC(long epochMillis) {
     GregorianCalendar result = new GregorianCalendar(UTC);
     result.setTimeInMillis(Util.midnightUTC(epochMillis));
@@ -0,0 +1,172 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.storage.elasticsearch.http;
+
+import com.squareup.moshi.JsonReader;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import okio.BufferedSource;
+import zipkin.internal.Nullable;
+import zipkin.internal.Pair;
+import zipkin.internal.Util;
+import zipkin.storage.Callback;
+import zipkin.storage.elasticsearch.http.internal.client.Aggregation;
+import zipkin.storage.elasticsearch.http.internal.client.SearchCallFactory;
+import zipkin.storage.elasticsearch.http.internal.client.SearchRequest;
+
+import static zipkin.moshi.JsonReaders.collectValuesNamed;
+import static zipkin.moshi.JsonReaders.enterPath;
+import static zipkin.storage.elasticsearch.http.ElasticsearchHttpSpanStore.SERVICE_SPAN;
+
+/**
+ * Serves service and span names from memory, as the UI asks for them on every page load.
+ *
+ * <p>Names are reloaded from the "servicespan" type in the background, covering the same lookback
+ * as a query would. Between reloads, names written by this process are added as they are indexed.
+ * Until the first reload completes, {@link #serviceNames()} returns null, so callers query instead.
+ */
+final class NameCache {
+  final SearchCallFactory search;
+  final ExistingIndices existingIndices;
+  final int namesLookback;
+  final AtomicBoolean refreshing = new AtomicBoolean();
+  final Set<Pair<String>> addedDuringRefresh = ExistingIndices.newConcurrentSet();
+
+  /** Lower-case service name to its span names. Null until the first reload completes. */
+  volatile ConcurrentMap<String, Set<String>> spanNames;
+  volatile long refreshedAt;
+  /** Reloads scheduled by {@link #start}, which run until the scheduler is shut down. */
+  ScheduledFuture<?> reloads;
+
+  NameCache(ElasticsearchHttpStorage es) {
+    this.search = new SearchCallFactory(es.http());
+    this.existingIndices = es.existingIndices();
+    this.namesLookback = es.namesLookback();
+  }
+
+  /** Schedules reloads, starting immediately. */
+  NameCache start(ElasticsearchHttpStorage es) {
+    reloads = es.scheduler().scheduleWithFixedDelay(this::refresh, 0, es.namesRefreshInterval(),
+        TimeUnit.MILLISECONDS);
+    return this;
+  }
+
+  /** Call when indexing a pair, so that it is visible before the next reload. */
+  void added(String serviceName, String spanName) {
+    ConcurrentMap<String, Set<String>> current = spanNames;
+    if (current != null) add(current, serviceName, spanName);
+    if (refreshing.get()) addedDuringRefresh.add(Pair.create(serviceName, spanName));
+  }
+
+  /** Returns null until loaded */
+  @Nullable List<String> serviceNames() {
+    ConcurrentMap<String, Set<String>> current = spanNames;
+    return current != null ? Util.sortedList(current.keySet()) : null;
+  }
+
+  /** Returns null until loaded */
+  @Nullable List<String> spanNames(String serviceName) {
+    ConcurrentMap<String, Set<String>> current = spanNames;
+    if (current == null) return null;
+    Set<String> result = current.get(serviceName);
+    return result != null ? Util.sortedList(result) : Collections.emptyList();
+  }
+
+  void refresh() {
+    if (!refreshing.compareAndSet(false, true)) return;
+    try {
+      load();
+    } catch (RuntimeException e) {
+      // Otherwise, no reload would start again, and the scheduler would cancel later runs
+      refreshing.set(false);
+    }
+  }
+
+  /** Loads names, completing the refresh asynchronously. Called after setting refreshing. */
+  void load() {
+    addedDuringRefresh.clear();
+
+    long endMillis = System.currentTimeMillis();
+    List<String> indices = existingIndices.indicesForRange(endMillis - namesLookback, endMillis);
+    Callback<Map<String, Set<String>>> callback = new Callback<Map<String, Set<String>>>() {
+      @Override public void onSuccess(Map<String, Set<String>> value) {
+        ConcurrentMap<String, Set<String>> result = new ConcurrentHashMap<>(value);
+        for (Pair<String> pair : addedDuringRefresh) add(result, pair._1, pair._2);
+        spanNames = result;
+        refreshedAt = System.currentTimeMillis();
+        refreshing.set(false);
+      }
+
+      @Override public void onError(Throwable t) {
+        refreshing.set(false); // keep the names we have until the next attempt
+      }
+    };
+    if (indices.isEmpty()) { // no index exists in the lookback
+      callback.onSuccess(Collections.emptyMap());
+      return;
+    }
+
+    SearchRequest request = SearchRequest.forIndicesAndType(indices, SERVICE_SPAN)
+        .addAggregation(Aggregation.terms("serviceName", Integer.MAX_VALUE)
+            .addSubAggregation(Aggregation.terms("spanName", Integer.MAX_VALUE)));
+    search.newCall(request, NameCache::readSpanNames).submit(callback);
+  }
+
+  static void add(ConcurrentMap<String, Set<String>> map, String serviceName, String spanName) {
+    Set<String> spanNames = map.get(serviceName);
+    if (spanNames == null) {
+      Set<String> newSpanNames = ExistingIndices.newConcurrentSet();
+      spanNames = map.putIfAbsent(serviceName, newSpanNames);
+      if (spanNames == null) spanNames = newSpanNames;
+    }
+    spanNames.add(spanName);
+  }
+
+  /** Reads a terms aggregation "serviceName", with a nested terms aggregation "spanName" */
+  static Map<String, Set<String>> readSpanNames(BufferedSource content) throws IOException {
+    Map<String, Set<String>> result = new ConcurrentHashMap<>();
+    JsonReader serviceNames = enterPath(JsonReader.of(content), "aggregations", "serviceName");
+    JsonReader buckets = serviceNames != null ? enterPath(serviceNames, "buckets") : null;
+    if (buckets == null) return result;
+
+    buckets.beginArray();
+    while (buckets.hasNext()) {
+      String serviceName = null;
+      Set<String> spanNames = ExistingIndices.newConcurrentSet();
+      buckets.beginObject();
+      while (buckets.hasNext()) {
+        String name = buckets.nextName();
+        if (name.equals("key")) {
+          serviceName = buckets.nextString();
+        } else if (name.equals("spanName")) {
+          spanNames.addAll(collectValuesNamed(buckets, "key"));
+        } else {
+          buckets.skipValue();
+        }
+      }
+      buckets.endObject();
+      if (serviceName != null) result.put(serviceName, spanNames);
+    }
+    buckets.endArray();
+    return result;
+  }
+}
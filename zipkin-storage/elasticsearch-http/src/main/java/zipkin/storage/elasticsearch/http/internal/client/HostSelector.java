@@ -0,0 +1,313 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.storage.elasticsearch.http.internal.client;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import okhttp3.Dns;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import zipkin.internal.Nullable;
+
+/**
+ * Spreads requests over the addresses of the base url, preferring those with the lowest recent
+ * latency and the fewest requests in flight. This avoids a slow node, for example one in a long
+ * garbage collection, holding up a fixed share of requests.
+ *
+ * <p>Addresses come from the client's {@link Dns}, so this works with a DNS name mapped to many A
+ * records, as well as with a list of base urls. They are looked up again at most once per {@link
+ * #RESOLVE_INTERVAL_NANOS}, keeping statistics of addresses that remain.
+ *
+ * <p>Requests are pinned to an address by replacing the url host with its ip literal, keeping the
+ * original Host header. This isn't done for https, as the host name is needed to verify the
+ * certificate. Statistics are still kept.
+ *
+ * <p>Latency measurements decay towards the mean of all hosts. This way, a host that was slow
+ * becomes an average candidate again after a while, instead of the most attractive one.
+ */
+public final class HostSelector implements Interceptor, Dns {
+  static final long RESOLVE_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+  /** How long it takes for a latency measurement to lose most of its influence to the mean */
+  static final long DECAY_NANOS = TimeUnit.SECONDS.toNanos(10);
+  static final long MIN_EJECTION_NANOS = TimeUnit.SECONDS.toNanos(1);
+  static final long MAX_EJECTION_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+  final HttpUrl baseUrl;
+  final Dns dns;
+  final AtomicBoolean resolving = new AtomicBoolean();
+  final AtomicInteger next = new AtomicInteger();
+
+  volatile List<Host> hosts;
+  volatile long resolveAfter = System.nanoTime();
+
+  HostSelector(HttpUrl baseUrl, Dns dns) {
+    this.baseUrl = baseUrl;
+    this.dns = dns;
+    this.hosts = Collections.singletonList(new Host(baseUrl, null));
+  }
+
+  /** Returns the hosts requests are spread over, along with their statistics. */
+  public List<Host> hosts() {
+    return hosts;
+  }
+
+  @Override public Response intercept(Chain chain) throws IOException {
+    Request request = chain.request();
+    HttpUrl url = request.url();
+    if (!url.host().equals(baseUrl.host()) || url.port() != baseUrl.port()) {
+      return chain.proceed(request);
+    }
+
+    List<Host> tried = new ArrayList<>(1);
+    Host host = select(tried);
+    while (true) {
+      tried.add(host);
+      Request pinned = host.address == null ? request : pin(request, host);
+      host.inFlight.incrementAndGet();
+      long startNanos = System.nanoTime();
+      try {
+        Response response = chain.proceed(pinned);
+        host.completed(startNanos, response.code() != 429 && response.code() < 500);
+        return response;
+      } catch (IOException | RuntimeException e) {
+        host.completed(startNanos, false);
+        // Only retry when the request was never sent, as bulk requests aren't idempotent
+        boolean notSent = e instanceof ConnectException || e instanceof NoRouteToHostException;
+        if (!notSent || (host = select(tried)) == null) throw e;
+      }
+    }
+  }
+
+  /** Sends the request to the host's address, with the Host header it would have otherwise. */
+  static Request pin(Request request, Host host) {
+    HttpUrl url = request.url();
+    Request.Builder result = request.newBuilder()
+        .url(url.newBuilder().host(host.url.host()).build());
+    if (request.header("Host") == null) {
+      result.header("Host", url.port() == HttpUrl.defaultPort(url.scheme())
+          ? url.host() : url.host() + ":" + url.port());
+    }
+    return result.build();
+  }
+
+  /** Pinned hosts resolve to their address. Otherwise, this defers to the client's dns. */
+  @Override public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+    for (Host host : hosts) {
+      if (host.address != null && host.url.host().equals(hostname)) {
+        return Collections.singletonList(host.address);
+      }
+    }
+    return dns.lookup(hostname);
+  }
+
+  /**
+   * Returns the host not ejected with the lowest score, or if all are ejected, the one that will be
+   * available soonest. When hosts were already tried, this returns null if no others are available.
+   */
+  @Nullable Host select(List<Host> tried) {
+    maybeResolve();
+    List<Host> hosts = this.hosts;
+    int size = hosts.size();
+    long now = System.nanoTime();
+    int start = next.getAndIncrement() & Integer.MAX_VALUE; // rotates among hosts scoring the same
+    double meanCost = meanCost(hosts);
+    Host best = null, soonest = null;
+    double bestScore = Double.MAX_VALUE;
+    for (int i = 0; i < size; i++) {
+      Host host = hosts.get((start + i) % size);
+      if (tried.contains(host)) continue;
+      if (host.isEjected(now)) {
+        if (soonest == null || host.ejectedUntil - soonest.ejectedUntil < 0) soonest = host;
+        continue;
+      }
+      double score = host.score(now, meanCost);
+      if (best == null || score < bestScore) {
+        best = host;
+        bestScore = score;
+      }
+    }
+    if (best != null) return best;
+    return tried.isEmpty() ? soonest : null;
+  }
+
+  /** The average latency of hosts that have a measurement, or zero if none do. */
+  static double meanCost(List<Host> hosts) {
+    double sum = 0.0;
+    int count = 0;
+    for (int i = 0, length = hosts.size(); i < length; i++) {
+      Host host = hosts.get(i);
+      synchronized (host) {
+        if (host.costNanos == 0.0) continue;
+        sum += host.costNanos;
+      }
+      count++;
+    }
+    return count == 0 ? 0.0 : sum / count;
+  }
+
+  void maybeResolve() {
+    if (baseUrl.isHttps() || System.nanoTime() - resolveAfter < 0) return;
+    if (!resolving.compareAndSet(false, true)) return;
+    try {
+      List<InetAddress> addresses = dns.lookup(baseUrl.host());
+      if (!addresses.isEmpty()) hosts = merge(hosts, addresses);
+    } catch (UnknownHostException | RuntimeException e) {
+      // keep using the current hosts, and let the request report any failure
+    } finally {
+      resolveAfter = System.nanoTime() + RESOLVE_INTERVAL_NANOS;
+      resolving.set(false);
+    }
+  }
+
+  List<Host> merge(List<Host> current, List<InetAddress> addresses) {
+    List<Host> result = new ArrayList<>(addresses.size());
+    for (InetAddress address : addresses) {
+      Host host = null;
+      for (Host existing : current) {
+        if (address.equals(existing.address)) host = existing;
+      }
+      if (host == null) {
+        String ip = address.getHostAddress();
+        int scope = ip.indexOf('%'); // ex. link local IPv6 addresses
+        if (scope != -1) ip = ip.substring(0, scope);
+        host = new Host(baseUrl.newBuilder().host(ip).build(), address);
+      }
+      if (!result.contains(host)) result.add(host);
+    }
+    return Collections.unmodifiableList(result);
+  }
+
+  /** A destination of requests, and its statistics. */
+  public static final class Host {
+    final HttpUrl url;
+    @Nullable final InetAddress address; // null when requests aren't pinned
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicLong requests = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+    volatile long ejectedUntil = System.nanoTime();
+
+    // guarded by this
+    double costNanos;
+    long costStamp = System.nanoTime();
+    int consecutiveErrors;
+
+    Host(HttpUrl url, @Nullable InetAddress address) {
+      this.url = url;
+      this.address = address;
+    }
+
+    public HttpUrl url() {
+      return url;
+    }
+
+    /** Requests sent, but not yet responded to. */
+    public int inFlight() {
+      return inFlight.get();
+    }
+
+    public long requests() {
+      return requests.get();
+    }
+
+    /** Requests which failed to connect, or responded with status 429 or 5xx. */
+    public long errors() {
+      return errors.get();
+    }
+
+    public double errorRate() {
+      long requests = this.requests.get();
+      return requests == 0 ? 0.0 : (double) errors.get() / requests;
+    }
+
+    /** Recent latency, weighted towards the slowest responses. */
+    public synchronized long latencyMicros() {
+      return (long) (costNanos / 1000);
+    }
+
+    /** True if requests are avoiding this host, as it recently failed. */
+    public boolean isEjected() {
+      return isEjected(System.nanoTime());
+    }
+
+    boolean isEjected(long now) {
+      return now - ejectedUntil < 0;
+    }
+
+    /**
+     * Latency times the requests in flight, so that a host that stops responding becomes less
+     * attractive before any of its requests complete. Hosts without a latency measurement are
+     * tried first, but only with one request at a time.
+     */
+    synchronized double score(long now, double meanCost) {
+      double cost = decayedCost(now, meanCost);
+      int inFlight = this.inFlight.get();
+      if (cost == 0.0 && inFlight != 0) return Double.MAX_VALUE / 2;
+      return cost * (inFlight + 1);
+    }
+
+    /** The latency measured, or without recent measurements, closer to the mean of all hosts. */
+    synchronized double decayedCost(long now, double meanCost) {
+      if (costNanos == 0.0) return 0.0; // not yet measured
+      return meanCost + (costNanos - meanCost) * weight(now);
+    }
+
+    void completed(long startNanos, boolean success) {
+      long now = System.nanoTime();
+      inFlight.decrementAndGet();
+      requests.incrementAndGet();
+      if (!success) errors.incrementAndGet();
+      synchronized (this) {
+        if (success) {
+          observe(now - startNanos, now);
+          consecutiveErrors = 0;
+          return;
+        }
+        // each consecutive error doubles how long the host is ejected for
+        int doublings = Math.min(consecutiveErrors++, 5);
+        ejectedUntil = now + Math.min(MIN_EJECTION_NANOS << doublings, MAX_EJECTION_NANOS);
+      }
+    }
+
+    /** A peak exponentially weighted moving average: slow responses take effect immediately. */
+    void observe(long latencyNanos, long now) {
+      double weight = weight(now);
+      costNanos = latencyNanos > costNanos
+          ? latencyNanos
+          : costNanos * weight + latencyNanos * (1 - weight);
+      costStamp = now;
+    }
+
+    /** The influence left of the last measurement, which decays over time */
+    double weight(long now) {
+      return Math.exp(-Math.max(now - costStamp, 0) / (double) DECAY_NANOS);
+    }
+
+    @Override public String toString() {
+      return "Host(" + url.host() + ":" + url.port() + ",latencyMicros=" + latencyMicros()
+          + ",inFlight=" + inFlight() + ",errorRate=" + errorRate() + ")";
+    }
+  }
+}
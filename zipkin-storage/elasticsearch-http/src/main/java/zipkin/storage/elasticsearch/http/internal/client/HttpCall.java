@@ -15,17 +15,27 @@ package zipkin.storage.elasticsearch.http.internal.client;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import okhttp3.Call;
 import okhttp3.HttpUrl;
+import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
+import okhttp3.RequestBody;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
 import okhttp3.internal.http.HttpHeaders;
+import okio.Buffer;
+import okio.BufferedSink;
 import okio.BufferedSource;
+import okio.ByteString;
+import okio.GzipSink;
 import okio.GzipSource;
 import okio.Okio;
 import zipkin.internal.CallbackCaptor;
+import zipkin.internal.Nullable;
 import zipkin.storage.Callback;
 
 import static zipkin.internal.Util.propagateIfFatal;
@@ -36,13 +46,108 @@ public final class HttpCall<V> {
     V convert(BufferedSource content) throws IOException;
   }
 
+  static final MediaType APPLICATION_JSON = MediaType.parse("application/json");
+
   public static class Factory implements Closeable {
     final OkHttpClient ok;
+    @Nullable final HostSelector hostSelector;
     public final HttpUrl baseUrl;
+    final boolean compressRequests;
+    final int compressionLevel;
+
+    final AtomicLong requestBytes = new AtomicLong();
+    final AtomicLong sentBytes = new AtomicLong();
 
     public Factory(OkHttpClient ok, HttpUrl baseUrl) {
-      this.ok = ok;
+      this(ok, baseUrl, false, -1);
+    }
+
+    /**
+     * @param compressRequests true to gzip the body of {@link #newPost(HttpUrl, ByteString) POST}
+     * requests
+     * @param compressionLevel the {@link java.util.zip.Deflater} level, from 1 (fastest) to 9
+     * (smallest), or -1 for the default
+     */
+    public Factory(OkHttpClient ok, HttpUrl baseUrl, boolean compressRequests,
+        int compressionLevel) {
+      this(ok, baseUrl, compressRequests, compressionLevel, false);
+    }
+
+    /**
+     * @param selectHosts true to spread requests over the addresses of the base url with a {@link
+     * HostSelector}, as opposed to leaving that to the client.
+     */
+    public Factory(OkHttpClient ok, HttpUrl baseUrl, boolean compressRequests,
+        int compressionLevel, boolean selectHosts) {
+      if (selectHosts) {
+        this.hostSelector = new HostSelector(baseUrl, ok.dns());
+        OkHttpClient.Builder builder = ok.newBuilder().dns(hostSelector);
+        builder.interceptors().add(0, hostSelector); // before any that sign the request
+        this.ok = builder.build();
+      } else {
+        this.hostSelector = null;
+        this.ok = ok;
+      }
       this.baseUrl = baseUrl;
+      this.compressRequests = compressRequests;
+      this.compressionLevel = compressionLevel;
+    }
+
+    /** Creates a POST request of the json, gzipped when request compression is enabled. */
+    public Request.Builder newPost(HttpUrl url, ByteString json) {
+      requestBytes.addAndGet(json.size());
+      Request.Builder result = new Request.Builder().url(url);
+      if (!compressRequests) {
+        sentBytes.addAndGet(json.size());
+        return result.post(RequestBody.create(APPLICATION_JSON, json));
+      }
+      return gzipPost(result, new Buffer().write(json));
+    }
+
+    /**
+     * Like {@link #newPost(HttpUrl, ByteString)}, except the body is posted without copying it to a
+     * byte string. The buffer isn't consumed, so it can be read again, for example to retry parts
+     * of it.
+     */
+    public Request.Builder newPost(HttpUrl url, Buffer json) {
+      requestBytes.addAndGet(json.size());
+      Request.Builder result = new Request.Builder().url(url);
+      if (!compressRequests) {
+        sentBytes.addAndGet(json.size());
+        return result.post(new BufferRequestBody(json));
+      }
+      return gzipPost(result, json.clone()); // shares segments, as opposed to copying them
+    }
+
+    Request.Builder gzipPost(Request.Builder request, Buffer json) {
+      Buffer gzipped = gzip(json, compressionLevel);
+      sentBytes.addAndGet(gzipped.size());
+      return request.header("Content-Encoding", "gzip").post(new BufferRequestBody(gzipped));
+    }
+
+    /** Total bytes of json posted, before any compression. */
+    public long requestBytes() {
+      return requestBytes.get();
+    }
+
+    /** Total bytes of json posted, after any compression. */
+    public long sentBytes() {
+      return sentBytes.get();
+    }
+
+    /** Bytes of json posted per byte sent, or 1.0 before any were sent or without compression. */
+    public double compressionRatio() {
+      long sent = sentBytes.get();
+      return sent == 0 ? 1.0 : (double) requestBytes.get() / sent;
+    }
+
+    /**
+     * The hosts requests are spread over, along with their latency and error rate, or empty unless
+     * hosts are selected.
+     */
+    public List<HostSelector.Host> hosts() {
+      if (hostSelector == null) return Collections.emptyList();
+      return hostSelector.hosts();
     }
 
     public <V> HttpCall<V> newCall(Request request, BodyConverter<V> bodyConverter) {
@@ -57,6 +162,41 @@ public final class HttpCall<V> {
 
     @Override public void close() {
       ok.dispatcher().executorService().shutdownNow();
+      ok.connectionPool().evictAll();
+    }
+  }
+
+  /** Compresses the json, which is consumed, into the buffer that will become the request body. */
+  static Buffer gzip(Buffer json, int compressionLevel) {
+    Buffer result = new Buffer();
+    GzipSink gzip = new GzipSink(result);
+    gzip.deflater().setLevel(compressionLevel);
+    try (BufferedSink sink = Okio.buffer(gzip)) {
+      sink.writeAll(json);
+    } catch (IOException e) {
+      throw new AssertionError(e); // writing to a Buffer doesn't throw
+    }
+    return result;
+  }
+
+  /** Unlike a ByteString, writes the buffer's segments without copying them. */
+  static final class BufferRequestBody extends RequestBody {
+    final Buffer body;
+
+    BufferRequestBody(Buffer body) {
+      this.body = body;
+    }
+
+    @Override public MediaType contentType() {
+      return APPLICATION_JSON;
+    }
+
+    @Override public long contentLength() {
+      return body.size();
+    }
+
+    @Override public void writeTo(BufferedSink sink) throws IOException {
+      sink.writeAll(body.clone()); // cloned as OkHttp can retry the request
     }
   }
 
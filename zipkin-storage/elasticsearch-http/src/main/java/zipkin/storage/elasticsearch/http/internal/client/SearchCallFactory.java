@@ -17,13 +17,10 @@ import com.squareup.moshi.JsonAdapter;
 import com.squareup.moshi.Moshi;
 import java.util.List;
 import okhttp3.HttpUrl;
-import okhttp3.MediaType;
 import okhttp3.Request;
-import okhttp3.RequestBody;
+import okio.ByteString;
 
 public class SearchCallFactory {
-  static final MediaType APPLICATION_JSON = MediaType.parse("application/json");
-
   final HttpCall.Factory http;
   final JsonAdapter<SearchRequest> searchRequest =
       new Moshi.Builder().build().adapter(SearchRequest.class);
@@ -33,8 +30,8 @@ public class SearchCallFactory {
   }
 
   public <V> HttpCall<V> newCall(SearchRequest request, HttpCall.BodyConverter<V> bodyConverter) {
-    Request httpRequest = new Request.Builder().url(lenientSearch(request.indices, request.type))
-        .post(RequestBody.create(APPLICATION_JSON, searchRequest.toJson(request)))
+    ByteString json = ByteString.encodeUtf8(searchRequest.toJson(request));
+    Request httpRequest = http.newPost(lenientSearch(request.indices, request.type), json)
         .header("Accept-Encoding", "gzip")
         .tag(request.tag()).build();
     return http.newCall(httpRequest, bodyConverter);
@@ -14,10 +14,13 @@
 package zipkin.storage.elasticsearch.http;
 
 import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
 import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -29,6 +32,8 @@ import zipkin.Codec;
 import zipkin.Span;
 import zipkin.TestObjects;
 import zipkin.internal.CallbackCaptor;
+import zipkin.internal.Nullable;
+import zipkin.storage.Callback;
 
 import static java.util.Arrays.asList;
 import static org.assertj.core.api.Assertions.assertThat;
@@ -266,6 +271,218 @@ public class ElasticsearchHttpSpanConsumerTest {
         .isEqualTo("/_bulk?pipeline=zipkin");
   }
 
+  Span span1 = Span.builder().traceId(1L).id(1L).name("get").timestamp(TODAY * 1000).build();
+  Span span2 = span1.toBuilder().id(2L).build();
+  Span span3 = span1.toBuilder().id(3L).build();
+
+  @Test
+  public void bulkLinger_aggregatesAcrossCalls() throws Exception {
+    withBulkBuffer(60000, 2, 2);
+    es.enqueue(new MockResponse());
+
+    CallbackCaptor<Void> callback1 = new CallbackCaptor<>(), callback2 = new CallbackCaptor<>();
+    storage.asyncSpanConsumer().accept(asList(span1), callback1);
+    storage.asyncSpanConsumer().accept(asList(span2), callback2);
+    callback1.get();
+    callback2.get();
+
+    assertThat(es.takeRequest().getBody().readUtf8())
+        .contains("\"id\":\"0000000000000001\"", "\"id\":\"0000000000000002\"");
+    assertThat(storage.bulkBuffer().flushCount()).isEqualTo(1L);
+  }
+
+  @Test
+  public void bulkLinger_sendsPendingDocumentsWhenLingerElapses() throws Exception {
+    withBulkBuffer(10, 5000, 2);
+    es.enqueue(new MockResponse());
+
+    accept(span1);
+
+    assertThat(es.takeRequest().getBody().readUtf8())
+        .contains("\"id\":\"0000000000000001\"");
+    assertThat(storage.bulkBuffer().queuedDocuments()).isZero();
+  }
+
+  @Test
+  public void bulkLinger_rejectsWhenQueueIsFull() throws Exception {
+    withBulkBuffer(60000, 1, 1);
+
+    // The first request blocks as there's no response enqueued. The second waits its turn.
+    storage.asyncSpanConsumer().accept(asList(span1), new CallbackCaptor<>());
+    es.takeRequest();
+    storage.asyncSpanConsumer().accept(asList(span2), new CallbackCaptor<>());
+
+    thrown.expect(RejectedExecutionException.class);
+    thrown.expectMessage("bulk buffer is full: 1 documents are queued");
+    try {
+      accept(span3);
+    } finally {
+      es.enqueue(new MockResponse());
+      es.enqueue(new MockResponse());
+    }
+  }
+
+  @Test
+  public void bulkLinger_completesRejectedCallbackOutsideLock() throws Exception {
+    withBulkBuffer(60000, 1, 1);
+    storage.asyncSpanConsumer().accept(asList(span1), new CallbackCaptor<>());
+    es.takeRequest();
+    storage.asyncSpanConsumer().accept(asList(span2), new CallbackCaptor<>());
+
+    AtomicBoolean heldLock = new AtomicBoolean();
+    storage.asyncSpanConsumer().accept(asList(span3), new Callback<Void>() {
+      @Override public void onSuccess(@Nullable Void value) {
+      }
+
+      @Override public void onError(Throwable t) {
+        heldLock.set(Thread.holdsLock(storage.bulkBuffer()));
+      }
+    });
+    es.enqueue(new MockResponse());
+    es.enqueue(new MockResponse());
+
+    assertThat(heldLock).isFalse();
+  }
+
+  @Test
+  public void bulkLinger_rejectsWhenSchedulerIsShutdown() throws Exception {
+    withBulkBuffer(60000, 2, 1);
+    storage.scheduler().shutdown(); // as happens when storage closes
+
+    thrown.expect(RejectedExecutionException.class);
+    thrown.expectMessage("bulk buffer can't schedule linger");
+    accept(span1);
+  }
+
+  @Test
+  public void bulkLinger_reportsMetrics() throws Exception {
+    withBulkBuffer(60000, 2, 2);
+    es.enqueue(new MockResponse());
+
+    accept(span1, span2);
+
+    assertThat(storage.metrics())
+        .containsEntry("bulk_queued_documents", 0)
+        .containsEntry("bulk_requests", 1L)
+        .containsKey("bulk_request_millis");
+  }
+
+  @Test
+  public void metrics_noBulkBufferStatsWithoutBulkLinger() {
+    assertThat(storage.metrics()).doesNotContainKeys("bulk_queued_documents");
+  }
+
+  @Test
+  public void bulkItemFailure_retriesOnlyRejectedDocuments() throws Exception {
+    es.enqueue(new MockResponse().setBody(bulkResponse(201, 429)));
+    es.enqueue(new MockResponse().setBody(bulkResponse(201)));
+
+    accept(span1, span2);
+
+    assertThat(es.takeRequest().getBody().readUtf8())
+        .contains("\"id\":\"0000000000000001\"", "\"id\":\"0000000000000002\"");
+    assertThat(es.takeRequest().getBody().readUtf8())
+        .doesNotContain("\"id\":\"0000000000000001\"")
+        .contains("\"id\":\"0000000000000002\"");
+    assertThat(storage.bulkItemFailures().countsByReason())
+        .containsEntry("es_rejected_execution_exception", 1L);
+    assertThat(storage.bulkItemFailures().retried()).isEqualTo(1L);
+    assertThat(storage.bulkItemFailures().dropped()).isZero();
+    assertThat(storage.metrics())
+        .containsEntry("bulk_items_retried", 1L)
+        .containsEntry("bulk_items_dropped", 0L)
+        .containsEntry("bulk_item_failures.es_rejected_execution_exception", 1L);
+  }
+
+  @Test
+  public void bulkItemFailure_doesntRetryPermanentFailure() throws Exception {
+    es.enqueue(new MockResponse().setBody(bulkResponse(400, 201)));
+
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("Elasticsearch didn't store 1 documents, ex: mapper_parsing_exception");
+    try {
+      accept(span1, span2);
+    } finally {
+      assertThat(es.getRequestCount()).isEqualTo(3); // 2 for the index template
+      assertThat(storage.bulkItemFailures().dropped()).isEqualTo(1L);
+    }
+  }
+
+  @Test
+  public void bulkItemFailure_givesUpAfterRetries() throws Exception {
+    close();
+    storage = ElasticsearchHttpStorage.builder()
+        .hosts(asList(es.url("").toString()))
+        .bulkRetries(1)
+        .build();
+    ensureIndexTemplate();
+
+    es.enqueue(new MockResponse().setBody(bulkResponse(429)));
+    es.enqueue(new MockResponse().setBody(bulkResponse(429)));
+
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage(
+        "Elasticsearch didn't store 1 documents, ex: es_rejected_execution_exception");
+    try {
+      accept(span1);
+    } finally {
+      assertThat(storage.bulkItemFailures().count("es_rejected_execution_exception"))
+          .isEqualTo(2L);
+      assertThat(storage.bulkItemFailures().dropped()).isEqualTo(1L);
+    }
+  }
+
+  @Test
+  public void readItemErrors_nullWhenNoErrors() throws Exception {
+    assertThat(HttpBulkIndexer.readItemErrors(
+        new Buffer().writeUtf8(bulkResponse(201, 200)), new BulkItemFailures())).isNull();
+  }
+
+  @Test
+  public void readItemErrors_stringError() throws Exception {
+    BulkItemFailures failures = new BulkItemFailures();
+    HttpBulkIndexer.ItemErrors errors = HttpBulkIndexer.readItemErrors(new Buffer().writeUtf8(
+        "{\"took\":1,\"errors\":true,\"items\":[{\"index\":{\"status\":400,\"error\":\"Oops\"}}]}"),
+        failures);
+
+    assertThat(errors.permanent).isEqualTo(1);
+    assertThat(failures.count("unknown")).isEqualTo(1L);
+  }
+
+  /** Creates a bulk response with an item for each status */
+  static String bulkResponse(int... statuses) {
+    StringBuilder result = new StringBuilder("{\"took\":3,\"errors\":");
+    boolean errors = false;
+    for (int status : statuses) errors |= status >= 300;
+    result.append(errors).append(",\"items\":[");
+    for (int i = 0; i < statuses.length; i++) {
+      if (i > 0) result.append(',');
+      result.append("{\"index\":{\"_index\":\"zipkin-2017-06-29\",\"_type\":\"span\",")
+          .append("\"status\":").append(statuses[i]);
+      if (statuses[i] == 429) {
+        result.append(",\"error\":{\"type\":\"es_rejected_execution_exception\",")
+            .append("\"reason\":\"rejected execution of org.elasticsearch.transport\"}");
+      } else if (statuses[i] >= 300) {
+        result.append(",\"error\":{\"type\":\"mapper_parsing_exception\",")
+            .append("\"reason\":\"failed to parse\"}");
+      }
+      result.append("}}");
+    }
+    return result.append("]}").toString();
+  }
+
+  void withBulkBuffer(int linger, int maxDocuments, int concurrency) throws Exception {
+    close();
+
+    storage = ElasticsearchHttpStorage.builder()
+        .hosts(asList(es.url("").toString()))
+        .bulkLinger(linger)
+        .bulkMaxDocuments(maxDocuments)
+        .bulkConcurrency(concurrency)
+        .build();
+    ensureIndexTemplate();
+  }
+
   void accept(Span ... spans) throws Exception {
     CallbackCaptor<Void> callback = new CallbackCaptor<>();
     storage.asyncSpanConsumer().accept(asList(spans), callback);
@@ -14,6 +14,8 @@
 package zipkin.storage.elasticsearch.http;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.TimeUnit;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
@@ -23,10 +25,15 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import zipkin.Span;
 import zipkin.internal.Util;
+import zipkin.storage.QueryRequest;
 
 import static java.util.Arrays.asList;
 import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin.TestObjects.DAY;
+import static zipkin.TestObjects.TODAY;
+import static zipkin.storage.elasticsearch.http.ElasticsearchHttpSpanStore.SPAN;
 import static zipkin.storage.elasticsearch.http.ElasticsearchHttpSpanStore.SERVICE_SPAN;
 import static zipkin.storage.elasticsearch.http.TestResponses.SERVICE_NAMES;
 import static zipkin.storage.elasticsearch.http.TestResponses.SPAN_NAMES;
@@ -72,6 +79,143 @@ public class ElasticsearchHttpSpanStoreTest {
     requestLimitedTo2DaysOfIndices();
   }
 
+  @Test
+  public void getTraces_noRequestWhenNoIndicesExist() throws Exception {
+    knownIndices(); // none
+
+    assertThat(storage.spanStore().getTraces(QueryRequest.builder()
+        .endTs(TODAY - DAY).lookback(DAY * 3).build())).isEmpty();
+
+    assertThat(es.getRequestCount()).isEqualTo(2); // only the index template requests
+  }
+
+  @Test
+  public void getTraces_onlySearchesExistingIndices() throws Exception {
+    String threeDaysAgo = storage.indexNameFormatter().indexNameForTimestamp(TODAY - 3 * DAY);
+    String today = storage.indexNameFormatter().indexNameForTimestamp(TODAY);
+    knownIndices(threeDaysAgo);
+    es.enqueue(new MockResponse() // no trace IDs
+        .setBody("{\"aggregations\":{\"traceId\":{\"buckets\":[]}}}"));
+
+    storage.spanStore().getTraces(QueryRequest.builder().endTs(TODAY).lookback(DAY * 5).build());
+
+    // today is always searched as it could have been created since the last refresh
+    assertThat(es.takeRequest().getPath())
+        .startsWith("/" + threeDaysAgo + "," + today + "/" + SPAN + "/_search");
+  }
+
+  @Test
+  public void getRawTrace_searchesRecentIndicesFirst() throws Exception {
+    long now = System.currentTimeMillis();
+    String yesterday = storage.indexNameFormatter().indexNameForTimestamp(now - DAY);
+    String today = storage.indexNameFormatter().indexNameForTimestamp(now);
+    knownIndices(yesterday, today);
+    es.enqueue(new MockResponse().setBody("{\"hits\":{\"hits\":[{\"_source\":"
+        + "{\"traceId\":\"0000000000000001\",\"id\":\"0000000000000001\",\"name\":\"get\","
+        + "\"timestamp\":" + now * 1000 + "}}]}}"));
+
+    assertThat(storage.spanStore().getRawTrace(1L)).extracting(s -> s.id).containsExactly(1L);
+
+    assertThat(es.takeRequest().getPath())
+        .startsWith("/" + yesterday + "," + today + "/" + SPAN + "/_search");
+    assertThat(es.getRequestCount()).isEqualTo(3); // 2 for index templates, then one search
+  }
+
+  @Test
+  public void getRawTrace_recentIndicesIncludeThoseAfterToday() throws Exception {
+    long now = System.currentTimeMillis();
+    String today = storage.indexNameFormatter().indexNameForTimestamp(now);
+    String tomorrow = storage.indexNameFormatter().indexNameForTimestamp(now + DAY);
+    String nextWeek = storage.indexNameFormatter().indexNameForTimestamp(now + 7 * DAY);
+    knownIndices(today, tomorrow, nextWeek);
+    es.enqueue(new MockResponse().setBody("{\"hits\":{\"hits\":[{\"_source\":"
+        + "{\"traceId\":\"0000000000000001\",\"id\":\"0000000000000001\",\"name\":\"get\","
+        + "\"timestamp\":" + (now + DAY) * 1000 + "}}]}}"));
+
+    assertThat(storage.spanStore().getRawTrace(1L)).extracting(s -> s.id).containsExactly(1L);
+
+    assertThat(es.takeRequest().getPath())
+        .startsWith("/" + today + "," + tomorrow + "," + nextWeek + "/" + SPAN + "/_search");
+    assertThat(es.getRequestCount()).isEqualTo(3); // 2 for index templates, then one search
+  }
+
+  @Test
+  public void getRawTrace_searchesAllIndicesOnMiss() throws Exception {
+    knownIndices(storage.indexNameFormatter().indexNameForTimestamp(TODAY));
+    es.enqueue(new MockResponse().setBody("{\"hits\":{\"hits\":[]}}"));
+    es.enqueue(new MockResponse().setBody("{\"hits\":{\"hits\":[]}}"));
+
+    assertThat(storage.spanStore().getRawTrace(1L)).isNull();
+
+    es.takeRequest(); // recent indices
+    assertThat(es.takeRequest().getPath()).startsWith("/zipkin-*/" + SPAN + "/_search");
+  }
+
+  @Test
+  public void getRawTrace_searchesAllIndicesWhenTraceMayBeOlder() throws Exception {
+    long beginMillis = Util.midnightUTC(System.currentTimeMillis()) - 2 * DAY;
+    knownIndices(storage.indexNameFormatter().indexNameForTimestamp(beginMillis));
+    String oldSpan = "{\"hits\":{\"hits\":[{\"_source\":"
+        + "{\"traceId\":\"0000000000000001\",\"id\":\"0000000000000001\",\"name\":\"get\","
+        + "\"timestamp\":" + beginMillis * 1000 + "}}]}}";
+    es.enqueue(new MockResponse().setBody(oldSpan));
+    es.enqueue(new MockResponse().setBody(oldSpan));
+
+    assertThat(storage.spanStore().getRawTrace(1L)).extracting(s -> s.id).containsExactly(1L);
+
+    es.takeRequest(); // recent indices
+    assertThat(es.takeRequest().getPath()).startsWith("/zipkin-*/" + SPAN + "/_search");
+  }
+
+  @Test
+  public void existingIndices_readsCatResponse() throws Exception {
+    es.enqueue(new MockResponse().setBody("zipkin-2017-06-28\nzipkin-2017-06-29\n"));
+
+    storage.existingIndices().maybeRefresh();
+
+    assertThat(es.takeRequest().getPath()).isEqualTo("/_cat/indices/zipkin-*?h=index");
+    while (storage.existingIndices().names == null) Thread.sleep(10);
+    assertThat(storage.existingIndices().names)
+        .containsOnly("zipkin-2017-06-28", "zipkin-2017-06-29");
+  }
+
+  @Test
+  public void namesRefreshInterval_servesNamesFromMemory() throws Exception {
+    close();
+    storage = ElasticsearchHttpStorage.builder()
+        .hosts(asList(es.url("").toString()))
+        .namesRefreshInterval(60000)
+        .build();
+    getIndexTemplate();
+    knownIndices(storage.indexNameFormatter().indexNameForTimestamp(TODAY));
+    es.enqueue(new MockResponse().setBody("{\"aggregations\":{\"serviceName\":{\"buckets\":["
+        + "{\"key\":\"app\",\"doc_count\":2,\"spanName\":{\"buckets\":["
+        + "{\"key\":\"get\",\"doc_count\":1},{\"key\":\"post\",\"doc_count\":1}]}},"
+        + "{\"key\":\"web\",\"doc_count\":1,\"spanName\":{\"buckets\":["
+        + "{\"key\":\"get\",\"doc_count\":1}]}}"
+        + "]}}}"));
+
+    NameCache nameCache = storage.nameCache(); // starts loading
+    assertThat(es.takeRequest().getBody().readUtf8()).contains(
+        "\"serviceName\":{\"aggs\":{\"spanName\":{\"terms\":{\"field\":\"spanName\"");
+    while (nameCache.serviceNames() == null) Thread.sleep(10);
+
+    nameCache.added("db", "query"); // as if written by the span consumer
+
+    assertThat(storage.spanStore().getServiceNames()).containsExactly("app", "db", "web");
+    assertThat(storage.spanStore().getSpanNames("App")).containsExactly("get", "post");
+    assertThat(storage.spanStore().getSpanNames("db")).containsExactly("query");
+    assertThat(storage.spanStore().getSpanNames("unknown")).isEmpty();
+    assertThat(es.getRequestCount()).isEqualTo(5); // 4 for index templates and one names load
+  }
+
+  /** Pre-populates the index cache so that tests don't race against its refresh */
+  void knownIndices(String... names) {
+    ExistingIndices existingIndices = storage.existingIndices();
+    existingIndices.names = new ConcurrentSkipListSet<>(asList(names));
+    existingIndices.refreshedAt = System.currentTimeMillis();
+  }
+
   private void requestLimitedTo2DaysOfIndices() throws InterruptedException {
     long today = Util.midnightUTC(System.currentTimeMillis());
     long yesterday = today - TimeUnit.DAYS.toMillis(1);
@@ -15,6 +15,7 @@ package zipkin.storage.elasticsearch.http;
 
 import java.io.IOException;
 import java.util.concurrent.TimeUnit;
+import okhttp3.HttpUrl;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
 import okhttp3.mockwebserver.RecordedRequest;
@@ -59,4 +60,56 @@ public class ElasticsearchHttpStorageTest {
     assertThat(es.takeRequest().getPath())
         .startsWith("/zipkin-2016-10-01,zipkin-2016-10-02/dependencylink/_search");
   }
+
+  @Test
+  public void bulkConcurrency_mustBePositive() {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("bulkConcurrency <= 0");
+
+    ElasticsearchHttpStorage.builder().bulkConcurrency(0).build();
+  }
+
+  @Test
+  public void bulkMaxDocuments_mustBePositive() {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("bulkMaxDocuments <= 0");
+
+    ElasticsearchHttpStorage.builder().bulkMaxDocuments(0).build();
+  }
+
+  @Test
+  public void compressionLevel_mustBeValidGzipLevel() {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("compressionLevel should be between 1 and 9: 10");
+
+    ElasticsearchHttpStorage.builder().compressionLevel(10).build();
+  }
+
+  @Test
+  public void metrics_dontResolveHosts() {
+    storage = ElasticsearchHttpStorage.builder()
+        .hostsSupplier(() -> {
+          throw new AssertionError("metrics shouldn't resolve hosts");
+        })
+        .compressRequests(true)
+        .build();
+
+    assertThat(storage.metrics()).doesNotContainKeys("compression_ratio");
+  }
+
+  @Test
+  public void metrics_includeHostStats() throws Exception {
+    es.enqueue(new MockResponse().setBody("{\"version\":{\"number\":\"2.4.0\"}}"));
+
+    VersionSpecificTemplate.getVersion(storage.http());
+
+    HttpUrl pinned = storage.http().hosts().get(0).url(); // the address resolved
+    String prefix = "host." + pinned.host() + ":" + pinned.port() + ".";
+    assertThat(storage.metrics())
+        .containsEntry(prefix + "requests", 1L)
+        .containsEntry(prefix + "errors", 0L)
+        .containsEntry(prefix + "in_flight", 0)
+        .containsEntry(prefix + "ejected", 0)
+        .containsKey(prefix + "latency_micros");
+  }
 }
@@ -16,9 +16,12 @@ package zipkin.storage.elasticsearch.http;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.NavigableSet;
 import java.util.TimeZone;
+import java.util.TreeSet;
 import org.junit.Test;
 
+import static java.util.Arrays.asList;
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class IndexNameFormatterTest {
@@ -218,4 +221,24 @@ public class IndexNameFormatterTest {
             "zipkin-2018.01.01"
     );
   }
+
+  @Test
+  public void indicesForRange_onlyExistingIndicesInRange() throws ParseException {
+    long start = iso8601.parse("2016-10-31T01:01:01Z").getTime();
+    long end = iso8601.parse("2016-11-02T23:59:59Z").getTime();
+    NavigableSet<String> existing = new TreeSet<>(asList(
+        "zipkin-2016-10-30", "zipkin-2016-10-31", "zipkin-2016-11-02", "zipkin-2016-11-03"));
+
+    assertThat(formatter.indicesForRange(start, end, existing))
+        .containsExactly("zipkin-2016-10-31", "zipkin-2016-11-02");
+  }
+
+  @Test
+  public void indicesForRange_emptyWhenNoneExist() throws ParseException {
+    long start = iso8601.parse("2016-10-31T01:01:01Z").getTime();
+    long end = iso8601.parse("2016-11-02T23:59:59Z").getTime();
+
+    assertThat(formatter.indicesForRange(start, end, new TreeSet<>(asList("zipkin-2016-11-03"))))
+        .isEmpty();
+  }
 }
@@ -0,0 +1,186 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.storage.elasticsearch.http.internal.client;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
+import okhttp3.Dns;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.Rule;
+import org.junit.Test;
+import zipkin.internal.CallbackCaptor;
+import zipkin.storage.elasticsearch.http.internal.client.HostSelector.Host;
+
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.offset;
+
+public class HostSelectorTest {
+  @Rule
+  public MockWebServer mws = new MockWebServer();
+
+  List<Host> none = Collections.emptyList();
+  Dns dns = hostname -> asList(InetAddress.getByAddress(new byte[] {1, 1, 1, 1}),
+      InetAddress.getByAddress(new byte[] {2, 2, 2, 2}));
+  HostSelector selector = new HostSelector(HttpUrl.parse("http://elasticsearch:9200"), dns);
+
+  @Test
+  public void resolvesAddressesOfBaseUrl() throws Exception {
+    selector.maybeResolve();
+
+    assertThat(selector.hosts()).extracting(h -> h.url().toString())
+        .containsExactly("http://1.1.1.1:9200/", "http://2.2.2.2:9200/");
+    assertThat(selector.lookup("1.1.1.1"))
+        .containsExactly(InetAddress.getByAddress(new byte[] {1, 1, 1, 1}));
+  }
+
+  @Test
+  public void doesntPinHttps() {
+    selector = new HostSelector(HttpUrl.parse("https://elasticsearch:9200"), dns);
+
+    assertThat(selector.select(none).url()).isEqualTo(selector.baseUrl);
+  }
+
+  @Test
+  public void avoidsHostWithRequestsInFlight() {
+    Host first = selector.select(none);
+    first.inFlight.incrementAndGet();
+
+    assertThat(selector.select(none)).isNotSameAs(first);
+  }
+
+  @Test
+  public void prefersLowerLatency() {
+    selector.maybeResolve();
+    long now = System.nanoTime();
+    Host slow = selector.hosts().get(0), fast = selector.hosts().get(1);
+    synchronized (slow) {
+      slow.observe(MILLISECONDS.toNanos(100), now);
+    }
+    synchronized (fast) {
+      fast.observe(MILLISECONDS.toNanos(1), now);
+    }
+
+    for (int i = 0; i < 10; i++) {
+      assertThat(selector.select(none)).isSameAs(fast);
+    }
+  }
+
+  @Test
+  public void latencyDecaysTowardsTheMean() {
+    selector.maybeResolve();
+    long now = System.nanoTime();
+    Host slow = selector.hosts().get(0), fast = selector.hosts().get(1);
+    synchronized (slow) {
+      slow.observe(MILLISECONDS.toNanos(300), now);
+    }
+    synchronized (fast) {
+      fast.observe(MILLISECONDS.toNanos(100), now);
+    }
+    double mean = HostSelector.meanCost(selector.hosts());
+    assertThat(mean).isEqualTo(MILLISECONDS.toNanos(200));
+
+    long later = now + 10 * HostSelector.DECAY_NANOS;
+    synchronized (slow) {
+      assertThat(slow.decayedCost(later, mean)).isCloseTo(mean, offset(1e6));
+    }
+    synchronized (fast) {
+      assertThat(fast.decayedCost(later, mean)).isCloseTo(mean, offset(1e6));
+    }
+  }
+
+  @Test
+  public void noSelectionUnlessEnabled() throws Exception {
+    HttpCall.Factory http = new HttpCall.Factory(new OkHttpClient(), mws.url(""));
+    mws.enqueue(new MockResponse());
+
+    http.execute(new Request.Builder().url(http.baseUrl).build(), b -> null);
+    http.close();
+
+    assertThat(http.hosts()).isEmpty();
+    assertThat(http.ok.interceptors()).isEmpty();
+  }
+
+  @Test
+  public void ejectsHostThatFailed() {
+    selector.maybeResolve();
+    Host failed = selector.hosts().get(0), ok = selector.hosts().get(1);
+    failed.inFlight.incrementAndGet();
+    failed.completed(System.nanoTime(), false);
+
+    assertThat(failed.isEjected()).isTrue();
+    assertThat(failed.errorRate()).isEqualTo(1.0);
+    for (int i = 0; i < 10; i++) {
+      assertThat(selector.select(none)).isSameAs(ok);
+    }
+  }
+
+  @Test
+  public void allEjected_selectsTheOneAvailableSoonest() {
+    selector.maybeResolve();
+    Host failedTwice = selector.hosts().get(0), failedOnce = selector.hosts().get(1);
+    failedTwice.completed(System.nanoTime(), false);
+    failedTwice.completed(System.nanoTime(), false);
+    failedOnce.completed(System.nanoTime(), false);
+
+    assertThat(selector.select(none)).isSameAs(failedOnce);
+    assertThat(selector.select(asList(failedOnce))).isNull(); // retries don't use ejected hosts
+  }
+
+  @Test
+  public void recordsRequestsToEachHost() throws Exception {
+    HttpCall.Factory http = new HttpCall.Factory(new OkHttpClient(), mws.url(""), false, -1, true);
+    mws.enqueue(new MockResponse());
+    mws.enqueue(new MockResponse().setResponseCode(503));
+
+    for (int i = 0; i < 2; i++) {
+      CallbackCaptor<Object> callback = new CallbackCaptor<>();
+      http.newCall(new Request.Builder().url(http.baseUrl).build(), b -> null).submit(callback);
+      try {
+        callback.get();
+      } catch (IllegalStateException expected) { // the 503
+      }
+    }
+    http.close();
+
+    Host host = http.hosts().get(0);
+    assertThat(mws.takeRequest().getHeader("Host")) // not the address the request was pinned to
+        .isEqualTo(mws.url("").host() + ":" + mws.getPort());
+    assertThat(host.requests()).isEqualTo(2);
+    assertThat(host.errors()).isEqualTo(1);
+    assertThat(host.inFlight()).isZero();
+    assertThat(host.isEjected()).isTrue();
+  }
+
+  @Test
+  public void retriesAnotherHostWhenConnectionRefused() throws Exception {
+    OkHttpClient ok = new OkHttpClient.Builder().dns(hostname -> asList(
+        InetAddress.getByAddress(new byte[] {127, 0, 0, 2}), // nothing listens here
+        InetAddress.getByAddress(new byte[] {127, 0, 0, 1}))).build();
+    HttpCall.Factory http = new HttpCall.Factory(ok, mws.url(""), false, -1, true);
+    mws.enqueue(new MockResponse());
+
+    http.execute(new Request.Builder().url(http.baseUrl).build(), b -> null);
+    http.close();
+
+    assertThat(http.hosts()).extracting(Host::errors).containsExactly(1L, 0L);
+    assertThat(mws.getRequestCount()).isEqualTo(1);
+  }
+}
@@ -21,6 +21,10 @@ import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.ByteString;
+import okio.GzipSource;
 import org.junit.After;
 import org.junit.Rule;
 import org.junit.Test;
@@ -87,4 +91,62 @@ public class HttpCallTest {
       assertThat(expected).isInstanceOf(IllegalStateException.class);
     }
   }
+
+  @Test
+  public void newPost_compressesRequests() throws Exception {
+    http = new HttpCall.Factory(new OkHttpClient(), mws.url(""), true, 1);
+    mws.enqueue(new MockResponse());
+
+    ByteString json = ByteString.encodeUtf8(
+        "[{\"serviceName\":\"frontend\"},{\"serviceName\":\"frontend\"}]");
+    http.newCall(http.newPost(http.baseUrl, json).build(), b -> null).submit(callback);
+    callback.get();
+
+    RecordedRequest recorded = mws.takeRequest();
+    assertThat(recorded.getHeader("Content-Encoding")).isEqualTo("gzip");
+    Buffer decompressed = new Buffer();
+    decompressed.writeAll(new GzipSource(recorded.getBody()));
+    assertThat(decompressed.readByteString()).isEqualTo(json);
+
+    assertThat(http.requestBytes()).isEqualTo(json.size());
+    assertThat(http.sentBytes()).isEqualTo(recorded.getBodySize()).isLessThan(json.size());
+    assertThat(http.compressionRatio())
+        .isEqualTo((double) http.requestBytes() / http.sentBytes())
+        .isGreaterThan(1.0);
+  }
+
+  @Test
+  public void newPost_uncompressedByDefault() throws Exception {
+    mws.enqueue(new MockResponse());
+
+    ByteString json = ByteString.encodeUtf8("{}");
+    http.newCall(http.newPost(http.baseUrl, json).build(), b -> null).submit(callback);
+    callback.get();
+
+    RecordedRequest recorded = mws.takeRequest();
+    assertThat(recorded.getHeader("Content-Encoding")).isNull();
+    assertThat(recorded.getBody().readByteString()).isEqualTo(json);
+    assertThat(http.sentBytes()).isEqualTo(http.requestBytes()).isEqualTo(2L);
+  }
+
+  /** The bulk indexer reads the posted buffer again when retrying some of its documents */
+  @Test
+  public void newPost_buffer_doesntConsumeBuffer() throws Exception {
+    http = new HttpCall.Factory(new OkHttpClient(), mws.url(""), true, 1);
+    mws.enqueue(new MockResponse());
+
+    Buffer json = new Buffer().writeUtf8("{\"serviceName\":\"frontend\"}");
+    http.newCall(http.newPost(http.baseUrl, json).build(), b -> null).submit(callback);
+    callback.get();
+
+    Buffer decompressed = new Buffer();
+    decompressed.writeAll(new GzipSource(mws.takeRequest().getBody()));
+    assertThat(decompressed.readUtf8()).isEqualTo(json.readUtf8())
+        .isEqualTo("{\"serviceName\":\"frontend\"}");
+  }
+
+  @Test
+  public void compressionRatio_oneBeforeRequests() {
+    assertThat(http.compressionRatio()).isEqualTo(1.0);
+  }
 }
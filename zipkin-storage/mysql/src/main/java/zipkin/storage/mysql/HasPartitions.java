@@ -0,0 +1,42 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.storage.mysql;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+import org.jooq.DSLContext;
+
+/**
+ * Returns true when zipkin_spans is partitioned, implying the schema was installed with
+ * mysql-partitioned.sql.
+ */
+final class HasPartitions {
+  private static final Logger LOG = Logger.getLogger(HasPartitions.class.getName());
+
+  static boolean test(DataSource datasource, DSLContexts context) {
+    try (Connection conn = datasource.getConnection()) {
+      DSLContext dsl = context.get(conn);
+      return dsl.fetchExists(dsl.selectOne().from("information_schema.partitions")
+          .where("table_schema = database()")
+          .and("table_name = 'zipkin_spans'")
+          .and("partition_name is not null"));
+    } catch (SQLException | RuntimeException e) {
+      LOG.log(Level.WARNING, "problem reading information_schema.partitions", e);
+    }
+    return false;
+  }
+}
@@ -16,35 +16,53 @@ package zipkin.storage.mysql;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import javax.sql.DataSource;
 import org.jooq.DSLContext;
-import org.jooq.InsertSetMoreStep;
+import org.jooq.Field;
+import org.jooq.InsertValuesStepN;
 import org.jooq.Query;
 import org.jooq.Record;
+import org.jooq.Row3;
 import org.jooq.TableField;
+import org.jooq.impl.DSL;
 import zipkin.Annotation;
 import zipkin.BinaryAnnotation;
+import zipkin.Endpoint;
 import zipkin.Span;
 import zipkin.storage.AsyncSpanConsumer;
 import zipkin.storage.StorageAdapters;
 
+import static org.jooq.impl.DSL.row;
 import static zipkin.internal.ApplyTimestampAndDuration.authoritativeTimestamp;
 import static zipkin.internal.ApplyTimestampAndDuration.guessTimestamp;
 import static zipkin.storage.mysql.internal.generated.tables.ZipkinAnnotations.ZIPKIN_ANNOTATIONS;
 import static zipkin.storage.mysql.internal.generated.tables.ZipkinSpans.ZIPKIN_SPANS;
 
+/**
+ * Writes spans and their annotations with multi-row inserts, as write throughput is limited by the
+ * count of statements more than the count of rows.
+ */
 final class MySQLSpanConsumer implements StorageAdapters.SpanConsumer {
+  /** Caps statements well under the default max_allowed_packet of 4MiB */
+  static final int MAX_ROWS_PER_STATEMENT = 500;
+  static final int MAX_BYTES_PER_STATEMENT = 1024 * 1024;
+  // Bits of the span columns updated on duplicate key
+  static final int UPDATE_NAME = 1, UPDATE_START_TS = 2, UPDATE_DURATION = 4;
+
   private final DataSource datasource;
   private final DSLContexts context;
   private final Schema schema;
+  private final WriteStats stats;
 
-  MySQLSpanConsumer(DataSource datasource, DSLContexts context, Schema schema) {
+  MySQLSpanConsumer(DataSource datasource, DSLContexts context, Schema schema, WriteStats stats) {
     this.datasource = datasource;
     this.context = context;
     this.schema = schema;
+    this.stats = stats;
   }
 
   /** Blocking version of {@link AsyncSpanConsumer#accept} */
@@ -53,87 +71,242 @@ final class MySQLSpanConsumer implements StorageAdapters.SpanConsumer {
     try (Connection conn = datasource.getConnection()) {
       DSLContext create = context.get(conn);
 
+      Long[] timestamps = new Long[spans.size()];
       List<Query> inserts = new ArrayList<>();
+      for (int i = 0; i < timestamps.length; i++) {
+        Span span = spans.get(i);
+        Long overridingTimestamp = authoritativeTimestamp(span);
+        timestamps[i] = overridingTimestamp != null ? overridingTimestamp : guessTimestamp(span);
+      }
+      if (schema.hasPartitions) inserts.addAll(reconcileTimestamps(create, spans, timestamps));
+
+      // Rows are grouped by the columns they update, as that is fixed per statement
+      Map<Integer, Rows> spanRows = new LinkedHashMap<>();
+      Rows annotationRows = new Rows(annotationFields());
 
-      for (Span span : spans) {
+      for (int i = 0; i < timestamps.length; i++) {
+        Span span = spans.get(i);
         Long overridingTimestamp = authoritativeTimestamp(span);
-        Long timestamp = overridingTimestamp != null ? overridingTimestamp : guessTimestamp(span);
+        Long timestamp = timestamps[i];
 
-        Map<TableField<Record, ?>, Object> updateFields = new LinkedHashMap<>();
-        if (!span.name.equals("") && !span.name.equals("unknown")) {
-          updateFields.put(ZIPKIN_SPANS.NAME, span.name);
-        }
+        int update = 0;
+        if (!span.name.equals("") && !span.name.equals("unknown")) update |= UPDATE_NAME;
         // replace any tentative timestamp with the authoritative one.
-        if (overridingTimestamp != null) {
-          updateFields.put(ZIPKIN_SPANS.START_TS, overridingTimestamp);
-        }
-        if (span.duration != null) {
-          updateFields.put(ZIPKIN_SPANS.DURATION, span.duration);
-        }
+        if (overridingTimestamp != null) update |= UPDATE_START_TS;
+        if (span.duration != null) update |= UPDATE_DURATION;
 
-        InsertSetMoreStep<Record> insertSpan = create.insertInto(ZIPKIN_SPANS)
-            .set(ZIPKIN_SPANS.TRACE_ID, span.traceId)
-            .set(ZIPKIN_SPANS.ID, span.id)
-            .set(ZIPKIN_SPANS.PARENT_ID, span.parentId)
-            .set(ZIPKIN_SPANS.NAME, span.name)
-            .set(ZIPKIN_SPANS.DEBUG, span.debug)
-            .set(ZIPKIN_SPANS.START_TS, timestamp)
-            .set(ZIPKIN_SPANS.DURATION, span.duration);
-
-        if (span.traceIdHigh != 0 && schema.hasTraceIdHigh) {
-          insertSpan.set(ZIPKIN_SPANS.TRACE_ID_HIGH, span.traceIdHigh);
-        }
-
-        inserts.add(updateFields.isEmpty() ?
-            insertSpan.onDuplicateKeyIgnore() :
-            insertSpan.onDuplicateKeyUpdate().set(updateFields));
+        Rows rows = spanRows.get(update);
+        if (rows == null) spanRows.put(update, rows = new Rows(spanFields()));
+        List<Object> row = new ArrayList<>(rows.fields.size());
+        if (schema.hasTraceIdHigh) row.add(span.traceIdHigh);
+        row.add(span.traceId);
+        row.add(span.id);
+        row.add(span.parentId);
+        row.add(span.name);
+        row.add(span.debug);
+        row.add(timestamp);
+        row.add(span.duration);
+        rows.add(row, span.name.length());
 
         for (Annotation annotation : span.annotations) {
-          InsertSetMoreStep<Record> insert = create.insertInto(ZIPKIN_ANNOTATIONS)
-              .set(ZIPKIN_ANNOTATIONS.TRACE_ID, span.traceId)
-              .set(ZIPKIN_ANNOTATIONS.SPAN_ID, span.id)
-              .set(ZIPKIN_ANNOTATIONS.A_KEY, annotation.value)
-              .set(ZIPKIN_ANNOTATIONS.A_TYPE, -1)
-              .set(ZIPKIN_ANNOTATIONS.A_TIMESTAMP, annotation.timestamp);
-          if (span.traceIdHigh != 0 && schema.hasTraceIdHigh) {
-            insert.set(ZIPKIN_ANNOTATIONS.TRACE_ID_HIGH, span.traceIdHigh);
-          }
-          if (annotation.endpoint != null) {
-            insert.set(ZIPKIN_ANNOTATIONS.ENDPOINT_SERVICE_NAME, annotation.endpoint.serviceName);
-            insert.set(ZIPKIN_ANNOTATIONS.ENDPOINT_IPV4, annotation.endpoint.ipv4);
-            if (annotation.endpoint.ipv6 != null && schema.hasIpv6) {
-              insert.set(ZIPKIN_ANNOTATIONS.ENDPOINT_IPV6, annotation.endpoint.ipv6);
-            }
-            insert.set(ZIPKIN_ANNOTATIONS.ENDPOINT_PORT, annotation.endpoint.port);
-          }
-          inserts.add(insert.onDuplicateKeyIgnore());
+          annotationRows.add(annotationRow(span, annotation.value, null, -1, annotation.timestamp,
+              annotation.endpoint), annotation.value.length());
         }
 
         for (BinaryAnnotation annotation : span.binaryAnnotations) {
-          InsertSetMoreStep<Record> insert = create.insertInto(ZIPKIN_ANNOTATIONS)
-              .set(ZIPKIN_ANNOTATIONS.TRACE_ID, span.traceId)
-              .set(ZIPKIN_ANNOTATIONS.SPAN_ID, span.id)
-              .set(ZIPKIN_ANNOTATIONS.A_KEY, annotation.key)
-              .set(ZIPKIN_ANNOTATIONS.A_VALUE, annotation.value)
-              .set(ZIPKIN_ANNOTATIONS.A_TYPE, annotation.type.value)
-              .set(ZIPKIN_ANNOTATIONS.A_TIMESTAMP, timestamp);
-          if (span.traceIdHigh != 0 && schema.hasTraceIdHigh) {
-            insert.set(ZIPKIN_ANNOTATIONS.TRACE_ID_HIGH, span.traceIdHigh);
-          }
-          if (annotation.endpoint != null) {
-            insert.set(ZIPKIN_ANNOTATIONS.ENDPOINT_SERVICE_NAME, annotation.endpoint.serviceName);
-            insert.set(ZIPKIN_ANNOTATIONS.ENDPOINT_IPV4, annotation.endpoint.ipv4);
-            if (annotation.endpoint.ipv6 != null && schema.hasIpv6) {
-              insert.set(ZIPKIN_ANNOTATIONS.ENDPOINT_IPV6, annotation.endpoint.ipv6);
-            }
-            insert.set(ZIPKIN_ANNOTATIONS.ENDPOINT_PORT, annotation.endpoint.port);
-          }
-          inserts.add(insert.onDuplicateKeyIgnore());
+          annotationRows.add(annotationRow(span, annotation.key, annotation.value,
+              annotation.type.value, timestamp, annotation.endpoint),
+              annotation.key.length() + annotation.value.length);
+        }
+      }
+
+      for (Map.Entry<Integer, Rows> entry : spanRows.entrySet()) {
+        Map<Field<?>, Field<?>> updateFields = new LinkedHashMap<>();
+        int update = entry.getKey();
+        if ((update & UPDATE_NAME) != 0) {
+          updateFields.put(ZIPKIN_SPANS.NAME, inserted(ZIPKIN_SPANS.NAME));
+        }
+        if ((update & UPDATE_START_TS) != 0) {
+          updateFields.put(ZIPKIN_SPANS.START_TS, inserted(ZIPKIN_SPANS.START_TS));
         }
+        if ((update & UPDATE_DURATION) != 0) {
+          updateFields.put(ZIPKIN_SPANS.DURATION, inserted(ZIPKIN_SPANS.DURATION));
+        }
+        for (List<List<Object>> chunk : entry.getValue().chunks) {
+          inserts.add(updateFields.isEmpty()
+              ? insert(create, entry.getValue().fields, chunk).onDuplicateKeyIgnore()
+              : insert(create, entry.getValue().fields, chunk).onDuplicateKeyUpdate()
+                  .set(updateFields));
+        }
+      }
+      for (List<List<Object>> chunk : annotationRows.chunks) {
+        inserts.add(insert(create, annotationRows.fields, chunk).onDuplicateKeyIgnore());
       }
+
+      long startNanos = System.nanoTime();
       create.batch(inserts).execute();
+      int rowCount = annotationRows.count;
+      for (Rows rows : spanRows.values()) rowCount += rows.count;
+      stats.written(inserts.size(), rowCount, System.nanoTime() - startNanos);
     } catch (SQLException e) {
       throw new RuntimeException(e); // TODO
     }
   }
+
+  /**
+   * The partitioned schema keys spans on {@code start_ts}, as it is the partition column. So that
+   * halves of a span reported with different timestamps still merge into one row, this picks one
+   * timestamp per span ID, and aligns it with any row already stored.
+   *
+   * <p>An authoritative timestamp wins over a guessed one, which wins over none. When the stored
+   * row has a lesser timestamp, a statement moves it, to execute before the inserts that merge into
+   * it. Otherwise, spans adopt the stored timestamp.
+   *
+   * <p>This is best effort: halves written at the same time can still become separate rows. Those
+   * are merged by span ID when read.
+   */
+  List<Query> reconcileTimestamps(DSLContext create, List<Span> spans, Long[] timestamps) {
+    Map<List<Long>, Long> chosen = new LinkedHashMap<>();
+    Map<List<Long>, Boolean> authoritative = new LinkedHashMap<>();
+    List<Row3<Long, Long, Long>> ids = new ArrayList<>(spans.size());
+    for (int i = 0; i < timestamps.length; i++) {
+      Span span = spans.get(i);
+      List<Long> key = Arrays.asList(span.traceIdHigh, span.traceId, span.id);
+      boolean isAuthoritative = authoritativeTimestamp(span) != null;
+      if (!chosen.containsKey(key)) {
+        ids.add(row(span.traceIdHigh, span.traceId, span.id));
+      } else if (authoritative.get(key) || (!isAuthoritative && chosen.get(key) != null)) {
+        continue;
+      } else if (!isAuthoritative && timestamps[i] == null) {
+        continue;
+      }
+      chosen.put(key, timestamps[i]);
+      authoritative.put(key, isAuthoritative);
+    }
+
+    Map<List<Long>, List<Long>> stored = new LinkedHashMap<>();
+    for (Record r : create.select(ZIPKIN_SPANS.TRACE_ID_HIGH, ZIPKIN_SPANS.TRACE_ID,
+        ZIPKIN_SPANS.ID, ZIPKIN_SPANS.START_TS)
+        .from(ZIPKIN_SPANS)
+        .where(row(ZIPKIN_SPANS.TRACE_ID_HIGH, ZIPKIN_SPANS.TRACE_ID, ZIPKIN_SPANS.ID).in(ids))
+        .fetch()) {
+      List<Long> key = Arrays.asList(r.getValue(ZIPKIN_SPANS.TRACE_ID_HIGH),
+          r.getValue(ZIPKIN_SPANS.TRACE_ID), r.getValue(ZIPKIN_SPANS.ID));
+      List<Long> startTs = stored.get(key);
+      if (startTs == null) stored.put(key, startTs = new ArrayList<>(1));
+      startTs.add(r.getValue(ZIPKIN_SPANS.START_TS));
+    }
+
+    List<Query> result = new ArrayList<>();
+    for (Map.Entry<List<Long>, Long> entry : chosen.entrySet()) {
+      List<Long> startTs = stored.get(entry.getKey());
+      Long timestamp = entry.getValue();
+      if (startTs == null || startTs.contains(timestamp)) continue;
+
+      Long storedTimestamp = startTs.get(0);
+      if (timestamp == null || (storedTimestamp != null && !authoritative.get(entry.getKey()))) {
+        entry.setValue(storedTimestamp);
+        continue;
+      }
+      List<Long> key = entry.getKey();
+      result.add(create.update(ZIPKIN_SPANS)
+          .set(ZIPKIN_SPANS.START_TS, timestamp)
+          .where(ZIPKIN_SPANS.TRACE_ID_HIGH.eq(key.get(0)))
+          .and(ZIPKIN_SPANS.TRACE_ID.eq(key.get(1)))
+          .and(ZIPKIN_SPANS.ID.eq(key.get(2)))
+          .and(storedTimestamp == null
+              ? ZIPKIN_SPANS.START_TS.isNull()
+              : ZIPKIN_SPANS.START_TS.eq(storedTimestamp)));
+    }
+
+    for (int i = 0; i < timestamps.length; i++) {
+      Span span = spans.get(i);
+      timestamps[i] = chosen.get(Arrays.asList(span.traceIdHigh, span.traceId, span.id));
+    }
+    return result;
+  }
+
+  List<TableField<Record, ?>> spanFields() {
+    List<TableField<Record, ?>> result = new ArrayList<>();
+    if (schema.hasTraceIdHigh) result.add(ZIPKIN_SPANS.TRACE_ID_HIGH);
+    result.add(ZIPKIN_SPANS.TRACE_ID);
+    result.add(ZIPKIN_SPANS.ID);
+    result.add(ZIPKIN_SPANS.PARENT_ID);
+    result.add(ZIPKIN_SPANS.NAME);
+    result.add(ZIPKIN_SPANS.DEBUG);
+    result.add(ZIPKIN_SPANS.START_TS);
+    result.add(ZIPKIN_SPANS.DURATION);
+    return result;
+  }
+
+  List<TableField<Record, ?>> annotationFields() {
+    List<TableField<Record, ?>> result = new ArrayList<>();
+    if (schema.hasTraceIdHigh) result.add(ZIPKIN_ANNOTATIONS.TRACE_ID_HIGH);
+    result.add(ZIPKIN_ANNOTATIONS.TRACE_ID);
+    result.add(ZIPKIN_ANNOTATIONS.SPAN_ID);
+    result.add(ZIPKIN_ANNOTATIONS.A_KEY);
+    result.add(ZIPKIN_ANNOTATIONS.A_VALUE);
+    result.add(ZIPKIN_ANNOTATIONS.A_TYPE);
+    result.add(ZIPKIN_ANNOTATIONS.A_TIMESTAMP);
+    result.add(ZIPKIN_ANNOTATIONS.ENDPOINT_SERVICE_NAME);
+    result.add(ZIPKIN_ANNOTATIONS.ENDPOINT_IPV4);
+    if (schema.hasIpv6) result.add(ZIPKIN_ANNOTATIONS.ENDPOINT_IPV6);
+    result.add(ZIPKIN_ANNOTATIONS.ENDPOINT_PORT);
+    return result;
+  }
+
+  List<Object> annotationRow(Span span, String key, byte[] value, int type, Long timestamp,
+      Endpoint endpoint) {
+    List<Object> row = new ArrayList<>(11);
+    if (schema.hasTraceIdHigh) row.add(span.traceIdHigh);
+    row.add(span.traceId);
+    row.add(span.id);
+    row.add(key);
+    row.add(value);
+    row.add(type);
+    row.add(timestamp);
+    row.add(endpoint != null ? endpoint.serviceName : null);
+    row.add(endpoint != null ? endpoint.ipv4 : null);
+    if (schema.hasIpv6) row.add(endpoint != null ? endpoint.ipv6 : null);
+    row.add(endpoint != null ? endpoint.port : null);
+    return row;
+  }
+
+  static InsertValuesStepN<Record> insert(DSLContext create, List<TableField<Record, ?>> fields,
+      List<List<Object>> rows) {
+    InsertValuesStepN<Record> result = create.insertInto(fields.get(0).getTable(), fields);
+    for (List<Object> row : rows) result.values(row);
+    return result;
+  }
+
+  /** Refers to the value a row would have inserted, ex. VALUES(`name`) */
+  static <T> Field<T> inserted(TableField<Record, T> field) {
+    return DSL.field("values({0})", field.getDataType(), DSL.name(field.getName()));
+  }
+
+  /** Rows of the same columns, split into chunks that fit in one statement. */
+  static final class Rows {
+    final List<TableField<Record, ?>> fields;
+    final List<List<List<Object>>> chunks = new ArrayList<>();
+    List<List<Object>> chunk;
+    int chunkBytes, count;
+
+    Rows(List<TableField<Record, ?>> fields) {
+      this.fields = fields;
+    }
+
+    /** @param variableBytes size of the variable length columns, like names and values */
+    void add(List<Object> row, int variableBytes) {
+      int rowBytes = variableBytes + 8 * fields.size();
+      if (chunk == null
+          || chunk.size() == MAX_ROWS_PER_STATEMENT
+          || chunkBytes + rowBytes > MAX_BYTES_PER_STATEMENT) {
+        chunks.add(chunk = new ArrayList<>());
+        chunkBytes = 0;
+      }
+      chunk.add(row);
+      chunkBytes += rowBytes;
+      count++;
+    }
+  }
 }
@@ -19,20 +19,20 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 import javax.sql.DataSource;
 import org.jooq.Condition;
 import org.jooq.Cursor;
 import org.jooq.DSLContext;
+import org.jooq.Field;
 import org.jooq.Record;
-import org.jooq.Row3;
+import org.jooq.Result;
 import org.jooq.SelectConditionStep;
 import org.jooq.SelectField;
 import org.jooq.SelectOffsetStep;
-import org.jooq.TableField;
+import org.jooq.SortField;
+import org.jooq.Table;
 import org.jooq.TableOnConditionStep;
 import zipkin.Annotation;
 import zipkin.BinaryAnnotation;
@@ -44,14 +44,11 @@ import zipkin.internal.DependencyLinkSpan;
 import zipkin.internal.DependencyLinker;
 import zipkin.internal.GroupByTraceId;
 import zipkin.internal.Nullable;
-import zipkin.internal.Pair;
 import zipkin.storage.QueryRequest;
 import zipkin.storage.SpanStore;
 import zipkin.storage.mysql.internal.generated.tables.ZipkinAnnotations;
 
 import static java.util.Collections.emptyList;
-import static java.util.stream.Collectors.groupingBy;
-import static org.jooq.impl.DSL.row;
 import static zipkin.BinaryAnnotation.Type.STRING;
 import static zipkin.Constants.CLIENT_ADDR;
 import static zipkin.Constants.CLIENT_SEND;
@@ -84,15 +81,20 @@ final class MySQLSpanStore implements SpanStore {
         .serviceName(serviceName)
         .port(a.getValue(ZIPKIN_ANNOTATIONS.ENDPOINT_PORT))
         .ipv4(a.getValue(ZIPKIN_ANNOTATIONS.ENDPOINT_IPV4))
-        .ipv6(maybeGet(a, ZIPKIN_ANNOTATIONS.ENDPOINT_IPV6, null)).build();
+        .ipv6(schema.hasIpv6 ? a.getValue(ZIPKIN_ANNOTATIONS.ENDPOINT_IPV6) : null).build();
   }
 
   SelectOffsetStep<? extends Record> toTraceIdQuery(DSLContext context, QueryRequest request) {
     long endTs = (request.endTs > 0 && request.endTs != Long.MAX_VALUE) ? request.endTs * 1000
         : System.currentTimeMillis() * 1000;
 
-    TableOnConditionStep<?> table = ZIPKIN_SPANS.join(ZIPKIN_ANNOTATIONS)
-        .on(schema.joinCondition(ZIPKIN_ANNOTATIONS));
+    // Only join annotations when needed, as there are many more of them than spans
+    Table<?> table = ZIPKIN_SPANS;
+    if (request.serviceName != null) {
+      table = ZIPKIN_SPANS.join(ZIPKIN_ANNOTATIONS)
+          .on(schema.joinCondition(ZIPKIN_ANNOTATIONS))
+          .and(ZIPKIN_ANNOTATIONS.ENDPOINT_SERVICE_NAME.eq(request.serviceName));
+    }
 
     int i = 0;
     for (String key : request.annotations) {
@@ -117,10 +119,6 @@ final class MySQLSpanStore implements SpanStore {
         .from(table)
         .where(ZIPKIN_SPANS.START_TS.between(endTs - request.lookback * 1000, endTs));
 
-    if (request.serviceName != null) {
-      dsl.and(ZIPKIN_ANNOTATIONS.ENDPOINT_SERVICE_NAME.eq(request.serviceName));
-    }
-
     if (request.spanName != null) {
       dsl.and(ZIPKIN_SPANS.NAME.eq(request.spanName));
     }
@@ -135,91 +133,92 @@ final class MySQLSpanStore implements SpanStore {
         .orderBy(ZIPKIN_SPANS.START_TS.max().desc()).limit(request.limit);
   }
 
-  static TableOnConditionStep<?> maybeOnService(TableOnConditionStep<Record> table,
+  static Table<?> maybeOnService(TableOnConditionStep<Record> table,
       ZipkinAnnotations aTable, String serviceName) {
     if (serviceName == null) return table;
     return table.and(aTable.ENDPOINT_SERVICE_NAME.eq(serviceName));
   }
 
+  /**
+   * Finds trace IDs first, then reads their spans joined with annotations in one query. Rows are
+   * ordered by span, so each span is assembled as soon as the next one starts.
+   */
   List<List<Span>> getTraces(@Nullable QueryRequest request, @Nullable Long traceIdHigh,
       @Nullable Long traceIdLow, boolean raw) {
     if (traceIdHigh != null && !strictTraceId) traceIdHigh = null;
-    final Map<Pair<Long>, List<Span>> spansWithoutAnnotations;
-    final Map<Row3<Long, Long, Long>, List<Record>> dbAnnotations;
+    List<Span> allSpans = new ArrayList<>();
     try (Connection conn = datasource.getConnection()) {
-      Condition traceIdCondition = request != null
-          ? schema.spanTraceIdCondition(toTraceIdQuery(context.get(conn), request))
-          : schema.spanTraceIdCondition(traceIdHigh, traceIdLow);
-
-      spansWithoutAnnotations = context.get(conn)
-          .select(schema.spanFields)
-          .from(ZIPKIN_SPANS).where(traceIdCondition)
-          .stream()
-          .map(r -> Span.builder()
-              .traceIdHigh(maybeGet(r, ZIPKIN_SPANS.TRACE_ID_HIGH, 0L))
-              .traceId(r.getValue(ZIPKIN_SPANS.TRACE_ID))
-              .name(r.getValue(ZIPKIN_SPANS.NAME))
-              .id(r.getValue(ZIPKIN_SPANS.ID))
-              .parentId(r.getValue(ZIPKIN_SPANS.PARENT_ID))
-              .timestamp(r.getValue(ZIPKIN_SPANS.START_TS))
-              .duration(r.getValue(ZIPKIN_SPANS.DURATION))
-              .debug(r.getValue(ZIPKIN_SPANS.DEBUG))
-              .build())
-          .collect(
-              groupingBy((Span s) -> Pair.create(s.traceIdHigh, s.traceId),
-                  LinkedHashMap::new, Collectors.<Span>toList()));
-
-      dbAnnotations = context.get(conn)
-          .select(schema.annotationFields)
-          .from(ZIPKIN_ANNOTATIONS)
-          .where(schema.annotationsTraceIdCondition(spansWithoutAnnotations.keySet()))
-          .orderBy(ZIPKIN_ANNOTATIONS.A_TIMESTAMP.asc(), ZIPKIN_ANNOTATIONS.A_KEY.asc())
-          .stream()
-          .collect(groupingBy((Record a) -> row(
-              maybeGet(a, ZIPKIN_ANNOTATIONS.TRACE_ID_HIGH, 0L),
-              a.getValue(ZIPKIN_ANNOTATIONS.TRACE_ID),
-              a.getValue(ZIPKIN_ANNOTATIONS.SPAN_ID)
-              ), LinkedHashMap::new,
-              Collectors.<Record>toList())); // LinkedHashMap preserves order while grouping
-    } catch (SQLException e) {
-      throw new RuntimeException("Error querying for " + request + ": " + e.getMessage());
-    }
+      Condition traceIdCondition;
+      if (request != null) {
+        Result<? extends Record> traceIds = toTraceIdQuery(context.get(conn), request).fetch();
+        if (traceIds.isEmpty()) return emptyList();
+        traceIdCondition = schema.spanTraceIdCondition(traceIds);
+      } else {
+        traceIdCondition = schema.spanTraceIdCondition(traceIdHigh, traceIdLow);
+      }
 
-    List<Span> allSpans = new ArrayList<>(spansWithoutAnnotations.size());
-    for (List<Span> spans : spansWithoutAnnotations.values()) {
-      for (Span s : spans) {
-        Span.Builder span = s.toBuilder();
-        Row3<Long, Long, Long> key = row(s.traceIdHigh, s.traceId, s.id);
-
-        if (dbAnnotations.containsKey(key)) {
-          for (Record a : dbAnnotations.get(key)) {
-            Endpoint endpoint = endpoint(a);
-            int type = a.getValue(ZIPKIN_ANNOTATIONS.A_TYPE);
-            if (type == -1) {
-              span.addAnnotation(Annotation.create(
-                  a.getValue(ZIPKIN_ANNOTATIONS.A_TIMESTAMP),
-                  a.getValue(ZIPKIN_ANNOTATIONS.A_KEY),
-                  endpoint));
-            } else {
-              span.addBinaryAnnotation(BinaryAnnotation.create(
-                  a.getValue(ZIPKIN_ANNOTATIONS.A_KEY),
-                  a.getValue(ZIPKIN_ANNOTATIONS.A_VALUE),
-                  Type.fromValue(type),
-                  endpoint));
-            }
+      List<SortField<?>> orderBy = new ArrayList<>();
+      for (Field<?> field : schema.spanIdFields) orderBy.add(field.asc());
+      orderBy.add(ZIPKIN_SPANS.ID.asc());
+      orderBy.add(ZIPKIN_ANNOTATIONS.A_TIMESTAMP.asc());
+      orderBy.add(ZIPKIN_ANNOTATIONS.A_KEY.asc());
+
+      // Lazy fetching the cursor prevents us from buffering the whole result in memory.
+      try (Cursor<Record> cursor = context.get(conn)
+          .select(schema.spanWithAnnotationFields)
+          .from(ZIPKIN_SPANS.leftJoin(ZIPKIN_ANNOTATIONS)
+              .on(schema.joinCondition(ZIPKIN_ANNOTATIONS)))
+          .where(traceIdCondition)
+          .orderBy(orderBy)
+          .fetchLazy()) {
+        Span.Builder span = null;
+        long spanTraceIdHigh = 0L, spanTraceId = 0L, spanId = 0L;
+        for (Record r : cursor) {
+          long rTraceIdHigh = schema.hasTraceIdHigh ? r.getValue(ZIPKIN_SPANS.TRACE_ID_HIGH) : 0L;
+          long rTraceId = r.getValue(ZIPKIN_SPANS.TRACE_ID);
+          long rSpanId = r.getValue(ZIPKIN_SPANS.ID);
+          if (span == null
+              || rSpanId != spanId || rTraceId != spanTraceId || rTraceIdHigh != spanTraceIdHigh) {
+            if (span != null) allSpans.add(span.build());
+            spanTraceIdHigh = rTraceIdHigh;
+            spanTraceId = rTraceId;
+            spanId = rSpanId;
+            span = Span.builder()
+                .traceIdHigh(rTraceIdHigh)
+                .traceId(rTraceId)
+                .name(r.getValue(ZIPKIN_SPANS.NAME))
+                .id(rSpanId)
+                .parentId(r.getValue(ZIPKIN_SPANS.PARENT_ID))
+                .timestamp(r.getValue(ZIPKIN_SPANS.START_TS))
+                .duration(r.getValue(ZIPKIN_SPANS.DURATION))
+                .debug(r.getValue(ZIPKIN_SPANS.DEBUG));
           }
+          addAnnotation(span, r);
         }
-        allSpans.add(span.build());
+        if (span != null) allSpans.add(span.build());
       }
+    } catch (SQLException e) {
+      throw new RuntimeException("Error querying for " + request + ": " + e.getMessage());
     }
     return GroupByTraceId.apply(allSpans, strictTraceId, !raw);
   }
 
-  static <T> T maybeGet(Record record, TableField<Record, T> field, T defaultValue) {
-    if (record.fieldsRow().indexOf(field) < 0) {
-      return defaultValue;
+  /** Adds any annotation in the row, which is absent when a span has none. */
+  void addAnnotation(Span.Builder span, Record a) {
+    Integer type = a.getValue(ZIPKIN_ANNOTATIONS.A_TYPE);
+    if (type == null) return;
+    Endpoint endpoint = endpoint(a);
+    if (type == -1) {
+      span.addAnnotation(Annotation.create(
+          a.getValue(ZIPKIN_ANNOTATIONS.A_TIMESTAMP),
+          a.getValue(ZIPKIN_ANNOTATIONS.A_KEY),
+          endpoint));
     } else {
-      return record.get(field);
+      span.addBinaryAnnotation(BinaryAnnotation.create(
+          a.getValue(ZIPKIN_ANNOTATIONS.A_KEY),
+          a.getValue(ZIPKIN_ANNOTATIONS.A_VALUE),
+          Type.fromValue(type),
+          endpoint));
     }
   }
 
@@ -15,7 +15,19 @@ package zipkin.storage.mysql;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
 import javax.sql.DataSource;
 import org.jooq.ExecuteListenerProvider;
 import org.jooq.conf.Settings;
@@ -25,14 +37,18 @@ import zipkin.storage.AsyncSpanConsumer;
 import zipkin.storage.AsyncSpanStore;
 import zipkin.storage.SpanStore;
 import zipkin.storage.StorageComponent;
+import zipkin.storage.StorageMetrics;
 
+import static zipkin.internal.Util.checkArgument;
 import static zipkin.internal.Util.checkNotNull;
 import static zipkin.storage.StorageAdapters.blockingToAsync;
 import static zipkin.storage.mysql.internal.generated.tables.ZipkinAnnotations.ZIPKIN_ANNOTATIONS;
 import static zipkin.storage.mysql.internal.generated.tables.ZipkinDependencies.ZIPKIN_DEPENDENCIES;
 import static zipkin.storage.mysql.internal.generated.tables.ZipkinSpans.ZIPKIN_SPANS;
 
-public final class MySQLStorage implements StorageComponent {
+public final class MySQLStorage implements StorageComponent, StorageMetrics {
+  static final Logger LOG = Logger.getLogger(MySQLStorage.class.getName());
+
   public static Builder builder() {
     return new Builder();
   }
@@ -43,6 +59,9 @@ public final class MySQLStorage implements StorageComponent {
     private Settings settings = new Settings().withRenderSchema(false);
     private ExecuteListenerProvider listenerProvider;
     private Executor executor;
+    private int writerThreads;
+    private int writerQueueSize = 1000;
+    private int retentionDays;
 
     /** {@inheritDoc} */
     @Override public Builder strictTraceId(boolean strictTraceId) {
@@ -70,6 +89,40 @@ public final class MySQLStorage implements StorageComponent {
       return this;
     }
 
+    /**
+     * When positive, spans are written by this many dedicated threads, instead of the {@link
+     * #executor(Executor) shared executor}. This keeps slow writes from holding up queries, and
+     * bounds the writes queued. Defaults to 0, which uses the shared executor.
+     *
+     * <p>Note: Zipkin server defaults this to 4, as its shared executor also serves queries.
+     */
+    public Builder writerThreads(int writerThreads) {
+      checkArgument(writerThreads >= 0, "writerThreads < 0");
+      this.writerThreads = writerThreads;
+      return this;
+    }
+
+    /**
+     * When {@link #writerThreads(int)} is positive, the count of span consumer calls waiting for a
+     * writer thread before further calls are rejected. Defaults to 1000.
+     */
+    public Builder writerQueueSize(int writerQueueSize) {
+      checkArgument(writerQueueSize > 0, "writerQueueSize <= 0");
+      this.writerQueueSize = writerQueueSize;
+      return this;
+    }
+
+    /**
+     * When positive, spans and annotations older than this many days are dropped, along with the
+     * daily partition holding them. This requires the schema in mysql-partitioned.sql. Defaults to
+     * 0, which retains data indefinitely.
+     */
+    public Builder retentionDays(int retentionDays) {
+      checkArgument(retentionDays >= 0, "retentionDays < 0");
+      this.retentionDays = retentionDays;
+      return this;
+    }
+
     @Override public MySQLStorage build() {
       return new MySQLStorage(this);
     }
@@ -84,13 +137,19 @@ public final class MySQLStorage implements StorageComponent {
 
   private final DataSource datasource;
   private final Executor executor;
+  @Nullable private final ThreadPoolExecutor writer;
+  @Nullable private final ScheduledExecutorService retention;
   private final DSLContexts context;
+  private final WriteStats writeStats = new WriteStats();
   final Lazy<Schema> schema;
   final boolean strictTraceId;
 
   MySQLStorage(MySQLStorage.Builder builder) {
     this.datasource = checkNotNull(builder.datasource, "datasource");
     this.executor = checkNotNull(builder.executor, "executor");
+    this.writer = builder.writerThreads > 0
+        ? newWriter(builder.writerThreads, builder.writerQueueSize, writeStats)
+        : null;
     this.context = new DSLContexts(builder.settings, builder.listenerProvider);
     this.schema = new Lazy<Schema>() {
       @Override protected Schema compute() {
@@ -98,6 +157,9 @@ public final class MySQLStorage implements StorageComponent {
       }
     };
     this.strictTraceId = builder.strictTraceId;
+    this.retention = builder.retentionDays > 0
+        ? newRetention(new PartitionRetention(datasource, context, schema, builder.retentionDays))
+        : null;
   }
 
   /** Returns the session in use by this storage component. */
@@ -105,6 +167,11 @@ public final class MySQLStorage implements StorageComponent {
     return datasource;
   }
 
+  /** Statements and rows written, how long writes took, and writes rejected. */
+  public WriteStats writeStats() {
+    return writeStats;
+  }
+
   @Override public SpanStore spanStore() {
     return new MySQLSpanStore(datasource, context, schema.get(), strictTraceId);
   }
@@ -114,8 +181,9 @@ public final class MySQLStorage implements StorageComponent {
   }
 
   @Override public AsyncSpanConsumer asyncSpanConsumer() {
-    MySQLSpanConsumer spanConsumer = new MySQLSpanConsumer(datasource, context, schema.get());
-    return blockingToAsync(spanConsumer, executor);
+    MySQLSpanConsumer spanConsumer =
+        new MySQLSpanConsumer(datasource, context, schema.get(), writeStats);
+    return blockingToAsync(spanConsumer, writer != null ? writer : executor);
   }
 
   @Override public CheckResult check() {
@@ -127,8 +195,60 @@ public final class MySQLStorage implements StorageComponent {
     return CheckResult.OK;
   }
 
+  /** Includes {@link #writeStats()}, and when there are writer threads, the writes queued. */
+  @Override public Map<String, Number> metrics() {
+    Map<String, Number> result = new LinkedHashMap<>();
+    writeStats.addMetrics(result);
+    if (writer != null) result.put("queued_writes", writer.getQueue().size());
+    return result;
+  }
+
   @Override public void close() {
-    // didn't open the DataSource or executor
+    // didn't open the DataSource or executor, but did open any writer or retention thread
+    if (writer != null) writer.shutdown();
+    if (retention != null) retention.shutdownNow();
+  }
+
+  /**
+   * Rejects writes when the queue is full, which the collector reports as dropped spans. Rejected
+   * writes are counted, and the first is logged, as the queue stays full while the database is
+   * slow.
+   */
+  static ThreadPoolExecutor newWriter(int threads, int queueSize, final WriteStats stats) {
+    final AtomicInteger threadCount = new AtomicInteger();
+    ThreadFactory threadFactory = new ThreadFactory() {
+      @Override public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "zipkin-mysql-writer-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+    RejectedExecutionHandler countRejected = (r, executor) -> {
+      String message = executor.isShutdown()
+          ? "MySQL storage is closed"
+          : "MySQL writer queue is full: increase writerThreads or writerQueueSize";
+      if (stats.rejected.getAndIncrement() == 0) {
+        LOG.warning(message + "; further rejected writes are counted in writeStats()");
+      }
+      throw new RejectedExecutionException(message);
+    };
+    ThreadPoolExecutor result = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES,
+        new ArrayBlockingQueue<Runnable>(queueSize), threadFactory, countRejected);
+    result.allowCoreThreadTimeOut(true);
+    return result;
+  }
+
+  /** Maintains partitions now, and hourly after, so that a new day's partition exists in time. */
+  // The task is stopped by shutting down the executor on close, so its future isn't needed
+  @SuppressWarnings("FutureReturnValueIgnored")
+  static ScheduledExecutorService newRetention(PartitionRetention partitionRetention) {
+    ScheduledExecutorService result = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "zipkin-mysql-retention");
+      thread.setDaemon(true);
+      return thread;
+    });
+    result.scheduleWithFixedDelay(partitionRetention, 0, 1, TimeUnit.HOURS);
+    return result;
   }
 
   /** Visible for testing */
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.storage.mysql;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.sql.DataSource;
+import org.jooq.DSLContext;
+import zipkin.internal.Lazy;
+
+import static org.jooq.impl.DSL.field;
+import static zipkin.internal.Util.midnightUTC;
+
+/**
+ * Maintains the daily partitions of a schema installed with mysql-partitioned.sql.
+ *
+ * <p>Partitions for upcoming days are split from the catch-all partition "pmax" before data
+ * arrives, so this is cheap. Partitions older than the retention period are dropped, which unlike
+ * {@code DELETE} neither locks rows nor fragments the table.
+ */
+final class PartitionRetention implements Runnable {
+  static final Logger LOG = Logger.getLogger(PartitionRetention.class.getName());
+  static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+  /** Partitions are created this many days ahead, so that a missed run doesn't fill "pmax". */
+  static final int UPCOMING_DAYS = 2;
+  static final Pattern DAILY_PARTITION = Pattern.compile("p(\\d{8})");
+
+  /** Partitioned tables and the column they are partitioned on */
+  static final String[][] TABLES = {
+      {"zipkin_spans", "start_ts"},
+      {"zipkin_annotations", "a_timestamp"}
+  };
+
+  final DataSource datasource;
+  final DSLContexts context;
+  final Lazy<Schema> schema;
+  final int retentionDays;
+  boolean warnedNotPartitioned;
+
+  PartitionRetention(DataSource datasource, DSLContexts context, Lazy<Schema> schema,
+      int retentionDays) {
+    this.datasource = datasource;
+    this.context = context;
+    this.schema = schema;
+    this.retentionDays = retentionDays;
+  }
+
+  @Override public void run() {
+    try {
+      maintain(System.currentTimeMillis());
+    } catch (SQLException | RuntimeException e) {
+      // don't propagate, as that would cancel subsequent runs
+      LOG.log(Level.WARNING, "problem maintaining partitions", e);
+    }
+  }
+
+  void maintain(long nowMillis) throws SQLException {
+    if (!schema.get().hasPartitions) {
+      if (!warnedNotPartitioned) {
+        LOG.warning("zipkin_spans isn't partitioned, so retention is not supported. " +
+            "Install the schema with mysql-partitioned.sql located in this jar");
+        warnedNotPartitioned = true;
+      }
+      return;
+    }
+    long today = midnightUTC(nowMillis);
+    long expired = today - retentionDays * DAY_MILLIS;
+    try (Connection conn = datasource.getConnection()) {
+      DSLContext dsl = context.get(conn);
+      for (String[] table : TABLES) {
+        maintain(dsl, table[0], today, expired);
+      }
+    }
+  }
+
+  void maintain(DSLContext dsl, String table, long today, long expired) {
+    List<String> toDrop = new ArrayList<>();
+    long latest = -1L;
+    for (String name : dsl.select(field("partition_name", String.class))
+        .from("information_schema.partitions")
+        .where("table_schema = database()")
+        .and("table_name = ?", table)
+        .fetch(0, String.class)) {
+      long day = parseDay(name);
+      if (day == -1L) continue; // p0 or pmax
+      if (day < expired) toDrop.add(name);
+      latest = Math.max(latest, day);
+    }
+
+    // Partitions must be added in ascending order, after any existing daily partition
+    StringBuilder toAdd = new StringBuilder();
+    long first = Math.max(today, latest + DAY_MILLIS);
+    for (long day = first; day <= today + UPCOMING_DAYS * DAY_MILLIS; day += DAY_MILLIS) {
+      toAdd.append("PARTITION ").append(partitionName(day))
+          .append(" VALUES LESS THAN (").append(TimeUnit.MILLISECONDS.toMicros(day + DAY_MILLIS))
+          .append("), ");
+    }
+    if (toAdd.length() > 0) {
+      dsl.execute("ALTER TABLE " + table + " REORGANIZE PARTITION pmax INTO ("
+          + toAdd + "PARTITION pmax VALUES LESS THAN MAXVALUE)");
+    }
+    if (!toDrop.isEmpty()) {
+      LOG.info("dropping expired partitions of " + table + ": " + toDrop);
+      dsl.execute("ALTER TABLE " + table + " DROP PARTITION " + String.join(", ", toDrop));
+    }
+  }
+
+  /** Returns the midnight UTC of the day a partition holds, or -1 if it isn't a daily partition */
+  static long parseDay(String partitionName) {
+    if (partitionName == null) return -1L; // table isn't partitioned
+    Matcher matcher = DAILY_PARTITION.matcher(partitionName);
+    if (!matcher.matches()) return -1L;
+    try {
+      return dayFormat().parse(matcher.group(1)).getTime();
+    } catch (ParseException e) {
+      return -1L;
+    }
+  }
+
+  static String partitionName(long day) {
+    return "p" + dayFormat().format(new Date(day));
+  }
+
+  static SimpleDateFormat dayFormat() {
+    SimpleDateFormat result = new SimpleDateFormat("yyyyMMdd");
+    result.setTimeZone(TimeZone.getTimeZone("UTC"));
+    result.setLenient(false);
+    return result;
+  }
+}
@@ -16,15 +16,12 @@ package zipkin.storage.mysql;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
 import javax.sql.DataSource;
 import org.jooq.Condition;
 import org.jooq.Field;
 import org.jooq.Record;
 import org.jooq.Result;
 import org.jooq.Row2;
-import org.jooq.SelectOffsetStep;
-import zipkin.internal.Pair;
 import zipkin.storage.mysql.internal.generated.tables.ZipkinAnnotations;
 
 import static org.jooq.impl.DSL.row;
@@ -35,16 +32,20 @@ final class Schema {
   final List<Field<?>> spanIdFields;
   final List<Field<?>> spanFields;
   final List<Field<?>> annotationFields;
+  /** Span fields followed by annotation fields, except those joined on */
+  final List<Field<?>> spanWithAnnotationFields;
   final List<Field<?>> dependencyLinkFields;
   final List<Field<?>> dependencyLinkGroupByFields;
   final boolean hasTraceIdHigh;
   final boolean hasPreAggregatedDependencies;
   final boolean hasIpv6;
+  final boolean hasPartitions;
 
   Schema(DataSource datasource, DSLContexts context) {
     hasTraceIdHigh = HasTraceIdHigh.test(datasource, context);
     hasPreAggregatedDependencies = HasPreAggregatedDependencies.test(datasource, context);
     hasIpv6 = HasIpv6.test(datasource, context);
+    hasPartitions = HasPartitions.test(datasource, context);
 
     spanIdFields = list(ZIPKIN_SPANS.TRACE_ID_HIGH, ZIPKIN_SPANS.TRACE_ID);
     spanFields = list(ZIPKIN_SPANS.fields());
@@ -65,6 +66,15 @@ final class Schema {
     if (!hasIpv6) {
       annotationFields.remove(ZIPKIN_ANNOTATIONS.ENDPOINT_IPV6);
     }
+    spanWithAnnotationFields = new ArrayList<>(spanFields);
+    for (Field<?> field : annotationFields) {
+      if (field == ZIPKIN_ANNOTATIONS.TRACE_ID_HIGH
+          || field == ZIPKIN_ANNOTATIONS.TRACE_ID
+          || field == ZIPKIN_ANNOTATIONS.SPAN_ID) {
+        continue;
+      }
+      spanWithAnnotationFields.add(field);
+    }
   }
 
   Condition joinCondition(ZipkinAnnotations annotationTable) {
@@ -83,17 +93,16 @@ final class Schema {
     return new ArrayList<>(Arrays.asList(elements));
   }
 
-  Condition spanTraceIdCondition(SelectOffsetStep<? extends Record> traceIdQuery) {
+  /** Returns a condition matching spans of the trace IDs found by a trace ID query. */
+  Condition spanTraceIdCondition(Result<? extends Record> traceIds) {
     if (hasTraceIdHigh) {
-      Result<? extends Record> result = traceIdQuery.fetch();
-      List<Row2<Long, Long>> traceIds = new ArrayList<>(result.size());
-      for (Record r : result) {
-        traceIds.add(row(r.get(ZIPKIN_SPANS.TRACE_ID_HIGH), r.get(ZIPKIN_SPANS.TRACE_ID)));
+      List<Row2<Long, Long>> result = new ArrayList<>(traceIds.size());
+      for (Record r : traceIds) {
+        result.add(row(r.get(ZIPKIN_SPANS.TRACE_ID_HIGH), r.get(ZIPKIN_SPANS.TRACE_ID)));
       }
-      return row(ZIPKIN_SPANS.TRACE_ID_HIGH, ZIPKIN_SPANS.TRACE_ID).in(traceIds);
+      return row(ZIPKIN_SPANS.TRACE_ID_HIGH, ZIPKIN_SPANS.TRACE_ID).in(result);
     } else {
-      List<Long> traceIds = traceIdQuery.fetch(ZIPKIN_SPANS.TRACE_ID);
-      return ZIPKIN_SPANS.TRACE_ID.in(traceIds);
+      return ZIPKIN_SPANS.TRACE_ID.in(traceIds.getValues(ZIPKIN_SPANS.TRACE_ID));
     }
   }
 
@@ -102,29 +111,4 @@ final class Schema {
         ? row(ZIPKIN_SPANS.TRACE_ID_HIGH, ZIPKIN_SPANS.TRACE_ID).eq(traceIdHigh, traceIdLow)
         : ZIPKIN_SPANS.TRACE_ID.eq(traceIdLow);
   }
-
-  Condition annotationsTraceIdCondition(Set<Pair<Long>> traceIds) {
-    boolean hasTraceIdHigh = false;
-    for (Pair<Long> traceId : traceIds) {
-      if (traceId._1 != 0) {
-        hasTraceIdHigh = true;
-        break;
-      }
-    }
-    if (hasTraceIdHigh) {
-      Row2[] result = new Row2[traceIds.size()];
-      int i = 0;
-      for (Pair<Long> traceId128 : traceIds) {
-        result[i++] = row(traceId128._1, traceId128._2);
-      }
-      return row(ZIPKIN_ANNOTATIONS.TRACE_ID_HIGH, ZIPKIN_ANNOTATIONS.TRACE_ID).in(result);
-    } else {
-      Long[] result = new Long[traceIds.size()];
-      int i = 0;
-      for (Pair<Long> traceId128 : traceIds) {
-        result[i++] = traceId128._2;
-      }
-      return ZIPKIN_ANNOTATIONS.TRACE_ID.in(result);
-    }
-  }
 }
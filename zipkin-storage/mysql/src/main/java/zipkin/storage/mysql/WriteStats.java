@@ -0,0 +1,78 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.storage.mysql;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts statements and rows written, how long writes took, and writes rejected. This is shared by
+ * all span consumers of a {@link MySQLStorage}.
+ */
+public final class WriteStats {
+  final AtomicLong writes = new AtomicLong();
+  final AtomicLong statements = new AtomicLong();
+  final AtomicLong rows = new AtomicLong();
+  final AtomicLong writeNanos = new AtomicLong();
+  final AtomicLong rejected = new AtomicLong();
+
+  void written(int statements, int rows, long nanos) {
+    this.writes.incrementAndGet();
+    this.statements.addAndGet(statements);
+    this.rows.addAndGet(rows);
+    this.writeNanos.addAndGet(nanos);
+  }
+
+  /** Count of span consumer calls that wrote to the database */
+  public long writes() {
+    return writes.get();
+  }
+
+  public long statements() {
+    return statements.get();
+  }
+
+  public long rows() {
+    return rows.get();
+  }
+
+  public double rowsPerStatement() {
+    long statements = this.statements.get();
+    return statements == 0 ? 0.0 : (double) rows.get() / statements;
+  }
+
+  /** Count of span consumer calls dropped as the writer queue was full, or storage closed */
+  public long rejected() {
+    return rejected.get();
+  }
+
+  /** Average time to execute the statements of a span consumer call */
+  public double averageWriteMillis() {
+    long writes = this.writes.get();
+    return writes == 0 ? 0.0 : writeNanos.get() / 1e6 / writes;
+  }
+
+  void addMetrics(Map<String, Number> result) {
+    result.put("writes", writes.get());
+    result.put("write_statements", statements.get());
+    result.put("write_rows", rows.get());
+    result.put("write_millis", writeNanos.get() / 1000000);
+    result.put("rejected_writes", rejected.get());
+  }
+
+  @Override public String toString() {
+    return "WriteStats(statements=" + statements() + ",rowsPerStatement=" + rowsPerStatement()
+        + ",averageWriteMillis=" + averageWriteMillis() + ",rejected=" + rejected() + ")";
+  }
+}
@@ -0,0 +1,224 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.storage.mysql;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.sql.DataSource;
+import org.jooq.Field;
+import org.jooq.Record;
+import org.jooq.Result;
+import org.jooq.SQLDialect;
+import org.jooq.conf.Settings;
+import org.jooq.impl.DSL;
+import org.jooq.tools.jdbc.MockConnection;
+import org.jooq.tools.jdbc.MockResult;
+import org.junit.Before;
+import org.junit.Test;
+import zipkin.Annotation;
+import zipkin.Endpoint;
+import zipkin.Span;
+import zipkin.TestObjects;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.jooq.impl.DSL.field;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static zipkin.storage.mysql.internal.generated.tables.ZipkinSpans.ZIPKIN_SPANS;
+
+public class MySQLSpanConsumerTest {
+  DSLContexts context = new DSLContexts(new Settings().withRenderSchema(false), null);
+  DataSource dataSource = mock(DataSource.class);
+  List<String> statements = new ArrayList<>();
+  WriteStats stats = new WriteStats();
+  MySQLSpanConsumer consumer;
+
+  @Before
+  public void mockDatabase() throws SQLException {
+    // Schema checks fail, so the schema is assumed to have no optional columns
+    when(dataSource.getConnection()).thenThrow(new SQLException("no schema"));
+    Schema schema = new Schema(dataSource, context);
+
+    dataSource = mock(DataSource.class);
+    when(dataSource.getConnection()).thenReturn(new MockConnection(ctx -> {
+      statements.addAll(asList(ctx.batchSQL()));
+      return new MockResult[] {new MockResult(1, null)};
+    }));
+    consumer = new MySQLSpanConsumer(dataSource, context, schema, stats);
+  }
+
+  @Test
+  public void insertsMultipleRowsPerStatement() {
+    consumer.accept(TestObjects.TRACE);
+
+    assertThat(statements).hasSize(2);
+    assertThat(statements.get(0))
+        .startsWith("insert into `zipkin_spans`")
+        .endsWith("on duplicate key update `zipkin_spans`.`name` = values(`name`), "
+            + "`zipkin_spans`.`start_ts` = values(`start_ts`), "
+            + "`zipkin_spans`.`duration` = values(`duration`)");
+    assertThat(statements.get(1)).startsWith("insert ignore into `zipkin_annotations`");
+
+    assertThat(stats.statements()).isEqualTo(2);
+    assertThat(stats.rows()).isGreaterThan(TestObjects.TRACE.size());
+    assertThat(stats.writes()).isEqualTo(1);
+  }
+
+  @Test
+  public void groupsSpansByColumnsUpdated() {
+    consumer.accept(asList(
+        TestObjects.TRACE.get(0),
+        TestObjects.TRACE.get(1).toBuilder().duration(null).build()
+    ));
+
+    assertThat(statements).hasSize(3); // 2 kinds of span updates and annotations
+    assertThat(statements.get(1)).doesNotContain("`duration` = values(`duration`)");
+  }
+
+  @Test
+  public void rows_splitIntoChunks() {
+    MySQLSpanConsumer.Rows rows = new MySQLSpanConsumer.Rows(consumer.spanFields());
+    for (int i = 0; i <= MySQLSpanConsumer.MAX_ROWS_PER_STATEMENT; i++) {
+      rows.add(new ArrayList<>(), 0);
+    }
+    rows.add(new ArrayList<>(), MySQLSpanConsumer.MAX_BYTES_PER_STATEMENT);
+
+    assertThat(rows.chunks).extracting(List::size)
+        .containsExactly(MySQLSpanConsumer.MAX_ROWS_PER_STATEMENT, 1, 1);
+    assertThat(rows.count).isEqualTo(MySQLSpanConsumer.MAX_ROWS_PER_STATEMENT + 2);
+  }
+
+  Endpoint frontend = Endpoint.create("frontend", 127 << 24 | 1);
+  Endpoint backend = Endpoint.create("backend", 127 << 24 | 2);
+  long clientTs = TestObjects.TODAY * 1000L, serverTs = clientTs + 50L;
+  Span clientHalf = Span.builder().traceId(1L).id(2L).name("get")
+      .timestamp(clientTs).duration(100L)
+      .addAnnotation(Annotation.create(clientTs, "cs", frontend))
+      .addAnnotation(Annotation.create(clientTs + 100L, "cr", frontend)).build();
+  Span serverHalf = Span.builder().traceId(1L).id(2L).name("get")
+      .addAnnotation(Annotation.create(serverTs, "sr", backend))
+      .addAnnotation(Annotation.create(serverTs + 20L, "ss", backend)).build();
+
+  /** start_ts of rows already stored in the partitioned schema, for the span being written */
+  List<Long> storedStartTs = new ArrayList<>();
+
+  @Test
+  public void partitioned_halvesInOneCallShareATimestamp() throws SQLException {
+    partitionedConsumer().accept(asList(serverHalf, clientHalf));
+
+    List<String> spanInserts = spanInserts();
+    assertThat(spanInserts).hasSize(2); // grouped by columns updated
+    for (String insert : spanInserts) {
+      assertThat(insert).contains(", " + clientTs + ", ").doesNotContain(", " + serverTs + ", ");
+    }
+  }
+
+  /** The unique key includes start_ts, so the server half must be written with the client's. */
+  @Test
+  public void partitioned_halfAdoptsTimestampOfStoredRow() throws SQLException {
+    storedStartTs.add(clientTs);
+
+    partitionedConsumer().accept(asList(serverHalf));
+
+    assertThat(statements).filteredOn(s -> s.startsWith("update")).isEmpty();
+    assertThat(spanInserts()).hasSize(1).first().asString()
+        .contains(", " + clientTs + ", ").doesNotContain(", " + serverTs + ", ");
+  }
+
+  @Test
+  public void partitioned_authoritativeTimestampMovesStoredRow() throws SQLException {
+    storedStartTs.add(serverTs);
+
+    partitionedConsumer().accept(asList(clientHalf));
+
+    assertThat(statements).filteredOn(s -> s.startsWith("update")).containsExactly(
+        "update `zipkin_spans` set `zipkin_spans`.`start_ts` = " + clientTs
+            + " where (`zipkin_spans`.`trace_id_high` = 0 and `zipkin_spans`.`trace_id` = 1"
+            + " and `zipkin_spans`.`id` = 2 and `zipkin_spans`.`start_ts` = " + serverTs + ")");
+    assertThat(spanInserts()).hasSize(1).first().asString().contains(", " + clientTs + ", ");
+  }
+
+  @Test
+  public void partitioned_timestampMovesStoredRowWithNone() throws SQLException {
+    storedStartTs.add(null);
+
+    partitionedConsumer().accept(asList(serverHalf));
+
+    assertThat(statements).filteredOn(s -> s.startsWith("update")).hasSize(1).first().asString()
+        .endsWith("`zipkin_spans`.`start_ts` is null)");
+  }
+
+  @Test
+  public void partitioned_noTimestampAdoptsStoredOne() throws SQLException {
+    storedStartTs.add(clientTs);
+
+    partitionedConsumer().accept(asList(Span.builder().traceId(1L).id(2L).name("get").build()));
+
+    assertThat(spanInserts()).hasSize(1).first().asString().contains(", " + clientTs + ", ");
+  }
+
+  List<String> spanInserts() {
+    List<String> result = new ArrayList<>();
+    for (String statement : statements) {
+      if (statement.startsWith("insert into `zipkin_spans`")) result.add(statement);
+    }
+    return result;
+  }
+
+  /** Answers schema checks as for mysql-partitioned.sql, and reads of stored rows */
+  MySQLSpanConsumer partitionedConsumer() throws SQLException {
+    DataSource dataSource = mock(DataSource.class);
+    when(dataSource.getConnection()).thenAnswer(i -> new MockConnection(ctx -> {
+      String sql = ctx.batchSQL()[0];
+      if (!sql.startsWith("select")) {
+        statements.addAll(asList(ctx.batchSQL()));
+        return new MockResult[] {new MockResult(1, null)};
+      } else if (sql.contains("information_schema.partitions")) {
+        return new MockResult[] {new MockResult(1, intResult(1))};
+      } else if (sql.contains("count(*)")) { // no pre-aggregated dependencies
+        return new MockResult[] {new MockResult(1, intResult(0))};
+      } else if (sql.contains("`zipkin_spans`.`start_ts` from `zipkin_spans` where")) {
+        Field<?>[] fields = {ZIPKIN_SPANS.TRACE_ID_HIGH, ZIPKIN_SPANS.TRACE_ID, ZIPKIN_SPANS.ID,
+            ZIPKIN_SPANS.START_TS};
+        Result<Record> result = DSL.using(SQLDialect.MYSQL).newResult(fields);
+        for (Long startTs : storedStartTs) {
+          Record record = DSL.using(SQLDialect.MYSQL).newRecord(fields);
+          record.set(ZIPKIN_SPANS.TRACE_ID_HIGH, 0L);
+          record.set(ZIPKIN_SPANS.TRACE_ID, 1L);
+          record.set(ZIPKIN_SPANS.ID, 2L);
+          record.set(ZIPKIN_SPANS.START_TS, startTs);
+          result.add(record);
+        }
+        return new MockResult[] {new MockResult(result.size(), result)};
+      } else if (sql.startsWith("select `zipkin_spans`.`trace_id_high`")) {
+        return new MockResult[] {new MockResult(0, null)}; // the column exists
+      }
+      throw new SQLException("Unknown column: " + sql, "42S22", 1054); // ex. endpoint_ipv6
+    }));
+    Schema schema = new Schema(dataSource, context);
+    assertThat(schema.hasPartitions).isTrue();
+    return new MySQLSpanConsumer(dataSource, context, schema, stats);
+  }
+
+  static Result<Record> intResult(int value) {
+    Field<Integer> field = field("value", Integer.class);
+    Result<Record> result = DSL.using(SQLDialect.MYSQL).newResult(new Field<?>[] {field});
+    Record record = DSL.using(SQLDialect.MYSQL).newRecord(new Field<?>[] {field});
+    record.set(field, value);
+    result.add(record);
+    return result;
+  }
+}
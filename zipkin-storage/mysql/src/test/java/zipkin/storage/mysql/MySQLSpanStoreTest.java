@@ -0,0 +1,131 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.storage.mysql;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.sql.DataSource;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.Record;
+import org.jooq.Result;
+import org.jooq.SQLDialect;
+import org.jooq.conf.Settings;
+import org.jooq.impl.DSL;
+import org.jooq.tools.jdbc.MockConnection;
+import org.jooq.tools.jdbc.MockResult;
+import org.junit.Before;
+import org.junit.Test;
+import zipkin.Annotation;
+import zipkin.Span;
+import zipkin.storage.QueryRequest;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static zipkin.Constants.SERVER_RECV;
+import static zipkin.Constants.SERVER_SEND;
+import static zipkin.storage.mysql.internal.generated.tables.ZipkinAnnotations.ZIPKIN_ANNOTATIONS;
+import static zipkin.storage.mysql.internal.generated.tables.ZipkinSpans.ZIPKIN_SPANS;
+
+public class MySQLSpanStoreTest {
+  DSLContexts context = new DSLContexts(new Settings().withRenderSchema(false), null);
+  DSLContext create = DSL.using(SQLDialect.MYSQL);
+  DataSource dataSource = mock(DataSource.class);
+  Schema schema;
+  List<String> queries = new ArrayList<>();
+  List<Result<Record>> results = new ArrayList<>();
+  MySQLSpanStore store;
+
+  @Before
+  public void mockDatabase() throws SQLException {
+    // Schema checks fail, so the schema is assumed to have no optional columns
+    when(dataSource.getConnection()).thenThrow(new SQLException("no schema"));
+    schema = new Schema(dataSource, context);
+
+    dataSource = mock(DataSource.class);
+    when(dataSource.getConnection()).thenAnswer(i -> new MockConnection(ctx -> {
+      queries.add(ctx.sql());
+      Result<Record> result = results.remove(0);
+      return new MockResult[] {new MockResult(result.size(), result)};
+    }));
+    store = new MySQLSpanStore(dataSource, context, schema, true);
+  }
+
+  @Test
+  public void getTraces_findsTraceIdsWithoutJoiningAnnotations() {
+    Result<Record> traceIds = traceIdResult();
+    results.add(traceIds); // no matches
+
+    assertThat(store.getTraces(QueryRequest.builder().spanName("get").build())).isEmpty();
+
+    assertThat(queries).hasSize(1); // no span query when there are no trace IDs
+    assertThat(queries.get(0)).doesNotContain("join");
+  }
+
+  @Test
+  public void getTraces_assemblesSpansFromOneOrderedQuery() {
+    Result<Record> traceIds = traceIdResult();
+    traceIds.add(record(traceIds, 1L, 100L));
+    results.add(traceIds);
+
+    Result<Record> rows = create.newResult(schema.spanWithAnnotationFields.toArray(new Field<?>[0]));
+    rows.add(spanRow(rows, 1L, null, 100L, SERVER_RECV, 100L));
+    rows.add(spanRow(rows, 1L, null, 100L, SERVER_SEND, 200L));
+    rows.add(spanRow(rows, 2L, 1L, null, null, null)); // no annotations
+    results.add(rows);
+
+    List<List<Span>> traces = store.getTraces(QueryRequest.builder().serviceName("app").build());
+
+    assertThat(traces).hasSize(1);
+    assertThat(traces.get(0)).extracting(s -> s.id).containsExactly(1L, 2L);
+    assertThat(traces.get(0).get(0).annotations).extracting(a -> a.value)
+        .containsExactly(SERVER_RECV, SERVER_SEND);
+    assertThat(traces.get(0).get(1).annotations).isEmpty();
+    assertThat(queries.get(1))
+        .contains("left outer join `zipkin_annotations`")
+        .endsWith("order by `zipkin_spans`.`trace_id` asc, `zipkin_spans`.`id` asc, "
+            + "`zipkin_annotations`.`a_timestamp` asc, `zipkin_annotations`.`a_key` asc");
+  }
+
+  Result<Record> traceIdResult() {
+    return create.newResult(new Field<?>[] {ZIPKIN_SPANS.TRACE_ID, ZIPKIN_SPANS.START_TS.max()});
+  }
+
+  static Record record(Result<Record> result, Object... values) {
+    Record record = DSL.using(SQLDialect.MYSQL).newRecord(result.fields());
+    record.fromArray(values);
+    return record;
+  }
+
+  Record spanRow(Result<Record> result, long id, Long parentId, Long timestamp, String annotation,
+      Long annotationTimestamp) {
+    Record record = DSL.using(SQLDialect.MYSQL).newRecord(result.fields());
+    record.set(ZIPKIN_SPANS.TRACE_ID, 1L);
+    record.set(ZIPKIN_SPANS.ID, id);
+    record.set(ZIPKIN_SPANS.PARENT_ID, parentId);
+    record.set(ZIPKIN_SPANS.NAME, "get");
+    record.set(ZIPKIN_SPANS.START_TS, timestamp);
+    if (annotation != null) {
+      record.set(ZIPKIN_ANNOTATIONS.A_KEY, annotation);
+      record.set(ZIPKIN_ANNOTATIONS.A_TYPE, -1);
+      record.set(ZIPKIN_ANNOTATIONS.A_TIMESTAMP, annotationTimestamp);
+      record.set(ZIPKIN_ANNOTATIONS.ENDPOINT_SERVICE_NAME, "app");
+      record.set(ZIPKIN_ANNOTATIONS.ENDPOINT_IPV4, 127 << 24 | 1);
+    }
+    return record;
+  }
+}
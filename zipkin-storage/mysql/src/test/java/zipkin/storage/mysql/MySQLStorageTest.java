@@ -14,8 +14,13 @@
 package zipkin.storage.mysql;
 
 import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import javax.sql.DataSource;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.ExpectedException;
 import zipkin.Component.CheckResult;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -23,6 +28,8 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 public class MySQLStorageTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
 
   @Test
   public void check_failsInsteadOfThrowing() throws SQLException {
@@ -36,6 +43,63 @@ public class MySQLStorageTest {
         .isInstanceOf(SQLException.class);
   }
 
+  @Test
+  public void metrics_includeWriteStats() {
+    MySQLStorage storage = storage(mock(DataSource.class));
+    storage.writeStats().written(2, 10, 1000000L);
+
+    assertThat(storage.metrics())
+        .containsEntry("writes", 1L)
+        .containsEntry("write_statements", 2L)
+        .containsEntry("write_rows", 10L)
+        .containsEntry("write_millis", 1L)
+        .containsEntry("rejected_writes", 0L)
+        .doesNotContainKey("queued_writes"); // as there are no writer threads
+  }
+
+  @Test
+  public void writer_countsRejectedWrites() throws InterruptedException {
+    WriteStats stats = new WriteStats();
+    ThreadPoolExecutor writer = MySQLStorage.newWriter(1, 1, stats);
+    CountDownLatch blocked = new CountDownLatch(1);
+    try {
+      writer.execute(() -> {
+        try {
+          blocked.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+      writer.execute(() -> {
+      }); // queued
+
+      thrown.expect(RejectedExecutionException.class);
+      thrown.expectMessage("writer queue is full");
+      writer.execute(() -> {
+      });
+    } finally {
+      assertThat(stats.rejected()).isEqualTo(1L);
+      blocked.countDown();
+      writer.shutdown();
+    }
+  }
+
+  @Test
+  public void writer_countsWritesRejectedAfterClose() {
+    WriteStats stats = new WriteStats();
+    ThreadPoolExecutor writer = MySQLStorage.newWriter(1, 1, stats);
+    writer.shutdown();
+
+    thrown.expect(RejectedExecutionException.class);
+    thrown.expectMessage("closed");
+    try {
+      writer.execute(() -> {
+      });
+    } finally {
+      assertThat(stats.rejected()).isEqualTo(1L);
+    }
+  }
+
   static MySQLStorage storage(DataSource dataSource) {
     return MySQLStorage.builder()
         .strictTraceId(false)
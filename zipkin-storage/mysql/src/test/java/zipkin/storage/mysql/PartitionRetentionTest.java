@@ -0,0 +1,104 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.storage.mysql;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.Record;
+import org.jooq.Result;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+import org.jooq.tools.jdbc.MockConnection;
+import org.jooq.tools.jdbc.MockResult;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.jooq.impl.DSL.field;
+import static zipkin.storage.mysql.PartitionRetention.DAY_MILLIS;
+
+public class PartitionRetentionTest {
+  static final long TODAY = PartitionRetention.parseDay("p20170501");
+
+  PartitionRetention retention = new PartitionRetention(null, null, null, 7);
+  List<String> statements = new ArrayList<>();
+  List<String> partitions = new ArrayList<>();
+  DSLContext dsl = DSL.using(new MockConnection(ctx -> {
+    statements.add(ctx.sql());
+    if (!ctx.sql().startsWith("select")) return new MockResult[] {new MockResult(0, null)};
+    Field<String> name = field("partition_name", String.class);
+    Result<Record> result = DSL.using(SQLDialect.MYSQL).newResult(new Field<?>[] {name});
+    for (String partition : partitions) {
+      Record record = DSL.using(SQLDialect.MYSQL).newRecord(name);
+      record.set(name, partition);
+      result.add(record);
+    }
+    return new MockResult[] {new MockResult(result.size(), result)};
+  }), SQLDialect.MYSQL);
+
+  @Test
+  public void parseDay() {
+    assertThat(PartitionRetention.partitionName(TODAY)).isEqualTo("p20170501");
+    assertThat(PartitionRetention.parseDay("p0")).isEqualTo(-1L);
+    assertThat(PartitionRetention.parseDay("pmax")).isEqualTo(-1L);
+    assertThat(PartitionRetention.parseDay("p20171301")).isEqualTo(-1L);
+    assertThat(PartitionRetention.parseDay(null)).isEqualTo(-1L);
+  }
+
+  @Test
+  public void splitsUpcomingDaysFromCatchAll() {
+    partitions.add("p0");
+    partitions.add("pmax");
+
+    retention.maintain(dsl, "zipkin_spans", TODAY, TODAY - 7 * DAY_MILLIS);
+
+    assertThat(statements).hasSize(2);
+    assertThat(statements.get(1)).isEqualTo("ALTER TABLE zipkin_spans REORGANIZE PARTITION pmax INTO ("
+        + "PARTITION p20170501 VALUES LESS THAN (1493683200000000), "
+        + "PARTITION p20170502 VALUES LESS THAN (1493769600000000), "
+        + "PARTITION p20170503 VALUES LESS THAN (1493856000000000), "
+        + "PARTITION pmax VALUES LESS THAN MAXVALUE)");
+  }
+
+  @Test
+  public void onlyAddsDaysAfterExistingPartitions() {
+    partitions.add("p0");
+    partitions.add("p20170501");
+    partitions.add("p20170502");
+    partitions.add("pmax");
+
+    retention.maintain(dsl, "zipkin_spans", TODAY, TODAY - 7 * DAY_MILLIS);
+
+    assertThat(statements).hasSize(2);
+    assertThat(statements.get(1)).isEqualTo("ALTER TABLE zipkin_spans REORGANIZE PARTITION pmax INTO ("
+        + "PARTITION p20170503 VALUES LESS THAN (1493856000000000), "
+        + "PARTITION pmax VALUES LESS THAN MAXVALUE)");
+  }
+
+  @Test
+  public void dropsExpiredPartitions() {
+    partitions.add("p0");
+    partitions.add("p20170423");
+    partitions.add("p20170424");
+    partitions.add("p20170425");
+    partitions.add("p20170503");
+    partitions.add("pmax");
+
+    retention.maintain(dsl, "zipkin_annotations", TODAY, TODAY - 7 * DAY_MILLIS);
+
+    assertThat(statements).containsExactly(statements.get(0),
+        "ALTER TABLE zipkin_annotations DROP PARTITION p20170423");
+  }
+}
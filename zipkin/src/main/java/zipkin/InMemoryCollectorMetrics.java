@@ -16,6 +16,8 @@ package zipkin;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import zipkin.collector.CollectorMetrics;
+import zipkin.collector.MessageLagMetrics;
+import zipkin.collector.QueuedSpansMetrics;
 
 import static zipkin.internal.Util.checkNotNull;
 
@@ -24,7 +26,8 @@ import static zipkin.internal.Util.checkNotNull;
  * "zipkin.collector". Will be removed in Zipkin 2.
  */
 @Deprecated
-public final class InMemoryCollectorMetrics implements CollectorMetrics {
+public final class InMemoryCollectorMetrics implements CollectorMetrics, MessageLagMetrics,
+    QueuedSpansMetrics {
 
   private final ConcurrentHashMap<String, AtomicInteger> metrics;
   private final String messages;
@@ -32,6 +35,8 @@ public final class InMemoryCollectorMetrics implements CollectorMetrics {
   private final String bytes;
   private final String spans;
   private final String spansDropped;
+  private final String queuedSpans;
+  private final String messageLag;
 
   public InMemoryCollectorMetrics() {
     this(new ConcurrentHashMap<>(), null);
@@ -44,6 +49,8 @@ public final class InMemoryCollectorMetrics implements CollectorMetrics {
     this.bytes = scope("bytes", transport);
     this.spans = scope("spans", transport);
     this.spansDropped = scope("spansDropped", transport);
+    this.queuedSpans = scope("queuedSpans", transport);
+    this.messageLag = scope("messageLag", transport);
   }
 
   @Override public InMemoryCollectorMetrics forTransport(String transportType) {
@@ -91,6 +98,26 @@ public final class InMemoryCollectorMetrics implements CollectorMetrics {
     return get(spansDropped);
   }
 
+  @Override public void updateQueuedSpans(int quantity) {
+    set(queuedSpans, quantity);
+  }
+
+  public int queuedSpans() {
+    return get(queuedSpans);
+  }
+
+  @Override public void updateMessageLag(String partition, int quantity) {
+    set(messageLag + "." + partition, quantity);
+  }
+
+  @Override public void removeMessageLag(String partition) {
+    metrics.remove(messageLag + "." + partition);
+  }
+
+  public int messageLag(String partition) {
+    return get(messageLag + "." + partition);
+  }
+
   public void clear() {
     metrics.clear();
   }
@@ -100,6 +127,15 @@ public final class InMemoryCollectorMetrics implements CollectorMetrics {
     return atomic == null ? 0 : atomic.get();
   }
 
+  private void set(String key, int quantity) {
+    AtomicInteger metric = metrics.get(key);
+    if (metric == null) {
+      metric = metrics.putIfAbsent(key, new AtomicInteger(quantity));
+      if (metric == null) return; // won race creating the entry
+    }
+    metric.set(quantity);
+  }
+
   private void increment(String key, int quantity) {
     if (quantity == 0) return;
     while (true) {
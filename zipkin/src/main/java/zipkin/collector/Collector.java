@@ -13,17 +13,27 @@
  */
 package zipkin.collector;
 
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 import zipkin.Codec;
 import zipkin.Span;
+import zipkin.internal.EncodedSpanList;
+import zipkin.internal.Nullable;
+import zipkin.internal.StreamingSpanDecoder;
 import zipkin.storage.Callback;
 import zipkin.storage.StorageComponent;
 
 import static java.lang.String.format;
 import static java.util.logging.Level.WARNING;
+import static zipkin.internal.Util.checkArgument;
 import static zipkin.internal.Util.checkNotNull;
 
 /**
@@ -33,8 +43,15 @@ import static zipkin.internal.Util.checkNotNull;
  * <p>Callbacks passed do not propagate to the storage layer. They only return success or failures
  * before storage is attempted. This ensures that calling threads are disconnected from storage
  * threads.
+ *
+ * <p>By default, each message results in its own storage request. When {@link
+ * Builder#queuedMaxSpans(int)} is set, spans are instead queued and merged into larger storage
+ * requests, and the amount of spans in flight to storage is bounded.
+ *
+ * <p>Transports {@link #close() close} the collector when they are closed, which stops any threads
+ * it started.
  */
-public final class Collector {
+public final class Collector implements Closeable {
 
   /** Needed to scope this to the correct logging category */
   public static Builder builder(Class<?> loggingClass) {
@@ -46,6 +63,15 @@ public final class Collector {
     StorageComponent storage = null;
     CollectorSampler sampler = CollectorSampler.ALWAYS_SAMPLE;
     CollectorMetrics metrics = CollectorMetrics.NOOP_METRICS;
+    int queuedMaxSpans = 0;
+    int messageMaxSpans = 1000;
+    int messageMaxBytes = 5 * 1024 * 1024;
+    long messageTimeoutNanos = TimeUnit.SECONDS.toNanos(1);
+    long queueFullTimeoutNanos = 0L;
+    long tailSamplingWindowNanos = 0L;
+    int tailSamplingMaxSpans = 100000;
+    long tailSamplingSlowTraceNanos = Long.MAX_VALUE;
+    float tailSamplingRate = 1.0f;
 
     Builder(Logger logger) {
       this.logger = logger;
@@ -69,6 +95,123 @@ public final class Collector {
       return this;
     }
 
+    /** Applies settings shared by all transports, such as those bound to server properties. */
+    public Builder settings(CollectorSettings settings) {
+      checkNotNull(settings, "settings");
+      this.queuedMaxSpans = settings.queuedMaxSpans;
+      this.messageMaxSpans = settings.messageMaxSpans;
+      this.messageMaxBytes = settings.messageMaxBytes;
+      this.messageTimeoutNanos = settings.messageTimeoutNanos;
+      this.queueFullTimeoutNanos = settings.queueFullTimeoutNanos;
+      this.tailSamplingWindowNanos = settings.tailSamplingWindowNanos;
+      this.tailSamplingMaxSpans = settings.tailSamplingMaxSpans;
+      this.tailSamplingSlowTraceNanos = settings.tailSamplingSlowTraceNanos;
+      this.tailSamplingRate = settings.tailSamplingRate;
+      return this;
+    }
+
+    /**
+     * Maximum count of spans queued or in flight to storage. When positive, spans from many
+     * messages are merged into fewer storage requests. Defaults to zero, which stores each message
+     * as it is received.
+     */
+    public Builder queuedMaxSpans(int queuedMaxSpans) {
+      checkArgument(queuedMaxSpans >= 0, "queuedMaxSpans < 0: %s", queuedMaxSpans);
+      this.queuedMaxSpans = queuedMaxSpans;
+      return this;
+    }
+
+    /** When queueing, the maximum count of spans in a storage request. Defaults to 1000. */
+    public Builder messageMaxSpans(int messageMaxSpans) {
+      checkArgument(messageMaxSpans > 0, "messageMaxSpans <= 0: %s", messageMaxSpans);
+      this.messageMaxSpans = messageMaxSpans;
+      return this;
+    }
+
+    /**
+     * When queueing, the maximum size of a storage request, measured in bytes spans were received
+     * as, regardless of codec. Spans not retained in their received form are measured as thrift.
+     * Defaults to 5MiB.
+     */
+    public Builder messageMaxBytes(int messageMaxBytes) {
+      checkArgument(messageMaxBytes > 0, "messageMaxBytes <= 0: %s", messageMaxBytes);
+      this.messageMaxBytes = messageMaxBytes;
+      return this;
+    }
+
+    /**
+     * When queueing, the longest time a span waits for others to fill a storage request. Defaults
+     * to 1 second.
+     */
+    public Builder messageTimeout(long timeout, TimeUnit unit) {
+      checkArgument(timeout >= 0, "timeout < 0: %s", timeout);
+      this.messageTimeoutNanos = checkNotNull(unit, "unit").toNanos(timeout);
+      return this;
+    }
+
+    /**
+     * When queueing, how long a transport thread blocks waiting for room in the queue. This
+     * applies backpressure to the transport. Once elapsed, the message is dropped. Defaults to
+     * zero, which drops messages as soon as the queue is full.
+     */
+    public Builder queueFullTimeout(long timeout, TimeUnit unit) {
+      checkArgument(timeout >= 0, "timeout < 0: %s", timeout);
+      this.queueFullTimeoutNanos = checkNotNull(unit, "unit").toNanos(timeout);
+      return this;
+    }
+
+    /**
+     * When positive, spans are buffered by trace ID for this long before deciding whether to store
+     * their trace. Traces with an error, or {@link #tailSamplingSlowTrace(long, TimeUnit) slow}
+     * ones, are always stored. Others are stored at the {@link #tailSamplingRate(float) tail
+     * sampling rate}. This applies after the {@link #sampler(CollectorSampler) sampler}. Defaults
+     * to zero, which stores spans without buffering them.
+     *
+     * <p>Spans arriving after their trace's window are decided again, with only the spans that
+     * arrived since. Choose a window longer than the time it takes a trace to be reported.
+     *
+     * <p>Collectors in the same process with the same storage and tail sampling settings share
+     * one buffer and thread, so a trace received over several transports is decided once.
+     */
+    public Builder tailSamplingWindow(long window, TimeUnit unit) {
+      checkArgument(window >= 0, "window < 0: %s", window);
+      this.tailSamplingWindowNanos = checkNotNull(unit, "unit").toNanos(window);
+      return this;
+    }
+
+    /**
+     * When tail sampling, the maximum count of spans buffered. Once reached, messages are dropped.
+     * Defaults to 100000.
+     */
+    public Builder tailSamplingMaxSpans(int tailSamplingMaxSpans) {
+      checkArgument(tailSamplingMaxSpans > 0, "tailSamplingMaxSpans <= 0: %s",
+          tailSamplingMaxSpans);
+      this.tailSamplingMaxSpans = tailSamplingMaxSpans;
+      return this;
+    }
+
+    /**
+     * When tail sampling, traces lasting longer than this are always stored. Defaults to no
+     * threshold.
+     */
+    public Builder tailSamplingSlowTrace(long duration, TimeUnit unit) {
+      checkArgument(duration >= 0, "duration < 0: %s", duration);
+      this.tailSamplingSlowTraceNanos = checkNotNull(unit, "unit").toNanos(duration);
+      return this;
+    }
+
+    /**
+     * When tail sampling, the percentage of traces stored which have neither an error nor are slow.
+     * Like {@link CollectorSampler#create(float)}, the decision is consistent per trace ID.
+     * Defaults to 1.0, which stores all traces.
+     */
+    public Builder tailSamplingRate(float tailSamplingRate) {
+      checkArgument(tailSamplingRate >= 0 && tailSamplingRate <= 1,
+          "tailSamplingRate should be between 0 and 1: was %s", tailSamplingRate);
+      this.tailSamplingRate = tailSamplingRate;
+      return this;
+    }
+
     public Collector build() {
       return new Collector(this);
     }
@@ -78,19 +221,38 @@ public final class Collector {
   final StorageComponent storage;
   final CollectorSampler sampler;
   final CollectorMetrics metrics;
+  @Nullable final QueuedSpanConsumer queue;
+  @Nullable final Thread flusher;
+  volatile boolean closed;
+  @Nullable final TailSamplingSpanConsumer tailSampler;
 
   Collector(Builder builder) {
     this.logger = checkNotNull(builder.logger, "logger");
     this.storage = checkNotNull(builder.storage, "storage");
     this.sampler = builder.sampler == null ? CollectorSampler.ALWAYS_SAMPLE : builder.sampler;
     this.metrics = builder.metrics == null ? CollectorMetrics.NOOP_METRICS : builder.metrics;
+    if (builder.queuedMaxSpans > 0) {
+      this.queue = new QueuedSpanConsumer(this, builder);
+      this.flusher = new Thread(queue, "zipkin-collector-queue");
+      flusher.setDaemon(true);
+      flusher.start();
+    } else {
+      this.queue = null;
+      this.flusher = null;
+    }
+    // registered last, as the stage's thread can store spans through this collector
+    this.tailSampler = builder.tailSamplingWindowNanos > 0
+        ? TailSamplingSpanConsumer.register(this, builder)
+        : null;
   }
 
   public void acceptSpans(byte[] serializedSpans, Codec codec, Callback<Void> callback) {
     metrics.incrementBytes(serializedSpans.length);
     List<Span> spans;
     try {
-      spans = codec.readSpans(serializedSpans);
+      spans = codec == Codec.THRIFT
+          ? Codec.THRIFT.readEncodedSpans(serializedSpans)
+          : codec.readSpans(serializedSpans);
     } catch (RuntimeException e) {
       callback.onError(errorReading(e));
       return;
@@ -99,14 +261,43 @@ public final class Collector {
   }
 
   public void acceptSpans(List<byte[]> serializedSpans, Codec codec, Callback<Void> callback) {
-    List<Span> spans = new ArrayList<>(serializedSpans.size());
+    List<Span> spans;
     try {
       int bytesRead = 0;
       for (byte[] serializedSpan : serializedSpans) {
         bytesRead += serializedSpan.length;
-        spans.add(codec.readSpan(serializedSpan));
       }
       metrics.incrementBytes(bytesRead);
+      if (codec == Codec.THRIFT) {
+        spans = Codec.THRIFT.readEncodedSpans(serializedSpans);
+      } else {
+        spans = new ArrayList<>(serializedSpans.size());
+        for (byte[] serializedSpan : serializedSpans) {
+          spans.add(codec.readSpan(serializedSpan));
+        }
+      }
+    } catch (RuntimeException e) {
+      callback.onError(errorReading(e));
+      return;
+    }
+    accept(spans, callback);
+  }
+
+  /**
+   * Like {@link #acceptSpans(List, Codec, Callback)}, except the TBinaryProtocol spans are
+   * concatenated in one buffer. This avoids allocating an array per span when the caller has to
+   * copy or decode its input anyway, such as base64 messages.
+   *
+   * @param spanEnds the offset after each span, in ascending order
+   * @param spanCount count of spans in the buffer, which may be less than spanEnds.length
+   * @see zipkin.internal.ThriftCodec#readEncodedSpans(byte[], int[], int)
+   */
+  public void acceptSpans(byte[] serializedSpans, int[] spanEnds, int spanCount,
+      Callback<Void> callback) {
+    List<Span> spans;
+    try {
+      metrics.incrementBytes(spanCount == 0 ? 0 : spanEnds[spanCount - 1]);
+      spans = Codec.THRIFT.readEncodedSpans(serializedSpans, spanEnds, spanCount);
     } catch (RuntimeException e) {
       callback.onError(errorReading(e));
       return;
@@ -114,36 +305,187 @@ public final class Collector {
     accept(spans, callback);
   }
 
+  /**
+   * Like {@link #acceptSpans(byte[], Codec, Callback)}, except spans are decoded and stored in
+   * chunks. This allows large messages to be processed without buffering them in memory.
+   *
+   * <p>The stream is not closed. If the message is malformed, chunks decoded before the problem
+   * was found will have already been stored.
+   *
+   * @param chunkSize maximum count of spans to decode before scheduling them for storage
+   */
+  public void acceptSpans(InputStream serializedSpans, StreamingSpanDecoder decoder, int chunkSize,
+      final Callback<Void> callback) {
+    CountingInputStream counting = new CountingInputStream(serializedSpans);
+    final RuntimeException[] storeError = new RuntimeException[1];
+    try {
+      decoder.readSpans(counting, chunkSize, new StreamingSpanDecoder.ChunkConsumer() {
+        @Override public boolean accept(List<Span> chunk) {
+          storeError[0] = store(chunk);
+          return storeError[0] == null;
+        }
+      });
+    } catch (IOException | RuntimeException e) {
+      metrics.incrementBytes(counting.count);
+      callback.onError(errorReading(e));
+      return;
+    }
+    metrics.incrementBytes(counting.count);
+    if (storeError[0] != null) {
+      callback.onError(storeError[0]);
+    } else {
+      callback.onSuccess(null);
+    }
+  }
+
   public void accept(List<Span> spans, Callback<Void> callback) {
+    RuntimeException error = store(spans);
+    if (error != null) {
+      callback.onError(error);
+    } else {
+      callback.onSuccess(null);
+    }
+  }
+
+  /** Same as {@code storeSpans(spans, false, callback)} */
+  public void storeSpans(List<Span> spans, Callback<Void> callback) {
+    storeSpans(spans, false, callback);
+  }
+
+  /**
+   * Like {@link #accept(List, Callback)}, except the callback isn't completed until storage is. Use
+   * this to acknowledge messages only after their spans are stored, ex committing Kafka offsets.
+   *
+   * <p>Spans that fail to store aren't counted as dropped, as the caller decides whether to retry
+   * them. Callers that give up should {@link CollectorMetrics#incrementSpansDropped(int) count}
+   * them.
+   *
+   * <p>When {@link Builder#queuedMaxSpans(int) queueing} or {@link
+   * Builder#tailSamplingWindow(long, TimeUnit) tail sampling} is enabled, this is the same as
+   * {@link #accept(List, Callback)}: the callback completes once spans are queued or buffered, as
+   * storage requests merge messages.
+   *
+   * @param redelivered true when these spans were passed to this method before, and failed. Metrics
+   * aren't updated again in this case.
+   */
+  public void storeSpans(List<Span> spans, boolean redelivered, final Callback<Void> callback) {
+    if (queue != null || tailSampler != null) {
+      accept(spans, callback);
+      return;
+    }
     if (spans.isEmpty()) {
       callback.onSuccess(null);
       return;
     }
-    metrics.incrementSpans(spans.size());
+    if (!redelivered) metrics.incrementSpans(spans.size());
 
-    List<Span> sampled = sample(spans);
+    final List<Span> sampled = sample(spans, !redelivered);
     if (sampled.isEmpty()) {
       callback.onSuccess(null);
       return;
     }
 
+    try {
+      storage.asyncSpanConsumer().accept(sampled, new Callback<Void>() {
+        @Override public void onSuccess(Void value) {
+          callback.onSuccess(value);
+        }
+
+        @Override public void onError(Throwable t) {
+          callback.onError(errorRetryingSpans(sampled, t));
+        }
+      });
+    } catch (RuntimeException e) {
+      callback.onError(errorRetryingSpans(sampled, e));
+    }
+  }
+
+  /** Like {@link #errorStoringSpans}, except the spans aren't counted as dropped. */
+  RuntimeException errorRetryingSpans(List<Span> spans, Throwable e) {
+    return doError(appendSpanIds(spans, new StringBuilder("Cannot store spans ")).toString(), e);
+  }
+
+  /** Returns an exception if the spans could not be scheduled for storage. */
+  @Nullable RuntimeException store(List<Span> spans) {
+    if (spans.isEmpty()) return null;
+    metrics.incrementSpans(spans.size());
+
+    List<Span> sampled = sample(spans);
+    if (sampled.isEmpty()) return null;
+
+    if (closed) return errorStoringSpans(sampled, new IllegalStateException("closed"));
+    if (tailSampler != null) {
+      if (tailSampler.offer(this, sampled)) return null;
+      return errorStoringSpans(sampled, new IllegalStateException("tail sampling buffer is full"));
+    }
+    return storeSampled(sampled);
+  }
+
+  /**
+   * Returns an exception if the sampled spans could not be scheduled for storage. This works while
+   * closing, so that traces buffered for tail sampling can be stored.
+   */
+  @Nullable RuntimeException storeSampled(List<Span> sampled) {
+    if (queue != null) {
+      if (queue.offer(sampled, sizeInBytes(sampled))) return null;
+      return errorStoringSpans(sampled, new IllegalStateException("queue is full"));
+    }
+
     try {
       storage.asyncSpanConsumer().accept(sampled, acceptSpansCallback(sampled));
-      callback.onSuccess(null);
+      return null;
     } catch (RuntimeException e) {
-      callback.onError(errorStoringSpans(sampled, e));
-      return;
+      return errorStoringSpans(sampled, e);
     }
   }
 
   List<Span> sample(List<Span> input) {
+    return sample(input, true);
+  }
+
+  /** Returns the sampled spans, retaining their encoded bytes if the input did. */
+  List<Span> sample(List<Span> input, boolean countDropped) {
+    EncodedSpanList encodedInput =
+        input instanceof EncodedSpanList ? (EncodedSpanList) input : null;
     List<Span> sampled = new ArrayList<>(input.size());
-    for (Span s : input) {
-      if (sampler.isSampled(s)) sampled.add(s);
+    List<ByteBuffer> encoded = encodedInput != null ? new ArrayList<>(input.size()) : null;
+    for (int i = 0, length = input.size(); i < length; i++) {
+      Span s = input.get(i);
+      if (!sampler.isSampled(s)) continue;
+      sampled.add(s);
+      if (encoded != null) encoded.add(encodedInput.encoded(i));
     }
     int dropped = input.size() - sampled.size();
-    if (dropped > 0) metrics.incrementSpansDropped(dropped);
-    return sampled;
+    if (countDropped && dropped > 0) metrics.incrementSpansDropped(dropped);
+    return encoded != null ? new EncodedSpanList(encodedInput.codec(), sampled, encoded) : sampled;
+  }
+
+  /**
+   * Measures spans in the bytes they were received as, if retained. This is an estimate when they
+   * were json, but avoids walking each span to compute its thrift size.
+   */
+  static int sizeInBytes(List<Span> spans) {
+    EncodedSpanList encoded = spans instanceof EncodedSpanList ? (EncodedSpanList) spans : null;
+    int result = 0;
+    for (int i = 0, length = spans.size(); i < length; i++) {
+      result += encoded != null
+          ? encoded.encoded(i).remaining()
+          : Codec.THRIFT.sizeInBytes(spans.get(i));
+    }
+    return result;
+  }
+
+  /**
+   * Stops accepting spans. When queueing, spans already queued are stored before the flusher
+   * thread exits. When tail sampling, this collector stops sharing the tail sampling stage. If it
+   * was the last collector to, the stage's thread stops, and its buffered traces are decided and
+   * stored first.
+   */
+  @Override public void close() {
+    if (closed) return;
+    closed = true;
+    if (tailSampler != null) tailSampler.unregister(this);
+    if (flusher != null) flusher.interrupt();
   }
 
   Callback<Void> acceptSpansCallback(final List<Span> spans) {
@@ -196,6 +538,26 @@ public final class Collector {
     }
   }
 
+  static final class CountingInputStream extends FilterInputStream {
+    int count;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override public int read() throws IOException {
+      int result = in.read();
+      if (result != -1) count++;
+      return result;
+    }
+
+    @Override public int read(byte[] b, int off, int len) throws IOException {
+      int result = in.read(b, off, len);
+      if (result != -1) count += result;
+      return result;
+    }
+  }
+
   static StringBuilder appendSpanIds(List<Span> spans, StringBuilder message) {
     message.append("[");
     for (Iterator<Span> iterator = spans.iterator(); iterator.hasNext(); ) {
@@ -0,0 +1,155 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.collector;
+
+import java.util.concurrent.TimeUnit;
+
+import static zipkin.internal.Util.checkArgument;
+import static zipkin.internal.Util.checkNotNull;
+
+/**
+ * Settings of the {@link Collector} shared by all transports of a process, ex those bound to server
+ * properties. Pass these to a transport's builder, such as {@code
+ * KafkaCollector.Builder.settings(CollectorSettings)}, or directly to {@link
+ * Collector.Builder#settings(CollectorSettings)}.
+ *
+ * <p>See {@link Collector.Builder} for what each setting does. Collectors given the same storage
+ * and tail sampling settings share one tail sampling buffer.
+ */
+public final class CollectorSettings {
+  public static final CollectorSettings DEFAULT = builder().build();
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    int queuedMaxSpans = 0;
+    int messageMaxSpans = 1000;
+    int messageMaxBytes = 5 * 1024 * 1024;
+    long messageTimeoutNanos = TimeUnit.SECONDS.toNanos(1);
+    long queueFullTimeoutNanos = 0L;
+    long tailSamplingWindowNanos = 0L;
+    int tailSamplingMaxSpans = 100000;
+    long tailSamplingSlowTraceNanos = Long.MAX_VALUE;
+    float tailSamplingRate = 1.0f;
+
+    Builder() {
+    }
+
+    /** @see Collector.Builder#queuedMaxSpans(int) */
+    public Builder queuedMaxSpans(int queuedMaxSpans) {
+      checkArgument(queuedMaxSpans >= 0, "queuedMaxSpans < 0: %s", queuedMaxSpans);
+      this.queuedMaxSpans = queuedMaxSpans;
+      return this;
+    }
+
+    /** @see Collector.Builder#messageMaxSpans(int) */
+    public Builder messageMaxSpans(int messageMaxSpans) {
+      checkArgument(messageMaxSpans > 0, "messageMaxSpans <= 0: %s", messageMaxSpans);
+      this.messageMaxSpans = messageMaxSpans;
+      return this;
+    }
+
+    /** @see Collector.Builder#messageMaxBytes(int) */
+    public Builder messageMaxBytes(int messageMaxBytes) {
+      checkArgument(messageMaxBytes > 0, "messageMaxBytes <= 0: %s", messageMaxBytes);
+      this.messageMaxBytes = messageMaxBytes;
+      return this;
+    }
+
+    /** @see Collector.Builder#messageTimeout(long, TimeUnit) */
+    public Builder messageTimeout(long timeout, TimeUnit unit) {
+      checkArgument(timeout >= 0, "timeout < 0: %s", timeout);
+      this.messageTimeoutNanos = checkNotNull(unit, "unit").toNanos(timeout);
+      return this;
+    }
+
+    /** @see Collector.Builder#queueFullTimeout(long, TimeUnit) */
+    public Builder queueFullTimeout(long timeout, TimeUnit unit) {
+      checkArgument(timeout >= 0, "timeout < 0: %s", timeout);
+      this.queueFullTimeoutNanos = checkNotNull(unit, "unit").toNanos(timeout);
+      return this;
+    }
+
+    /** @see Collector.Builder#tailSamplingWindow(long, TimeUnit) */
+    public Builder tailSamplingWindow(long window, TimeUnit unit) {
+      checkArgument(window >= 0, "window < 0: %s", window);
+      this.tailSamplingWindowNanos = checkNotNull(unit, "unit").toNanos(window);
+      return this;
+    }
+
+    /** @see Collector.Builder#tailSamplingMaxSpans(int) */
+    public Builder tailSamplingMaxSpans(int tailSamplingMaxSpans) {
+      checkArgument(tailSamplingMaxSpans > 0, "tailSamplingMaxSpans <= 0: %s",
+          tailSamplingMaxSpans);
+      this.tailSamplingMaxSpans = tailSamplingMaxSpans;
+      return this;
+    }
+
+    /** @see Collector.Builder#tailSamplingSlowTrace(long, TimeUnit) */
+    public Builder tailSamplingSlowTrace(long duration, TimeUnit unit) {
+      checkArgument(duration >= 0, "duration < 0: %s", duration);
+      this.tailSamplingSlowTraceNanos = checkNotNull(unit, "unit").toNanos(duration);
+      return this;
+    }
+
+    /** @see Collector.Builder#tailSamplingRate(float) */
+    public Builder tailSamplingRate(float tailSamplingRate) {
+      checkArgument(tailSamplingRate >= 0 && tailSamplingRate <= 1,
+          "tailSamplingRate should be between 0 and 1: was %s", tailSamplingRate);
+      this.tailSamplingRate = tailSamplingRate;
+      return this;
+    }
+
+    public CollectorSettings build() {
+      return new CollectorSettings(this);
+    }
+  }
+
+  final int queuedMaxSpans;
+  final int messageMaxSpans;
+  final int messageMaxBytes;
+  final long messageTimeoutNanos;
+  final long queueFullTimeoutNanos;
+  final long tailSamplingWindowNanos;
+  final int tailSamplingMaxSpans;
+  final long tailSamplingSlowTraceNanos;
+  final float tailSamplingRate;
+
+  CollectorSettings(Builder builder) {
+    this.queuedMaxSpans = builder.queuedMaxSpans;
+    this.messageMaxSpans = builder.messageMaxSpans;
+    this.messageMaxBytes = builder.messageMaxBytes;
+    this.messageTimeoutNanos = builder.messageTimeoutNanos;
+    this.queueFullTimeoutNanos = builder.queueFullTimeoutNanos;
+    this.tailSamplingWindowNanos = builder.tailSamplingWindowNanos;
+    this.tailSamplingMaxSpans = builder.tailSamplingMaxSpans;
+    this.tailSamplingSlowTraceNanos = builder.tailSamplingSlowTraceNanos;
+    this.tailSamplingRate = builder.tailSamplingRate;
+  }
+
+  @Override public String toString() {
+    return "CollectorSettings{queuedMaxSpans=" + queuedMaxSpans
+        + ", messageMaxSpans=" + messageMaxSpans
+        + ", messageMaxBytes=" + messageMaxBytes
+        + ", messageTimeoutNanos=" + messageTimeoutNanos
+        + ", queueFullTimeoutNanos=" + queueFullTimeoutNanos
+        + ", tailSamplingWindowNanos=" + tailSamplingWindowNanos
+        + ", tailSamplingMaxSpans=" + tailSamplingMaxSpans
+        + ", tailSamplingSlowTraceNanos=" + tailSamplingSlowTraceNanos
+        + ", tailSamplingRate=" + tailSamplingRate
+        + "}";
+  }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.collector;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time spent in each stage of a {@link ParallelDecoder}, totaled since the collector started.
+ *
+ * <p>When queue time grows, decode threads are saturated. When accept time grows, storage is
+ * pushing back on the collector.
+ */
+public final class DecodeTimings {
+  final AtomicLong requests = new AtomicLong();
+  final AtomicLong queueNanos = new AtomicLong();
+  final AtomicLong decodeNanos = new AtomicLong();
+  final AtomicLong acceptNanos = new AtomicLong();
+
+  /** Count of decode requests completed. A request is a message, or a poll of many. */
+  public long requests() {
+    return requests.get();
+  }
+
+  /** Average time a request waited for a decode thread. */
+  public double averageQueueMillis() {
+    return averageMillis(queueNanos);
+  }
+
+  /** Average time spent decoding a request into spans. */
+  public double averageDecodeMillis() {
+    return averageMillis(decodeNanos);
+  }
+
+  /** Average time spent sampling spans, and handing them to storage. */
+  public double averageAcceptMillis() {
+    return averageMillis(acceptNanos);
+  }
+
+  void completed(long queueNanos, long decodeNanos, long acceptNanos) {
+    this.queueNanos.addAndGet(queueNanos);
+    this.decodeNanos.addAndGet(decodeNanos);
+    this.acceptNanos.addAndGet(acceptNanos);
+    requests.incrementAndGet();
+  }
+
+  double averageMillis(AtomicLong nanos) {
+    long count = requests.get();
+    if (count == 0L) return 0.0;
+    return (double) nanos.get() / count / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  @Override public String toString() {
+    return "DecodeTimings{requests=" + requests()
+        + ", averageQueueMillis=" + averageQueueMillis()
+        + ", averageDecodeMillis=" + averageDecodeMillis()
+        + ", averageAcceptMillis=" + averageAcceptMillis()
+        + "}";
+  }
+}
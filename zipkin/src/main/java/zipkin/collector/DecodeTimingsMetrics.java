@@ -0,0 +1,29 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.collector;
+
+/**
+ * Optionally implemented by {@link CollectorMetrics} to export the {@link DecodeTimings} of a
+ * {@link ParallelDecoder}. This is separate from {@link CollectorMetrics}, so that implementations
+ * written before it still compile.
+ */
+public interface DecodeTimingsMetrics {
+
+  /**
+   * Called when a decoder is created with these metrics. Implementations read the timings when
+   * metrics are exported, as they change with every message decoded. Decoders of the same
+   * collector share timings, so this can be called more than once with the same instance.
+   */
+  void registerDecodeTimings(DecodeTimings timings);
+}
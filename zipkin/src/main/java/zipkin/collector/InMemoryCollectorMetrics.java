@@ -18,7 +18,8 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import static zipkin.internal.Util.checkNotNull;
 
-public final class InMemoryCollectorMetrics implements CollectorMetrics {
+public final class InMemoryCollectorMetrics
+    implements CollectorMetrics, MessageLagMetrics, DecodeTimingsMetrics, QueuedSpansMetrics {
 
   private final ConcurrentHashMap<String, AtomicInteger> metrics;
   private final String messages;
@@ -26,6 +27,9 @@ public final class InMemoryCollectorMetrics implements CollectorMetrics {
   private final String bytes;
   private final String spans;
   private final String spansDropped;
+  private final String queuedSpans;
+  private final String messageLag;
+  private volatile DecodeTimings decodeTimings;
 
   public InMemoryCollectorMetrics() {
     this(new ConcurrentHashMap<>(), null);
@@ -38,6 +42,8 @@ public final class InMemoryCollectorMetrics implements CollectorMetrics {
     this.bytes = scope("bytes", transport);
     this.spans = scope("spans", transport);
     this.spansDropped = scope("spansDropped", transport);
+    this.queuedSpans = scope("queuedSpans", transport);
+    this.messageLag = scope("messageLag", transport);
   }
 
   @Override public InMemoryCollectorMetrics forTransport(String transportType) {
@@ -85,6 +91,35 @@ public final class InMemoryCollectorMetrics implements CollectorMetrics {
     return get(spansDropped);
   }
 
+  @Override public void updateQueuedSpans(int quantity) {
+    set(queuedSpans, quantity);
+  }
+
+  public int queuedSpans() {
+    return get(queuedSpans);
+  }
+
+  @Override public void updateMessageLag(String partition, int quantity) {
+    set(messageLag + "." + partition, quantity);
+  }
+
+  @Override public void removeMessageLag(String partition) {
+    metrics.remove(messageLag + "." + partition);
+  }
+
+  public int messageLag(String partition) {
+    return get(messageLag + "." + partition);
+  }
+
+  @Override public void registerDecodeTimings(DecodeTimings timings) {
+    this.decodeTimings = timings;
+  }
+
+  /** Timings of the last decoder created with these metrics, or null if there was none. */
+  public DecodeTimings decodeTimings() {
+    return decodeTimings;
+  }
+
   public void clear() {
     metrics.clear();
   }
@@ -94,6 +129,15 @@ public final class InMemoryCollectorMetrics implements CollectorMetrics {
     return atomic == null ? 0 : atomic.get();
   }
 
+  private void set(String key, int quantity) {
+    AtomicInteger metric = metrics.get(key);
+    if (metric == null) {
+      metric = metrics.putIfAbsent(key, new AtomicInteger(quantity));
+      if (metric == null) return; // won race creating the entry
+    }
+    metric.set(quantity);
+  }
+
   private void increment(String key, int quantity) {
     if (quantity == 0) return;
     while (true) {
@@ -0,0 +1,36 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.collector;
+
+/**
+ * Optionally implemented by {@link CollectorMetrics} to report how far consumers of a partitioned
+ * transport, such as Kafka, are behind. This is separate from {@link CollectorMetrics}, so that
+ * implementations written before it still compile.
+ *
+ * <p>Note: these are gauges, not counters. Alert when they grow, as that means the collector isn't
+ * keeping up with instrumentation.
+ */
+public interface MessageLagMetrics {
+
+  /**
+   * Updates the count of messages in a partition of the transport not yet consumed, ex the
+   * difference between the end offset of a Kafka topic partition and the position consumed.
+   *
+   * @param partition identifies the partition, ex "zipkin-0" for partition 0 of the topic "zipkin"
+   */
+  void updateMessageLag(String partition, int quantity);
+
+  /** Stops reporting lag of a partition, ex when it was reassigned to another collector. */
+  void removeMessageLag(String partition);
+}
@@ -0,0 +1,233 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.collector;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import zipkin.Codec;
+import zipkin.Span;
+import zipkin.internal.EncodedSpanList;
+
+import static zipkin.internal.Util.checkArgument;
+import static zipkin.internal.Util.checkNotNull;
+
+/**
+ * Decodes messages on a pool of threads, so that decode CPU doesn't limit the thread consuming a
+ * transport, such as a Kafka partition.
+ *
+ * <p>Requests are decoded in parallel, but their spans are accepted in the order requests were
+ * submitted for the same partition. Up to {@code queueSize} requests can be outstanding, after
+ * which {@link #decode} blocks the consuming thread, slowing consumption.
+ *
+ * <p>When the collector's metrics implement {@link DecodeTimingsMetrics}, the timings are
+ * registered with them, so that they are exported with other collector metrics.
+ */
+public final class ParallelDecoder implements Closeable {
+
+  /** Receives the spans decoded from a request, in partition order. */
+  public interface SpansConsumer {
+    void accept(List<Span> spans);
+  }
+
+  final Collector collector;
+  final CollectorMetrics metrics;
+  final DecodeTimings timings;
+  final ThreadPoolExecutor pool;
+  final Semaphore permits;
+  final Map<Object, Lane> lanes = new HashMap<Object, Lane>(); // guarded by itself
+  volatile boolean closed;
+
+  /**
+   * @param collector used to report malformed messages and spans that could not be accepted
+   * @param threads count of decoding threads
+   * @param queueSize count of requests waiting for or being decoded before {@link #decode} blocks
+   */
+  public ParallelDecoder(Collector collector, int threads, int queueSize, DecodeTimings timings) {
+    checkArgument(threads > 0, "threads <= 0");
+    checkArgument(queueSize > 0, "queueSize <= 0");
+    this.collector = checkNotNull(collector, "collector");
+    this.metrics = collector.metrics;
+    this.timings = checkNotNull(timings, "timings");
+    this.permits = new Semaphore(queueSize);
+    final AtomicInteger threadCount = new AtomicInteger();
+    ThreadFactory threadFactory = new ThreadFactory() {
+      @Override public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "zipkin-decoder-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+    // The semaphore bounds the queue, so it needn't be bounded itself
+    this.pool = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES,
+        new LinkedBlockingQueue<Runnable>(), threadFactory);
+    this.pool.allowCoreThreadTimeOut(true);
+    if (metrics instanceof DecodeTimingsMetrics) {
+      ((DecodeTimingsMetrics) metrics).registerDecodeTimings(timings);
+    }
+  }
+
+  /** Like {@link #decode(Object, List, SpansConsumer)}, for a single message. */
+  public void decode(Object partition, byte[] message, SpansConsumer consumer)
+      throws InterruptedException {
+    decode(partition, Collections.singletonList(message), consumer);
+  }
+
+  /**
+   * Decodes the messages on a pool thread, then passes their spans to the consumer. Malformed
+   * messages are dropped. The consumer isn't called concurrently for the same partition.
+   *
+   * <p>Messages are lists of spans in json or TBinaryProtocol, or a single span in
+   * TBinaryProtocol. Empty messages aren't permitted.
+   *
+   * @param partition requests with an equal partition key are consumed in the order submitted
+   * @throws InterruptedException if interrupted while waiting for room in the queue
+   * @throws IllegalStateException if the decoder is closed, including while waiting
+   */
+  public void decode(Object partition, List<byte[]> messages, SpansConsumer consumer)
+      throws InterruptedException {
+    permits.acquire();
+    if (closed) {
+      permits.release(); // wake the next thread waiting, so that it also sees the decoder closed
+      throw new IllegalStateException("decoder is closed");
+    }
+    Lane lane;
+    synchronized (lanes) {
+      lane = lanes.get(partition);
+      if (lane == null) lanes.put(partition, lane = new Lane());
+    }
+    Request request = new Request(lane, messages, consumer);
+    lane.add(request);
+    try {
+      pool.execute(request);
+    } catch (RejectedExecutionException e) { // closed after the check above
+      permits.release();
+      throw new IllegalStateException("decoder is closed", e);
+    }
+  }
+
+  /**
+   * Reads spans from a message, sniffing its encoding. Malformed messages raise {@link
+   * IllegalArgumentException}.
+   *
+   * <p>In TBinaryProtocol encoding, the first byte is the TType, in a range 0-16. When byte(0) ==
+   * '[' (91), it is a list of json-encoded spans. When byte(0) is TType.STRUCT(12), it is a
+   * TBinaryProtocol list, as ThriftSpan has no STRUCT fields. Otherwise, it is a single span.
+   */
+  public static List<Span> readSpans(byte[] message) {
+    if (message[0] == '[') return Codec.JSON.readSpans(message);
+    if (message[0] == 12 /* TType.STRUCT */) return Codec.THRIFT.readEncodedSpans(message);
+    return Codec.THRIFT.readEncodedSpans(Collections.singletonList(message));
+  }
+
+  /**
+   * Stops decoding. Requests not yet decoded are dropped. Threads blocked in {@link #decode} for
+   * room in the queue are woken, and fail as the decoder is closed.
+   */
+  @Override public void close() {
+    closed = true;
+    pool.shutdownNow();
+    permits.release(); // dropped requests never release theirs, so start the chain of wake-ups
+  }
+
+  final class Request implements Runnable {
+    final Lane lane;
+    final List<byte[]> messages;
+    final SpansConsumer consumer;
+    final long submitNanos = System.nanoTime();
+    long queueNanos, decodeNanos;
+    List<Span> spans; // guarded by lane
+    boolean decoded; // guarded by lane
+
+    Request(Lane lane, List<byte[]> messages, SpansConsumer consumer) {
+      this.lane = lane;
+      this.messages = messages;
+      this.consumer = consumer;
+    }
+
+    @Override public void run() {
+      long start = System.nanoTime();
+      List<List<Span>> decoded = new ArrayList<List<Span>>(messages.size());
+      for (int i = 0, length = messages.size(); i < length; i++) {
+        byte[] message = messages.get(i);
+        metrics.incrementBytes(message.length);
+        try {
+          decoded.add(readSpans(message));
+        } catch (RuntimeException e) {
+          collector.errorReading(e);
+        }
+      }
+      List<Span> spans = decoded.size() == 1 ? decoded.get(0) : EncodedSpanList.concat(decoded);
+      queueNanos = start - submitNanos;
+      decodeNanos = System.nanoTime() - start;
+      lane.decoded(this, spans);
+    }
+
+    void accept() {
+      long start = System.nanoTime();
+      try {
+        consumer.accept(spans);
+      } catch (RuntimeException e) {
+        collector.errorStoringSpans(spans, e);
+      } finally {
+        permits.release();
+        timings.completed(queueNanos, decodeNanos, System.nanoTime() - start);
+      }
+    }
+  }
+
+  /** Requests of a partition, in the order they were submitted */
+  static final class Lane {
+    final ArrayDeque<Request> requests = new ArrayDeque<Request>();
+    /** True when a thread is accepting the spans of decoded requests */
+    boolean accepting;
+
+    synchronized void add(Request request) {
+      requests.add(request);
+    }
+
+    /** Accepts the spans of any decoded requests at the head of the lane. */
+    void decoded(Request request, List<Span> spans) {
+      synchronized (this) {
+        request.spans = spans;
+        request.decoded = true;
+        if (accepting) return; // the thread accepting will see this request when it is next
+        accepting = true;
+      }
+      while (true) {
+        Request next;
+        synchronized (this) {
+          next = requests.peek();
+          if (next == null || !next.decoded) {
+            accepting = false;
+            return;
+          }
+          requests.poll();
+        }
+        next.accept();
+      }
+    }
+  }
+}
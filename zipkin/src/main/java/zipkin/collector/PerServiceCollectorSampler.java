@@ -0,0 +1,278 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.collector;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import zipkin.Annotation;
+import zipkin.BinaryAnnotation;
+import zipkin.Constants;
+import zipkin.Span;
+
+import static zipkin.internal.Util.checkArgument;
+import static zipkin.internal.Util.checkNotNull;
+
+/**
+ * Samples each service's spans up to a budget of spans per second, so that one chatty service can't
+ * lower the sample rate of others.
+ *
+ * <h3>Implementation</h3>
+ *
+ * <p>Like {@link CollectorSampler#create(float)}, a span is sampled when the absolute value of its
+ * trace ID is at or below a boundary. Here, each service has its own boundary, adapted by a
+ * lock-free token bucket refilling at the service's budget. When a sampled span finds the bucket
+ * empty, the boundary is lowered by a quarter. When it finds the bucket more than half full, the
+ * boundary is raised by a quarter. Each service's boundary is adjusted at most every 100ms.
+ *
+ * <p>Decisions of recent traces are remembered in a table of 65536 trace IDs. Later spans of a
+ * trace, even from other services, follow the decision of the first span seen, regardless of
+ * boundary adjustments since. Sampled spans are kept even when the bucket is empty, so the budget
+ * is reached within a few adjustments instead of exactly.
+ *
+ * <p>Consistency per trace is best-effort, unlike {@link CollectorSampler#create(float)}. When a
+ * trace is evicted from the table by another hashing to the same slot, its next span is decided
+ * against the boundary current at that time, which may differ from the first decision. Collectors
+ * don't share tables or boundaries, so spans of a trace sent to different collectors can also be
+ * decided differently. Either way, a trace can be partially stored.
+ *
+ * <p>Spans are keyed by their local service: the endpoint of their first annotation, or else of
+ * their {@link Constants#LOCAL_COMPONENT local component}. Spans without a service name, or of
+ * services past {@link Builder#maxServices(int)}, share the bucket of the empty service name.
+ */
+public final class PerServiceCollectorSampler extends CollectorSampler {
+  static final long BURST_NANOS = TimeUnit.SECONDS.toNanos(1);
+  static final long ADJUST_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  /** Matches the minimum rate of {@link CollectorSampler#create(float)}. */
+  static final long MIN_BOUNDARY = (long) (Long.MAX_VALUE * 0.0001);
+  static final int DECISIONS = 1 << 16;
+  static final long PRESENT = 2L, SAMPLED = 1L;
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    int spansPerSecond = 1000;
+    final Map<String, Integer> serviceSpansPerSecond = new LinkedHashMap<>();
+    int maxServices = 1000;
+
+    /** Budget of services not configured otherwise. Defaults to 1000 spans per second. */
+    public Builder spansPerSecond(int spansPerSecond) {
+      checkArgument(spansPerSecond > 0, "spansPerSecond <= 0");
+      this.spansPerSecond = spansPerSecond;
+      return this;
+    }
+
+    /** Overrides the budget of one service, for example to give it a larger share of storage. */
+    public Builder spansPerSecond(String serviceName, int spansPerSecond) {
+      checkNotNull(serviceName, "serviceName");
+      checkArgument(spansPerSecond > 0, "spansPerSecond <= 0");
+      serviceSpansPerSecond.put(serviceName.toLowerCase(Locale.ROOT), spansPerSecond);
+      return this;
+    }
+
+    /**
+     * Count of services with their own bucket, which bounds memory when service names are
+     * unbounded. Defaults to 1000.
+     */
+    public Builder maxServices(int maxServices) {
+      checkArgument(maxServices > 0, "maxServices <= 0");
+      this.maxServices = maxServices;
+      return this;
+    }
+
+    public PerServiceCollectorSampler build() {
+      return new PerServiceCollectorSampler(this, System.nanoTime());
+    }
+
+    Builder() {
+    }
+  }
+
+  final int spansPerSecond;
+  final Map<String, Integer> serviceSpansPerSecond;
+  final int maxServices;
+  final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+  final Bucket shared;
+  /**
+   * Direct-mapped by trace ID. Each slot holds the {@link #hash(long) hash} of the trace ID, with
+   * its lowest two bits replaced by {@link #PRESENT} and {@link #SAMPLED}. Zero is an empty slot.
+   */
+  final AtomicLongArray decisions = new AtomicLongArray(DECISIONS);
+
+  PerServiceCollectorSampler(Builder builder, long now) {
+    spansPerSecond = builder.spansPerSecond;
+    serviceSpansPerSecond = new LinkedHashMap<>(builder.serviceSpansPerSecond);
+    maxServices = builder.maxServices;
+    shared = newBucket("", now);
+    buckets.put("", shared);
+  }
+
+  /** Returns the boundary of spans without a service name. */
+  @Override protected long boundary() {
+    return shared.boundary.get();
+  }
+
+  @Override public boolean isSampled(Span span) {
+    return isSampled(span, System.nanoTime());
+  }
+
+  boolean isSampled(Span span, long now) {
+    Bucket bucket = bucket(localServiceName(span), now);
+    boolean debug = span.debug != null && span.debug;
+    if (!debug && !decide(span.traceId, bucket.boundary.get())) {
+      bucket.dropped.incrementAndGet();
+      return false;
+    }
+
+    long remaining = bucket.take(now);
+    if (remaining < 0) {
+      bucket.adjust(now, false);
+    } else if (remaining > BURST_NANOS / 2) {
+      bucket.adjust(now, true);
+    }
+    bucket.kept.incrementAndGet();
+    return true;
+  }
+
+  /** Returns the remembered decision for the trace ID, or records a new one. */
+  boolean decide(long traceId, long boundary) {
+    long h = hash(traceId);
+    int i = index(h);
+    // Hashes differing only in their lowest two bits map to different slots, so the rest of the
+    // hash identifies the trace ID within a slot. As PRESENT is set, no decision reads as empty.
+    long key = (h & ~(PRESENT | SAMPLED)) | PRESENT;
+    long decision = decisions.get(i);
+    if ((decision & ~SAMPLED) == key) return (decision & SAMPLED) != 0;
+
+    // The absolute value of Long.MIN_VALUE is larger than a long, so Math.abs returns identity.
+    long t = traceId == Long.MIN_VALUE ? Long.MAX_VALUE : Math.abs(traceId);
+    boolean sampled = t <= boundary;
+    decisions.lazySet(i, sampled ? key | SAMPLED : key);
+    return sampled;
+  }
+
+  /**
+   * Spreads trace IDs, which are usually random, but not always. Multiplying by an odd constant is
+   * a bijection, so distinct trace IDs have distinct hashes.
+   */
+  static long hash(long traceId) {
+    return traceId * 0x9E3779B97F4A7C15L;
+  }
+
+  /** Slot of a hash in {@link #decisions}. The lowest bits of the hash are the lowest bits here. */
+  static int index(long hash) {
+    return (int) (hash ^ (hash >>> 32)) & (DECISIONS - 1);
+  }
+
+  /** Names of services sampled so far, including the empty name of the shared bucket. */
+  public Set<String> serviceNames() {
+    return Collections.unmodifiableSet(buckets.keySet());
+  }
+
+  /** Count of spans of this service which were sampled, including debug spans. */
+  public long keptSpans(String serviceName) {
+    Bucket bucket = buckets.get(serviceName.toLowerCase(Locale.ROOT));
+    return bucket != null ? bucket.kept.get() : 0;
+  }
+
+  /** Count of spans of this service which were not sampled. */
+  public long droppedSpans(String serviceName) {
+    Bucket bucket = buckets.get(serviceName.toLowerCase(Locale.ROOT));
+    return bucket != null ? bucket.dropped.get() : 0;
+  }
+
+  Bucket bucket(String serviceName, long now) {
+    Bucket result = buckets.get(serviceName);
+    if (result != null) return result;
+    if (buckets.size() > maxServices) return shared;
+    Bucket bucket = newBucket(serviceName, now);
+    result = buckets.putIfAbsent(serviceName, bucket);
+    return result != null ? result : bucket;
+  }
+
+  Bucket newBucket(String serviceName, long now) {
+    Integer budget = serviceSpansPerSecond.get(serviceName);
+    return new Bucket(budget != null ? budget : spansPerSecond, now);
+  }
+
+  static String localServiceName(Span span) {
+    for (int i = 0, length = span.annotations.size(); i < length; i++) {
+      Annotation a = span.annotations.get(i);
+      if (a.endpoint != null) return a.endpoint.serviceName;
+    }
+    for (int i = 0, length = span.binaryAnnotations.size(); i < length; i++) {
+      BinaryAnnotation b = span.binaryAnnotations.get(i);
+      if (b.endpoint != null && b.key.equals(Constants.LOCAL_COMPONENT)) {
+        return b.endpoint.serviceName;
+      }
+    }
+    return "";
+  }
+
+  @Override
+  public String toString() {
+    return "PerServiceCollectorSampler(" + spansPerSecond + " spans/s per service)";
+  }
+
+  /**
+   * A token bucket holding up to a second of spans, tracked as the time it will next be full. This
+   * is the generic cell rate algorithm, which needs only one atomic update per span.
+   */
+  static final class Bucket {
+    final long nanosPerSpan;
+    final AtomicLong fullAt;
+    final AtomicLong boundary = new AtomicLong(Long.MAX_VALUE);
+    final AtomicLong lastAdjustment;
+    final AtomicLong kept = new AtomicLong();
+    final AtomicLong dropped = new AtomicLong();
+
+    Bucket(int spansPerSecond, long now) {
+      nanosPerSpan = Math.max(1, BURST_NANOS / spansPerSecond);
+      fullAt = new AtomicLong(now);
+      lastAdjustment = new AtomicLong(now - ADJUST_INTERVAL_NANOS);
+    }
+
+    /** Takes a token, returning the nanos of credit remaining, or -1 if the bucket was empty. */
+    long take(long now) {
+      while (true) {
+        long current = fullAt.get();
+        long next = (current - now > 0 ? current : now) + nanosPerSpan;
+        if (next - now > BURST_NANOS) return -1;
+        if (fullAt.compareAndSet(current, next)) return BURST_NANOS - (next - now);
+      }
+    }
+
+    void adjust(long now, boolean raise) {
+      long last = lastAdjustment.get();
+      if (now - last < ADJUST_INTERVAL_NANOS) return;
+      if (!lastAdjustment.compareAndSet(last, now)) return; // another thread is adjusting
+      while (true) {
+        long current = boundary.get();
+        long next = raise
+            ? (current > Long.MAX_VALUE - current / 4 ? Long.MAX_VALUE : current + current / 4)
+            : Math.max(MIN_BOUNDARY, current - current / 4);
+        if (next == current || boundary.compareAndSet(current, next)) return;
+      }
+    }
+  }
+}
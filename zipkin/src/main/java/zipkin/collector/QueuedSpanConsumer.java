@@ -0,0 +1,197 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.collector;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import zipkin.Span;
+import zipkin.internal.EncodedSpanList;
+import zipkin.storage.Callback;
+
+/**
+ * Merges sampled spans from many small messages into fewer, larger storage requests.
+ *
+ * <p>Spans count against {@link Collector.Builder#queuedMaxSpans(int)} from the time they are
+ * queued until storage completes. This bounds the amount of spans in flight to storage, not just
+ * the amount waiting in the queue. When there's no room, callers block up to the {@link
+ * Collector.Builder#queueFullTimeout(long, java.util.concurrent.TimeUnit) queue full timeout},
+ * after which the message is dropped.
+ *
+ * <p>A single thread drains the queue. A storage request is issued once {@link
+ * Collector.Builder#messageMaxSpans(int) enough spans} or {@link
+ * Collector.Builder#messageMaxBytes(int) bytes} are queued, or when the {@link
+ * Collector.Builder#messageTimeout(long, java.util.concurrent.TimeUnit) message timeout} elapses
+ * since the first of them was queued.
+ */
+final class QueuedSpanConsumer implements Runnable {
+  final Collector collector;
+  /** Null when the collector's metrics don't report queued spans */
+  final QueuedSpansMetrics metrics;
+  final int queuedMaxSpans;
+  final int messageMaxSpans;
+  final int messageMaxBytes;
+  final long messageTimeoutNanos;
+  final long queueFullTimeoutNanos;
+
+  final ReentrantLock lock = new ReentrantLock();
+  final Condition notEmpty = lock.newCondition();
+  final Condition notFull = lock.newCondition();
+  final ArrayDeque<Message> queue = new ArrayDeque<>();
+  /** Spans that are either queued or in flight to storage. Guarded by {@link #lock} */
+  int outstandingSpans;
+
+  QueuedSpanConsumer(Collector collector, Collector.Builder builder) {
+    this.collector = collector;
+    this.metrics = collector.metrics instanceof QueuedSpansMetrics
+        ? (QueuedSpansMetrics) collector.metrics
+        : null;
+    this.queuedMaxSpans = builder.queuedMaxSpans;
+    this.messageMaxSpans = builder.messageMaxSpans;
+    this.messageMaxBytes = builder.messageMaxBytes;
+    this.messageTimeoutNanos = builder.messageTimeoutNanos;
+    this.queueFullTimeoutNanos = builder.queueFullTimeoutNanos;
+  }
+
+  /** Returns false if there was no room for the spans before the queue full timeout. */
+  boolean offer(List<Span> spans, int sizeInBytes) {
+    int count = spans.size();
+    long remainingNanos = queueFullTimeoutNanos;
+    lock.lock();
+    try {
+      // A message larger than the queue is only admitted when nothing else is outstanding
+      while (outstandingSpans > 0 && outstandingSpans + count > queuedMaxSpans) {
+        if (remainingNanos <= 0L) return false;
+        remainingNanos = notFull.awaitNanos(remainingNanos);
+      }
+      queue.add(new Message(spans, sizeInBytes));
+      outstandingSpans += count;
+      if (metrics != null) metrics.updateQueuedSpans(outstandingSpans);
+      notEmpty.signal();
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override public void run() {
+    while (!Thread.currentThread().isInterrupted()) {
+      List<Span> batch;
+      try {
+        batch = nextBatch();
+      } catch (InterruptedException e) {
+        break;
+      }
+      store(batch);
+    }
+    List<Span> remaining = drain();
+    if (!remaining.isEmpty()) store(remaining);
+  }
+
+  /** Removes all queued messages, joining them into one batch. */
+  List<Span> drain() {
+    lock.lock();
+    try {
+      List<List<Span>> batch = new ArrayList<>(queue.size());
+      for (Message next; (next = queue.poll()) != null; ) {
+        batch.add(next.spans);
+      }
+      return EncodedSpanList.concat(batch);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Blocks until a batch is ready, according to the message size and timeout constraints. */
+  List<Span> nextBatch() throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      while (queue.isEmpty()) notEmpty.await();
+
+      // Messages are joined at the end, so that any encoded bytes they retained are kept
+      List<List<Span>> batch = new ArrayList<>();
+      int batchSpans = 0, batchBytes = 0;
+      long remainingNanos = messageTimeoutNanos;
+      while (true) {
+        Message next;
+        while ((next = queue.peek()) != null) {
+          if (batchSpans > 0 && (batchSpans + next.spans.size() > messageMaxSpans
+              || batchBytes + next.sizeInBytes > messageMaxBytes)) {
+            return EncodedSpanList.concat(batch); // the next message would overflow this batch
+          }
+          queue.poll();
+          batch.add(next.spans);
+          batchSpans += next.spans.size();
+          batchBytes += next.sizeInBytes;
+        }
+        if (batchSpans >= messageMaxSpans || batchBytes >= messageMaxBytes
+            || remainingNanos <= 0L) {
+          return EncodedSpanList.concat(batch);
+        }
+        remainingNanos = notEmpty.awaitNanos(remainingNanos);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void store(final List<Span> batch) {
+    try {
+      collector.storage.asyncSpanConsumer().accept(batch, new Callback<Void>() {
+        @Override public void onSuccess(Void value) {
+          release(batch.size());
+        }
+
+        @Override public void onError(Throwable t) {
+          release(batch.size());
+          collector.errorStoringSpans(batch, t);
+        }
+
+        @Override public String toString() {
+          return Collector.appendSpanIds(batch, new StringBuilder("StoreQueuedSpans("))
+              .append(")").toString();
+        }
+      });
+    } catch (RuntimeException e) {
+      release(batch.size());
+      collector.errorStoringSpans(batch, e);
+    }
+  }
+
+  void release(int count) {
+    lock.lock();
+    try {
+      outstandingSpans -= count;
+      if (metrics != null) metrics.updateQueuedSpans(outstandingSpans);
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  static final class Message {
+    final List<Span> spans;
+    final int sizeInBytes;
+
+    Message(List<Span> spans, int sizeInBytes) {
+      this.spans = spans;
+      this.sizeInBytes = sizeInBytes;
+    }
+  }
+}
@@ -0,0 +1,30 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.collector;
+
+/**
+ * Optionally implemented by {@link CollectorMetrics} to report spans a collector {@link
+ * Collector.Builder#queuedMaxSpans(int) queues} before storage. This is separate from {@link
+ * CollectorMetrics}, so that implementations written before it still compile.
+ */
+public interface QueuedSpansMetrics {
+
+  /**
+   * Updates the count of spans accepted, but not yet stored.
+   *
+   * <p>Note: this is a gauge, not a counter. Alert when it stays near the queue's maximum, as
+   * messages will be dropped once it is reached.
+   */
+  void updateQueuedSpans(int quantity);
+}
@@ -0,0 +1,284 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.collector;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import zipkin.Annotation;
+import zipkin.Codec;
+import zipkin.Constants;
+import zipkin.Span;
+import zipkin.internal.EncodedSpanList;
+import zipkin.internal.Pair;
+
+/**
+ * Buffers sampled spans by their 128-bit trace ID, deciding which traces to store once their window
+ * closes. Traces with an {@link Constants#ERROR error} binary annotation, or longer than the {@link
+ * Collector.Builder#tailSamplingSlowTrace(long, TimeUnit) slow trace threshold} are always kept.
+ * Others are kept at the {@link Collector.Builder#tailSamplingRate(float) tail sampling rate}, by
+ * trace ID, so that spans arriving after their trace's window get the same decision.
+ *
+ * <p>Traces expire on a timer wheel of 16 ticks per {@link
+ * Collector.Builder#tailSamplingWindow(long, TimeUnit) window}, so a trace is decided between one
+ * window and one window plus a tick after its first span. Each tick, the kept traces are stored in one request per collector. When {@link
+ * Collector.Builder#tailSamplingMaxSpans(int) the buffer is full}, messages are dropped.
+ *
+ * <p>One stage, and its thread, is shared by all collectors in the process with the same storage
+ * and tail sampling settings, so that a trace reported over several transports, or consumed by
+ * several Kafka workers, is decided once. Each trace is stored, or counted as dropped, by the
+ * collector which received its first span. Collectors {@link #register register} when built, and
+ * {@link #unregister unregister} when closed. When the last one does, the thread stops, and traces
+ * still buffered are decided early.
+ */
+final class TailSamplingSpanConsumer implements Runnable {
+  static final int TICKS_PER_WINDOW = 16;
+  /**
+   * Stages by their storage component and tail sampling settings. Guarded by itself.
+   *
+   * <p>This is static, so that collectors built separately, ex by each transport, find the same
+   * stage. The key holds the storage component itself, compared by equals, which most storage
+   * components inherit from {@link Object}. So, collectors only share a stage when given the same
+   * storage instance, and the storage is referenced here until its last collector closes.
+   */
+  static final Map<List<Object>, TailSamplingSpanConsumer> STAGES = new LinkedHashMap<>();
+
+  /** Returns the stage shared by collectors with the same settings, starting it if needed. */
+  static TailSamplingSpanConsumer register(Collector collector, Collector.Builder builder) {
+    List<Object> key = Arrays.<Object>asList(builder.storage, builder.tailSamplingWindowNanos,
+        builder.tailSamplingMaxSpans, builder.tailSamplingSlowTraceNanos, builder.tailSamplingRate);
+    synchronized (STAGES) {
+      TailSamplingSpanConsumer stage = STAGES.get(key);
+      if (stage == null) {
+        stage = new TailSamplingSpanConsumer(key, builder);
+        stage.ticker = new Thread(stage, "zipkin-collector-tail-sampler");
+        stage.ticker.setDaemon(true);
+        stage.ticker.start();
+        STAGES.put(key, stage);
+      }
+      stage.collectors.add(collector);
+      return stage;
+    }
+  }
+
+  final List<Object> key;
+  /** Collectors sharing this stage, in the order they registered */
+  final List<Collector> collectors = new CopyOnWriteArrayList<>();
+  /** Null until {@link #register registered} */
+  Thread ticker;
+  volatile boolean stopped;
+  final int maxSpans;
+  final long slowTraceMicros;
+  final CollectorSampler sampler;
+  final long tickNanos;
+  final int ticksPerWindow;
+
+  final ReentrantLock lock = new ReentrantLock();
+  /** Guarded by {@link #lock} */
+  final Map<Pair<Long>, Trace> traces = new HashMap<>();
+  /** Traces by the tick they expire on, modulo the wheel's length. Guarded by {@link #lock} */
+  final List<Trace>[] wheel;
+  /** Guarded by {@link #lock} */
+  long tick;
+  /** Guarded by {@link #lock} */
+  int bufferedSpans;
+
+  TailSamplingSpanConsumer(List<Object> key, Collector.Builder builder) {
+    this.key = key;
+    this.maxSpans = builder.tailSamplingMaxSpans;
+    this.slowTraceMicros = TimeUnit.NANOSECONDS.toMicros(builder.tailSamplingSlowTraceNanos);
+    this.sampler = CollectorSampler.create(builder.tailSamplingRate);
+    long windowNanos = builder.tailSamplingWindowNanos;
+    this.tickNanos = Math.max(windowNanos / TICKS_PER_WINDOW, TimeUnit.MILLISECONDS.toNanos(1));
+    this.ticksPerWindow = (int) ((windowNanos + tickNanos - 1) / tickNanos);
+    this.wheel = new List[ticksPerWindow + 1];
+    for (int i = 0; i < wheel.length; i++) wheel[i] = new ArrayList<>();
+  }
+
+  /**
+   * Stops sharing this stage with the collector. When it was the last, the thread is stopped, and
+   * buffered traces are decided and stored without waiting for their window to close.
+   */
+  void unregister(Collector collector) {
+    synchronized (STAGES) {
+      if (!collectors.remove(collector) || !collectors.isEmpty()) return;
+      STAGES.remove(key);
+      stopped = true;
+      if (ticker != null) ticker.interrupt();
+    }
+    for (int i = 0; i < wheel.length; i++) advance();
+  }
+
+  /**
+   * Returns false if there was no room to buffer the spans. Traces first seen here are stored by
+   * the collector passed.
+   */
+  boolean offer(Collector collector, List<Span> spans) {
+    EncodedSpanList encoded = spans instanceof EncodedSpanList ? (EncodedSpanList) spans : null;
+    lock.lock();
+    try {
+      if (bufferedSpans > 0 && bufferedSpans + spans.size() > maxSpans) return false;
+      for (int i = 0, length = spans.size(); i < length; i++) {
+        Span span = spans.get(i);
+        Pair<Long> traceKey = Pair.create(span.traceIdHigh, span.traceId);
+        Trace trace = traces.get(traceKey);
+        if (trace == null) {
+          trace = new Trace(traceKey, collector, encoded != null ? encoded.codec() : null);
+          traces.put(traceKey, trace);
+          wheel[(int) ((tick + ticksPerWindow) % wheel.length)].add(trace);
+        }
+        if (encoded != null) {
+          trace.add(span, encoded.codec(), encoded.encoded(i));
+        } else {
+          trace.add(span, null, null);
+        }
+      }
+      bufferedSpans += spans.size();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override public void run() {
+    long nextTick = System.nanoTime() + tickNanos;
+    while (!stopped && !Thread.currentThread().isInterrupted()) {
+      try {
+        long waitNanos = nextTick - System.nanoTime();
+        if (waitNanos > 0) TimeUnit.NANOSECONDS.sleep(waitNanos);
+      } catch (InterruptedException e) {
+        return;
+      }
+      nextTick += tickNanos;
+      advance();
+    }
+  }
+
+  /**
+   * Advances the wheel one tick, storing the expired traces which were kept, and counting the
+   * others as dropped. Returns the spans kept.
+   */
+  List<Span> advance() {
+    List<Trace> expired;
+    lock.lock();
+    try {
+      List<Trace> slot = wheel[(int) (++tick % wheel.length)];
+      expired = new ArrayList<>(slot);
+      slot.clear();
+      for (int i = 0, length = expired.size(); i < length; i++) {
+        Trace trace = expired.get(i);
+        traces.remove(trace.key);
+        bufferedSpans -= trace.spans.size();
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (expired.isEmpty()) return Collections.emptyList();
+
+    Map<Collector, List<List<Span>>> keptByCollector = new LinkedHashMap<>();
+    Map<Collector, Integer> droppedByCollector = new LinkedHashMap<>();
+    List<List<Span>> kept = new ArrayList<>();
+    for (int i = 0, length = expired.size(); i < length; i++) {
+      Trace trace = expired.get(i);
+      Collector collector = collectorOf(trace);
+      if (isKept(trace)) {
+        List<List<Span>> collectorKept = keptByCollector.get(collector);
+        if (collectorKept == null) {
+          keptByCollector.put(collector, collectorKept = new ArrayList<>());
+        }
+        List<Span> spans = trace.toList();
+        collectorKept.add(spans);
+        kept.add(spans);
+      } else {
+        Integer dropped = droppedByCollector.get(collector);
+        droppedByCollector.put(collector, (dropped != null ? dropped : 0) + trace.spans.size());
+      }
+    }
+    for (Map.Entry<Collector, Integer> entry : droppedByCollector.entrySet()) {
+      entry.getKey().metrics.incrementSpansDropped(entry.getValue());
+    }
+    for (Map.Entry<Collector, List<List<Span>>> entry : keptByCollector.entrySet()) {
+      entry.getKey().storeSampled(EncodedSpanList.concat(entry.getValue()));
+    }
+    return EncodedSpanList.concat(kept);
+  }
+
+  /** Returns the collector which received the trace, or another if that one was closed since. */
+  Collector collectorOf(Trace trace) {
+    if (!trace.collector.closed) return trace.collector;
+    Iterator<Collector> open = collectors.iterator(); // a snapshot, so safe if others unregister
+    return open.hasNext() ? open.next() : trace.collector;
+  }
+
+  boolean isKept(Trace trace) {
+    long start = Long.MAX_VALUE, end = Long.MIN_VALUE;
+    for (int i = 0, length = trace.spans.size(); i < length; i++) {
+      Span span = trace.spans.get(i);
+      if (span.debug != null && span.debug) return true;
+      for (int j = 0, count = span.binaryAnnotations.size(); j < count; j++) {
+        if (span.binaryAnnotations.get(j).key.equals(Constants.ERROR)) return true;
+      }
+      if (span.timestamp != null) {
+        start = Math.min(start, span.timestamp);
+        end = Math.max(end, span.timestamp + (span.duration != null ? span.duration : 0L));
+      }
+      for (int j = 0, count = span.annotations.size(); j < count; j++) {
+        Annotation a = span.annotations.get(j);
+        start = Math.min(start, a.timestamp);
+        end = Math.max(end, a.timestamp);
+      }
+    }
+    if (start != Long.MAX_VALUE && end - start > slowTraceMicros) return true;
+    return sampler.isSampled(trace.spans.get(0));
+  }
+
+  static final class Trace {
+    final Pair<Long> key;
+    final Collector collector;
+    final List<Span> spans = new ArrayList<>();
+    final Codec codec;
+    /** Null unless every span retained its encoded bytes in the same codec */
+    List<ByteBuffer> encoded;
+
+    Trace(Pair<Long> key, Collector collector, Codec codec) {
+      this.key = key;
+      this.collector = collector;
+      this.codec = codec;
+      if (codec != null) encoded = new ArrayList<>();
+    }
+
+    void add(Span span, Codec spanCodec, ByteBuffer spanEncoded) {
+      spans.add(span);
+      if (encoded == null) return;
+      if (spanCodec == codec && spanEncoded != null) {
+        encoded.add(spanEncoded);
+      } else {
+        encoded = null;
+      }
+    }
+
+    List<Span> toList() {
+      return encoded != null ? new EncodedSpanList(codec, spans, encoded) : spans;
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.internal;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+import zipkin.Codec;
+import zipkin.Span;
+
+import static zipkin.internal.Util.checkArgument;
+import static zipkin.internal.Util.checkNotNull;
+
+/**
+ * Spans which retain the bytes they were decoded from. Storage which persists the same encoding can
+ * write these bytes as opposed to encoding each span again.
+ *
+ * <p>Encoded bytes are whatever the sender wrote, so they aren't normalized. For example, a span
+ * name may be in mixed case. Only use them where the stored form is decoded before it is read.
+ */
+public final class EncodedSpanList extends AbstractList<Span> implements RandomAccess {
+
+  /**
+   * Returns a view of the span's encoded bytes, or null if the list didn't retain them in the
+   * requested codec.
+   */
+  @Nullable public static ByteBuffer encoded(List<Span> spans, int index, Codec codec) {
+    if (!(spans instanceof EncodedSpanList)) return null;
+    EncodedSpanList list = (EncodedSpanList) spans;
+    return list.codec == codec ? list.encoded(index) : null;
+  }
+
+  /**
+   * Joins the input in order. The result retains encoded bytes only if every input did, using
+   * the same codec.
+   */
+  public static List<Span> concat(List<List<Span>> lists) {
+    Codec codec = null;
+    int size = 0;
+    for (int i = 0, length = lists.size(); i < length; i++) {
+      List<Span> next = lists.get(i);
+      size += next.size();
+      if (i == 0 || codec != null) {
+        Codec nextCodec = next instanceof EncodedSpanList ? ((EncodedSpanList) next).codec : null;
+        codec = i == 0 || nextCodec == codec ? nextCodec : null;
+      }
+    }
+    List<Span> spans = new ArrayList<>(size);
+    List<ByteBuffer> encoded = codec != null ? new ArrayList<ByteBuffer>(size) : null;
+    for (int i = 0, length = lists.size(); i < length; i++) {
+      List<Span> next = lists.get(i);
+      spans.addAll(next);
+      if (encoded != null) encoded.addAll(((EncodedSpanList) next).encoded);
+    }
+    return encoded != null ? new EncodedSpanList(codec, spans, encoded) : spans;
+  }
+
+  final Codec codec;
+  final List<Span> spans;
+  final List<ByteBuffer> encoded;
+
+  /**
+   * @param spans decoded spans
+   * @param encoded the bytes each span was decoded from, which are not copied
+   */
+  public EncodedSpanList(Codec codec, List<Span> spans, List<ByteBuffer> encoded) {
+    this.codec = checkNotNull(codec, "codec");
+    this.spans = checkNotNull(spans, "spans");
+    this.encoded = checkNotNull(encoded, "encoded");
+    checkArgument(spans.size() == encoded.size(), "%s spans, but %s encoded",
+        spans.size(), encoded.size());
+  }
+
+  public Codec codec() {
+    return codec;
+  }
+
+  /** Returns a view of the bytes the span at the index was decoded from. */
+  public ByteBuffer encoded(int index) {
+    return encoded.get(index).duplicate();
+  }
+
+  @Override public Span get(int index) {
+    return spans.get(index);
+  }
+
+  @Override public int size() {
+    return spans.size();
+  }
+}
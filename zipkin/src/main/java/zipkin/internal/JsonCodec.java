@@ -17,9 +17,12 @@ import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonToken;
 import com.google.gson.stream.MalformedJsonException;
 import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
@@ -57,7 +60,7 @@ import static zipkin.internal.Util.lowerHexToUnsignedLong;
  * <p> There is the up-front cost of creating this, and maintenance of this to consider. However,
  * this should be easy to justify as these objects don't change much at all.
  */
-public final class JsonCodec implements Codec {
+public final class JsonCodec implements Codec, StreamingSpanDecoder {
   static final long MAX_SAFE_INTEGER = 9007199254740991L;  // 53 bits
   static final String ENDPOINT_HEADER = ",\"endpoint\":";
 
@@ -480,6 +483,69 @@ public final class JsonCodec implements Codec {
     return readList(new SpanReader(), bytes);
   }
 
+  /**
+   * Reads spans from the stream without buffering it entirely. Unlike {@link #readSpans(byte[])},
+   * error messages do not include the json, as it isn't retained.
+   */
+  @Override
+  public int readSpans(InputStream in, int chunkSize, ChunkConsumer consumer) {
+    checkArgument(chunkSize > 0, "chunkSize <= 0: %s", chunkSize);
+    SpanReader adapter = new SpanReader();
+    JsonReader reader = new JsonReader(new InputStreamReader(in, UTF_8));
+    try {
+      reader.peek();
+    } catch (EOFException e) {
+      throw new IllegalArgumentException("Empty input reading List<" + adapter + ">", e);
+    } catch (Exception e) {
+      throw exceptionReading("List<" + adapter + ">", e);
+    }
+    int count = 0;
+    try {
+      reader.beginArray();
+      while (reader.hasNext()) {
+        List<Span> chunk = new ArrayList<>(chunkSize);
+        while (chunk.size() < chunkSize && reader.hasNext()) {
+          chunk.add(adapter.fromJson(reader));
+        }
+        count += chunk.size();
+        if (!consumer.accept(chunk)) return count;
+      }
+      reader.endArray();
+      return count;
+    } catch (Exception e) {
+      throw exceptionReading("List<" + adapter + ">", e);
+    }
+  }
+
+  @Override
+  public int readSpans(ByteBuffer bytes, int chunkSize, ChunkConsumer consumer) {
+    return readSpans(new ByteBufferInputStream(bytes), chunkSize, consumer);
+  }
+
+  static final class ByteBufferInputStream extends InputStream {
+    final ByteBuffer bytes;
+
+    ByteBufferInputStream(ByteBuffer bytes) {
+      this.bytes = bytes;
+    }
+
+    @Override public int read() {
+      return bytes.hasRemaining() ? bytes.get() & 0xff : -1;
+    }
+
+    @Override public int read(byte[] b, int off, int len) {
+      if (len == 0) return 0;
+      if (!bytes.hasRemaining()) return -1;
+      len = Math.min(len, bytes.remaining());
+      bytes.get(b, off, len);
+      return len;
+    }
+
+    @Override public int available() {
+      return bytes.remaining();
+    }
+  }
+
   @Override
   public byte[] writeSpans(List<Span> value) {
     return writeList(SPAN_WRITER, value);
@@ -729,6 +795,14 @@ public final class JsonCodec implements Codec {
     throw new IllegalArgumentException(message, e);
   }
 
+  /** Used when the json isn't retained, such as when reading from a stream. */
+  static IllegalArgumentException exceptionReading(String type, Exception e) {
+    String cause = e.getMessage() == null ? "Error" : e.getMessage();
+    if (cause.indexOf("malformed") != -1) cause = "Malformed";
+    String message = String.format("%s reading %s from json", cause, type);
+    throw new IllegalArgumentException(message, e);
+  }
+
   interface JsonReaderAdapter<T> {
     T fromJson(JsonReader reader) throws IOException;
   }
@@ -0,0 +1,54 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import zipkin.Span;
+
+/**
+ * Decodes a list of spans incrementally, so that memory used is a function of the chunk size as
+ * opposed to the size of the encoded message.
+ *
+ * <p>Unlike {@link zipkin.Codec#readSpans(byte[])}, a malformed message can result in some spans
+ * being passed to the consumer before an {@linkplain IllegalArgumentException} is raised.
+ */
+public interface StreamingSpanDecoder {
+
+  interface ChunkConsumer {
+    /**
+     * Receives up to chunk size spans, in the order they were encoded.
+     *
+     * @return false to stop decoding
+     */
+    boolean accept(List<Span> chunk);
+  }
+
+  /**
+   * Decodes a list of spans from the stream, which is not closed. This is the same format as
+   * {@link zipkin.Codec#readSpans(byte[])}.
+   *
+   * @return the count of spans passed to the consumer
+   * @throws {@linkplain IllegalArgumentException} if the spans couldn't be decoded
+   */
+  int readSpans(InputStream in, int chunkSize, ChunkConsumer consumer) throws IOException;
+
+  /**
+   * Like {@link #readSpans(InputStream, int, ChunkConsumer)}, except the input is already in
+   * memory. The buffer's position is advanced as spans are read.
+   */
+  int readSpans(ByteBuffer bytes, int chunkSize, ChunkConsumer consumer);
+}
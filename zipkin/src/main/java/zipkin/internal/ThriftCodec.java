@@ -14,9 +14,12 @@
 package zipkin.internal;
 
 import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import zipkin.Annotation;
@@ -38,7 +41,7 @@ import static zipkin.internal.Util.checkArgument;
  * <p> This directly implements TBinaryProtocol so as to reduce dependencies and array duplication.
  * While reads internally use {@link ByteBuffer}, writes use {@link Buffer} as the latter can grow.
  */
-public final class ThriftCodec implements Codec {
+public final class ThriftCodec implements Codec, StreamingSpanDecoder {
   // break vs decode huge structs, like > 1MB strings or 10k spans in a trace.
   static final int STRING_LENGTH_LIMIT = 1 * 1024 * 1024;
   static final int CONTAINER_LENGTH_LIMIT = 10 * 1000;
@@ -88,6 +91,192 @@ public final class ThriftCodec implements Codec {
     return readList(new SpanReader(), ByteBuffer.wrap(bytes));
   }
 
+  /**
+   * Like {@link #readSpans(byte[])}, except each span retains the bytes it was decoded from. These
+   * are views of the input, so it must not be modified afterwards.
+   *
+   * @throws {@linkplain IllegalArgumentException} if the spans couldn't be decoded
+   */
+  public EncodedSpanList readEncodedSpans(byte[] bytes) {
+    SpanReader reader = new SpanReader();
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    checkArgument(buffer.remaining() > 0, "Empty input reading List<%s>", reader);
+    try {
+      byte ignoredType = buffer.get();
+      int length = guardLength(buffer, CONTAINER_LENGTH_LIMIT);
+      List<Span> spans = new ArrayList<>(length);
+      List<ByteBuffer> encoded = new ArrayList<>(length);
+      for (int i = 0; i < length; i++) {
+        int start = buffer.position();
+        spans.add(reader.read(buffer));
+        encoded.add(ByteBuffer.wrap(bytes, start, buffer.position() - start).slice());
+      }
+      return new EncodedSpanList(this, spans, encoded);
+    } catch (RuntimeException e) {
+      throw exceptionReading("List<" + reader + ">", e);
+    }
+  }
+
+  /**
+   * Like {@link #readSpan(byte[])}, except each input is decoded and retained as the span's
+   * encoded bytes. The inputs must not be modified afterwards.
+   *
+   * @throws {@linkplain IllegalArgumentException} if any span couldn't be decoded
+   */
+  public EncodedSpanList readEncodedSpans(List<byte[]> serializedSpans) {
+    List<Span> spans = new ArrayList<>(serializedSpans.size());
+    List<ByteBuffer> encoded = new ArrayList<>(serializedSpans.size());
+    for (int i = 0, length = serializedSpans.size(); i < length; i++) {
+      byte[] bytes = serializedSpans.get(i);
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      spans.add(read(new SpanReader(), buffer));
+      encoded.add(ByteBuffer.wrap(bytes, 0, buffer.position()).slice());
+    }
+    return new EncodedSpanList(this, spans, encoded);
+  }
+
+  /**
+   * Like {@link #readEncodedSpans(List)}, except the spans are concatenated in one buffer, the
+   * first starting at offset zero. Each span is retained as a view of the buffer, so it must not be
+   * modified afterwards.
+   *
+   * @param spanEnds the offset after each span, in ascending order
+   * @param spanCount count of spans in the buffer, which may be less than spanEnds.length
+   * @throws {@linkplain IllegalArgumentException} if any span couldn't be decoded
+   */
+  public EncodedSpanList readEncodedSpans(byte[] bytes, int[] spanEnds, int spanCount) {
+    List<Span> spans = new ArrayList<>(spanCount);
+    List<ByteBuffer> encoded = new ArrayList<>(spanCount);
+    for (int i = 0, start = 0; i < spanCount; start = spanEnds[i++]) {
+      ByteBuffer buffer = ByteBuffer.wrap(bytes, start, spanEnds[i] - start).slice();
+      spans.add(read(new SpanReader(), buffer));
+      buffer.flip();
+      encoded.add(buffer);
+    }
+    return new EncodedSpanList(this, spans, encoded);
+  }
+
+  @Override
+  public int readSpans(ByteBuffer bytes, int chunkSize, ChunkConsumer consumer) {
+    checkArgument(chunkSize > 0, "chunkSize <= 0: %s", chunkSize);
+    SpanReader reader = new SpanReader();
+    checkArgument(bytes.remaining() > 0, "Empty input reading List<%s>", reader);
+    int length;
+    try {
+      byte ignoredType = bytes.get();
+      length = guardLength(bytes, CONTAINER_LENGTH_LIMIT);
+    } catch (RuntimeException e) {
+      throw exceptionReading("List<" + reader + ">", e);
+    }
+    int i = 0;
+    while (i < length) {
+      List<Span> chunk = new ArrayList<>(Math.min(chunkSize, length - i));
+      try {
+        for (; i < length && chunk.size() < chunkSize; i++) {
+          chunk.add(reader.read(bytes));
+        }
+      } catch (RuntimeException e) {
+        throw exceptionReading("List<" + reader + ">", e);
+      }
+      if (!consumer.accept(chunk)) break;
+    }
+    return i;
+  }
+
+  /**
+   * Reads spans from the stream without buffering it entirely. At most, the buffer is the size of
+   * the largest span, or {@link StreamBuffer#INITIAL_CAPACITY}.
+   */
+  @Override
+  public int readSpans(InputStream in, int chunkSize, ChunkConsumer consumer) throws IOException {
+    checkArgument(chunkSize > 0, "chunkSize <= 0: %s", chunkSize);
+    SpanReader reader = new SpanReader();
+    StreamBuffer buffer = new StreamBuffer(in);
+    checkArgument(buffer.require(1), "Empty input reading List<%s>", reader);
+    int length;
+    try {
+      if (!buffer.require(5)) throw new EOFException();
+      byte ignoredType = buffer.bytes.get();
+      length = guardLength(buffer.bytes, CONTAINER_LENGTH_LIMIT);
+    } catch (EOFException | RuntimeException e) {
+      throw exceptionReading("List<" + reader + ">", e);
+    }
+    int i = 0;
+    while (i < length) {
+      List<Span> chunk = new ArrayList<>(Math.min(chunkSize, length - i));
+      try {
+        for (; i < length && chunk.size() < chunkSize; i++) {
+          chunk.add(buffer.read(reader));
+        }
+      } catch (EOFException | RuntimeException e) {
+        throw exceptionReading("List<" + reader + ">", e);
+      }
+      if (!consumer.accept(chunk)) break;
+    }
+    return i;
+  }
+
+  /**
+   * Holds enough of a stream to decode the next struct. When decoding underflows, more data is read
+   * and the struct is decoded again, so this never holds more than the largest struct plus the
+   * amount read ahead.
+   */
+  static final class StreamBuffer {
+    static final int INITIAL_CAPACITY = 8192;
+
+    final InputStream in;
+    ByteBuffer bytes = ByteBuffer.wrap(new byte[INITIAL_CAPACITY]);
+    boolean eof;
+
+    StreamBuffer(InputStream in) {
+      this.in = in;
+      bytes.limit(0); // nothing read, yet
+    }
+
+    <T> T read(ThriftReader<T> reader) throws IOException {
+      while (true) {
+        int mark = bytes.position();
+        try {
+          return reader.read(bytes);
+        } catch (BufferUnderflowException e) {
+          bytes.position(mark);
+          if (!fill()) throw new EOFException();
+        }
+      }
+    }
+
+    /** Returns false if the stream ended before {@code count} bytes were available. */
+    boolean require(int count) throws IOException {
+      while (bytes.remaining() < count) {
+        if (!fill()) return false;
+      }
+      return true;
+    }
+
+    /** Reads until the buffer is full or the stream ends. Returns false if nothing was read. */
+    boolean fill() throws IOException {
+      if (eof) return false;
+      bytes.compact(); // discards bytes already decoded
+      if (!bytes.hasRemaining()) { // a struct is larger than the buffer
+        int position = bytes.position();
+        bytes = ByteBuffer.wrap(Arrays.copyOf(bytes.array(), bytes.capacity() * 2));
+        bytes.position(position);
+      }
+      int initialPosition = bytes.position();
+      while (bytes.hasRemaining()) {
+        int read = in.read(bytes.array(), bytes.position(), bytes.remaining());
+        if (read == -1) {
+          eof = true;
+          break;
+        }
+        bytes.position(bytes.position() + read);
+      }
+      boolean readSomething = bytes.position() > initialPosition;
+      bytes.flip();
+      return readSomething;
+    }
+  }
+
   @Override
   public byte[] writeSpans(List<Span> value) {
     return writeList(SPAN_WRITER, value);
@@ -667,6 +856,7 @@ public final class ThriftCodec implements Codec {
   }
 
   static void skip(ByteBuffer bytes, int count) {
+    if (count > bytes.remaining()) throw new BufferUnderflowException();
     bytes.position(bytes.position() + count);
   }
 
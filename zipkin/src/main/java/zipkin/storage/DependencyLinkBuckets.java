@@ -0,0 +1,136 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import zipkin.DependencyLink;
+import zipkin.internal.Pair;
+
+/**
+ * Sums the dependency links of each trace into buckets by trace timestamp, so that {@link
+ * SpanStore#getDependencies(long, Long)} doesn't need to re-link traces.
+ *
+ * <p>Buckets entirely within a query's time range contribute their totals. Buckets that are only
+ * partially in range sum the traces whose timestamps are in range, so results are exact.
+ */
+final class DependencyLinkBuckets {
+  static final long BUCKET_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+  /** The links of one trace, as of the last time it was linked */
+  static final class TraceLinks {
+    final long timestamp;
+    final List<DependencyLink> links;
+
+    TraceLinks(long timestamp, List<DependencyLink> links) {
+      this.timestamp = timestamp;
+      this.links = links;
+    }
+  }
+
+  static final class Bucket {
+    final Map<Pair<String>, Long> callCounts = new LinkedHashMap<>();
+    final Set<TraceLinks> traceLinks = new LinkedHashSet<>();
+  }
+
+  /** Guarded by this */
+  final TreeMap<Long, Bucket> buckets = new TreeMap<>();
+
+  /** Replaces the links previously added for a trace. Either argument can be empty. */
+  synchronized void replace(List<TraceLinks> oldLinks, List<TraceLinks> newLinks) {
+    for (TraceLinks next : oldLinks) remove(next);
+    for (TraceLinks next : newLinks) add(next);
+  }
+
+  void add(TraceLinks traceLinks) {
+    long bucketStart = bucketStart(traceLinks.timestamp);
+    Bucket bucket = buckets.get(bucketStart);
+    if (bucket == null) buckets.put(bucketStart, bucket = new Bucket());
+    bucket.traceLinks.add(traceLinks);
+    for (DependencyLink link : traceLinks.links) {
+      Pair<String> parentChild = Pair.create(link.parent, link.child);
+      Long callCount = bucket.callCounts.get(parentChild);
+      bucket.callCounts.put(parentChild, (callCount != null ? callCount : 0L) + link.callCount);
+    }
+  }
+
+  void remove(TraceLinks traceLinks) {
+    long bucketStart = bucketStart(traceLinks.timestamp);
+    Bucket bucket = buckets.get(bucketStart);
+    if (bucket == null || !bucket.traceLinks.remove(traceLinks)) return;
+    if (bucket.traceLinks.isEmpty()) {
+      buckets.remove(bucketStart);
+      return;
+    }
+    for (DependencyLink link : traceLinks.links) {
+      Pair<String> parentChild = Pair.create(link.parent, link.child);
+      long callCount = bucket.callCounts.get(parentChild) - link.callCount;
+      if (callCount == 0L) {
+        bucket.callCounts.remove(parentChild);
+      } else {
+        bucket.callCounts.put(parentChild, callCount);
+      }
+    }
+  }
+
+  /** Returns links of traces whose timestamps are between the inclusive bounds in microseconds */
+  synchronized List<DependencyLink> sum(long startTs, long endTs) {
+    if (startTs > endTs) return Collections.emptyList();
+    Map<Pair<String>, Long> callCounts = new LinkedHashMap<>();
+    for (Map.Entry<Long, Bucket> entry
+        : buckets.subMap(bucketStart(startTs), true, bucketStart(endTs), true).entrySet()) {
+      long bucketStart = entry.getKey();
+      Bucket bucket = entry.getValue();
+      if (bucketStart >= startTs && bucketStart + BUCKET_MICROS - 1 <= endTs) {
+        for (Map.Entry<Pair<String>, Long> callCount : bucket.callCounts.entrySet()) {
+          add(callCounts, callCount.getKey(), callCount.getValue());
+        }
+        continue;
+      }
+      for (TraceLinks traceLinks : bucket.traceLinks) {
+        if (traceLinks.timestamp < startTs || traceLinks.timestamp > endTs) continue;
+        for (DependencyLink link : traceLinks.links) {
+          add(callCounts, Pair.create(link.parent, link.child), link.callCount);
+        }
+      }
+    }
+
+    List<DependencyLink> result = new ArrayList<>(callCounts.size());
+    for (Map.Entry<Pair<String>, Long> entry : callCounts.entrySet()) {
+      result.add(DependencyLink.create(entry.getKey()._1, entry.getKey()._2, entry.getValue()));
+    }
+    return result;
+  }
+
+  synchronized void clear() {
+    buckets.clear();
+  }
+
+  static void add(Map<Pair<String>, Long> callCounts, Pair<String> parentChild, long callCount) {
+    Long existing = callCounts.get(parentChild);
+    callCounts.put(parentChild, (existing != null ? existing : 0L) + callCount);
+  }
+
+  static long bucketStart(long timestamp) {
+    long remainder = timestamp % BUCKET_MICROS;
+    return remainder < 0 ? timestamp - remainder - BUCKET_MICROS : timestamp - remainder;
+  }
+}
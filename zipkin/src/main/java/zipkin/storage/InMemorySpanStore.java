@@ -14,16 +14,21 @@
 package zipkin.storage;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import zipkin.Codec;
 import zipkin.DependencyLink;
 import zipkin.Span;
 import zipkin.internal.CorrectForClockSkew;
@@ -31,7 +36,7 @@ import zipkin.internal.DependencyLinker;
 import zipkin.internal.GroupByTraceId;
 import zipkin.internal.MergeById;
 import zipkin.internal.Nullable;
-import zipkin.internal.Pair;
+import zipkin.storage.DependencyLinkBuckets.TraceLinks;
 
 import static zipkin.internal.ApplyTimestampAndDuration.guessTimestamp;
 import static zipkin.internal.GroupByTraceId.TRACE_DESCENDING;
@@ -43,52 +48,80 @@ import static zipkin.internal.Util.sortedList;
  * <p>Here's an example of some traces in memory:
  *
  * <pre>{@code
- * spansByTraceIdTimeStamp:
- *    <aaaa,July 4> --> ( spanA(time:July 4, traceId:aaaa, service:foo, name:GET),
- *                        spanB(time:July 4, traceId:aaaa, service:bar, name:GET) )
- *    <cccc,July 4> --> ( spanC(time:July 4, traceId:aaaa, service:foo, name:GET) )
- *    <bbbb,July 5> --> ( spanD(time:July 5, traceId:bbbb, service:biz, name:GET) )
- *    <bbbb,July 6> --> ( spanE(time:July 6, traceId:bbbb) service:foo, name:POST )
+ * stripes (traces by lower 64-bits of trace ID, partitioned by hash):
+ *    aaaa --> Trace(key: <July 4,aaaa>, spanNamesByService: (foo: (GET), bar: (GET)),
+ *                   spans: ( spanA(time:July 4, traceId:aaaa, service:foo, name:GET),
+ *                            spanB(time:July 4, traceId:aaaa, service:bar, name:GET) ))
+ *    bbbb --> Trace(key: <July 5,bbbb>, spanNamesByService: (biz: (GET), foo: (POST)),
+ *                   spans: ( spanD(time:July 5, traceId:bbbb, service:biz, name:GET),
+ *                            spanE(time:July 6, traceId:bbbb, service:foo, name:POST) ))
+ *    cccc --> Trace(key: <July 4,cccc>, spanNamesByService: (foo: (GET)),
+ *                   spans: ( spanC(time:July 4, traceId:cccc, service:foo, name:GET) ))
  *
- * traceIdToTraceIdTimeStamps:
- *    aaaa --> [ <aaaa,July 4> ]
- *    bbbb --> [ <bbbb,July 5>, <bbbb,July 6> ]
- *    cccc --> [ <cccc,July 4> ]
+ * traceKeys (descending by timestamp, then trace ID):
+ *    <July 5,bbbb>, <July 4,cccc>, <July 4,aaaa>
  *
- * serviceToTraceIds:
- *    foo --> [ <aaaa>, <cccc>, <bbbb> ]
- *    bar --> [ <aaaa> ]
- *    biz --> [ <bbbb> ]
- *
- * serviceToSpanNames:
- *    bar --> ( GET )
- *    biz --> ( GET )
- *    foo --> ( GET, POST )
+ * serviceIndexes:
+ *    bar --> traceKeys: [ <July 4,aaaa> ], spanNames: ( GET: 1 )
+ *    biz --> traceKeys: [ <July 5,bbbb> ], spanNames: ( GET: 1 )
+ *    foo --> traceKeys: [ <July 5,bbbb>, <July 4,cccc>, <July 4,aaaa> ],
+ *            spanNames: ( GET: 2, POST: 1 )
  * }</pre>
+ *
+ * <p>A trace's key is the earliest timestamp of its spans or their annotations. Spans are held by a
+ * stripe selected by trace ID, and the stripe's lock is only held while adding spans or copying
+ * them out. Indexes are concurrent, so queries and dependency linking don't block ingestion.
+ * Queries are weakly consistent: a trace updated while a query is in progress might not be
+ * included in its results.
+ *
+ * <p>Queries iterate a range of trace keys, ending at the query's end timestamp. As a trace's
+ * matching timestamp can be later than its key, the range extends before the query's start by the
+ * largest distance between the earliest and latest timestamp of a trace still held, rounded up to
+ * a power of two. Each stripe counts its traces by this distance, so the range shrinks again when
+ * a long trace is evicted. Each trace records its latest timestamp, longest duration and span
+ * names, so that most non-matches are skipped before spans are copied or decoded.
+ *
+ * <p>Dependency links are summed per trace into {@link DependencyLinkBuckets}. Adding spans only
+ * queues the trace as changed, once until it is next linked. Changed traces are re-linked outside
+ * the stripe lock when dependencies are read, or when the queue holds more entries than there can
+ * be traces, so ingesting a trace in many small batches doesn't re-link it each time. Evicting a
+ * trace subtracts its links, so nothing is retained for traces that are no longer stored.
+ *
+ * <p>Each trace records the service and span names it contributed to indexes, and span names are
+ * counted by the traces that include them. This allows an evicted trace to be unindexed without
+ * scanning other services or traces.
+ *
+ * <p>When {@link InMemoryStorage.Builder#maxSpanBytes(long)} is set, spans are kept thrift-encoded
+ * in a {@link SpanArena} and traces hold positions in it instead of span objects. Spans are only
+ * decoded when read. When the arena overwrites its oldest records, the traces they belong to are
+ * evicted, regardless of timestamp.
  */
 public final class InMemorySpanStore implements SpanStore {
+  static final AtomicIntegerFieldUpdater<InMemorySpanStore> ACCEPTED_SPAN_COUNT =
+      AtomicIntegerFieldUpdater.newUpdater(InMemorySpanStore.class, "acceptedSpanCount");
+
   /**
-   * Primary source of data is this map, which includes spans ordered descending by timestamp. All
-   * other maps are derived from the span values here. This uses a list for the spans, so that it is
-   * visible (via /api/v1/trace/id?raw) when instrumentation report the same spans multiple times.
-   *
-   * <p>In the future, we will bound data. This implies some mechanism of cascading deletes based on
-   * the pair used as the key here. One implementation could be to make one dataset have a strong
-   * reference to the pair of (traceId, timestamp), and others weak. For example, making this a
-   * weak reference and traceIdToTraceIdTimeStamps a strong one. In that case, deleting the trace ID
-   * from traceIdToTraceIdTimeStamps would lead to a purge of spans at GC time.
+   * Primary source of data is these stripes, which hold spans grouped by trace. All indexes are
+   * derived from the traces here. This uses a list for the spans, so that it is visible (via
+   * /api/v1/trace/id?raw) when instrumentation report the same spans multiple times.
    */
-  private final SortedMultimap<Pair<Long>, Span> spansByTraceIdTimeStamp =
-      new LinkedListSortedMultimap<>(VALUE_2_DESCENDING);
-
-  /** This supports span lookup by {@link zipkin.Span#traceId lower 64-bits of the trace ID} */
-  private final SortedMultimap<Long, Pair<Long>> traceIdToTraceIdTimeStamps =
-      new LinkedHashSetSortedMultimap<>(Long::compareTo);
-  /** This is an index of {@link Span#traceId} by {@link zipkin.Endpoint#serviceName service name} */
-  private final ServiceNameToTraceIds serviceToTraceIds = new ServiceNameToTraceIds();
-  /** This is an index of {@link Span#name} by {@link zipkin.Endpoint#serviceName service name} */
-  private final SortedMultimap<String, String> serviceToSpanNames =
-      new LinkedHashSetSortedMultimap<>(String::compareTo);
+  private final TraceStripe[] stripes;
+  /** All trace keys, ordered descending by timestamp, which is also the order of eviction */
+  private final ConcurrentSkipListSet<TraceKey> traceKeys = new ConcurrentSkipListSet<>();
+  /** This is an index of trace keys and span names by {@link zipkin.Endpoint#serviceName} */
+  private final ConcurrentSkipListMap<String, ServiceIndex> serviceIndexes =
+      new ConcurrentSkipListMap<>();
+  /** Spans stored or about to be stored. Eviction is based on this value */
+  private final AtomicInteger spanCount = new AtomicInteger();
+  /** Ensures only one thread evicts at a time */
+  private final Object evictLock = new Object();
+  /** Links of traces last linked, summed by timestamp */
+  private final DependencyLinkBuckets linkBuckets = new DependencyLinkBuckets();
+  /** IDs of traces changed since they were last linked. Some may have been evicted since */
+  final ConcurrentLinkedQueue<Long> changedTraceIds = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger changedTraceCount = new AtomicInteger();
+  /** When present, spans are stored encoded here as opposed to on the heap */
+  @Nullable private final SpanArena arena;
 
   private final boolean strictTraceId;
   final int maxSpanCount;
@@ -102,6 +135,11 @@ public final class InMemorySpanStore implements SpanStore {
   InMemorySpanStore(InMemoryStorage.Builder builder) {
     this.strictTraceId = builder.strictTraceId;
     this.maxSpanCount = builder.maxSpanCount;
+    int stripeCount = 1;
+    while (stripeCount < builder.concurrencyLevel) stripeCount <<= 1;
+    this.stripes = new TraceStripe[stripeCount];
+    for (int i = 0; i < stripeCount; i++) stripes[i] = new TraceStripe();
+    this.arena = builder.maxSpanBytes > 0 ? new SpanArena(builder.maxSpanBytes) : null;
   }
 
   final StorageAdapters.SpanConsumer spanConsumer = new StorageAdapters.SpanConsumer() {
@@ -122,73 +160,251 @@ public final class InMemorySpanStore implements SpanStore {
    * @deprecated use {@link #getRawTraces()}
    */
   @Deprecated
-  public synchronized List<Long> traceIds() {
-    return sortedList(traceIdToTraceIdTimeStamps.keySet());
+  public List<Long> traceIds() {
+    List<Long> result = new ArrayList<>();
+    for (TraceKey traceKey : traceKeys) result.add(traceKey.traceId);
+    return sortedList(result);
   }
 
-  synchronized void clear() {
-    acceptedSpanCount = 0;
-    traceIdToTraceIdTimeStamps.clear();
-    spansByTraceIdTimeStamp.clear();
-    serviceToTraceIds.clear();
-    serviceToSpanNames.clear();
+  void clear() {
+    synchronized (evictLock) {
+      for (TraceStripe stripe : stripes) {
+        synchronized (stripe) {
+          stripe.traces.clear();
+          stripe.clearSpreads();
+        }
+      }
+      traceKeys.clear();
+      serviceIndexes.clear();
+      linkBuckets.clear();
+      changedTraceIds.clear();
+      changedTraceCount.set(0);
+      if (arena != null) arena.clear();
+      spanCount.set(0);
+      acceptedSpanCount = 0;
+    }
   }
 
-  synchronized void addSpans(List<Span> spans) {
-    int delta = spans.size();
-    int spansToRecover = (spansByTraceIdTimeStamp.size() + delta) - maxSpanCount;
-    evictToRecoverSpans(spansToRecover);
+  void addSpans(List<Span> spans) {
+    spanCount.addAndGet(spans.size());
+    synchronized (evictLock) {
+      evictToRecoverSpans(spanCount.get() - maxSpanCount);
+    }
     for (Span span : spans) {
-      Long timestamp = guessTimestamp(span);
-      Pair<Long> traceIdTimeStamp =
-        Pair.create(span.traceId, timestamp == null ? Long.MIN_VALUE : timestamp);
-      String spanName = span.name;
-      spansByTraceIdTimeStamp.put(traceIdTimeStamp, span);
-      traceIdToTraceIdTimeStamps.put(span.traceId, traceIdTimeStamp);
-      acceptedSpanCount++;
-
-      for (String serviceName : span.serviceNames()) {
-        serviceToTraceIds.put(serviceName, span.traceId);
-        serviceToSpanNames.put(serviceName, spanName);
+      long position = -1L;
+      if (arena != null) {
+        position = arena.append(span.traceId, Codec.THRIFT.writeSpan(span), arenaEvictor);
+      }
+      TraceStripe stripe = stripe(span.traceId);
+      boolean added;
+      synchronized (stripe) {
+        added = addSpan(stripe, span, position);
+      }
+      if (added) {
+        ACCEPTED_SPAN_COUNT.incrementAndGet(this);
+      } else {
+        spanCount.decrementAndGet();
+      }
+    }
+    // live traces can't outnumber spans, so the excess are evicted traces that only use memory
+    if (changedTraceCount.get() > maxSpanCount) linkChangedTraces();
+  }
+
+  /**
+   * Adds the span and updates indexes. Called while holding the stripe's lock.
+   *
+   * @param position where the span was written in the arena, if in use.
+   * @return false if the span couldn't be stored in the arena.
+   */
+  boolean addSpan(TraceStripe stripe, Span span, long position) {
+    if (arena != null && position < arena.head) return false; // too large or already overwritten
+    Trace trace = stripe.traces.get(span.traceId);
+    if (trace == null) stripe.traces.put(span.traceId, trace = new Trace(arena == null));
+    if (arena == null) {
+      trace.addSpan(span);
+    } else {
+      trace.addPosition(position);
+    }
+
+    long minTimestamp = Long.MAX_VALUE, maxTimestamp = Long.MIN_VALUE;
+    if (span.timestamp != null) {
+      minTimestamp = span.timestamp;
+      maxTimestamp = span.timestamp + (span.duration != null ? span.duration : 0L);
+    }
+    for (int i = 0, length = span.annotations.size(); i < length; i++) {
+      long timestamp = span.annotations.get(i).timestamp;
+      if (timestamp < minTimestamp) minTimestamp = timestamp;
+      if (timestamp > maxTimestamp) maxTimestamp = timestamp;
+    }
+    boolean hasTimestamp = minTimestamp != Long.MAX_VALUE;
+
+    TraceKey oldKey = trace.key, newKey = oldKey;
+    if (oldKey == null) {
+      newKey = new TraceKey(hasTimestamp ? minTimestamp : Long.MIN_VALUE, span.traceId);
+    } else if (hasTimestamp
+        && (oldKey.timestamp == Long.MIN_VALUE || minTimestamp < oldKey.timestamp)) {
+      newKey = new TraceKey(minTimestamp, span.traceId);
+    }
+
+    if (maxTimestamp > trace.maxTimestamp) trace.maxTimestamp = maxTimestamp;
+    if (span.duration != null && span.duration > trace.maxDuration) {
+      trace.maxDuration = span.duration;
+    }
+    trace.spanNames.add(span.name);
+    trace.modCount++;
+    if (!trace.changed) {
+      trace.changed = true;
+      changedTraceIds.add(span.traceId);
+      changedTraceCount.incrementAndGet();
+    }
+    if (hasTimestamp) stripe.updateSpread(trace, trace.maxTimestamp - newKey.timestamp);
+
+    if (!newKey.equals(oldKey)) {
+      // add the new key before removing the old, so readers don't miss it
+      traceKeys.add(newKey);
+      if (oldKey != null) traceKeys.remove(oldKey);
+      for (String serviceName : trace.spanNamesByService.keySet()) {
+        index(serviceName, newKey, oldKey, null);
+      }
+      trace.key = newKey;
+    }
+
+    for (String serviceName : span.serviceNames()) {
+      Set<String> spanNames = trace.spanNamesByService.get(serviceName);
+      boolean newService = spanNames == null;
+      if (newService) trace.spanNamesByService.put(serviceName, spanNames = new LinkedHashSet<>());
+      boolean newSpanName = spanNames.add(span.name);
+      if (newService || newSpanName) {
+        index(serviceName, newService ? newKey : null, null, newSpanName ? span.name : null);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns at least the largest difference between the earliest and latest timestamp of any
+   * trace held. This is a power of two minus one, as stripes count traces by the spread's bit
+   * length.
+   */
+  long maxTraceTimestampSpread() {
+    int bits = 0;
+    for (TraceStripe stripe : stripes) bits = Math.max(bits, stripe.maxSpreadBits);
+    return bits == 0 ? 0L : (1L << bits) - 1L;
+  }
+
+  /**
+   * Adds or replaces a trace key in the service's index, retrying if the index was removed. When
+   * present, the span name's trace count is incremented.
+   */
+  void index(String serviceName, @Nullable TraceKey add, @Nullable TraceKey remove,
+      @Nullable String spanName) {
+    while (true) {
+      ServiceIndex index = serviceIndexes.get(serviceName);
+      if (index == null) {
+        ServiceIndex newIndex = new ServiceIndex();
+        index = serviceIndexes.putIfAbsent(serviceName, newIndex);
+        if (index == null) index = newIndex;
+      }
+      synchronized (index) {
+        if (index.removed) continue;
+        if (add != null) index.traceKeys.add(add);
+        if (remove != null) index.traceKeys.remove(remove);
+        if (spanName != null) {
+          Integer count = index.spanNames.get(spanName);
+          index.spanNames.put(spanName, count == null ? 1 : count + 1);
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * Removes a trace key and its span names from the service's index, removing the service if it is
+   * orphaned.
+   */
+  void unindex(String serviceName, TraceKey traceKey, Set<String> spanNames) {
+    ServiceIndex index = serviceIndexes.get(serviceName);
+    if (index == null) return;
+    synchronized (index) {
+      index.traceKeys.remove(traceKey);
+      for (String spanName : spanNames) {
+        Integer count = index.spanNames.get(spanName);
+        if (count == null) continue;
+        if (count == 1) {
+          index.spanNames.remove(spanName);
+        } else {
+          index.spanNames.put(spanName, count - 1);
+        }
+      }
+      if (index.traceKeys.isEmpty()) {
+        index.removed = true;
+        serviceIndexes.remove(serviceName, index);
       }
     }
   }
 
   /** Returns the count of spans evicted. */
   int evictToRecoverSpans(int spansToRecover) {
-    int spansEvicted = 0;
-    while (spansToRecover > 0) {
-      int spansInOldestTrace = deleteOldestTrace();
-      spansToRecover -= spansInOldestTrace;
-      spansEvicted += spansInOldestTrace;
+    synchronized (evictLock) {
+      int spansEvicted = 0;
+      while (spansToRecover > 0) {
+        int spansInOldestTrace = deleteOldestTrace();
+        if (spansInOldestTrace == -1) break; // nothing left to evict
+        spansToRecover -= spansInOldestTrace;
+        spansEvicted += spansInOldestTrace;
+      }
+      return spansEvicted;
     }
-    return spansEvicted;
   }
 
-  /** Returns the count of spans evicted. */
+  /** Returns the count of spans evicted, or -1 if there are no traces. */
   private int deleteOldestTrace() {
-    int spansEvicted = 0;
-    long traceId = spansByTraceIdTimeStamp.delegate.lastKey()._1;
-    Collection<Pair<Long>> traceIdTimeStamps = traceIdToTraceIdTimeStamps.remove(traceId);
-    for (Iterator<Pair<Long>> traceIdTimeStampIter = traceIdTimeStamps.iterator();
-      traceIdTimeStampIter.hasNext(); ) {
-      Pair<Long> traceIdTimeStamp = traceIdTimeStampIter.next();
-      Collection<Span> spans = spansByTraceIdTimeStamp.remove(traceIdTimeStamp);
-      spansEvicted += spans.size();
+    TraceKey oldest;
+    while ((oldest = traceKeys.pollLast()) != null) {
+      TraceStripe stripe = stripe(oldest.traceId);
+      synchronized (stripe) {
+        Trace trace = stripe.traces.get(oldest.traceId);
+        // skip a key that was replaced while we weren't holding the stripe's lock
+        if (trace == null || !oldest.equals(trace.key)) continue;
+        removeTrace(stripe, trace);
+        return trace.spanCount;
+      }
     }
-    for (String orphanedService : serviceToTraceIds.removeServiceIfTraceId(traceId)) {
-      serviceToSpanNames.remove(orphanedService);
+    return -1;
+  }
+
+  final SpanArena.Evictor arenaEvictor = new SpanArena.Evictor() {
+    @Override public void evict(long traceId, long position) {
+      TraceStripe stripe = stripe(traceId);
+      synchronized (stripe) {
+        Trace trace = stripe.traces.get(traceId);
+        // skip when the position belongs to a trace with the same ID that was already evicted
+        if (trace == null || trace.minPosition > position) return;
+        removeTrace(stripe, trace);
+      }
+    }
+  };
+
+  /** Removes the trace and its index entries. Called while holding the stripe's lock. */
+  void removeTrace(TraceStripe stripe, Trace trace) {
+    stripe.traces.remove(trace.key.traceId);
+    stripe.removeSpread(trace);
+    traceKeys.remove(trace.key);
+    for (Map.Entry<String, Set<String>> entry : trace.spanNamesByService.entrySet()) {
+      unindex(entry.getKey(), trace.key, entry.getValue());
     }
-    return spansEvicted;
+    spanCount.addAndGet(-trace.spanCount);
+    linkBuckets.replace(trace.links, Collections.<TraceLinks>emptyList());
   }
 
   /**
    * Used for testing. Returns all traces unconditionally.
    */
-  public synchronized List<List<Span>> getRawTraces() {
+  public List<List<Span>> getRawTraces() {
     List<List<Span>> result = new ArrayList<>();
-    for (long traceId : traceIdToTraceIdTimeStamps.keySet()) {
-      Collection<Span> sameTraceId = spansByTraceId(traceId);
+    for (TraceKey traceKey : traceKeys) {
+      List<Span> sameTraceId = spansByTraceKey(traceKey, null);
+      if (sameTraceId == null) continue;
       for (List<Span> next : GroupByTraceId.apply(sameTraceId, strictTraceId, false)) {
         result.add(next);
       }
@@ -198,14 +414,15 @@ public final class InMemorySpanStore implements SpanStore {
   }
 
   @Override
-  public synchronized List<List<Span>> getTraces(QueryRequest request) {
-    Set<Long> traceIdsInTimerange = traceIdsDescendingByTimestamp(request);
-    if (traceIdsInTimerange.isEmpty()) return Collections.emptyList();
+  public List<List<Span>> getTraces(QueryRequest request) {
+    Collection<TraceKey> traceKeysInTimerange = traceKeysDescendingByTimestamp(request);
+    if (traceKeysInTimerange.isEmpty()) return Collections.emptyList();
 
     List<List<Span>> result = new ArrayList<>();
-    for (Iterator<Long> traceId = traceIdsInTimerange.iterator();
-        traceId.hasNext() && result.size() < request.limit; ) {
-      Collection<Span> sameTraceId = spansByTraceId(traceId.next());
+    for (Iterator<TraceKey> traceKey = traceKeysInTimerange.iterator();
+        traceKey.hasNext() && result.size() < request.limit; ) {
+      List<Span> sameTraceId = spansByTraceKey(traceKey.next(), request);
+      if (sameTraceId == null) continue; // can't match, or evicted or updated since we started
       for (List<Span> next : GroupByTraceId.apply(sameTraceId, strictTraceId, true)) {
         if (request.test(next)) {
           result.add(next);
@@ -216,186 +433,313 @@ public final class InMemorySpanStore implements SpanStore {
     return result;
   }
 
-  Set<Long> traceIdsDescendingByTimestamp(QueryRequest request) {
-    Collection<Pair<Long>> traceIdTimestamps = request.serviceName != null
-        ? traceIdTimestampsByServiceName(request.serviceName)
-        : spansByTraceIdTimeStamp.keySet();
+  /** Returns a view of the trace keys that might match the request's time range */
+  Collection<TraceKey> traceKeysDescendingByTimestamp(QueryRequest request) {
+    ConcurrentSkipListSet<TraceKey> keys;
+    if (request.serviceName != null) {
+      ServiceIndex index = serviceIndexes.get(request.serviceName);
+      if (index == null) return Collections.emptySet();
+      keys = index.traceKeys;
+    } else {
+      keys = traceKeys;
+    }
 
     long endTs = request.endTs * 1000;
     long startTs = endTs - request.lookback * 1000;
+    long lowestKey = startTs - maxTraceTimestampSpread();
+    if (lowestKey > startTs) lowestKey = Long.MIN_VALUE; // overflow
+    return keys.subSet(
+        new TraceKey(endTs, Long.MAX_VALUE), true, new TraceKey(lowestKey, Long.MIN_VALUE), true);
+  }
 
-    if (traceIdTimestamps == null || traceIdTimestamps.isEmpty()) return Collections.emptySet();
-    Set<Long> result = new LinkedHashSet<>();
-    for (Pair<Long> traceIdTimestamp : traceIdTimestamps) {
-      if (traceIdTimestamp._2 >= startTs || traceIdTimestamp._2 <= endTs) {
-        result.add(traceIdTimestamp._1);
-      }
+  /** Returns false when the trace cannot match, based on data recorded when spans were added */
+  static boolean mightMatch(Trace trace, QueryRequest request) {
+    long startTs = (request.endTs - request.lookback) * 1000;
+    if (trace.maxTimestamp < startTs) return false;
+    if (request.spanName != null && !trace.spanNames.contains(request.spanName)) return false;
+    if (request.minDuration != null) {
+      long maxDuration = Math.max(trace.maxDuration, trace.maxTimestamp - trace.key.timestamp);
+      if (maxDuration < request.minDuration) return false;
     }
-    return result;
+    return true;
   }
 
-  @Override public synchronized List<Span> getTrace(long traceId) {
+  @Override public List<Span> getTrace(long traceId) {
     return getTrace(0L, traceId);
   }
 
-  @Override public synchronized List<Span> getTrace(long traceIdHigh, long traceIdLow) {
+  @Override public List<Span> getTrace(long traceIdHigh, long traceIdLow) {
     List<Span> result = getRawTrace(traceIdHigh, traceIdLow);
     if (result == null) return null;
     return CorrectForClockSkew.apply(MergeById.apply(result));
   }
 
-  @Override public synchronized List<Span> getRawTrace(long traceId) {
+  @Override public List<Span> getRawTrace(long traceId) {
     return getRawTrace(0L, traceId);
   }
 
-  @Override public synchronized List<Span> getRawTrace(long traceIdHigh, long traceId) {
-    List<Span> spans = (List<Span>) spansByTraceId(traceId);
+  @Override public List<Span> getRawTrace(long traceIdHigh, long traceId) {
+    List<Span> spans = spansByTraceId(traceId);
     if (spans == null || spans.isEmpty()) return null;
     if (!strictTraceId) return sortedList(spans);
 
-    List<Span> filtered = new ArrayList<>(spans);
-    Iterator<Span> iterator = filtered.iterator();
+    Iterator<Span> iterator = spans.iterator();
     while (iterator.hasNext()) {
       if (iterator.next().traceIdHigh != traceIdHigh) {
         iterator.remove();
       }
     }
-    return filtered.isEmpty() ? null : filtered;
+    return spans.isEmpty() ? null : spans;
   }
 
   @Override
-  public synchronized List<String> getServiceNames() {
-    return sortedList(serviceToTraceIds.keySet());
+  public List<String> getServiceNames() {
+    return sortedList(serviceIndexes.keySet());
   }
 
   @Override
-  public synchronized List<String> getSpanNames(String service) {
+  public List<String> getSpanNames(String service) {
     if (service == null) return Collections.emptyList();
     service = service.toLowerCase(); // service names are always lowercase!
-    return sortedList(serviceToSpanNames.get(service));
+    ServiceIndex index = serviceIndexes.get(service);
+    return index != null ? sortedList(index.spanNames.keySet()) : Collections.<String>emptyList();
   }
 
   @Override
-  public synchronized List<DependencyLink> getDependencies(long endTs, @Nullable Long lookback) {
+  public List<DependencyLink> getDependencies(long endTs, @Nullable Long lookback) {
     QueryRequest request = QueryRequest.builder()
         .endTs(endTs)
-        .lookback(lookback)
-        .limit(Integer.MAX_VALUE).build();
+        .lookback(lookback).build();
+
+    linkChangedTraces();
+    return linkBuckets.sum((request.endTs - request.lookback) * 1000, request.endTs * 1000);
+  }
 
-    DependencyLinker linksBuilder = new DependencyLinker();
-    for (Collection<Span> trace : getTraces(request)) {
-      linksBuilder.putTrace(trace);
+  /**
+   * Re-links traces changed before this call. Traces changed meanwhile are left for the next call,
+   * so that a steady stream of spans can't keep this from returning.
+   */
+  void linkChangedTraces() {
+    for (int i = changedTraceCount.get(); i > 0; i--) {
+      Long traceId = changedTraceIds.poll();
+      if (traceId == null) return;
+      changedTraceCount.decrementAndGet();
+      link(traceId);
     }
-    return linksBuilder.link();
   }
 
-  static final class LinkedListSortedMultimap<K, V> extends SortedMultimap<K, V> {
-    LinkedListSortedMultimap(Comparator<K> comparator) {
-      super(comparator);
+  /**
+   * Re-links a trace after spans were added to it, without holding the stripe lock while linking.
+   * If another thread adds to the trace meanwhile, this gives up, as that thread queued it again.
+   */
+  void link(long traceId) {
+    TraceStripe stripe = stripe(traceId);
+    Trace trace;
+    int modCount;
+    List<Span> spans = null;
+    List<byte[]> encoded = null;
+    synchronized (stripe) {
+      trace = stripe.traces.get(traceId);
+      if (trace == null) return; // evicted
+      trace.changed = false;
+      modCount = trace.modCount;
+      if (arena == null) {
+        spans = new ArrayList<>(trace.spans);
+      } else {
+        encoded = readEncoded(trace);
+      }
+    }
+    if (spans == null) spans = decode(encoded);
+
+    List<TraceLinks> links = new ArrayList<>();
+    for (List<Span> next : GroupByTraceId.apply(spans, strictTraceId, true)) {
+      Long timestamp = guessTimestamp(next.get(0));
+      if (timestamp == null) continue;
+      List<DependencyLink> traceLinks = new DependencyLinker().putTrace(next).link();
+      if (!traceLinks.isEmpty()) links.add(new TraceLinks(timestamp, traceLinks));
     }
 
-    @Override Collection<V> valueContainer() {
-      return new LinkedList<>();
+    synchronized (stripe) {
+      // skip if evicted, or changed again, in which case the thread that changed it queued it
+      if (stripe.traces.get(traceId) != trace || trace.modCount != modCount) return;
+      linkBuckets.replace(trace.links, links);
+      trace.links = links;
     }
   }
 
-  static final Comparator<Pair<Long>> VALUE_2_DESCENDING = (left, right) -> {
-    int result = right._2.compareTo(left._2);
-    if (result != 0) return result;
-    return right._1.compareTo(left._1);
-  };
-
-  static final class ServiceNameToTraceIds extends SortedMultimap<String, Long> {
-    ServiceNameToTraceIds() {
-      super(String::compareTo);
-    }
+  TraceStripe stripe(long traceId) {
+    return stripes[(int) (traceId ^ (traceId >>> 32)) & (stripes.length - 1)];
+  }
 
-    @Override Set<Long> valueContainer() {
-      return new LinkedHashSet<>();
+  /** Returns a copy of the trace's spans or null if absent. */
+  @Nullable List<Span> spansByTraceId(long traceId) {
+    TraceStripe stripe = stripe(traceId);
+    List<byte[]> encoded;
+    synchronized (stripe) {
+      Trace trace = stripe.traces.get(traceId);
+      if (trace == null) return null;
+      if (arena == null) return new ArrayList<>(trace.spans);
+      encoded = readEncoded(trace);
     }
+    return decode(encoded);
+  }
 
-    /** Returns service names orphaned by removing the trace ID */
-    Set<String> removeServiceIfTraceId(long traceId) {
-      Set<String> result = new LinkedHashSet<>();
-      for (Map.Entry<String, Collection<Long>> entry : delegate.entrySet()) {
-        Collection<Long> traceIds = entry.getValue();
-        if (traceIds.remove(traceId) && traceIds.isEmpty()) {
-          result.add(entry.getKey());
-        }
-      }
-      delegate.keySet().removeAll(result);
-      return result;
+  /**
+   * Returns a copy of the trace's spans or null if it is absent, no longer has this key, or cannot
+   * match the request.
+   */
+  @Nullable List<Span> spansByTraceKey(TraceKey traceKey, @Nullable QueryRequest request) {
+    TraceStripe stripe = stripe(traceKey.traceId);
+    List<byte[]> encoded;
+    synchronized (stripe) {
+      Trace trace = stripe.traces.get(traceKey.traceId);
+      if (trace == null || !traceKey.equals(trace.key)) return null;
+      if (request != null && !mightMatch(trace, request)) return null;
+      if (arena == null) return new ArrayList<>(trace.spans);
+      encoded = readEncoded(trace);
     }
+    return decode(encoded);
   }
 
-  static final class LinkedHashSetSortedMultimap<K, V> extends SortedMultimap<K, V> {
-    LinkedHashSetSortedMultimap(Comparator<K> comparator) {
-      super(comparator);
+  /**
+   * Copies the trace's spans out of the arena. Called while holding the stripe's lock, which
+   * prevents the arena from overwriting them.
+   */
+  List<byte[]> readEncoded(Trace trace) {
+    List<byte[]> result = new ArrayList<>(trace.spanCount);
+    for (int i = 0; i < trace.spanCount; i++) {
+      byte[] next = arena.read(trace.positions[i]);
+      if (next != null) result.add(next);
     }
+    return result;
+  }
 
-    @Override Collection<V> valueContainer() {
-      return new LinkedHashSet<>();
-    }
+  /** Spans are decoded outside the stripe's lock, as it is relatively expensive. */
+  static List<Span> decode(List<byte[]> encoded) {
+    List<Span> result = new ArrayList<>(encoded.size());
+    for (byte[] next : encoded) result.add(Codec.THRIFT.readSpan(next));
+    return result;
   }
 
-  // Not synchronized as every exposed method on the enclosing type is
-  static abstract class SortedMultimap<K, V> {
-    final TreeMap<K, Collection<V>> delegate;
-    int size = 0;
+  /** Guards traces whose lower 64-bits of trace ID hash to this stripe. */
+  static final class TraceStripe {
+    final LongHashMap<Trace> traces = new LongHashMap<>();
+    /** Count of traces by the bit length of their timestamp spread. Guarded by this */
+    final int[] spreadCounts = new int[64];
+    /** Bit length of the largest timestamp spread of any trace in this stripe */
+    volatile int maxSpreadBits;
+
+    /** Called while holding this stripe's lock when a trace's spread may have grown */
+    void updateSpread(Trace trace, long spread) {
+      int bits = 64 - Long.numberOfLeadingZeros(spread);
+      if (bits == trace.spreadBits) return;
+      if (trace.spreadBits != -1) spreadCounts[trace.spreadBits]--;
+      spreadCounts[bits]++;
+      trace.spreadBits = bits;
+      if (bits > maxSpreadBits) maxSpreadBits = bits;
+    }
 
-    SortedMultimap(Comparator<K> comparator) {
-      delegate = new TreeMap<>(comparator);
+    /** Called while holding this stripe's lock when a trace is removed */
+    void removeSpread(Trace trace) {
+      if (trace.spreadBits == -1) return;
+      if (--spreadCounts[trace.spreadBits] > 0 || trace.spreadBits != maxSpreadBits) return;
+      int bits = maxSpreadBits;
+      while (bits > 0 && spreadCounts[bits] == 0) bits--;
+      maxSpreadBits = bits;
     }
 
-    abstract Collection<V> valueContainer();
+    void clearSpreads() {
+      Arrays.fill(spreadCounts, 0);
+      maxSpreadBits = 0;
+    }
+  }
 
-    Set<K> keySet() {
-      return delegate.keySet();
+  /** Spans sharing the lower 64-bits of a trace ID. Guarded by the stripe's lock. */
+  static final class Trace {
+    /** Spans in this trace, or null when they are stored in the arena */
+    @Nullable final List<Span> spans;
+    /** Positions of this trace's spans in the arena, when in use */
+    long[] positions;
+    /** The lowest position in the arena of this trace's spans */
+    long minPosition = Long.MAX_VALUE;
+    int spanCount;
+    /** The latest timestamp of any span, annotation, or span end */
+    long maxTimestamp = Long.MIN_VALUE;
+    /** The longest duration recorded on any span */
+    long maxDuration;
+    /** Bit length of the distance between key and max timestamp, or -1 if neither is known */
+    int spreadBits = -1;
+    /** Names of all spans, including those without a service */
+    final Set<String> spanNames = new LinkedHashSet<>();
+    /** Incremented when a span is added, to detect changes while linking */
+    int modCount;
+    /** True when queued to be linked, so that it is queued once regardless of spans added */
+    boolean changed;
+    /** Links added to {@link DependencyLinkBuckets} when this trace was last linked */
+    List<TraceLinks> links = Collections.emptyList();
+    /** The service and span names this trace contributed to indexes, used when it is evicted */
+    final Map<String, Set<String>> spanNamesByService = new LinkedHashMap<>();
+    TraceKey key;
+
+    Trace(boolean onHeap) {
+      spans = onHeap ? new ArrayList<Span>() : null;
+      positions = onHeap ? null : new long[4];
     }
 
-    int size() {
-      return size;
+    void addSpan(Span span) {
+      spans.add(span);
+      spanCount++;
     }
 
-    void put(K key, V value) {
-      Collection<V> valueContainer = delegate.get(key);
-      if (valueContainer == null) {
-        delegate.put(key, valueContainer = valueContainer());
-      }
-      if (valueContainer.add(value)) size++;
+    void addPosition(long position) {
+      if (spanCount == positions.length) positions = Arrays.copyOf(positions, spanCount * 2);
+      positions[spanCount++] = position;
+      if (position < minPosition) minPosition = position;
     }
+  }
 
-    Collection<V> remove(K key) {
-      Collection<V> value = delegate.remove(key);
-      if (value != null) size -= value.size();
-      return value;
+  /** Guarded by its own lock when written, as it can be removed once there are no trace keys. */
+  static final class ServiceIndex {
+    final ConcurrentSkipListSet<TraceKey> traceKeys = new ConcurrentSkipListSet<>();
+    /** Count of traces that include each span name */
+    final ConcurrentSkipListMap<String, Integer> spanNames = new ConcurrentSkipListMap<>();
+    boolean removed;
+  }
+
+  /** Orders traces descending by timestamp, then trace ID. */
+  static final class TraceKey implements Comparable<TraceKey> {
+    final long timestamp;
+    final long traceId;
+
+    TraceKey(long timestamp, long traceId) {
+      this.timestamp = timestamp;
+      this.traceId = traceId;
     }
 
-    void clear() {
-      delegate.clear();
-      size = 0;
+    @Override public int compareTo(TraceKey that) {
+      if (this.timestamp != that.timestamp) return this.timestamp < that.timestamp ? 1 : -1;
+      if (this.traceId != that.traceId) return this.traceId < that.traceId ? 1 : -1;
+      return 0;
     }
 
-    Collection<V> get(K key) {
-      Collection<V> result = delegate.get(key);
-      return result != null ? result : Collections.emptySet();
+    @Override public boolean equals(Object o) {
+      if (o == this) return true;
+      if (!(o instanceof TraceKey)) return false;
+      TraceKey that = (TraceKey) o;
+      return this.timestamp == that.timestamp && this.traceId == that.traceId;
     }
-  }
 
-  private Collection<Span> spansByTraceId(long traceId) {
-    Collection<Span> sameTraceId = new ArrayList<>();
-    for (Pair<Long> traceIdTimestamp : traceIdToTraceIdTimeStamps.get(traceId)) {
-      sameTraceId.addAll(spansByTraceIdTimeStamp.get(traceIdTimestamp));
+    @Override public int hashCode() {
+      int h = 1;
+      h *= 1000003;
+      h ^= (int) (timestamp ^ (timestamp >>> 32));
+      h *= 1000003;
+      h ^= (int) (traceId ^ (traceId >>> 32));
+      return h;
     }
-    return sameTraceId;
-  }
 
-  private Collection<Pair<Long>> traceIdTimestampsByServiceName(String serviceName) {
-    List<Pair<Long>> traceIdTimestamps = new ArrayList<>();
-    for (long traceId : serviceToTraceIds.get(serviceName)) {
-      traceIdTimestamps.addAll(traceIdToTraceIdTimeStamps.get(traceId));
+    @Override public String toString() {
+      return "TraceKey(" + timestamp + ", " + traceId + ")";
     }
-    Collections.sort(traceIdTimestamps, VALUE_2_DESCENDING);
-    return traceIdTimestamps;
   }
 }
@@ -28,6 +28,8 @@ public final class InMemoryStorage implements StorageComponent {
   public static final class Builder implements StorageComponent.Builder {
     boolean strictTraceId = true;
     int maxSpanCount = 500000;
+    int concurrencyLevel = 1;
+    long maxSpanBytes = 0;
 
     /** {@inheritDoc} */
     @Override public Builder strictTraceId(boolean strictTraceId) {
@@ -42,6 +44,32 @@ public final class InMemoryStorage implements StorageComponent {
       return this;
     }
 
+    /**
+     * The estimated count of threads storing spans at the same time. Defaults to 1.
+     *
+     * <p>Traces are partitioned by ID into this many lock stripes, rounded up to a power of two.
+     * Regardless of this value, queries do not block storage, nor each other.
+     */
+    public Builder concurrencyLevel(int concurrencyLevel) {
+      checkArgument(concurrencyLevel > 0, "concurrencyLevel <= 0");
+      this.concurrencyLevel = concurrencyLevel;
+      return this;
+    }
+
+    /**
+     * When positive, spans are stored thrift-encoded in direct memory of this size, as opposed to
+     * on the heap. Defaults to zero, which keeps spans on the heap.
+     *
+     * <p>This bounds memory used by spans even when their sizes vary. When full, the traces
+     * including the earliest stored spans are evicted. {@link #maxSpanCount(int)} still applies.
+     * Note the JVM limits direct memory, for example via {@code -XX:MaxDirectMemorySize}.
+     */
+    public Builder maxSpanBytes(long maxSpanBytes) {
+      checkArgument(maxSpanBytes >= 0, "maxSpanBytes < 0");
+      this.maxSpanBytes = maxSpanBytes;
+      return this;
+    }
+
     @Override
     public InMemoryStorage build() {
       return new InMemoryStorage(this);
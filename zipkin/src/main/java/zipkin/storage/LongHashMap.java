@@ -0,0 +1,111 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.storage;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map keyed on a primitive long, which avoids boxing trace IDs.
+ *
+ * <p>Values cannot be null, as a null value marks an empty slot. This is not thread-safe.
+ */
+final class LongHashMap<V> {
+  static final int MIN_CAPACITY = 16;
+
+  long[] keys;
+  Object[] values;
+  int size;
+
+  LongHashMap() {
+    keys = new long[MIN_CAPACITY];
+    values = new Object[MIN_CAPACITY];
+  }
+
+  int size() {
+    return size;
+  }
+
+  V get(long key) {
+    int mask = keys.length - 1;
+    for (int i = hash(key) & mask; values[i] != null; i = (i + 1) & mask) {
+      if (keys[i] == key) return (V) values[i];
+    }
+    return null;
+  }
+
+  /** Returns the value previously associated with the key, or null if there was none. */
+  V put(long key, V value) {
+    if (value == null) throw new NullPointerException("value == null");
+    int mask = keys.length - 1;
+    int i = hash(key) & mask;
+    for (; values[i] != null; i = (i + 1) & mask) {
+      if (keys[i] == key) {
+        V result = (V) values[i];
+        values[i] = value;
+        return result;
+      }
+    }
+    keys[i] = key;
+    values[i] = value;
+    if (++size > keys.length * 3 / 4) resize(keys.length * 2);
+    return null;
+  }
+
+  /** Returns the value removed, or null if there was none. */
+  V remove(long key) {
+    int mask = keys.length - 1;
+    int i = hash(key) & mask;
+    for (; values[i] != null; i = (i + 1) & mask) {
+      if (keys[i] == key) break;
+    }
+    V result = (V) values[i];
+    if (result == null) return null;
+
+    // Shift back any entries whose probe sequence passes through the slot we are emptying
+    for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+      int ideal = hash(keys[j]) & mask;
+      if (i <= j ? (ideal <= i || ideal > j) : (ideal <= i && ideal > j)) {
+        keys[i] = keys[j];
+        values[i] = values[j];
+        i = j;
+      }
+    }
+    values[i] = null;
+    size--;
+    return result;
+  }
+
+  void clear() {
+    if (size == 0) return;
+    Arrays.fill(values, null);
+    size = 0;
+  }
+
+  void resize(int capacity) {
+    long[] oldKeys = keys;
+    Object[] oldValues = values;
+    keys = new long[capacity];
+    values = new Object[capacity];
+    size = 0;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldValues[i] != null) put(oldKeys[i], (V) oldValues[i]);
+    }
+  }
+
+  /** Spreads trace IDs, which are usually random, but not always. */
+  static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+}
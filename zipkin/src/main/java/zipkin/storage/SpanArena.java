@@ -0,0 +1,158 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Ring buffer of encoded spans in direct memory, which bounds storage by bytes instead of span
+ * count.
+ *
+ * <p>Each record is an int length, the lower 64-bits of the trace ID and the encoded span. Records
+ * are addressed by a position that only increases, so that a stale position can be detected by
+ * comparing it to {@link #head}. Memory is split into segments, as a buffer cannot exceed 2GiB.
+ * Records do not span segments: when a record doesn't fit, the remainder of the segment is
+ * skipped. The last segment is only as large as needed to stay within the byte budget, but is
+ * addressed as if full-sized: positions past its end are skipped the same way.
+ *
+ * <p>When there's no room for a record, the oldest records are overwritten. Before that happens,
+ * the {@link Evictor} is told which trace each overwritten record belonged to.
+ */
+final class SpanArena {
+  static final int MAX_SEGMENT_SIZE = 1 << 30;
+  static final int HEADER_SIZE = 4 + 8;
+  static final int PADDING = -1;
+
+  interface Evictor {
+    /**
+     * Invoked after the record at this position can no longer be read, but before it is
+     * overwritten. Implementations must evict the trace if it may still reference the position.
+     */
+    void evict(long traceId, long position);
+  }
+
+  final ByteBuffer[] segments;
+  /** Duplicates of segments, only used when holding the lock on this arena */
+  final ByteBuffer[] writeSegments;
+  final int segmentSize;
+  final int lastSegmentSize;
+  /** Range of positions addressing all segments, including those skipped in the last one */
+  final long capacity;
+  /** Position of the oldest record that can be read */
+  volatile long head;
+  /** Position where the next record will be written. Guarded by this */
+  long tail;
+
+  SpanArena(long maxBytes) {
+    this(maxBytes, MAX_SEGMENT_SIZE);
+  }
+
+  SpanArena(long maxBytes, int maxSegmentSize) {
+    segmentSize = (int) Math.min(maxBytes, maxSegmentSize);
+    int segmentCount = (int) ((maxBytes + segmentSize - 1) / segmentSize);
+    lastSegmentSize = (int) (maxBytes - (long) (segmentCount - 1) * segmentSize);
+    segments = new ByteBuffer[segmentCount];
+    writeSegments = new ByteBuffer[segmentCount];
+    for (int i = 0; i < segmentCount; i++) {
+      int size = i == segmentCount - 1 ? lastSegmentSize : segmentSize;
+      segments[i] = ByteBuffer.allocateDirect(size);
+      writeSegments[i] = segments[i].duplicate();
+    }
+    capacity = (long) segmentSize * segmentCount;
+  }
+
+  /**
+   * Writes the encoded span, overwriting the oldest records if there's no room.
+   *
+   * @return the position of the record, or -1 if it is larger than a segment
+   */
+  synchronized long append(long traceId, byte[] encoded, Evictor evictor) {
+    int length = HEADER_SIZE + encoded.length;
+    if (length > segmentSize) return -1;
+
+    int tailOffset = offset(tail);
+    long position = tail;
+    // the first segment always fits, so this skips at most the last segment
+    while (limit(position) - offset(position) < length) {
+      position += segmentSize - offset(position);
+    }
+
+    while (position + length - head > capacity) {
+      if (head >= tail) { // everything written is unreadable, so skip ahead
+        head = position + length - capacity;
+        break;
+      }
+      advanceHead(evictor);
+    }
+
+    if (position != tail && limit(tail) - tailOffset >= HEADER_SIZE) {
+      writeSegments[segment(tail)].putInt(tailOffset, PADDING);
+    }
+    ByteBuffer segment = writeSegments[segment(position)];
+    int offset = offset(position);
+    segment.putInt(offset, encoded.length);
+    segment.putLong(offset + 4, traceId);
+    segment.position(offset + HEADER_SIZE);
+    segment.put(encoded);
+    tail = position + length;
+    return position;
+  }
+
+  /** Makes the record at the head unreadable, then evicts its trace */
+  void advanceHead(Evictor evictor) {
+    long position = head;
+    int offset = offset(position);
+    ByteBuffer segment = writeSegments[segment(position)];
+    int length = limit(position) - offset < HEADER_SIZE ? PADDING : segment.getInt(offset);
+    if (length == PADDING) {
+      head = position + segmentSize - offset;
+      return;
+    }
+    long traceId = segment.getLong(offset + 4);
+    head = position + HEADER_SIZE + length;
+    evictor.evict(traceId, position);
+  }
+
+  /**
+   * Returns the encoded span at the position, or null if it is no longer readable. Callers must
+   * ensure the record isn't overwritten while reading, by holding a lock the evictor needs.
+   */
+  byte[] read(long position) {
+    if (position < head) return null;
+    ByteBuffer segment = segments[segment(position)].duplicate();
+    int offset = offset(position);
+    byte[] result = new byte[segment.getInt(offset)];
+    segment.position(offset + HEADER_SIZE);
+    segment.get(result);
+    return result;
+  }
+
+  /** Makes all records unreadable. Positions are not reused, so stale ones remain detectable. */
+  synchronized void clear() {
+    head = tail;
+  }
+
+  int segment(long position) {
+    return (int) ((position / segmentSize) % segments.length);
+  }
+
+  int offset(long position) {
+    return (int) (position % segmentSize);
+  }
+
+  /** Returns the size of the segment the position is in */
+  int limit(long position) {
+    return segment(position) == segments.length - 1 ? lastSegmentSize : segmentSize;
+  }
+}
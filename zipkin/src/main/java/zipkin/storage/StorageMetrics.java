@@ -0,0 +1,32 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.storage;
+
+import java.util.Map;
+
+/**
+ * Optionally implemented by a {@link StorageComponent} that keeps statistics about its requests,
+ * such as how many writes were batched or rejected.
+ *
+ * <p>Zipkin Server exports these to its "/metrics" endpoint, as gauges prefixed with
+ * "gauge.zipkin_storage.".
+ */
+public interface StorageMetrics {
+
+  /**
+   * Returns the current value of each statistic, keyed by name in lower-underscore case, such as
+   * "rejected_writes". This is empty until the component has been used.
+   */
+  Map<String, Number> metrics();
+}
@@ -13,30 +13,43 @@
  */
 package zipkin.collector;
 
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.junit.Test;
+import zipkin.Codec;
+import zipkin.internal.EncodedSpanList;
+import zipkin.storage.AsyncSpanConsumer;
 import zipkin.storage.Callback;
 import zipkin.storage.InMemoryStorage;
 import zipkin.Span;
+import zipkin.storage.StorageComponent;
 
 import static java.util.Arrays.asList;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 import static zipkin.storage.Callback.NOOP;
 import static zipkin.TestObjects.span;
 
 public class CollectorTest {
   List<String> messages = new ArrayList<>();
 
-  Collector collector = new Collector.Builder(new Logger("", null) {
+  Logger logger = new Logger("", null) {
     @Override
     public void log(Level level, String msg, Throwable thrown) {
       assertThat(level).isEqualTo(Level.WARNING);
       messages.add(msg);
     }
-  }).storage(new InMemoryStorage()).build();
+  };
+  Collector collector = new Collector.Builder(logger).storage(new InMemoryStorage()).build();
 
   Span span1 = Span.builder().traceId(1L).id(1L).name("foo").build();
   Span span2 = Span.builder().traceId(1L).parentId(1L).id(2L).name("bar").build();
@@ -127,6 +140,19 @@ public class CollectorTest {
     assertThat(collector.storage.spanStore().getServiceNames()).containsExactly("service");
   }
 
+  @Test
+  public void acceptSpans_inputStreamStoredInChunks() {
+    InMemoryCollectorMetrics metrics = new InMemoryCollectorMetrics();
+    collector = new Collector.Builder(logger).metrics(metrics).storage(pendingStorage).build();
+    byte[] bytes = Codec.THRIFT.writeSpans(asList(span1, span2));
+
+    collector.acceptSpans(new ByteArrayInputStream(bytes), Codec.THRIFT, 1, NOOP);
+
+    assertThat(storageRequests).containsExactly(asList(span1), asList(span2));
+    assertThat(metrics.bytes()).isEqualTo(bytes.length);
+    assertThat(metrics.spans()).isEqualTo(2);
+  }
+
   @Test
   public void unsampledSpansArentStored() {
     collector = Collector.builder(Collector.class)
@@ -137,4 +163,263 @@ public class CollectorTest {
 
     assertThat(collector.storage.spanStore().getServiceNames()).isEmpty();
   }
+
+  /** Storage requests are captured, but never completed */
+  BlockingQueue<List<Span>> storageRequests = new LinkedBlockingQueue<>();
+  StorageComponent pendingStorage = mock(StorageComponent.class);
+
+  {
+    when(pendingStorage.asyncSpanConsumer()).thenReturn(new AsyncSpanConsumer() {
+      @Override public void accept(List<Span> spans, Callback<Void> callback) {
+        storageRequests.add(spans);
+      }
+    });
+  }
+
+  @Test
+  public void queuedSpans_mergedIntoOneStorageRequest() throws InterruptedException {
+    collector = new Collector.Builder(logger)
+        .queuedMaxSpans(10)
+        .messageMaxSpans(2)
+        .messageTimeout(1, TimeUnit.MINUTES)
+        .storage(pendingStorage).build();
+
+    collector.accept(asList(span1), NOOP);
+    collector.accept(asList(span2), NOOP);
+
+    assertThat(storageRequests.poll(10, TimeUnit.SECONDS))
+        .containsExactly(span1, span2);
+  }
+
+  @Test
+  public void settings_queueSpans() throws InterruptedException {
+    collector = new Collector.Builder(logger)
+        .settings(CollectorSettings.builder()
+            .queuedMaxSpans(10)
+            .messageMaxSpans(2)
+            .messageTimeout(1, TimeUnit.MINUTES).build())
+        .storage(pendingStorage).build();
+
+    collector.accept(asList(span1), NOOP);
+    collector.accept(asList(span2), NOOP);
+
+    assertThat(storageRequests.poll(10, TimeUnit.SECONDS))
+        .containsExactly(span1, span2);
+  }
+
+  @Test
+  public void settings_tailSample() throws InterruptedException {
+    collector = new Collector.Builder(logger)
+        .settings(CollectorSettings.builder()
+            .tailSamplingWindow(1, TimeUnit.MINUTES).build())
+        .storage(pendingStorage).build();
+
+    collector.accept(asList(span1), NOOP);
+    assertThat(storageRequests).isEmpty(); // buffered until the window closes
+
+    collector.close(); // decides buffered traces early
+    assertThat(storageRequests.poll(10, TimeUnit.SECONDS)).containsExactly(span1);
+  }
+
+  @Test
+  public void acceptSpans_thriftRetainsEncodedSpans() throws InterruptedException {
+    collector = new Collector.Builder(logger).storage(pendingStorage).build();
+    byte[] bytes = Codec.THRIFT.writeSpans(asList(span1, span2));
+
+    collector.acceptSpans(bytes, Codec.THRIFT, NOOP);
+
+    List<Span> stored = storageRequests.poll();
+    assertThat(stored).containsExactly(span1, span2);
+    assertThat(EncodedSpanList.encoded(stored, 1, Codec.THRIFT))
+        .isEqualTo(ByteBuffer.wrap(Codec.THRIFT.writeSpan(span2)));
+  }
+
+  @Test
+  public void acceptSpans_concatenatedRetainsEncodedSpans() throws InterruptedException {
+    InMemoryCollectorMetrics metrics = new InMemoryCollectorMetrics();
+    collector = new Collector.Builder(logger).metrics(metrics).storage(pendingStorage).build();
+    byte[] bytes1 = Codec.THRIFT.writeSpan(span1), bytes2 = Codec.THRIFT.writeSpan(span2);
+    byte[] buffer = new byte[bytes1.length + bytes2.length];
+    System.arraycopy(bytes1, 0, buffer, 0, bytes1.length);
+    System.arraycopy(bytes2, 0, buffer, bytes1.length, bytes2.length);
+
+    collector.acceptSpans(buffer, new int[] {bytes1.length, buffer.length}, 2, NOOP);
+
+    List<Span> stored = storageRequests.poll();
+    assertThat(stored).containsExactly(span1, span2);
+    assertThat(EncodedSpanList.encoded(stored, 1, Codec.THRIFT))
+        .isEqualTo(ByteBuffer.wrap(bytes2));
+    assertThat(metrics.bytes()).isEqualTo(buffer.length);
+  }
+
+  @Test
+  public void acceptSpans_samplingRetainsEncodedSpans() throws InterruptedException {
+    collector = new Collector.Builder(logger)
+        .sampler(new CollectorSampler() {
+          @Override protected long boundary() {
+            return 0L;
+          }
+
+          @Override public boolean isSampled(Span span) {
+            return span.id == 2L;
+          }
+        }).storage(pendingStorage).build();
+
+    collector.acceptSpans(asList(Codec.THRIFT.writeSpan(span1), Codec.THRIFT.writeSpan(span2)),
+        Codec.THRIFT, NOOP);
+
+    List<Span> stored = storageRequests.poll();
+    assertThat(stored).containsExactly(span2);
+    assertThat(EncodedSpanList.encoded(stored, 0, Codec.THRIFT))
+        .isEqualTo(ByteBuffer.wrap(Codec.THRIFT.writeSpan(span2)));
+  }
+
+  @Test
+  public void queuedSpans_mergeRetainsEncodedSpans() throws InterruptedException {
+    collector = new Collector.Builder(logger)
+        .queuedMaxSpans(10)
+        .messageMaxSpans(2)
+        .messageTimeout(1, TimeUnit.MINUTES)
+        .storage(pendingStorage).build();
+
+    collector.acceptSpans(Codec.THRIFT.writeSpans(asList(span1)), Codec.THRIFT, NOOP);
+    collector.acceptSpans(Codec.THRIFT.writeSpans(asList(span2)), Codec.THRIFT, NOOP);
+
+    List<Span> stored = storageRequests.poll(10, TimeUnit.SECONDS);
+    assertThat(stored).containsExactly(span1, span2);
+    assertThat(EncodedSpanList.encoded(stored, 0, Codec.THRIFT))
+        .isEqualTo(ByteBuffer.wrap(Codec.THRIFT.writeSpan(span1)));
+  }
+
+  @Test
+  public void storeSpans_completesWhenStored() {
+    List<Callback<Void>> storageCallbacks = new ArrayList<>();
+    when(pendingStorage.asyncSpanConsumer())
+        .thenReturn((spans, callback) -> storageCallbacks.add(callback));
+    collector = new Collector.Builder(logger).storage(pendingStorage).build();
+
+    AtomicBoolean stored = new AtomicBoolean();
+    collector.storeSpans(asList(span1), new Callback<Void>() {
+      @Override public void onSuccess(Void value) {
+        stored.set(true);
+      }
+
+      @Override public void onError(Throwable t) {
+      }
+    });
+    assertThat(stored).isFalse();
+
+    storageCallbacks.get(0).onSuccess(null);
+    assertThat(stored).isTrue();
+  }
+
+  @Test
+  public void storeSpans_errorWhenStorageFails() {
+    List<Callback<Void>> storageCallbacks = new ArrayList<>();
+    when(pendingStorage.asyncSpanConsumer())
+        .thenReturn((spans, callback) -> storageCallbacks.add(callback));
+    collector = new Collector.Builder(logger).storage(pendingStorage).build();
+
+    List<Throwable> errors = new ArrayList<>();
+    collector.storeSpans(asList(span1), new Callback<Void>() {
+      @Override public void onSuccess(Void value) {
+      }
+
+      @Override public void onError(Throwable t) {
+        errors.add(t);
+      }
+    });
+    storageCallbacks.get(0).onError(new IllegalStateException("no beer"));
+
+    assertThat(errors).extracting(Throwable::getMessage).containsExactly(
+        "Cannot store spans [0000000000000001.0000000000000001<:0000000000000001] due to IllegalStateException(no beer)");
+  }
+
+  @Test
+  public void storeSpans_redeliveredSpansArentCountedAgain() {
+    List<Callback<Void>> storageCallbacks = new ArrayList<>();
+    when(pendingStorage.asyncSpanConsumer())
+        .thenReturn((spans, callback) -> storageCallbacks.add(callback));
+    InMemoryCollectorMetrics metrics = new InMemoryCollectorMetrics();
+    collector = new Collector.Builder(logger).metrics(metrics).storage(pendingStorage).build();
+
+    collector.storeSpans(asList(span1), false, NOOP);
+    storageCallbacks.get(0).onError(new IllegalStateException("no beer"));
+    collector.storeSpans(asList(span1), true, NOOP);
+    storageCallbacks.get(1).onSuccess(null);
+
+    assertThat(metrics.spans()).isEqualTo(1);
+    assertThat(metrics.spansDropped()).isZero();
+  }
+
+  @Test
+  public void close_storesQueuedSpansAndStopsFlusher() throws InterruptedException {
+    collector = new Collector.Builder(logger)
+        .queuedMaxSpans(10)
+        .messageMaxSpans(2)
+        .messageTimeout(1, TimeUnit.MINUTES)
+        .storage(pendingStorage).build();
+
+    collector.accept(asList(span1), NOOP);
+    collector.close();
+
+    assertThat(storageRequests.poll(10, TimeUnit.SECONDS)).containsExactly(span1);
+    collector.flusher.join(10_000L);
+    assertThat(collector.flusher.isAlive()).isFalse();
+  }
+
+  @Test
+  public void close_rejectsSpans() {
+    collector.close();
+
+    final List<Throwable> errors = new ArrayList<>();
+    collector.accept(asList(span1), new Callback<Void>() {
+      @Override public void onSuccess(Void value) {
+      }
+
+      @Override public void onError(Throwable t) {
+        errors.add(t);
+      }
+    });
+
+    assertThat(errors).extracting(Throwable::getMessage).containsExactly(
+        "Cannot store spans [0000000000000001.0000000000000001<:0000000000000001] due to IllegalStateException(closed)");
+  }
+
+  @Test
+  public void sizeInBytes_usesRetainedEncoding() {
+    byte[] json = Codec.JSON.writeSpan(span1);
+    List<Span> spans = new EncodedSpanList(Codec.JSON, asList(span1), asList(ByteBuffer.wrap(json)));
+
+    assertThat(Collector.sizeInBytes(spans)).isEqualTo(json.length);
+  }
+
+  @Test
+  public void queuedSpans_droppedWhenQueueIsFull() throws InterruptedException {
+    InMemoryCollectorMetrics metrics = new InMemoryCollectorMetrics();
+    collector = new Collector.Builder(logger)
+        .queuedMaxSpans(1)
+        .messageTimeout(0, TimeUnit.MILLISECONDS)
+        .metrics(metrics)
+        .storage(pendingStorage).build();
+
+    collector.accept(asList(span1), NOOP);
+    assertThat(storageRequests.poll(10, TimeUnit.SECONDS))
+        .containsExactly(span1);
+
+    final List<Throwable> errors = new ArrayList<>();
+    collector.accept(asList(span2), new Callback<Void>() {
+      @Override public void onSuccess(Void value) {
+      }
+
+      @Override public void onError(Throwable t) {
+        errors.add(t);
+      }
+    });
+
+    assertThat(errors).extracting(Throwable::getMessage).containsExactly(
+        "Cannot store spans [0000000000000001.0000000000000002<:0000000000000001] due to IllegalStateException(queue is full)");
+    assertThat(metrics.spansDropped()).isEqualTo(1);
+    assertThat(metrics.queuedSpans()).isEqualTo(1);
+  }
 }
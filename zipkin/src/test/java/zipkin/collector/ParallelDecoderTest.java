@@ -0,0 +1,194 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.collector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.junit.After;
+import org.junit.Test;
+import zipkin.Codec;
+import zipkin.Span;
+import zipkin.TestObjects;
+import zipkin.storage.InMemoryStorage;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin.TestObjects.TRACE;
+
+public class ParallelDecoderTest {
+  List<String> messages = new CopyOnWriteArrayList<>();
+  Logger logger = new Logger("", null) {
+    @Override
+    public void log(Level level, String msg, Throwable thrown) {
+      messages.add(msg);
+    }
+  };
+  InMemoryCollectorMetrics metrics = new InMemoryCollectorMetrics();
+  Collector collector = new Collector.Builder(logger)
+      .metrics(metrics)
+      .storage(new InMemoryStorage()).build();
+  DecodeTimings timings = new DecodeTimings();
+  ParallelDecoder decoder = new ParallelDecoder(collector, 4, 100, timings);
+
+  @After public void close() {
+    decoder.close();
+  }
+
+  @Test
+  public void decodesEachEncoding() throws InterruptedException {
+    List<List<Span>> decoded = new CopyOnWriteArrayList<>();
+    CountDownLatch latch = new CountDownLatch(3);
+    ParallelDecoder.SpansConsumer consumer = spans -> {
+      decoded.add(spans);
+      latch.countDown();
+    };
+
+    decoder.decode(0, Codec.JSON.writeSpans(TRACE), consumer);
+    decoder.decode(0, Codec.THRIFT.writeSpans(TRACE), consumer);
+    decoder.decode(0, Codec.THRIFT.writeSpan(TRACE.get(0)), consumer);
+
+    assertThat(latch.await(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(decoded).containsExactly(TRACE, TRACE, asList(TRACE.get(0)));
+  }
+
+  @Test
+  public void consumesInOrderPerPartition() throws InterruptedException {
+    Span[] spans = TestObjects.LOTS_OF_SPANS;
+    List<Long> partition0 = new CopyOnWriteArrayList<>(), partition1 = new CopyOnWriteArrayList<>();
+    CountDownLatch latch = new CountDownLatch(200);
+
+    for (int i = 0; i < 100; i++) {
+      // alternate large and small messages, so that later messages often decode first
+      List<Span> message = i % 2 == 0 ? asList(spans).subList(i * 10, i * 10 + 500)
+          : asList(spans[i]);
+      decoder.decode(0, Codec.JSON.writeSpans(message), s -> {
+        partition0.add(s.get(0).id);
+        latch.countDown();
+      });
+      decoder.decode(1, Codec.THRIFT.writeSpans(message), s -> {
+        partition1.add(s.get(0).id);
+        latch.countDown();
+      });
+    }
+
+    assertThat(latch.await(10, TimeUnit.SECONDS)).isTrue();
+    List<Long> expected = new ArrayList<>();
+    for (int i = 0; i < 100; i++) expected.add(i % 2 == 0 ? spans[i * 10].id : spans[i].id);
+    assertThat(partition0).isEqualTo(expected);
+    assertThat(partition1).isEqualTo(expected);
+
+    // timings are recorded after the consumer returns
+    decoder.pool.shutdown();
+    assertThat(decoder.pool.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(timings.requests()).isEqualTo(200);
+  }
+
+  @Test
+  public void dropsMalformedMessages() throws InterruptedException {
+    List<List<Span>> decoded = new CopyOnWriteArrayList<>();
+    CountDownLatch latch = new CountDownLatch(1);
+
+    decoder.decode(0, asList(new byte[] {'[', 'h', 'i'}, Codec.JSON.writeSpans(TRACE)), s -> {
+      decoded.add(s);
+      latch.countDown();
+    });
+
+    assertThat(latch.await(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(decoded).containsExactly(TRACE);
+    assertThat(metrics.messagesDropped()).isEqualTo(1);
+  }
+
+  @Test
+  public void blocksWhenQueueIsFull() throws InterruptedException {
+    decoder.close();
+    decoder = new ParallelDecoder(collector, 1, 1, timings);
+    CountDownLatch accepting = new CountDownLatch(1), release = new CountDownLatch(1);
+    decoder.decode(0, Codec.JSON.writeSpans(TRACE), s -> {
+      accepting.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    });
+    assertThat(accepting.await(10, TimeUnit.SECONDS)).isTrue();
+
+    Thread blocked = new Thread(() -> {
+      try {
+        decoder.decode(0, Codec.JSON.writeSpans(TRACE), s -> {
+        });
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    });
+    blocked.start();
+    blocked.join(100);
+    assertThat(blocked.isAlive()).isTrue();
+
+    release.countDown();
+    blocked.join(10000);
+    assertThat(blocked.isAlive()).isFalse();
+  }
+
+  @Test
+  public void close_wakesThreadsBlockedInDecode() throws InterruptedException {
+    decoder.close();
+    decoder = new ParallelDecoder(collector, 1, 1, timings);
+    CountDownLatch accepting = new CountDownLatch(1), release = new CountDownLatch(1);
+    decoder.decode(0, Codec.JSON.writeSpans(TRACE), s -> {
+      accepting.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt(); // close interrupts decoding threads
+      }
+    });
+    assertThat(accepting.await(10, TimeUnit.SECONDS)).isTrue();
+
+    List<Throwable> errors = new CopyOnWriteArrayList<>();
+    List<Thread> blocked = new ArrayList<>();
+    for (int i = 0; i < 2; i++) {
+      Thread thread = new Thread(() -> {
+        try {
+          decoder.decode(0, Codec.JSON.writeSpans(TRACE), s -> {
+          });
+        } catch (InterruptedException | RuntimeException e) {
+          errors.add(e);
+        }
+      });
+      thread.start();
+      blocked.add(thread);
+    }
+    blocked.get(0).join(100);
+    assertThat(blocked.get(0).isAlive()).isTrue();
+
+    decoder.close();
+    for (Thread thread : blocked) {
+      thread.join(10000);
+      assertThat(thread.isAlive()).isFalse();
+    }
+    assertThat(errors).hasSize(2).allMatch(e -> e instanceof IllegalStateException);
+    release.countDown();
+  }
+
+  @Test
+  public void registersTimingsWithMetrics() {
+    assertThat(metrics.decodeTimings()).isSameAs(timings);
+  }
+}
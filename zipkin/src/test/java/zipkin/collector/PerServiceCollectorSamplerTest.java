@@ -0,0 +1,170 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.collector;
+
+import java.util.Random;
+import org.junit.Test;
+import zipkin.Annotation;
+import zipkin.BinaryAnnotation;
+import zipkin.Constants;
+import zipkin.Endpoint;
+import zipkin.Span;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin.collector.PerServiceCollectorSampler.BURST_NANOS;
+
+public class PerServiceCollectorSamplerTest {
+  PerServiceCollectorSampler sampler = PerServiceCollectorSampler.builder()
+      .spansPerSecond(100)
+      .build();
+  Random random = new Random(0);
+
+  @Test
+  public void underBudget_keepsAllSpans() {
+    long now = 0;
+    for (int i = 0; i < 500; i++, now += BURST_NANOS / 50) {
+      assertThat(sampler.isSampled(span("web", random.nextLong()), now)).isTrue();
+    }
+
+    assertThat(sampler.keptSpans("web")).isEqualTo(500);
+    assertThat(sampler.droppedSpans("web")).isZero();
+  }
+
+  @Test
+  public void chattyService_doesntLowerOtherServices() {
+    long now = 0;
+    for (int i = 0; i < 100_000; i++, now += BURST_NANOS / 10_000) { // 10 seconds at 10k/s
+      sampler.isSampled(span("chatty", random.nextLong()), now);
+      if (i % 200 == 0) { // 50/s
+        assertThat(sampler.isSampled(span("quiet", random.nextLong()), now)).isTrue();
+      }
+    }
+
+    // After adapting, the chatty service keeps roughly its budget of 100 spans/s
+    long keptLastSecond = -sampler.keptSpans("chatty");
+    for (int i = 0; i < 10_000; i++, now += BURST_NANOS / 10_000) {
+      sampler.isSampled(span("chatty", random.nextLong()), now);
+    }
+    keptLastSecond += sampler.keptSpans("chatty");
+
+    assertThat(keptLastSecond).isBetween(25L, 400L);
+    assertThat(sampler.droppedSpans("chatty")).isGreaterThan(100_000L);
+    assertThat(sampler.droppedSpans("quiet")).isZero();
+  }
+
+  /** The collector needs to apply the same decision to incremental updates in a trace. */
+  @Test
+  public void consistentPerTraceId() {
+    long now = 0;
+    for (int i = 0; i < 20_000; i++, now += BURST_NANOS / 10_000) {
+      long traceId = random.nextLong();
+      assertThat(sampler.isSampled(span("web", traceId), now))
+          .isEqualTo(sampler.isSampled(span("web", traceId), now));
+    }
+  }
+
+  @Test
+  public void consistentPerTraceId_acrossServices() {
+    sampler = PerServiceCollectorSampler.builder()
+        .spansPerSecond(1)
+        .spansPerSecond("web", 100_000)
+        .build();
+
+    long now = 0;
+    for (int i = 0; i < 20_000; i++, now += BURST_NANOS / 10_000) {
+      long traceId = random.nextLong();
+      assertThat(sampler.isSampled(span("web", traceId), now))
+          .isEqualTo(sampler.isSampled(span("db", traceId), now));
+    }
+    assertThat(sampler.droppedSpans("db")).isZero();
+  }
+
+  @Test
+  public void decide_traceIdsDifferingInLowestBitAreDistinct() {
+    long traceId = 1234L << 20;
+
+    assertThat(sampler.decide(traceId, traceId)).isTrue();
+    assertThat(sampler.decide(traceId + 1, traceId)).isFalse();
+
+    // both decisions are remembered, regardless of the boundary
+    assertThat(sampler.decide(traceId, 0L)).isTrue();
+    assertThat(sampler.decide(traceId + 1, Long.MAX_VALUE)).isFalse();
+  }
+
+  @Test
+  public void decide_remembersUnsampledTraceIdsZeroAndOne() {
+    assertThat(sampler.decide(0L, -1L)).isFalse();
+    assertThat(sampler.decide(1L, 0L)).isFalse();
+
+    assertThat(sampler.decide(0L, Long.MAX_VALUE)).isFalse();
+    assertThat(sampler.decide(1L, Long.MAX_VALUE)).isFalse();
+  }
+
+  @Test
+  public void debugWins() {
+    sampler = PerServiceCollectorSampler.builder().spansPerSecond(1).build();
+
+    for (int i = 0; i < 100; i++) {
+      Span span = span("web", random.nextLong()).toBuilder().debug(true).build();
+      assertThat(sampler.isSampled(span, 0)).isTrue();
+    }
+  }
+
+  @Test
+  public void serviceBudgetOverridesDefault() {
+    sampler = PerServiceCollectorSampler.builder()
+        .spansPerSecond(1)
+        .spansPerSecond("Web", 1000)
+        .build();
+
+    long now = 0;
+    for (int i = 0; i < 5000; i++, now += BURST_NANOS / 500) {
+      sampler.isSampled(span("web", random.nextLong()), now);
+      sampler.isSampled(span("api", random.nextLong()), now);
+    }
+
+    assertThat(sampler.droppedSpans("WEB")).isZero();
+    assertThat(sampler.droppedSpans("api")).isPositive();
+  }
+
+  @Test
+  public void localComponent_keysSpansWithoutAnnotations() {
+    Span span = Span.builder().traceId(1L).id(1L).name("compute")
+        .addBinaryAnnotation(BinaryAnnotation.create(Constants.LOCAL_COMPONENT, "worker",
+            Endpoint.create("batch", 127 << 24 | 1)))
+        .build();
+
+    assertThat(PerServiceCollectorSampler.localServiceName(span)).isEqualTo("batch");
+  }
+
+  @Test
+  public void servicesPastMaxShareBucket() {
+    sampler = PerServiceCollectorSampler.builder().maxServices(2).build();
+
+    for (String service : new String[] {"a", "b", "c", "d"}) {
+      sampler.isSampled(span(service, random.nextLong()), 0);
+    }
+    sampler.isSampled(Span.builder().traceId(1L).id(1L).name("get").build(), 0);
+
+    assertThat(sampler.serviceNames()).containsOnly("", "a", "b");
+    assertThat(sampler.keptSpans("")).isEqualTo(3);
+  }
+
+  static Span span(String serviceName, long traceId) {
+    Endpoint endpoint = Endpoint.create(serviceName, 127 << 24 | 1);
+    return Span.builder().traceId(traceId).id(traceId).name("get")
+        .addAnnotation(Annotation.create(1L, Constants.SERVER_RECV, endpoint))
+        .build();
+  }
+}
@@ -0,0 +1,224 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.collector;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import zipkin.Annotation;
+import zipkin.BinaryAnnotation;
+import zipkin.Codec;
+import zipkin.Constants;
+import zipkin.Endpoint;
+import zipkin.Span;
+import zipkin.internal.EncodedSpanList;
+import zipkin.storage.AsyncSpanConsumer;
+import zipkin.storage.Callback;
+import zipkin.storage.StorageComponent;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TailSamplingSpanConsumerTest {
+  Endpoint web = Endpoint.create("web", 127 << 24 | 1);
+  InMemoryCollectorMetrics metrics = new InMemoryCollectorMetrics();
+
+  /** Storage requests are captured, but never completed */
+  BlockingQueue<List<Span>> storageRequests = new LinkedBlockingQueue<>();
+  StorageComponent pendingStorage = mock(StorageComponent.class);
+
+  {
+    when(pendingStorage.asyncSpanConsumer()).thenReturn(new AsyncSpanConsumer() {
+      @Override public void accept(List<Span> spans, Callback<Void> callback) {
+        storageRequests.add(spans);
+      }
+    });
+  }
+
+  Collector.Builder builder = Collector.builder(TailSamplingSpanConsumerTest.class)
+      .storage(pendingStorage)
+      .metrics(metrics)
+      .tailSamplingRate(0.0f)
+      .tailSamplingSlowTrace(1, TimeUnit.SECONDS)
+      .tailSamplingWindow(160, TimeUnit.MILLISECONDS);
+  // Built without tail sampling, so that tests advance the wheel instead of a thread
+  Collector collector = Collector.builder(TailSamplingSpanConsumerTest.class)
+      .storage(pendingStorage).metrics(metrics).build();
+  TailSamplingSpanConsumer tailSampler = new TailSamplingSpanConsumer(asList(), builder);
+
+  @Test
+  public void ticksPerWindow() {
+    assertThat(tailSampler.tickNanos).isEqualTo(TimeUnit.MILLISECONDS.toNanos(10));
+    assertThat(tailSampler.ticksPerWindow).isEqualTo(16);
+  }
+
+  @Test
+  public void decidesWhenWindowCloses() {
+    Span error = span(1L, 1L, 100L).toBuilder()
+        .addBinaryAnnotation(BinaryAnnotation.create(Constants.ERROR, "timeout", web)).build();
+    tailSampler.offer(collector, asList(span(1L, 2L, 100L)));
+    tailSampler.offer(collector, asList(error));
+
+    for (int i = 0; i < tailSampler.ticksPerWindow - 1; i++) {
+      assertThat(tailSampler.advance()).isEmpty();
+    }
+    assertThat(tailSampler.advance()).containsExactly(span(1L, 2L, 100L), error);
+    assertThat(tailSampler.traces).isEmpty();
+    assertThat(tailSampler.bufferedSpans).isZero();
+  }
+
+  @Test
+  public void keepsSlowTraces() {
+    tailSampler.offer(collector, asList(span(1L, 1L, 2_000_000L), span(2L, 2L, 500_000L)));
+
+    assertThat(advanceWindow()).containsExactly(span(1L, 1L, 2_000_000L));
+  }
+
+  /** A trace is slow when its spans together last longer than the threshold */
+  @Test
+  public void keepsSlowTraces_acrossSpans() {
+    Span first = span(1L, 1L, 600_000L);
+    Span second = span(1L, 2L, 600_000L).toBuilder().timestamp(first.timestamp + 600_000L).build();
+    tailSampler.offer(collector, asList(first, second));
+
+    assertThat(advanceWindow()).containsExactly(first, second);
+  }
+
+  @Test
+  public void dropsOthers() {
+    tailSampler.offer(collector, asList(span(1L, 1L, 100L), span(2L, 2L, 100L)));
+
+    assertThat(advanceWindow()).isEmpty();
+    assertThat(metrics.spansDropped()).isEqualTo(2);
+  }
+
+  @Test
+  public void keptTracesRetainEncodedSpans() {
+    Span error = span(1L, 1L, 100L).toBuilder()
+        .addBinaryAnnotation(BinaryAnnotation.create(Constants.ERROR, "timeout", web)).build();
+    tailSampler.offer(collector, Codec.THRIFT.readEncodedSpans(Codec.THRIFT.writeSpans(asList(error))));
+
+    List<Span> kept = advanceWindow();
+    assertThat(EncodedSpanList.encoded(kept, 0, Codec.THRIFT))
+        .isEqualTo(ByteBuffer.wrap(Codec.THRIFT.writeSpan(error)));
+  }
+
+  @Test
+  public void offer_falseWhenFull() {
+    tailSampler = new TailSamplingSpanConsumer(asList(), builder.tailSamplingMaxSpans(2));
+
+    assertThat(tailSampler.offer(collector, asList(span(1L, 1L, 100L), span(2L, 2L, 100L)))).isTrue();
+    assertThat(tailSampler.offer(collector, asList(span(3L, 3L, 100L)))).isFalse();
+
+    advanceWindow();
+    assertThat(tailSampler.offer(collector, asList(span(3L, 3L, 100L)))).isTrue();
+  }
+
+  @Test
+  public void collectorStoresKeptTraces() throws InterruptedException {
+    collector = builder.build();
+    Span error = span(1L, 1L, 100L).toBuilder()
+        .addBinaryAnnotation(BinaryAnnotation.create(Constants.ERROR, "timeout", web)).build();
+
+    collector.accept(asList(span(2L, 2L, 100L), error), Callback.NOOP);
+
+    assertThat(storageRequests.poll(10, TimeUnit.SECONDS)).containsExactly(error);
+    collector.close();
+  }
+
+  @Test
+  public void keysTracesOnTraceIdHigh() {
+    Span error = span(1L, 1L, 100L).toBuilder().traceIdHigh(2L)
+        .addBinaryAnnotation(BinaryAnnotation.create(Constants.ERROR, "timeout", web)).build();
+    tailSampler.offer(collector, asList(span(1L, 2L, 100L), error));
+
+    assertThat(tailSampler.traces).hasSize(2);
+    assertThat(advanceWindow()).containsExactly(error);
+    assertThat(metrics.spansDropped()).isEqualTo(1);
+  }
+
+  @Test
+  public void collectorsWithSameSettingsShareOneStage() throws InterruptedException {
+    Collector collector1 = builder.build(), collector2 = builder.build();
+    Collector other = builder.tailSamplingRate(1.0f).build();
+    try {
+      assertThat(collector1.tailSampler).isSameAs(collector2.tailSampler);
+      assertThat(other.tailSampler).isNotSameAs(collector1.tailSampler);
+
+      Thread ticker = collector1.tailSampler.ticker;
+      collector1.close();
+      assertThat(ticker.isAlive()).isTrue();
+
+      collector2.close();
+      ticker.join(10_000L);
+      assertThat(ticker.isAlive()).isFalse();
+      synchronized (TailSamplingSpanConsumer.STAGES) {
+        assertThat(TailSamplingSpanConsumer.STAGES).doesNotContainValue(collector1.tailSampler);
+      }
+    } finally {
+      other.close();
+    }
+  }
+
+  @Test
+  public void close_storesBufferedTraces() {
+    collector = builder.tailSamplingWindow(1, TimeUnit.HOURS).build();
+    Span error = span(1L, 1L, 100L).toBuilder()
+        .addBinaryAnnotation(BinaryAnnotation.create(Constants.ERROR, "timeout", web)).build();
+    collector.accept(asList(span(2L, 2L, 100L), error), Callback.NOOP);
+    assertThat(storageRequests).isEmpty();
+
+    collector.close();
+
+    assertThat(storageRequests).containsExactly(asList(error));
+    assertThat(metrics.spansDropped()).isEqualTo(1);
+  }
+
+  @Test
+  public void closedCollectorsTracesAreStoredByAnother() {
+    collector = builder.tailSamplingWindow(1, TimeUnit.HOURS).build();
+    Collector remaining = builder.build();
+    Span error = span(1L, 1L, 100L).toBuilder()
+        .addBinaryAnnotation(BinaryAnnotation.create(Constants.ERROR, "timeout", web)).build();
+    collector.accept(asList(error), Callback.NOOP);
+    collector.close();
+
+    TailSamplingSpanConsumer stage = remaining.tailSampler;
+    assertThat(stage.collectorOf(stage.traces.values().iterator().next())).isSameAs(remaining);
+    remaining.close();
+    assertThat(storageRequests).containsExactly(asList(error));
+  }
+
+  List<Span> advanceWindow() {
+    List<Span> result = null;
+    for (int i = 0; i < tailSampler.ticksPerWindow; i++) {
+      result = tailSampler.advance();
+    }
+    return result;
+  }
+
+  Span span(long traceId, long id, long duration) {
+    long timestamp = 1472470996199000L;
+    return Span.builder().traceId(traceId).id(id).name("get")
+        .timestamp(timestamp).duration(duration)
+        .addAnnotation(Annotation.create(timestamp, Constants.SERVER_RECV, web))
+        .addAnnotation(Annotation.create(timestamp + duration, Constants.SERVER_SEND, web))
+        .build();
+  }
+}
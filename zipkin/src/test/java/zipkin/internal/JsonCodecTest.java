@@ -13,7 +13,10 @@
  */
 package zipkin.internal;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 import org.junit.Test;
 import zipkin.BinaryAnnotation;
@@ -42,6 +45,46 @@ public final class JsonCodecTest extends CodecTest {
         .isEqualTo(traces);
   }
 
+  @Test
+  public void readSpansFromInputStream_chunked() throws IOException {
+    List<Span> spans = asList(TestObjects.LOTS_OF_SPANS).subList(0, 1000);
+    byte[] bytes = codec().writeSpans(spans);
+
+    List<List<Span>> chunks = new ArrayList<>();
+    assertThat(codec().readSpans(new ByteArrayInputStream(bytes), 100, chunks::add))
+        .isEqualTo(1000);
+
+    assertThat(chunks).hasSize(10);
+    assertThat(chunks.stream().flatMap(List::stream)).containsExactlyElementsOf(spans);
+  }
+
+  @Test
+  public void readSpansFromInputStream_malformed() throws IOException {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("Malformed reading List<Span> from json");
+
+    codec().readSpans(new ByteArrayInputStream("hello".getBytes(UTF_8)), 1, chunk -> true);
+  }
+
+  @Test
+  public void readSpansFromInputStream_empty() throws IOException {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("Empty input reading List<Span>");
+
+    codec().readSpans(new ByteArrayInputStream(new byte[0]), 1, chunk -> true);
+  }
+
+  @Test
+  public void readSpansFromByteBuffer_chunked() throws IOException {
+    byte[] bytes = codec().writeSpans(TestObjects.TRACE);
+
+    List<List<Span>> chunks = new ArrayList<>();
+    codec().readSpans(ByteBuffer.wrap(bytes), 2, chunks::add);
+
+    assertThat(chunks).containsExactly(
+        TestObjects.TRACE.subList(0, 2), TestObjects.TRACE.subList(2, 3));
+  }
+
   @Test
   public void stringsRoundTrip() throws IOException {
     List<String> strings = asList("foo", "bar", "baz");
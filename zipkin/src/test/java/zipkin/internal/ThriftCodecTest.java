@@ -13,10 +13,14 @@
  */
 package zipkin.internal;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import org.junit.Test;
+import zipkin.BinaryAnnotation;
 import zipkin.CodecTest;
 import zipkin.DependencyLink;
 import zipkin.Span;
@@ -42,6 +46,48 @@ public final class ThriftCodecTest extends CodecTest {
     }
   }
 
+  @Test
+  public void readEncodedSpans_retainsBytesOfEachSpan() throws IOException {
+    byte[] bytes = codec().writeSpans(TestObjects.TRACE);
+
+    EncodedSpanList spans = codec().readEncodedSpans(bytes);
+
+    assertThat(spans).isEqualTo(TestObjects.TRACE);
+    for (int i = 0; i < spans.size(); i++) {
+      ByteBuffer encoded = spans.encoded(i);
+      byte[] span = new byte[encoded.remaining()];
+      encoded.get(span);
+      assertThat(span).isEqualTo(codec().writeSpan(TestObjects.TRACE.get(i)));
+    }
+  }
+
+  @Test
+  public void readEncodedSpans_list_ignoresTrailingBytes() throws IOException {
+    byte[] span = codec().writeSpan(TestObjects.TRACE.get(0));
+    byte[] withTrailingByte = Arrays.copyOf(span, span.length + 1);
+
+    EncodedSpanList spans = codec().readEncodedSpans(asList(withTrailingByte));
+
+    assertThat(spans).containsExactly(TestObjects.TRACE.get(0));
+    assertThat(spans.encoded(0)).isEqualTo(ByteBuffer.wrap(span));
+  }
+
+  @Test
+  public void readEncodedSpans_concatenated_retainsViewsOfBuffer() throws IOException {
+    byte[] span1 = codec().writeSpan(TestObjects.TRACE.get(0));
+    byte[] span2 = codec().writeSpan(TestObjects.TRACE.get(1));
+    byte[] buffer = new byte[span1.length + span2.length + 10]; // trailing bytes are ignored
+    System.arraycopy(span1, 0, buffer, 0, span1.length);
+    System.arraycopy(span2, 0, buffer, span1.length, span2.length);
+
+    EncodedSpanList spans =
+        codec().readEncodedSpans(buffer, new int[] {span1.length, buffer.length, 0}, 2);
+
+    assertThat(spans).containsExactly(TestObjects.TRACE.get(0), TestObjects.TRACE.get(1));
+    assertThat(spans.encoded(0)).isEqualTo(ByteBuffer.wrap(span1));
+    assertThat(spans.encoded(1)).isEqualTo(ByteBuffer.wrap(span2));
+  }
+
   @Test
   public void sizeInBytes_span() throws IOException {
     Span span = TestObjects.LOTS_OF_SPANS[0];
@@ -71,4 +117,63 @@ public final class ThriftCodecTest extends CodecTest {
     assertThat(codec().readDependencyLinks(ByteBuffer.wrap(bytes)))
         .isEqualTo(links);
   }
+
+  @Test
+  public void readSpansFromInputStream_chunked() throws IOException {
+    List<Span> spans = asList(TestObjects.LOTS_OF_SPANS).subList(0, 1000);
+    byte[] bytes = codec().writeSpans(spans);
+
+    List<List<Span>> chunks = new ArrayList<>();
+    assertThat(codec().readSpans(new ByteArrayInputStream(bytes), 100, chunks::add))
+        .isEqualTo(1000);
+
+    assertThat(chunks).hasSize(10);
+    assertThat(chunks.stream().flatMap(List::stream)).containsExactlyElementsOf(spans);
+  }
+
+  /** Spans larger than the initial buffer should grow it */
+  @Test
+  public void readSpansFromInputStream_largeSpan() throws IOException {
+    char[] value = new char[ThriftCodec.StreamBuffer.INITIAL_CAPACITY * 3];
+    Arrays.fill(value, 'a');
+    Span span = TestObjects.LOTS_OF_SPANS[0].toBuilder()
+        .addBinaryAnnotation(BinaryAnnotation.create("big", new String(value), null))
+        .build();
+    List<Span> spans = asList(TestObjects.LOTS_OF_SPANS[1], span, TestObjects.LOTS_OF_SPANS[2]);
+    byte[] bytes = codec().writeSpans(spans);
+
+    List<Span> result = new ArrayList<>();
+    codec().readSpans(new ByteArrayInputStream(bytes), 1, chunk -> result.addAll(chunk));
+
+    assertThat(result).isEqualTo(spans);
+  }
+
+  @Test
+  public void readSpansFromInputStream_stopsWhenConsumerReturnsFalse() throws IOException {
+    byte[] bytes = codec().writeSpans(TestObjects.TRACE);
+
+    assertThat(codec().readSpans(new ByteArrayInputStream(bytes), 1, chunk -> false))
+        .isEqualTo(1);
+  }
+
+  @Test
+  public void readSpansFromInputStream_truncated() throws IOException {
+    byte[] bytes = codec().writeSpans(TestObjects.TRACE);
+
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("EOF reading List<Span> from TBinary");
+
+    codec().readSpans(new ByteArrayInputStream(bytes, 0, bytes.length - 1), 1, chunk -> true);
+  }
+
+  @Test
+  public void readSpansFromByteBuffer_chunked() throws IOException {
+    byte[] bytes = codec().writeSpans(TestObjects.TRACE);
+
+    List<List<Span>> chunks = new ArrayList<>();
+    codec().readSpans(ByteBuffer.wrap(bytes), 2, chunks::add);
+
+    assertThat(chunks).containsExactly(
+        TestObjects.TRACE.subList(0, 2), TestObjects.TRACE.subList(2, 3));
+  }
 }
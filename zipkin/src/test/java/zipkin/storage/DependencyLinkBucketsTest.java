@@ -0,0 +1,68 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.storage;
+
+import java.util.Collections;
+import org.junit.Test;
+import zipkin.DependencyLink;
+import zipkin.storage.DependencyLinkBuckets.TraceLinks;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin.storage.DependencyLinkBuckets.BUCKET_MICROS;
+
+public class DependencyLinkBucketsTest {
+  DependencyLinkBuckets buckets = new DependencyLinkBuckets();
+
+  TraceLinks early = new TraceLinks(BUCKET_MICROS + 1,
+      asList(DependencyLink.create("web", "app", 1L)));
+  TraceLinks late = new TraceLinks(2 * BUCKET_MICROS - 1,
+      asList(DependencyLink.create("web", "app", 2L), DependencyLink.create("app", "db", 1L)));
+
+  @Test public void sum_wholeBucket() {
+    buckets.replace(Collections.<TraceLinks>emptyList(), asList(early, late));
+
+    assertThat(buckets.sum(0L, 3 * BUCKET_MICROS)).containsOnly(
+        DependencyLink.create("web", "app", 3L),
+        DependencyLink.create("app", "db", 1L)
+    );
+  }
+
+  @Test public void sum_partialBucket() {
+    buckets.replace(Collections.<TraceLinks>emptyList(), asList(early, late));
+
+    assertThat(buckets.sum(0L, BUCKET_MICROS + 1))
+        .containsOnly(DependencyLink.create("web", "app", 1L));
+    assertThat(buckets.sum(BUCKET_MICROS + 2, 3 * BUCKET_MICROS)).containsOnly(
+        DependencyLink.create("web", "app", 2L),
+        DependencyLink.create("app", "db", 1L)
+    );
+  }
+
+  @Test public void replace_subtractsOldLinks() {
+    buckets.replace(Collections.<TraceLinks>emptyList(), asList(early, late));
+    buckets.replace(asList(late), Collections.<TraceLinks>emptyList());
+
+    assertThat(buckets.sum(0L, 3 * BUCKET_MICROS))
+        .containsOnly(DependencyLink.create("web", "app", 1L));
+
+    buckets.replace(asList(early), Collections.<TraceLinks>emptyList());
+    assertThat(buckets.buckets).isEmpty();
+  }
+
+  @Test public void bucketStart_negative() {
+    assertThat(DependencyLinkBuckets.bucketStart(-1L)).isEqualTo(-BUCKET_MICROS);
+    assertThat(DependencyLinkBuckets.bucketStart(-BUCKET_MICROS)).isEqualTo(-BUCKET_MICROS);
+  }
+}
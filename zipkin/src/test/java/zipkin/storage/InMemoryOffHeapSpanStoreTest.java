@@ -0,0 +1,65 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.storage;
+
+import org.junit.Test;
+import zipkin.Span;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class InMemoryOffHeapSpanStoreTest extends SpanStoreTest {
+  final InMemoryStorage storage = InMemoryStorage.builder().maxSpanBytes(1024 * 1024).build();
+
+  @Override protected StorageComponent storage() {
+    return storage;
+  }
+
+  @Test public void getRawTrace_sameSpanTwice() {
+    accept(span1);
+    accept(span1);
+
+    assertThat(store().getRawTrace(span1.traceIdHigh, span1.traceId))
+      .containsExactly(span1, span1);
+  }
+
+  @Test public void evictsOldestTracesWhenFull() {
+    InMemoryStorage storage = InMemoryStorage.builder().maxSpanBytes(10 * 1024).build();
+    for (long traceId = 1; traceId <= 1000; traceId++) {
+      storage.spanConsumer().accept(asList(span1.toBuilder().traceId(traceId).build()));
+    }
+
+    assertThat(storage.spanStore().getRawTrace(1L)).isNull();
+    assertThat(storage.spanStore().getRawTrace(1000L))
+      .containsExactly(span1.toBuilder().traceId(1000L).build());
+    assertThat(storage.spanStore().getRawTraces().size()).isLessThan(100);
+    assertThat(storage.spanStore().getRawTraces())
+      .allSatisfy(trace -> assertThat(trace.get(0).traceId).isGreaterThan(900L));
+    assertThat(storage.spanStore().getServiceNames()).isNotEmpty();
+  }
+
+  @Test public void dropsSpanLargerThanArena() {
+    InMemoryStorage storage = InMemoryStorage.builder().maxSpanBytes(64).build();
+    Span span = span1.toBuilder().name(new String(new char[100]).replace('\0', 'a')).build();
+    storage.spanConsumer().accept(asList(span));
+
+    assertThat(storage.spanStore().getRawTraces()).isEmpty();
+    assertThat(storage.acceptedSpanCount()).isZero();
+  }
+
+  @Override
+  public void clear() {
+    storage.clear();
+  }
+}
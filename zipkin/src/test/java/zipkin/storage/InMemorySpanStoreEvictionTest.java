@@ -16,6 +16,7 @@ package zipkin.storage;
 import org.junit.Before;
 import org.junit.Test;
 import zipkin.Annotation;
+import zipkin.DependencyLink;
 import zipkin.Endpoint;
 import zipkin.Span;
 import zipkin.TestObjects;
@@ -142,6 +143,53 @@ public class InMemorySpanStoreEvictionTest {
     assertThat(spansEvicted).isEqualTo(0);
   }
 
+  @Test
+  public void evict_removesSpanNamesNoLongerReferenced() {
+    consumer.accept(asList(span1, span2, span3a));
+    assertThat(store.getSpanNames("serviceA")).containsExactly("get", "post");
+
+    // span2 still references "get"
+    store.evictToRecoverSpans(1);
+    assertThat(store.getSpanNames("serviceA")).containsExactly("get", "post");
+
+    store.evictToRecoverSpans(1);
+    assertThat(store.getSpanNames("serviceA")).containsExactly("post");
+  }
+
+  @Test
+  public void evict_subtractsDependencyLinks() {
+    Span client = span3a.toBuilder().annotations(asList(
+        Annotation.create(ann5.timestamp, "cs", epA),
+        Annotation.create(ann6.timestamp, "cr", epA))).build();
+    Span server = client.toBuilder().annotations(asList(
+        Annotation.create(ann5.timestamp, "sr", epB),
+        Annotation.create(ann6.timestamp, "ss", epB))).build();
+    consumer.accept(asList(client, server));
+    assertThat(store.getDependencies(TODAY + 1000L, null)).containsOnly(
+        DependencyLink.create("servicea", "serviceb", 1L)
+    );
+
+    store.evictToRecoverSpans(1);
+    assertThat(store.getDependencies(TODAY + 1000L, null)).isEmpty();
+  }
+
+  @Test
+  public void evict_subtractsLinksOfTracesNeverQueried() {
+    Span client = span3a.toBuilder().annotations(asList(
+        Annotation.create(ann5.timestamp, "cs", epA),
+        Annotation.create(ann6.timestamp, "cr", epA))).build();
+    Span server = client.toBuilder().annotations(asList(
+        Annotation.create(ann5.timestamp, "sr", epB),
+        Annotation.create(ann6.timestamp, "ss", epB))).build();
+    // halves arrive separately, and the trace is evicted before any dependency query
+    consumer.accept(asList(client));
+    consumer.accept(asList(server));
+    store.evictToRecoverSpans(1);
+
+    consumer.accept(asList(span1));
+    assertThat(store.getDependencies(TODAY + 1000L, null)).isEmpty();
+  }
+
   @Test
   public void evict_oneTraceMultipleSpans() {
     Span testSpan1 = span1.toBuilder().traceIdHigh(1L).traceId(123).
@@ -13,9 +13,20 @@
  */
 package zipkin.storage;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.junit.Test;
+import zipkin.Annotation;
+import zipkin.Span;
 
+import static java.util.Arrays.asList;
 import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin.TestObjects.LINKS;
+import static zipkin.TestObjects.TODAY;
+import static zipkin.TestObjects.TRACE;
 
 public class InMemorySpanStoreTest extends SpanStoreTest {
   final InMemoryStorage storage = new InMemoryStorage();
@@ -33,6 +44,110 @@ public class InMemorySpanStoreTest extends SpanStoreTest {
       .containsExactly(span1, span1);
   }
 
+  @Test public void getTraces_rangeExcludesTracesBeforeLookback() {
+    Span old = span1.toBuilder().traceId(1L)
+        .timestamp((today - 60_000) * 1000).duration(null).annotations(asList()).build();
+    accept(old, span1);
+
+    QueryRequest request = QueryRequest.builder().endTs(today + 100).lookback(1000L).build();
+    assertThat(storage.spanStore().traceKeysDescendingByTimestamp(request))
+        .extracting(k -> k.traceId)
+        .containsExactly(span1.traceId);
+  }
+
+  /** The time range is extended by the widest trace, as a later span might match. */
+  @Test public void getTraces_rangeIncludesTracesWhoseKeyIsBeforeLookback() {
+    // an annotation earlier than the span's timestamp makes the trace key earlier than lookback
+    Span span = span1.toBuilder()
+        .addAnnotation(Annotation.create((today - 5000) * 1000, "earlier", ep)).build();
+    accept(span);
+
+    QueryRequest request = QueryRequest.builder().endTs(today + 100).lookback(1000L).build();
+    assertThat(store().getTraces(request)).hasSize(1);
+  }
+
+  /** Once the widest trace is evicted, queries stop extending their range for it. */
+  @Test public void getTraces_rangeShrinksWhenWidestTraceIsEvicted() {
+    InMemoryStorage storage = InMemoryStorage.builder().maxSpanCount(1).build();
+    Span wide = span1.toBuilder().traceId(1L)
+        .addAnnotation(Annotation.create((today - 60_000) * 1000, "earlier", ep)).build();
+    storage.spanConsumer().accept(asList(wide));
+    assertThat(storage.spanStore().maxTraceTimestampSpread()).isGreaterThan(60_000_000L);
+
+    storage.spanConsumer().accept(asList(span1));
+
+    assertThat(storage.spanStore().getRawTraces()).hasSize(1);
+    assertThat(storage.spanStore().maxTraceTimestampSpread()).isLessThan(60_000_000L);
+  }
+
+  @Test public void getTraces_skipsTracesWithoutSpanName() {
+    accept(span1, span2.toBuilder().name("other").build());
+
+    assertThat(store().getTraces(QueryRequest.builder().spanName("other").build()))
+        .extracting(t -> t.get(0).traceId)
+        .containsExactly(span2.traceId);
+  }
+
+  /** Adding spans in small batches shouldn't re-link the trace each time */
+  @Test public void getDependencies_linksChangedTracesOnce() {
+    for (Span span : TRACE) accept(span);
+    assertThat(storage.spanStore().changedTraceIds).containsExactly(TRACE.get(0).traceId);
+
+    assertThat(store().getDependencies(TODAY + 1000L, null)).containsOnlyElementsOf(LINKS);
+    assertThat(storage.spanStore().changedTraceIds).isEmpty();
+  }
+
+  @Test public void concurrentWritesAndReads() throws Exception {
+    InMemoryStorage storage = InMemoryStorage.builder().concurrencyLevel(4).build();
+    ExecutorService exec = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int thread = 0; thread < 4; thread++) {
+        long traceIdOffset = thread * 1000L;
+        futures.add(exec.submit(() -> {
+          for (long i = 1; i <= 500; i++) {
+            Span span = span1.toBuilder().traceId(traceIdOffset + i).build();
+            storage.spanConsumer().accept(asList(span));
+            storage.spanStore().getServiceNames(); // reads don't block writes
+          }
+        }));
+      }
+      for (Future<?> future : futures) future.get();
+    } finally {
+      exec.shutdownNow();
+    }
+
+    assertThat(storage.acceptedSpanCount()).isEqualTo(2000);
+    assertThat(storage.spanStore().getRawTraces()).hasSize(2000);
+    assertThat(storage.spanStore().getRawTrace(3001L)).extracting(s -> s.traceId)
+        .containsExactly(3001L);
+  }
+
+  @Test public void concurrentWrites_maxSpanCount() throws Exception {
+    InMemoryStorage storage =
+        InMemoryStorage.builder().concurrencyLevel(4).maxSpanCount(100).build();
+    ExecutorService exec = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int thread = 0; thread < 4; thread++) {
+        long traceIdOffset = thread * 1000L;
+        futures.add(exec.submit(() -> {
+          for (long i = 1; i <= 500; i++) {
+            Span span = span1.toBuilder().traceId(traceIdOffset + i)
+                .timestamp(span1.timestamp + i).build();
+            storage.spanConsumer().accept(asList(span));
+          }
+        }));
+      }
+      for (Future<?> future : futures) future.get();
+    } finally {
+      exec.shutdownNow();
+    }
+
+    assertThat(storage.acceptedSpanCount()).isEqualTo(2000);
+    assertThat(storage.spanStore().getRawTraces()).hasSize(100);
+  }
+
   @Override
   public void clear() {
     storage.clear();
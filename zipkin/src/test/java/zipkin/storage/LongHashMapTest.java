@@ -0,0 +1,74 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.storage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LongHashMapTest {
+  LongHashMap<String> map = new LongHashMap<>();
+
+  @Test public void putGetRemove() {
+    assertThat(map.put(1L, "1")).isNull();
+    assertThat(map.put(1L, "one")).isEqualTo("1");
+    assertThat(map.get(1L)).isEqualTo("one");
+    assertThat(map.size()).isEqualTo(1);
+
+    assertThat(map.remove(1L)).isEqualTo("one");
+    assertThat(map.remove(1L)).isNull();
+    assertThat(map.get(1L)).isNull();
+    assertThat(map.size()).isZero();
+  }
+
+  @Test public void zeroAndNegativeKeys() {
+    map.put(0L, "zero");
+    map.put(-1L, "minus one");
+    map.put(Long.MIN_VALUE, "min");
+
+    assertThat(map.get(0L)).isEqualTo("zero");
+    assertThat(map.get(-1L)).isEqualTo("minus one");
+    assertThat(map.get(Long.MIN_VALUE)).isEqualTo("min");
+  }
+
+  @Test public void clear() {
+    map.put(1L, "1");
+    map.clear();
+
+    assertThat(map.size()).isZero();
+    assertThat(map.get(1L)).isNull();
+  }
+
+  /** Exercises resizing and the back-shifting of collided entries on removal */
+  @Test public void consistentWithHashMap() {
+    Map<Long, String> expected = new LinkedHashMap<>();
+    Random random = new Random(1234L);
+    for (int i = 0; i < 100000; i++) {
+      long key = random.nextInt(2000); // small key space to force collisions and removals
+      if (random.nextBoolean()) {
+        assertThat(map.put(key, "v" + i)).isEqualTo(expected.put(key, "v" + i));
+      } else {
+        assertThat(map.remove(key)).isEqualTo(expected.remove(key));
+      }
+    }
+
+    assertThat(map.size()).isEqualTo(expected.size());
+    for (long key = 0; key < 2000; key++) {
+      assertThat(map.get(key)).isEqualTo(expected.get(key));
+    }
+  }
+}
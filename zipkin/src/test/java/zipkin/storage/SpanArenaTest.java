@@ -0,0 +1,96 @@
+/**
+ * Copyright 2015-2017 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpanArenaTest {
+  List<Long> evicted = new ArrayList<>();
+  SpanArena.Evictor evictor = (traceId, position) -> evicted.add(traceId);
+
+  // two segments, each fitting two 20 byte records
+  static final int RECORD_SIZE = SpanArena.HEADER_SIZE + 20;
+  SpanArena arena = new SpanArena(2 * 2 * RECORD_SIZE, 2 * RECORD_SIZE);
+
+  @Test public void appendAndRead() {
+    long position = arena.append(1L, bytes(20, 'a'), evictor);
+
+    assertThat(arena.read(position)).isEqualTo(bytes(20, 'a'));
+    assertThat(evicted).isEmpty();
+  }
+
+  @Test public void overwritesOldest() {
+    long[] positions = new long[5];
+    for (int i = 0; i < 5; i++) {
+      positions[i] = arena.append(i, bytes(20, (char) ('a' + i)), evictor);
+    }
+
+    assertThat(evicted).containsExactly(0L);
+    assertThat(arena.read(positions[0])).isNull();
+    for (int i = 1; i < 5; i++) {
+      assertThat(arena.read(positions[i])).isEqualTo(bytes(20, (char) ('a' + i)));
+    }
+  }
+
+  @Test public void skipsRemainderOfSegment() {
+    long first = arena.append(1L, bytes(30, 'a'), evictor);
+    long second = arena.append(2L, bytes(30, 'b'), evictor); // doesn't fit after the first
+
+    assertThat(second).isEqualTo(arena.segmentSize);
+    long third = arena.append(3L, bytes(30, 'c'), evictor); // wraps, evicting the first
+
+    assertThat(evicted).containsExactly(1L);
+    assertThat(arena.read(first)).isNull();
+    assertThat(arena.read(second)).isEqualTo(bytes(30, 'b'));
+    assertThat(arena.read(third)).isEqualTo(bytes(30, 'c'));
+  }
+
+  @Test public void sizesLastSegmentToRemainder() {
+    arena = new SpanArena(2 * RECORD_SIZE + RECORD_SIZE - 1, 2 * RECORD_SIZE);
+    assertThat(arena.segments[1].capacity()).isEqualTo(RECORD_SIZE - 1);
+
+    long[] positions = new long[3];
+    for (int i = 0; i < 3; i++) { // the third doesn't fit in the last segment, so wraps
+      positions[i] = arena.append(i, bytes(20, (char) ('a' + i)), evictor);
+    }
+
+    assertThat(positions[2]).isEqualTo(2 * arena.segmentSize);
+    assertThat(evicted).containsExactly(0L);
+    assertThat(arena.read(positions[1])).isEqualTo(bytes(20, 'b'));
+    assertThat(arena.read(positions[2])).isEqualTo(bytes(20, 'c'));
+  }
+
+  @Test public void tooLarge() {
+    assertThat(arena.append(1L, bytes(arena.segmentSize, 'a'), evictor)).isEqualTo(-1L);
+  }
+
+  @Test public void clear() {
+    long position = arena.append(1L, bytes(20, 'a'), evictor);
+    arena.clear();
+
+    assertThat(arena.read(position)).isNull();
+    assertThat(arena.append(2L, bytes(20, 'b'), evictor)).isGreaterThan(position);
+  }
+
+  static byte[] bytes(int length, char value) {
+    byte[] result = new byte[length];
+    Arrays.fill(result, (byte) value);
+    return result;
+  }
+}